@@ -55,6 +55,8 @@ android {
 }
 
 dependencies {
+    implementation(project(":mesh"))
+
     implementation("com.google.android.gms:play-services-nearby:18.5.0")
 
     implementation("androidx.legacy:legacy-support-v4:1.0.0")
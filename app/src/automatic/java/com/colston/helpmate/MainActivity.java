@@ -42,14 +42,25 @@ import androidx.appcompat.app.ActionBar;
 import androidx.core.view.ViewCompat;
 import com.google.android.gms.common.api.ResolvableApiException;
 import com.google.android.gms.location.*;
-import com.google.android.gms.nearby.connection.ConnectionInfo;
-import com.google.android.gms.nearby.connection.Payload;
 import com.google.android.gms.nearby.connection.Strategy;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.Task;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Our Main Activity. This Activity has 3 {@link State}s.
@@ -76,6 +87,96 @@ public class MainActivity extends ConnectionsActivity {
    */
   private static final Strategy STRATEGY = Strategy.P2P_CLUSTER;
 
+  /** The file undeliverable messages are kept in while the app isn't running. */
+  private static final String STORE_AND_FORWARD_FILE = "store_and_forward.bin";
+
+  /** The file what we know about our peers is kept in while the app isn't running. */
+  private static final String PEER_CACHE_FILE = "peers.bin";
+
+  /** The most peers we remember. */
+  private static final int PEER_CACHE_CAPACITY = 64;
+
+  /** How long we remember a peer after we last saw it, in milliseconds. */
+  private static final long PEER_CACHE_LIFETIME = 7 * 24 * 60 * 60 * 1000L;
+
+  /** The weight of the latest connection attempt in a peer's success rate. */
+  private static final double PEER_SUCCESS_GAIN = 0.25;
+
+  /**
+   * Peers we saw this recently before the app stopped are probably still nearby when it starts
+   * again, in milliseconds.
+   */
+  private static final long REJOIN_WINDOW = 10 * 60 * 1000;
+
+  /** How long we discover without a rest after a restart, to find those peers again. */
+  private static final long REJOIN_SCAN_DURATION = 60000;
+
+  /**
+   * The longest extra wait before connecting to a node, in milliseconds. Nodes that connected well
+   * before wait the least of it, so they get the first requests.
+   */
+  private static final long CONNECT_PRIORITY_SPREAD = 1000;
+
+  /** The number of bytes of a relayed audio stream copied at a time. */
+  private static final int STREAM_CHUNK_SIZE = 1024;
+
+  /**
+   * The most audio held for each reader of a relayed stream. A reader that falls further behind
+   * loses audio rather than delaying it.
+   */
+  private static final int STREAM_BUFFER_CAPACITY = 8 * 1024;
+
+  /** The {@link TaskScheduler} key of the task that runs {@link #mReconnects}. */
+  private static final String RECONNECT_TASK = "reconnect";
+
+  /** The most random time an action waits before it starts, in milliseconds. */
+  private static final long ACTION_JITTER = 500;
+
+  /** The wait before we first try connecting to a node again, in milliseconds. */
+  private static final long RECONNECT_INITIAL_DELAY = 2000;
+
+  /** The longest wait between two attempts to connect to the same node, in milliseconds. */
+  private static final long RECONNECT_MAX_DELAY = 60000;
+
+  /** The most random share of a reconnect wait added to it. */
+  private static final double RECONNECT_JITTER = 0.5;
+
+  /** The failed connection attempts in a row after which we leave a node alone for a while. */
+  private static final int RECONNECT_MAX_ATTEMPTS = 6;
+
+  /** How long we leave a node alone once it has used up its attempts, in milliseconds. */
+  private static final long RECONNECT_BLACKLIST_DURATION = 5 * 60 * 1000;
+
+  /** The neighbors we want at least. Below this we link up with any node we find. */
+  private static final int MIN_DEGREE = 2;
+
+  /**
+   * The neighbors we want at most. Bluetooth slows to a crawl beyond a handful of links, so past
+   * this we refuse new links and prune redundant ones.
+   */
+  private static final int MAX_DEGREE = 4;
+
+  /**
+   * How long a new link is left alone before it may be pruned, and the least time between two
+   * prunes, in milliseconds. Long enough for a few rounds of neighbor beacons.
+   */
+  private static final long DEGREE_SETTLE_TIME = 15000;
+
+  /** The {@link TaskScheduler} key of the task that runs {@link #mScans}. */
+  private static final String SCAN_TASK = "scan";
+
+  /** How long each discovery window lasts, in milliseconds. */
+  private static final long SCAN_DURATION = 10000;
+
+  /** The rest between discovery windows while our neighbors keep changing, in milliseconds. */
+  private static final long SCAN_MIN_IDLE = 10000;
+
+  /** The longest rest between discovery windows once the mesh around us is stable. */
+  private static final long SCAN_MAX_IDLE = 5 * 60 * 1000;
+
+  /** How long we discover without a rest after losing a neighbor, in milliseconds. */
+  private static final long SCAN_LOSS_RECOVERY = 60000;
+
   /** Length of state change animations. */
   private static final long ANIMATION_DURATION = 600;
 
@@ -132,14 +233,177 @@ public class MainActivity extends ConnectionsActivity {
   /** For recording audio as the user speaks. */
   @Nullable private AudioRecorder mRecorder;
 
+  /** True from when the user starts speaking until they stop, even before {@link #mRecorder}. */
+  private boolean mRecordingRequested;
+
   /** For playing audio from other users nearby. */
   @Nullable private AudioPlayer mAudioPlayer;
 
+  /** The audio streams we're currently playing and passing on. */
+  private final Set<AudioRelay> mAudioRelays = new HashSet<>();
+
   /** The phone's original media volume. */
   private int mOriginalVolume;
 
-  /** Keeps track of the previous message to prevent message loops. */
-  private String prevMessage = "";
+  /**
+   * The mesh logic: deduplication, relaying, routing, acks and link state. Only used on the mesh
+   * thread; see {@link #runOnMeshThread(Runnable)}.
+   */
+  private MeshEngine mMesh;
+
+  /** Decides when to try again to connect to nodes that failed to connect or dropped. */
+  private final ReconnectScheduler mReconnects =
+      new ReconnectScheduler(
+          Clock.SYSTEM,
+          new Random(),
+          RECONNECT_INITIAL_DELAY,
+          RECONNECT_MAX_DELAY,
+          RECONNECT_JITTER,
+          RECONNECT_MAX_ATTEMPTS,
+          RECONNECT_BLACKLIST_DURATION);
+
+  /**
+   * What we know about the nodes we've met: when we last saw them, how their links did and how
+   * often connecting to them worked. Saved when the app stops, so it can rejoin them quickly.
+   */
+  private final PeerCache mPeers =
+      new PeerCache(Clock.WALL, PEER_CACHE_CAPACITY, PEER_CACHE_LIFETIME, PEER_SUCCESS_GAIN);
+
+  /** Decides which nodes we link up with, and which links we drop when we have too many. */
+  private final DegreeController mDegree =
+      new DegreeController(Clock.SYSTEM, MIN_DEGREE, MAX_DEGREE, DEGREE_SETTLE_TIME);
+
+  /**
+   * Duty cycles discovery: all the time while we're short of neighbors or have just lost one, and
+   * less and less often while the mesh around us stays the same. Advertising stays on, so a node
+   * that's discovering hard can always find us.
+   */
+  private final ScanScheduler mScans =
+      new ScanScheduler(
+          Clock.SYSTEM,
+          new AdaptiveScanPolicy(
+              MIN_DEGREE, SCAN_DURATION, SCAN_MIN_IDLE, SCAN_MAX_IDLE, SCAN_LOSS_RECOVERY));
+
+  /** Starts and stops discovery when {@link #mScans} says so. */
+  private final ScanScheduler.Listener mScanListener =
+      new ScanScheduler.Listener() {
+        @Override
+        public void onScanStart() {
+          startAction(Action.DISCOVERY, null);
+        }
+
+        @Override
+        public void onScanStop() {
+          getScheduler().cancel(Action.DISCOVERY.toString());
+          stopDiscovering();
+        }
+      };
+
+  /** Runs {@link #mScans} when it next has a scan to start or stop. */
+  private final Runnable mScanRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mScans.runDue(mScanListener);
+          scheduleScans();
+        }
+      };
+
+  /** Connects to the nodes {@link #mReconnects} says are due for another try. */
+  private final ReconnectScheduler.Listener mReconnectListener =
+      new ReconnectScheduler.Listener() {
+        @Override
+        public void onRetry(String peer, int attempt) {
+          Endpoint endpoint = findDiscoveredEndpoint(peer);
+          if (endpoint == null || isConnectedTo(peer)) {
+            // It's out of range, or came back by itself. Discovery will bring it up again.
+            return;
+          }
+          if (!mDegree.shouldConnect(peer)) {
+            // We have enough neighbors, and it's on our map of the mesh anyway.
+            mReconnects.cancel(peer);
+            return;
+          }
+          logD("Reconnecting to " + peer + ", attempt " + attempt);
+          startAction(Action.CONNECTING, endpoint);
+        }
+      };
+
+  /** Runs the retries {@link #mReconnects} has come due. */
+  private final Runnable mReconnectRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mReconnects.runDue(mReconnectListener);
+          scheduleReconnects();
+        }
+      };
+
+  /** The number of nodes on our map of the mesh, for the status bar. */
+  private volatile int mMeshSize;
+
+  /** The nodes that would split the mesh if they left, for the status bar. */
+  private volatile List<String> mSinglePoints = Collections.emptyList();
+
+  /** Does the work of {@link #mMesh} that has come due. */
+  private final Runnable mMeshRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mMesh.runDue();
+          scheduleMesh();
+        }
+      };
+
+  /** Sends the frames {@link #mMesh} asks for, and shows its messages. */
+  private final MeshEngine.Listener mMeshListener =
+      new MeshEngine.Listener() {
+        @Override
+        public void onSend(byte[] frame, Collection<String> endpointIds) {
+          sendFrame(frame, endpointIds);
+        }
+
+        @Override
+        public void onMessage(String source, int messageId, String text, int priority) {
+          if (priority == MeshFrame.PRIORITY_EMERGENCY) {
+            logW(source + ": " + getString(R.string.msg_emergency, text));
+          } else {
+            logI(source + ": " + text);
+          }
+        }
+
+        @Override
+        public void onDelivered(String destination, int messageId) {
+          logI(getString(R.string.msg_delivered, destination));
+        }
+
+        @Override
+        public void onNotDelivered(String destination, int messageId) {
+          logI(getString(R.string.msg_not_delivered, destination));
+        }
+
+        @Override
+        public void onTopologyChanged() {
+          mMeshSize = mMesh.getLinkState().getReachableCount();
+          mSinglePoints = mMesh.getLinkState().getArticulationPoints();
+          final Set<String> reachable = mMesh.getLinkState().getReachableNodes();
+          final Set<String> redundant = mMesh.getLinkState().getRedundantNeighbors();
+          runOnUiThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  mDegree.setTopology(reachable, redundant);
+                  pruneLinks();
+                }
+              });
+          refreshStatus();
+        }
+
+        @Override
+        public void onLog(String message) {
+          logD(message);
+        }
+      };
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -212,39 +476,17 @@ public class MainActivity extends ConnectionsActivity {
         new View.OnClickListener() {
           @Override
           public void onClick(View v) {
-            String msg = et_msg.getText().toString().trim();
-            if (TextUtils.isEmpty(msg) || TextUtils.isEmpty(msg.trim())) {
-              et_msg.setError(getString(R.string.err_invalidMsg));
-              return;
-            }
-            String destAddress = et_dest.getText().toString();
-            if (TextUtils.isEmpty(destAddress) || TextUtils.isEmpty(destAddress.trim())) {
-              et_dest.setError(getString(R.string.err_invalidDestination));
-              return;
-            }
-            String destId = "";
-            try {
-              destId = destAddress;
-            } catch (Exception e) {
-              destId = "";
-            }
-            String sourceId = PeerDetails.getInstance().getPeerAddress();
-
-            if (!isOnDebugMode) {
-              appendToLogs(toColor("You: " + msg, getResources().getColor(R.color.log_debug)));
-            }
-
-            // Set previous message to the current message
-            prevMessage = msg;
-
-            // Add destId and sourceId as metadata to the start of the message
-            msg = sourceId + ":" + destId + ":" + msg;
-            byte[] dataArray = msg.getBytes();
+            sendMessage(MeshFrame.PRIORITY_BULK);
+          }
+        });
 
-            logV("Send Message to => " + destId + " : Message =>" + msg);
-            send(dataArray, 4);
-            //  et_dest.setText("");
-            et_msg.setText("");
+    // A long press sends a call for help, which the mesh puts ahead of all other traffic.
+    btn_send.setOnLongClickListener(
+        new View.OnLongClickListener() {
+          @Override
+          public boolean onLongClick(View v) {
+            sendMessage(MeshFrame.PRIORITY_EMERGENCY);
+            return true;
           }
         });
 
@@ -256,15 +498,69 @@ public class MainActivity extends ConnectionsActivity {
 
     mName = generateRandomName();
     nameTextView.setText(mName);
+
+    MeshConfig config = new MeshConfig();
+    config.relayMode = PeerDetails.getInstance().getPeerRelayMode();
+    mMesh = new MeshEngine(mName, config, Clock.SYSTEM, Clock.WALL, new Random(), mMeshListener);
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            loadPeers();
+            loadStoredFrames();
+          }
+        });
   }
 
-  private void send(byte[] dataArray, int hope) {
+  /**
+   * Sends the message the user typed to the destination they entered.
+   *
+   * @param priority The message's priority class, eg. {@link MeshFrame#PRIORITY_EMERGENCY}.
+   */
+  private void sendMessage(final int priority) {
+    final String msg = et_msg.getText().toString().trim();
+    if (TextUtils.isEmpty(msg) || TextUtils.isEmpty(msg.trim())) {
+      et_msg.setError(getString(R.string.err_invalidMsg));
+      return;
+    }
+    String destAddress = et_dest.getText().toString();
+    if (TextUtils.isEmpty(destAddress) || TextUtils.isEmpty(destAddress.trim())) {
+      et_dest.setError(getString(R.string.err_invalidDestination));
+      return;
+    }
+    final String destId = destAddress.trim();
+    if (!MeshFrame.isValidAddress(destId)) {
+      et_dest.setError(getString(R.string.err_invalidDestination));
+      return;
+    }
+
+    if (!isOnDebugMode) {
+      String shown =
+          priority == MeshFrame.PRIORITY_EMERGENCY ? getString(R.string.msg_emergency, msg) : msg;
+      appendToLogs(toColor("You: " + shown, getResources().getColor(R.color.log_debug)));
+    }
+
+    logV("Send Message to => " + destId + " : Message =>" + msg);
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            mMesh.sendText(destId, msg, priority);
+            scheduleMesh();
+          }
+        });
+    //  et_dest.setText("");
+    et_msg.setText("");
+  }
 
-    byte[] data = new byte[dataArray.length + 1];
-    data[0] = (byte) hope;
-    System.arraycopy(dataArray, 0, data, 1, dataArray.length);
-    Payload payload = Payload.fromBytes(data);
-    send(payload);
+  /** Wakes the mesh thread up when {@link #mMesh} next has work to do. */
+  @WorkerThread
+  private void scheduleMesh() {
+    getMeshHandler().removeCallbacks(mMeshRunnable);
+    long deadline = mMesh.getNextDeadline();
+    if (deadline >= 0) {
+      getMeshHandler().postDelayed(mMeshRunnable, Math.max(0, deadline - Clock.SYSTEM.now()));
+    }
   }
 
   @Override
@@ -303,9 +599,20 @@ public class MainActivity extends ConnectionsActivity {
     if (isPlaying()) {
       stopPlaying();
     }
+    stopRelaying();
 
-    // After our Activity stops, we disconnect from Nearby Connections.
+    // Remember how our links did, then disconnect from Nearby Connections.
+    updateLinkQualities();
+    final byte[] peers = getSavedPeers();
     setState(State.UNKNOWN);
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            savePeers(peers);
+            saveStoredFrames();
+          }
+        });
 
     if (mCurrentAnimator != null && mCurrentAnimator.isRunning()) {
       mCurrentAnimator.cancel();
@@ -325,14 +632,16 @@ public class MainActivity extends ConnectionsActivity {
 
   @Override
   protected void onEndpointDiscovered(Endpoint endpoint) {
-    Set<String> connectedEndPoints = mEstablishedConnections.keySet();
-    for (String node : connectedEndPoints) {
-      if (endpoint.getName().equals(mEstablishedConnections.get(node).getName())) {
-        return;
-      }
+    mPeers.onSeen(endpoint.getName());
+    if (isConnectedTo(endpoint.getName()) || mEstablishedConnections.contains(endpoint.getId())) {
+      return;
     }
-
-    if (mEstablishedConnections.get(endpoint.getId()) != null) {
+    if (mReconnects.isBlacklisted(endpoint.getName())
+        || mReconnects.isWaiting(endpoint.getName())) {
+      // Either we've given up on it for now, or a retry is already on its way.
+      return;
+    }
+    if (!mDegree.shouldConnect(endpoint.getName())) {
       return;
     }
     // We found an advertiser!
@@ -352,38 +661,163 @@ public class MainActivity extends ConnectionsActivity {
   }
 
   @Override
-  protected void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {
-    // We accept the connection immediately.
+  protected void onConnectionInitiated(Endpoint endpoint, boolean incoming) {
+    // It asked first, so we don't need to ask it ourselves.
+    getScheduler().cancel(getConnectKey(endpoint));
+    if (incoming && !mDegree.shouldAccept(endpoint.getName())) {
+      logD("Turning down " + endpoint.getName() + "; we have enough neighbors.");
+      rejectConnection(endpoint);
+      return;
+    }
     acceptConnection(endpoint);
   }
 
   @Override
-  protected void onEndpointConnected(Endpoint endpoint) {
+  protected void onEndpointConnected(final Endpoint endpoint) {
+    mReconnects.onConnected(endpoint.getName());
+    mDegree.onConnected(endpoint.getName());
+    mPeers.onConnected(endpoint.getName());
+    onNeighborsChanged();
     Toast.makeText(
             this, getString(R.string.toast_connected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
     // mDebugLogView.setText("");
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            mMesh.onNeighborConnected(endpoint.getId(), endpoint.getName());
+            scheduleMesh();
+          }
+        });
     setState(State.CONNECTED);
     updateTextView(mCurrentStateView, State.CONNECTED);
+    pruneLinks();
   }
 
   @Override
-  protected void onEndpointDisconnected(Endpoint endpoint) {
+  protected void onEndpointDisconnected(final Endpoint endpoint) {
+    mReconnects.onDisconnected(endpoint.getName());
+    mDegree.onDisconnected(endpoint.getName());
+    onNeighborsChanged();
+    scheduleReconnects();
     Toast.makeText(
             this, getString(R.string.toast_disconnected, endpoint.getName()), Toast.LENGTH_SHORT)
         .show();
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            mMesh.onNeighborDisconnected(endpoint.getId());
+            scheduleMesh();
+          }
+        });
     setState(State.DIS_CONNECTED);
     updateTextView(mCurrentStateView, State.DIS_CONNECTED);
   }
 
   @Override
-  protected void onConnectionFailed(Endpoint endpoint) {
-    // Let's try someone else.
-    if (getState() == State.SEARCHING) {
-      //   startDiscovering();
+  protected void onLinkQualityUpdated(Endpoint endpoint) {
+    // The figures are only shown while debugging.
+    if (isOnDebugMode) {
+      refreshStatus();
     }
   }
 
+  @Override
+  protected void onConnectionFailed(@Nullable Endpoint endpoint) {
+    if (endpoint == null) {
+      return;
+    }
+    mReconnects.onConnectionFailed(endpoint.getName());
+    mPeers.onConnectionFailed(endpoint.getName());
+    if (mReconnects.isBlacklisted(endpoint.getName())) {
+      logW("Giving up on " + endpoint.getName() + " for now; it keeps failing to connect.");
+    }
+    scheduleReconnects();
+  }
+
+  /**
+   * Drops a link if we have more than {@link #MAX_DEGREE} and {@link #mDegree} finds one the mesh
+   * can do without. The node on the other end sees us disconnect, and its own {@link
+   * DegreeController} keeps it from linking back.
+   */
+  private void pruneLinks() {
+    updateLinkQualities();
+    String peer = mDegree.pickPrune();
+    final Endpoint endpoint = peer != null ? mEstablishedConnections.getByName(peer) : null;
+    if (endpoint == null) {
+      return;
+    }
+    logD("Dropping our link to " + peer + "; the mesh can reach it another way.");
+    disconnect(endpoint);
+    mDegree.onDisconnected(peer);
+    onNeighborsChanged();
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            mMesh.onNeighborDisconnected(endpoint.getId());
+            scheduleMesh();
+          }
+        });
+    refreshStatus();
+  }
+
+  /** Passes the latest quality of each of our links on to {@link #mDegree} and {@link #mPeers}. */
+  private void updateLinkQualities() {
+    for (Endpoint endpoint : getConnectedEndpoints()) {
+      LinkQuality quality = getLinkQuality(endpoint.getId());
+      if (quality != null) {
+        mDegree.setLinkQuality(endpoint.getName(), quality);
+        mPeers.setLinkQuality(endpoint.getName(), quality);
+      }
+    }
+  }
+
+  /** Lets {@link #mScans} know how many neighbors we have now. */
+  private void onNeighborsChanged() {
+    mScans.onNeighborsChanged(mEstablishedConnections.size());
+    scheduleScans();
+  }
+
+  /** Stops discovery, and starts a new cycle of {@link #mScans} with a scan right away. */
+  private void restartScans() {
+    getScheduler().cancel(Action.DISCOVERY.toString());
+    stopDiscovering();
+    mScans.stop();
+    mScans.start();
+    scheduleScans();
+  }
+
+  /** Wakes us up when {@link #mScans} next has a scan to start or stop. */
+  private void scheduleScans() {
+    long deadline = mScans.getNextDeadline();
+    if (deadline < 0) {
+      getScheduler().cancel(SCAN_TASK);
+      return;
+    }
+    getScheduler()
+        .schedule(SCAN_TASK, mScanRunnable, Math.max(0, deadline - Clock.SYSTEM.now()), 0);
+  }
+
+  /** Wakes us up when {@link #mReconnects} next has a retry due. */
+  private void scheduleReconnects() {
+    long deadline = mReconnects.getNextDeadline();
+    if (deadline < 0) {
+      getScheduler().cancel(RECONNECT_TASK);
+      return;
+    }
+    getScheduler()
+        .schedule(
+            RECONNECT_TASK, mReconnectRunnable, Math.max(0, deadline - Clock.SYSTEM.now()), 0);
+  }
+
+  /** Returns {@code true} if we're connected to a node with the given name. */
+  private boolean isConnectedTo(String name) {
+    return mEstablishedConnections.containsName(name);
+  }
+
   /**
    * The state has changed. I wonder what we'll be doing now.
    *
@@ -422,11 +856,21 @@ public class MainActivity extends ConnectionsActivity {
     // Update Nearby Connections to the new state.
     switch (newState) {
       case SEARCHING:
+        if (oldState == State.UNKNOWN) {
+          prepareRejoin();
+        }
         disconnectFromAllEndpoints();
-        stopDiscovering();
+        mDegree.clear();
+        runOnMeshThread(
+            new Runnable() {
+              @Override
+              public void run() {
+                mMesh.onAllNeighborsDisconnected();
+              }
+            });
+        onNeighborsChanged();
+        restartScans();
         stopAdvertising();
-
-        startAction(Action.DISCOVERY, null);
         startAction(Action.ADVERTISING, null);
         break;
       case CONNECTED:
@@ -434,14 +878,24 @@ public class MainActivity extends ConnectionsActivity {
         //   stopAdvertising();
         break;
       case DIS_CONNECTED:
-        stopDiscovering();
+        restartScans();
         stopAdvertising();
-
-        startAction(Action.DISCOVERY, null);
         startAction(Action.ADVERTISING, null);
         break;
       case UNKNOWN:
+        getScheduler().cancelAll();
+        mReconnects.clear();
+        mDegree.clear();
+        mScans.stop();
         stopAllEndpoints();
+        runOnMeshThread(
+            new Runnable() {
+              @Override
+              public void run() {
+                mMesh.reset();
+                getMeshHandler().removeCallbacks(mMeshRunnable);
+              }
+            });
         break;
       default:
         // no-op
@@ -471,41 +925,68 @@ public class MainActivity extends ConnectionsActivity {
       case CONNECTED:
         // Connected is our final state. Whatever new state we move to,
         // we're transitioning backwards.
-        if (mEstablishedConnections.size() <= 0) {
+        if (mEstablishedConnections.isEmpty()) {
           transitionBackward(oldState, newState);
         }
         break;
     }
   }
 
-  private void startAction(final Action action, final Endpoint endpoint) {
-    Random random = new Random();
-    long delay = random.nextInt(500);
-    if (action == Action.CONNECTING) {
-      delay += 1000;
-    }
+  /**
+   * Puts off an action for a short, random time, so that nearby phones reacting to the same event
+   * don't all hit the radio at once. Scheduling an action again replaces the one still waiting.
+   */
+  private void startAction(final Action action, @Nullable final Endpoint endpoint) {
+    long delay =
+        action == Action.CONNECTING ? getConnectDelay(endpoint) + getPriorityDelay(endpoint) : 0;
+    String key = action == Action.CONNECTING ? getConnectKey(endpoint) : action.toString();
     logD("Started Action : " + action + " with delay : " + delay);
-    Timer timer = new Timer();
-    TimerTask task =
-        new TimerTask() {
-          @Override
-          public void run() {
+    getScheduler()
+        .schedule(
+            key,
+            new Runnable() {
+              @Override
+              public void run() {
+                switch (action) {
+                  case DISCOVERY:
+                    startDiscovering();
+                    break;
+                  case ADVERTISING:
+                    startAdvertising();
+                    break;
+                  case CONNECTING:
+                    connectTo(endpoint);
+                    break;
+                }
+              }
+            },
+            delay,
+            ACTION_JITTER);
+  }
 
-            switch (action) {
-              case DISCOVERY:
-                startDiscovering();
-                break;
-              case ADVERTISING:
-                startAdvertising();
-                break;
-              case CONNECTING:
-                connectToEndpoint(endpoint);
-
-                break;
-            }
-          }
-        };
-    timer.schedule(task, delay);
+  /**
+   * Returns the extra wait before connecting to an endpoint. Nodes we've seen lately, that
+   * connected reliably and had good links, go ahead of nodes we don't know.
+   */
+  private long getPriorityDelay(Endpoint endpoint) {
+    return (long) ((1 - mPeers.getScore(endpoint.getName())) * CONNECT_PRIORITY_SPREAD);
+  }
+
+  /** Returns the {@link TaskScheduler} key of the action that connects to an endpoint. */
+  private static String getConnectKey(Endpoint endpoint) {
+    return Action.CONNECTING + ":" + endpoint.getId();
+  }
+
+  /** Asks a node to connect, unless we've linked up with it in the meantime. */
+  private void connectTo(Endpoint endpoint) {
+    String peer = endpoint.getName();
+    if (isConnectedTo(peer) || isConnecting(peer)) {
+      return;
+    }
+    if (!connectToEndpoint(endpoint)) {
+      // Too many of our requests are still out. Ask again once they've had time to finish.
+      startAction(Action.CONNECTING, endpoint);
+    }
   }
 
   /** Transitions from the old state to the new state with an animation implying moving forward. */
@@ -609,16 +1090,30 @@ public class MainActivity extends ConnectionsActivity {
         break;
       case CONNECTED:
       case DIS_CONNECTED:
-        Set<String> connectedEndPoints = mEstablishedConnections.keySet();
+        Collection<Endpoint> connectedEndPoints = getConnectedEndpoints();
 
         String connectedNodes = getString(R.string.status_connected);
-        for (String node : connectedEndPoints) {
-          connectedNodes = connectedNodes + " | " + mEstablishedConnections.get(node).getName();
+        for (Endpoint node : connectedEndPoints) {
+          connectedNodes = connectedNodes + " | " + node.getName();
+          LinkQuality quality = getLinkQuality(node.getId());
+          if (isOnDebugMode && quality != null) {
+            connectedNodes = connectedNodes + " (" + quality + ")";
+          }
           textView.setBackgroundColor(0xFF4CAF50); /* green */
         }
         if (connectedEndPoints.size() <= 0) {
           connectedNodes = "No nodes connected";
           textView.setBackgroundColor(0xFFF44336); /* red */
+        } else {
+          int meshSize = mMeshSize;
+          if (meshSize > connectedEndPoints.size() + 1) {
+            connectedNodes += "\n" + getString(R.string.status_mesh_size, meshSize);
+          }
+          List<String> singlePoints = mSinglePoints;
+          if (!singlePoints.isEmpty()) {
+            connectedNodes +=
+                "\n" + getString(R.string.status_single_points, TextUtils.join(", ", singlePoints));
+          }
         }
         textView.setText(connectedNodes);
         break;
@@ -629,80 +1124,205 @@ public class MainActivity extends ConnectionsActivity {
     }
   }
 
-  /** {@see ConnectionsActivity#onReceive(Endpoint, Payload)} */
+  /** {@see ConnectionsActivity#onReceiveStream(Endpoint, InputStream)} */
   @Override
-  protected void onReceive(Endpoint endpoint, Payload payload) {
-    if (payload.getType() == Payload.Type.STREAM) {
-      if (mAudioPlayer != null) {
-        mAudioPlayer.stop();
-        mAudioPlayer = null;
-      }
+  protected void onReceiveStream(Endpoint endpoint, InputStream stream) {
+    AudioRelay relay = new AudioRelay(endpoint, stream);
+    mAudioRelays.add(relay);
+    relay.start();
+  }
 
-      AudioPlayer player =
-          new AudioPlayer(payload.asStream().asInputStream()) {
-            @WorkerThread
-            @Override
-            protected void onFinish() {
-              runOnUiThread(
-                  new Runnable() {
-                    @UiThread
-                    @Override
-                    public void run() {
+  /**
+   * Decides where an incoming audio stream goes. A stream we haven't heard yet is played, and
+   * passed on to our other neighbors while it has hops left. Streams reach us from every neighbor
+   * that relays them, so only the first copy is used.
+   *
+   * @param endpoint The neighbor the stream came from. It won't get the stream back.
+   * @param header The stream's {@link MeshFrame#TYPE_AUDIO} header.
+   * @return The buffers the stream should be copied into, or an empty list to drop it.
+   */
+  @WorkerThread
+  private List<StreamBuffer> openAudioStream(Endpoint endpoint, byte[] header) {
+    Set<String> downstream = mMesh.acceptStream(endpoint.getId(), header);
+    if (downstream == null) {
+      return Collections.emptyList();
+    }
+
+    List<StreamBuffer> outputs = new ArrayList<>();
+    final StreamBuffer speaker = new StreamBuffer(STREAM_BUFFER_CAPACITY);
+    runOnUiThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            startPlaying(speaker.getInputStream());
+          }
+        });
+    outputs.add(speaker);
+
+    if (!downstream.isEmpty()) {
+      byte[] copy = MeshEngine.createRelayedStreamHeader(header);
+      StreamBuffer relayed = new StreamBuffer(STREAM_BUFFER_CAPACITY);
+      relayed.write(copy, 0, copy.length);
+      sendStream(relayed.getInputStream(), downstream);
+      outputs.add(relayed);
+    }
+    return outputs;
+  }
+
+  /** Plays an audio stream, replacing whatever was playing before. */
+  private void startPlaying(InputStream inputStream) {
+    if (mAudioPlayer != null) {
+      mAudioPlayer.stop();
+      mAudioPlayer = null;
+    }
+
+    AudioPlayer player =
+        new AudioPlayer(inputStream) {
+          @WorkerThread
+          @Override
+          protected void onFinish() {
+            final AudioPlayer finished = this;
+            runOnUiThread(
+                new Runnable() {
+                  @UiThread
+                  @Override
+                  public void run() {
+                    // A newer stream may have replaced us already.
+                    if (mAudioPlayer == finished) {
                       mAudioPlayer = null;
                     }
-                  });
+                  }
+                });
+          }
+        };
+    mAudioPlayer = player;
+    player.start();
+  }
+
+  /** {@see ConnectionsActivity#onReceiveFrame(Endpoint, byte[], int, int)} */
+  @Override
+  protected void onReceiveFrame(Endpoint endpoint, byte[] buffer, int offset, int length) {
+    mMesh.onReceiveFrame(endpoint != null ? endpoint.getId() : null, buffer, offset, length);
+    scheduleMesh();
+  }
+
+  /**
+   * Shows the latest figures in the status bar: the mesh size, the single points of failure and,
+   * while debugging, the quality of each link.
+   */
+  private void refreshStatus() {
+    runOnUiThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (mState == State.CONNECTED || mState == State.DIS_CONNECTED) {
+              updateTextView(mCurrentStateView, mState);
             }
-          };
-      mAudioPlayer = player;
-      player.start();
-    } else if (payload.getType() == Payload.Type.BYTES) {
-      byte[] data = payload.asBytes();
-      String mySourceId = PeerDetails.getInstance().getPeerAddress();
-      int hope = data[0];
-
-      byte[] dataArray = new byte[data.length - 1];
-      System.arraycopy(data, 1, dataArray, 0, dataArray.length);
-
-      String[] message = new String(dataArray).split(":");
-      String sourceId = message[0];
-      String destId = message[1];
-      String msg = message[2].trim();
-
-      if (destId.equals("All")) {
-        if (!prevMessage.equals(msg)) {
-          logI(sourceId + ": " + msg);
-          prevMessage = msg;
-        }
+          }
+        });
+  }
 
-        logD("Hope received : " + hope);
-        hope--;
-        if (hope > 0) {
-          logD("Retransmitting data : From=> " + sourceId + " : To=>" + destId);
-          send(dataArray, hope);
-        } else {
-          logE("Message Discarding since hope ended : " + hope);
-        }
-      } else if (destId.equals(mySourceId)) {
-        logD("Message received to the correct node with hope = " + hope);
+  /**
+   * Gets ready to find the peers we were linked to before the app stopped. They're probably still
+   * nearby, so we keep discovering for a while, even once we have enough neighbors.
+   */
+  private void prepareRejoin() {
+    List<String> peers = mPeers.getRecentPeers(REJOIN_WINDOW);
+    if (peers.isEmpty()) {
+      return;
+    }
+    logD("Looking for " + peers.size() + " peers we saw recently: " + peers);
+    mScans.boost(REJOIN_SCAN_DURATION);
+  }
 
-        if (!prevMessage.equals(msg)) {
-          logI(sourceId + ": " + msg);
-          prevMessage = msg;
-        }
-      } else {
-        if (!sourceId.equals(mySourceId)) {
-          logD("Hope received : " + hope);
-          hope--;
-          if (hope > 0) {
-            logD("Retransmitting data : From=> " + sourceId + " : To=>" + destId);
-            send(dataArray, hope);
-          } else {
-            logE("Message Discarding since hope ended : " + hope);
+  /**
+   * Restores what we knew about our peers, saved by {@link #savePeers(byte[])}. {@link #mPeers}
+   * belongs to the main thread, so the file is read here and handed over there.
+   */
+  @WorkerThread
+  private void loadPeers() {
+    File file = new File(getFilesDir(), PEER_CACHE_FILE);
+    if (!file.exists()) {
+      return;
+    }
+    final byte[] saved = new byte[(int) file.length()];
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      in.readFully(saved);
+    } catch (IOException e) {
+      logW("Failed to load known peers", e);
+      return;
+    }
+    runOnUiThread(
+        new Runnable() {
+          @UiThread
+          @Override
+          public void run() {
+            try {
+              mPeers.readFrom(new ByteArrayInputStream(saved));
+            } catch (IOException e) {
+              logW("Failed to load known peers", e);
+              return;
+            }
+            // We may have started looking for peers before we knew who they were.
+            if (getState() == State.SEARCHING) {
+              prepareRejoin();
+            }
           }
-        } else {
-          logW("My message received by retransmission....");
-        }
-      }
+        });
+  }
+
+  /** Returns what we know about our peers, ready for {@link #savePeers(byte[])}. */
+  @UiThread
+  private byte[] getSavedPeers() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      mPeers.writeTo(out);
+    } catch (IOException e) {
+      logW("Failed to save known peers", e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Saves what we know about our peers. It's a few kilobytes at most.
+   *
+   * @param peers The bytes from {@link #getSavedPeers()}.
+   */
+  @WorkerThread
+  private void savePeers(byte[] peers) {
+    if (peers.length == 0) {
+      return;
+    }
+    File file = new File(getFilesDir(), PEER_CACHE_FILE);
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(peers);
+    } catch (IOException e) {
+      logW("Failed to save known peers", e);
+    }
+  }
+
+  /** Restores the undeliverable messages saved by {@link #saveStoredFrames()}. */
+  @WorkerThread
+  private void loadStoredFrames() {
+    File file = new File(getFilesDir(), STORE_AND_FORWARD_FILE);
+    if (!file.exists()) {
+      return;
+    }
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      mMesh.getStoreAndForward().readFrom(in);
+    } catch (IOException e) {
+      logW("Failed to load stored messages", e);
+    }
+  }
+
+  /** Saves the undeliverable messages so they survive the app being closed. */
+  @WorkerThread
+  private void saveStoredFrames() {
+    File file = new File(getFilesDir(), STORE_AND_FORWARD_FILE);
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+      mMesh.getStoreAndForward().writeTo(out);
+    } catch (IOException e) {
+      logW("Failed to save stored messages", e);
     }
   }
 
@@ -715,6 +1335,14 @@ public class MainActivity extends ConnectionsActivity {
     }
   }
 
+  /** Stops passing on the audio streams we're receiving. */
+  private void stopRelaying() {
+    for (AudioRelay relay : new ArrayList<>(mAudioRelays)) {
+      relay.stop();
+    }
+    mAudioRelays.clear();
+  }
+
   /**
    * @return True if currently playing.
    */
@@ -722,26 +1350,64 @@ public class MainActivity extends ConnectionsActivity {
     return mAudioPlayer != null;
   }
 
-  /** Starts recording sound from the microphone and streaming it to all connected devices. */
+  /**
+   * Starts recording sound from the microphone and streaming it to all connected devices. The
+   * stream's header comes from the mesh thread, so the recording starts once it's ready.
+   */
+  @UiThread
   private void startRecording() {
     logV("startRecording()");
-    try {
-      ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
-
-      // Send the first half of the payload (the read side) to Nearby Connections.
-      send(Payload.fromStream(payloadPipe[0]));
+    mRecordingRequested = true;
+    runOnMeshThread(
+        new Runnable() {
+          @WorkerThread
+          @Override
+          public void run() {
+            // The stream starts with a header so that relays know whose voice it is and how far it
+            // may travel.
+            final byte[] header = mMesh.createStreamHeader();
+            runOnUiThread(
+                new Runnable() {
+                  @UiThread
+                  @Override
+                  public void run() {
+                    startRecording(header);
+                  }
+                });
+          }
+        });
+  }
 
-      // Use the second half of the payload (the write side) in AudioRecorder.
-      mRecorder = new AudioRecorder(payloadPipe[1]);
-      mRecorder.start();
+  /**
+   * Starts recording behind a stream header, unless the user let go while it was being made.
+   *
+   * @param header The stream's {@link MeshFrame#TYPE_AUDIO} header.
+   */
+  @UiThread
+  private void startRecording(byte[] header) {
+    if (!mRecordingRequested || mRecorder != null) {
+      return;
+    }
+    ParcelFileDescriptor[] payloadPipe;
+    try {
+      payloadPipe = ParcelFileDescriptor.createPipe();
     } catch (IOException e) {
       logE("startRecording() failed", e);
+      return;
     }
+
+    // Use the second half of the payload (the write side) in AudioRecorder.
+    mRecorder = new AudioRecorder(payloadPipe[1], header);
+    mRecorder.start();
+
+    // Send the first half of the payload (the read side) to Nearby Connections.
+    sendStream(new ParcelFileDescriptor.AutoCloseInputStream(payloadPipe[0]));
   }
 
   /** Stops streaming sound from the microphone. */
   private void stopRecording() {
     logV("stopRecording()");
+    mRecordingRequested = false;
     if (mRecorder != null) {
       mRecorder.stop();
       mRecorder = null;
@@ -908,6 +1574,82 @@ public class MainActivity extends ConnectionsActivity {
     public void onAnimationRepeat(Animator animator) {}
   }
 
+  /**
+   * An audio stream from one of our neighbors. Where the stream goes is decided on the mesh thread,
+   * alongside the rest of the mesh state, while the audio itself is copied on the relay's thread.
+   */
+  private class AudioRelay extends StreamRelay {
+    private final Endpoint mEndpoint;
+
+    AudioRelay(Endpoint endpoint, InputStream inputStream) {
+      super(inputStream, STREAM_CHUNK_SIZE);
+      mEndpoint = endpoint;
+    }
+
+    @WorkerThread
+    @Override
+    protected List<StreamBuffer> onHeader(final byte[] header) {
+      FutureTask<List<StreamBuffer>> task =
+          new FutureTask<List<StreamBuffer>>(
+              new Callable<List<StreamBuffer>>() {
+                @Override
+                public List<StreamBuffer> call() {
+                  if (!isRelaying()) {
+                    return Collections.emptyList();
+                  }
+                  return openAudioStream(mEndpoint, header);
+                }
+              }) {
+            @Override
+            protected void set(List<StreamBuffer> outputs) {
+              super.set(outputs);
+              if (isCancelled()) {
+                // The relay was stopped while the stream was being opened. Nothing reads these.
+                for (StreamBuffer output : outputs) {
+                  output.close();
+                }
+              }
+            }
+          };
+      runOnMeshThread(task);
+      try {
+        return task.get();
+      } catch (ExecutionException e) {
+        logE("Failed to open audio stream", e);
+      } catch (InterruptedException e) {
+        // stop() was called. If the stream is already open, its buffers are returned so that
+        // they're closed along with the relay. Otherwise the task won't open it, or closes it.
+        List<StreamBuffer> outputs =
+            task.cancel(false) ? Collections.<StreamBuffer>emptyList() : getOpened(task);
+        Thread.currentThread().interrupt();
+        return outputs;
+      }
+      return Collections.emptyList();
+    }
+
+    /** Returns the buffers from a task that has already opened its stream. */
+    private List<StreamBuffer> getOpened(FutureTask<List<StreamBuffer>> task) {
+      try {
+        return task.get();
+      } catch (ExecutionException | InterruptedException e) {
+        return Collections.emptyList();
+      }
+    }
+
+    @WorkerThread
+    @Override
+    protected void onFinish() {
+      runOnUiThread(
+          new Runnable() {
+            @UiThread
+            @Override
+            public void run() {
+              mAudioRelays.remove(AudioRelay.this);
+            }
+          });
+    }
+  }
+
   /** States that the UI goes through. */
   public enum State {
     UNKNOWN,
@@ -44,6 +44,9 @@ public class AudioRecorder {
    */
   private volatile boolean mAlive;
 
+  /** Written to the stream before any audio, eg. a {@link MeshFrame#TYPE_AUDIO} header. */
+  private final byte[] mHeader;
+
   /** The background thread recording audio for us. */
   private Thread mThread;
 
@@ -53,7 +56,18 @@ public class AudioRecorder {
    * @param file The output stream of the recording.
    */
   public AudioRecorder(ParcelFileDescriptor file) {
+    this(file, new byte[0]);
+  }
+
+  /**
+   * A simple audio recorder that starts its recording with a header.
+   *
+   * @param file The output stream of the recording.
+   * @param header The bytes written before the audio.
+   */
+  public AudioRecorder(ParcelFileDescriptor file, byte[] header) {
     mOutputStream = new ParcelFileDescriptor.AutoCloseOutputStream(file);
+    mHeader = header;
   }
 
   /**
@@ -98,6 +112,10 @@ public class AudioRecorder {
             // While we're running, we'll read the bytes from the AudioRecord and write them
             // to our output stream.
             try {
+              if (mHeader.length > 0) {
+                mOutputStream.write(mHeader);
+                mOutputStream.flush();
+              }
               while (isRecording()) {
                 int len = record.read(buffer.data, 0, buffer.size);
                 if (len >= 0 && len <= buffer.size) {
@@ -24,39 +24,35 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
-import com.google.android.gms.common.api.Status;
 import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.connection.AdvertisingOptions;
-import com.google.android.gms.nearby.connection.ConnectionInfo;
-import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
-import com.google.android.gms.nearby.connection.ConnectionResolution;
-import com.google.android.gms.nearby.connection.ConnectionsClient;
-import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
-import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
-import com.google.android.gms.nearby.connection.DiscoveryOptions;
-import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
-import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
-import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
 import com.google.android.gms.nearby.connection.Strategy;
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Locale;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-
-/** A class that connects to Nearby Connections and provides convenience methods and callbacks. */
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A class that connects to Nearby Connections, or another {@link MeshTransport}, and provides
+ * convenience methods and callbacks.
+ */
 public abstract class ConnectionsActivity extends AppCompatActivity {
 
   /**
@@ -112,29 +108,101 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
 
   private static final int REQUEST_CODE_REQUIRED_PERMISSIONS = 1;
 
-  /** Our handler to Nearby Connections. */
-  private ConnectionsClient mConnectionsClient;
+  /** The largest payload we pack {@link MeshFrame}s into. */
+  private static final int MAX_BATCH_BYTES = 8192;
+
+  /** The longest a {@link MeshFrame} waits for others to share its payload with. */
+  private static final long MAX_BATCH_DELAY = 20;
+
+  /** The most payloads we let Nearby Connections hold for a neighbor at once. */
+  private static final int SEND_WINDOW = 4;
+
+  /** The most payloads we queue for a neighbor while its window is full. */
+  private static final int SEND_QUEUE_CAPACITY = 32;
+
+  /** How long a payload takes up room in the window without a transfer result. */
+  private static final long SEND_TIMEOUT = 10000;
+
+  /** The time between two link quality probes to the same neighbor. */
+  private static final long PROBE_INTERVAL = 5000;
+
+  /** How long a neighbor has to answer a link quality probe before it counts as lost. */
+  private static final long PROBE_TIMEOUT = 3000;
+
+  /** The weight of a new sample in the link quality averages. */
+  private static final double LINK_QUALITY_GAIN = 0.125;
+
+  /** The least transfer progress, in bytes, that counts as a throughput sample. */
+  private static final long MIN_BANDWIDTH_SAMPLE_BYTES = 4096;
+
+  /** The most connection requests we have out at once. */
+  private static final int MAX_CONNECTS_IN_FLIGHT = 2;
+
+  /** How long we wait for the answer to a connection request before we stop counting it. */
+  private static final long CONNECT_TIMEOUT = 30000;
+
+  /**
+   * How long the node with the higher name waits for the other to ask to connect, before it asks
+   * itself, in milliseconds.
+   */
+  private static final long CONNECT_FALLBACK_DELAY = 5000;
+
+  /**
+   * The one thread the delayed actions of every {@link ConnectionsActivity} wait on. Shared, so
+   * that a busy mesh doesn't start a thread for every action it puts off.
+   */
+  private static final ScheduledExecutorService ACTION_TIMER =
+      Executors.newSingleThreadScheduledExecutor();
+
+  /** Our handler to Nearby Connections, or whatever {@link #createTransport()} returned. */
+  private MeshTransport mTransport;
 
   /** The devices we've discovered near us. */
-  private final Map<String, Endpoint> mDiscoveredEndpoints = new HashMap<>();
+  private final EndpointRegistry mDiscoveredEndpoints = new EndpointRegistry();
 
   /**
    * The devices we have pending connections to. They will stay pending until we call {@link
    * #acceptConnection(Endpoint)} or {@link #rejectConnection(Endpoint)}.
    */
-  private final Map<String, Endpoint> mPendingConnections = new HashMap<>();
+  private final EndpointRegistry mPendingConnections = new EndpointRegistry();
 
   /**
    * The devices we are currently connected to. For advertisers, this may be large. For discoverers,
-   * there will only be one entry in this map.
+   * there will only be one entry. Changed on the main thread, and read on the mesh thread as well,
+   * through snapshots that never need copying.
    */
-  protected final Map<String, Endpoint> mEstablishedConnections = new HashMap<>();
+  protected final EndpointRegistry mEstablishedConnections = new EndpointRegistry();
 
-  /**
-   * True if we are asking a discovered device to connect to us. While we ask, we cannot ask another
-   * device.
-   */
-  private boolean mIsConnecting = false;
+  /** Sets up and tears down the state we keep for each link as neighbors come and go. */
+  private final EndpointRegistry.Listener mLinkListener =
+      new EndpointRegistry.Listener() {
+        @Override
+        public void onEndpointAdded(Endpoint endpoint) {
+          addLink(endpoint.getId());
+        }
+
+        @Override
+        public void onEndpointRemoved(Endpoint endpoint) {
+          removeLink(endpoint.getId());
+        }
+      };
+
+  /** Decides who asks whom to connect, and tracks the connection requests we have out. */
+  private final ConnectionCoordinator mConnectAttempts =
+      new ConnectionCoordinator(
+          Clock.SYSTEM, MAX_CONNECTS_IN_FLIGHT, CONNECT_TIMEOUT, CONNECT_FALLBACK_DELAY);
+
+  /** Runs delayed actions, like discovering or connecting, on the main thread. */
+  private final TaskScheduler mScheduler =
+      new TaskScheduler(
+          ACTION_TIMER,
+          new Executor() {
+            @Override
+            public void execute(Runnable action) {
+              runOnUiThread(action);
+            }
+          },
+          new Random());
 
   /** True if we are discovering. */
   private boolean mIsDiscovering = false;
@@ -142,72 +210,357 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   /** True if we are advertising. */
   private boolean mIsAdvertising = false;
 
-  /** Callbacks for connections to other devices. */
-  private final ConnectionLifecycleCallback mConnectionLifecycleCallback =
-      new ConnectionLifecycleCallback() {
+  /**
+   * The thread mesh traffic is handled on. Received payloads are split into frames, deduplicated,
+   * routed and passed on here, and outgoing frames are batched and queued. Only what the user
+   * should see goes back to the main thread, so a busy UI doesn't slow down relaying.
+   */
+  private HandlerThread mMeshThread;
+
+  /**
+   * Runs work on {@link #mMeshThread}: the batches in {@link #mFrameBatcher} once they are due, the
+   * probes of {@link #mLinkQuality} and the payloads {@link #mOutboundQueue} held back. Only that
+   * thread touches those three.
+   */
+  private Handler mMeshHandler;
+
+  /**
+   * The latest {@link LinkQuality} of each neighbor, copied out of {@link #mLinkQuality} so the UI
+   * can read it.
+   */
+  private final Map<String, LinkQuality> mLinkQualities = new ConcurrentHashMap<>();
+
+  /** Packs outgoing {@link MeshFrame}s into fewer payloads, per endpoint. */
+  private final FrameBatcher mFrameBatcher =
+      new FrameBatcher(Clock.SYSTEM, MAX_BATCH_BYTES, MAX_BATCH_DELAY);
+
+  /** Hands finished batches to Nearby Connections. */
+  private final FrameBatcher.BatchListener mBatchListener =
+      new FrameBatcher.BatchListener() {
         @Override
-        public void onConnectionInitiated(String endpointId, ConnectionInfo connectionInfo) {
-          logD(
-              String.format(
-                  "onConnectionInitiated(endpointId=%s, endpointName=%s)",
-                  endpointId, connectionInfo.getEndpointName()));
-          Endpoint endpoint = new Endpoint(endpointId, connectionInfo.getEndpointName());
-          mPendingConnections.put(endpointId, endpoint);
-          ConnectionsActivity.this.onConnectionInitiated(endpoint, connectionInfo);
+        public void onBatch(String endpointId, byte[] batch, int priority) {
+          if (!mOutboundQueue.add(endpointId, batch, priority, mSendListener)) {
+            logW("Send queue full; dropped a batch for " + endpointId);
+          }
+          scheduleSendTimeouts();
         }
+      };
 
+  /**
+   * Keeps a slow neighbor from piling up payloads inside Nearby Connections, where they'd delay
+   * everything else we send it. Batches of a higher priority class go first. When the queue is
+   * full, the oldest batch of the lowest class gives way; lost frames are resent or routed around
+   * by the mesh anyway.
+   */
+  private final OutboundQueue mOutboundQueue =
+      new OutboundQueue(
+          Clock.SYSTEM,
+          SEND_QUEUE_CAPACITY,
+          SEND_WINDOW,
+          SEND_TIMEOUT,
+          OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+  /** Hands the payloads {@link #mOutboundQueue} lets through to Nearby Connections. */
+  private final OutboundQueue.SendListener mSendListener =
+      new OutboundQueue.SendListener() {
         @Override
-        public void onConnectionResult(String endpointId, ConnectionResolution result) {
-          logD(String.format("onConnectionResponse(endpointId=%s, result=%s)", endpointId, result));
-
-          // We're no longer connecting
-          mIsConnecting = false;
-
-          if (!result.getStatus().isSuccess()) {
-            logW(
-                String.format(
-                    "Connection failed. Received status %s.",
-                    ConnectionsActivity.toString(result.getStatus())));
-            onConnectionFailed(mPendingConnections.remove(endpointId));
-            return;
-          }
-          connectedToEndpoint(mPendingConnections.remove(endpointId));
+        public long onSend(String endpointId, byte[] payload) {
+          return sendBytes(payload, Collections.singleton(endpointId));
         }
+      };
 
+  /** Frees up the window of payloads that never got a transfer result. */
+  private final Runnable mSendTimeoutRunnable =
+      new Runnable() {
         @Override
-        public void onDisconnected(String endpointId) {
-          if (!mEstablishedConnections.containsKey(endpointId)) {
-            logW("Unexpected disconnection from endpoint " + endpointId);
-            return;
-          }
-          disconnectedFromEndpoint(mEstablishedConnections.get(endpointId));
+        public void run() {
+          mOutboundQueue.runDue(mSendListener);
+          scheduleSendTimeouts();
+        }
+      };
+
+  /** Flushes {@link #mFrameBatcher} when its next batch is due. */
+  private final Runnable mFlushRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mFrameBatcher.flushDue(mBatchListener);
+          scheduleBatchFlush();
+        }
+      };
+
+  /** Measures the round trip time, throughput and loss of the link to each neighbor. */
+  private final LinkQualityEstimator mLinkQuality =
+      new LinkQualityEstimator(
+          Clock.SYSTEM,
+          PROBE_INTERVAL,
+          PROBE_TIMEOUT,
+          LINK_QUALITY_GAIN,
+          MIN_BANDWIDTH_SAMPLE_BYTES);
+
+  /** Sends the probes {@link #mLinkQuality} asks for. */
+  private final LinkQualityEstimator.ProbeListener mProbeListener =
+      new LinkQualityEstimator.ProbeListener() {
+        @Override
+        public void onProbe(String endpointId, int probeId) {
+          sendProbe(endpointId, MeshFrame.TYPE_PING, probeId);
+        }
+      };
+
+  /** Sends and times out link quality probes when {@link #mLinkQuality} says they're due. */
+  private final Runnable mProbeRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mLinkQuality.runDue(mProbeListener);
+          publishLinkQualities();
+          scheduleProbes();
         }
       };
 
-  /** Callbacks for payloads (bytes of data) sent from another device to us. */
-  private final PayloadCallback mPayloadCallback =
-      new PayloadCallback() {
+  /**
+   * Callbacks for discovery, connections to other devices and payloads sent to us. They may arrive
+   * on any thread. Discovery and connection events are moved to the main thread, and payloads to
+   * the mesh thread.
+   */
+  private final MeshTransport.Callback mTransportCallback =
+      new MeshTransport.Callback() {
+        @Override
+        public void onEndpointFound(final String endpointId, final String name) {
+          runOnUiThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  logD(
+                      String.format(
+                          "onEndpointFound(endpointId=%s, endpointName=%s)", endpointId, name));
+                  Endpoint endpoint = new Endpoint(endpointId, name);
+                  mDiscoveredEndpoints.put(endpoint);
+                  onEndpointDiscovered(endpoint);
+                }
+              });
+        }
+
         @Override
-        public void onPayloadReceived(String endpointId, Payload payload) {
-          //  logD(String.format("onPayloadReceived(endpointId=%s, payload=%s)", endpointId,
-          // payload));
-          onReceive(mEstablishedConnections.get(endpointId), payload);
+        public void onEndpointLost(String endpointId) {
+          logD(String.format("onEndpointLost(endpointId=%s)", endpointId));
         }
 
         @Override
-        public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
-          /* logD(
-                  String.format(
-                      "onPayloadTransferUpdate(endpointId=%s, update=%s)", endpointId, update));
-          */
+        public void onConnectionInitiated(
+            final String endpointId, final String name, final boolean incoming) {
+          runOnUiThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  logD(
+                      String.format(
+                          "onConnectionInitiated(endpointId=%s, endpointName=%s)",
+                          endpointId, name));
+                  Endpoint endpoint = new Endpoint(endpointId, name);
+                  mPendingConnections.put(endpoint);
+                  ConnectionsActivity.this.onConnectionInitiated(endpoint, incoming);
+                }
+              });
+        }
+
+        @Override
+        public void onConnectionResult(
+            final String endpointId, final boolean connected, final String status) {
+          runOnUiThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  finishConnection(endpointId, connected, status);
+                }
+              });
+        }
+
+        @Override
+        public void onDisconnected(final String endpointId) {
+          runOnUiThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  Endpoint endpoint = mEstablishedConnections.get(endpointId);
+                  if (endpoint == null) {
+                    logW("Unexpected disconnection from endpoint " + endpointId);
+                    return;
+                  }
+                  disconnectedFromEndpoint(endpoint);
+                }
+              });
+        }
+
+        @Override
+        public void onBytesReceived(
+            final String endpointId, final long payloadId, final byte[] bytes) {
+          runOnMeshThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  receiveBytes(endpointId, payloadId, bytes);
+                }
+              });
+        }
+
+        @Override
+        public void onStreamReceived(
+            final String endpointId, final long payloadId, InputStream stream) {
+          runOnMeshThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  mLinkQuality.onTransferStarted(endpointId, payloadId);
+                }
+              });
+          onReceiveStream(mEstablishedConnections.get(endpointId), stream);
+        }
+
+        @Override
+        public void onTransferUpdate(
+            final String endpointId,
+            final long payloadId,
+            final int status,
+            final long bytesTransferred) {
+          runOnMeshThread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  updateTransfer(endpointId, payloadId, status, bytesTransferred);
+                }
+              });
         }
       };
 
+  /** Takes in the outcome of a connection request. Runs on the main thread. */
+  private void finishConnection(String endpointId, boolean connected, String status) {
+    logD(String.format("onConnectionResponse(endpointId=%s, result=%s)", endpointId, status));
+
+    Endpoint endpoint = mPendingConnections.remove(endpointId);
+
+    // We're no longer connecting
+    Endpoint requested = endpoint != null ? endpoint : mDiscoveredEndpoints.get(endpointId);
+    if (requested != null) {
+      mConnectAttempts.onFinished(requested.getName());
+    }
+
+    if (!connected) {
+      logW(String.format("Connection failed. Received status %s.", status));
+      onConnectionFailed(endpoint);
+      return;
+    }
+    connectedToEndpoint(endpoint);
+  }
+
+  /** Splits a received payload into frames, and hands them on. Runs on the mesh thread. */
+  @WorkerThread
+  private void receiveBytes(String endpointId, long payloadId, @Nullable byte[] bytes) {
+    final Endpoint endpoint = mEstablishedConnections.get(endpointId);
+    mLinkQuality.onTransferStarted(endpointId, payloadId);
+    if (bytes == null || bytes.length == 0 || MeshFrame.getVersion(bytes, 0) != MeshFrame.VERSION) {
+      logW("Dropped unknown payload from " + endpoint);
+      return;
+    }
+    boolean intact =
+        FrameBatcher.unbatch(
+            bytes,
+            bytes.length,
+            new FrameBatcher.FrameListener() {
+              @Override
+              public void onFrame(byte[] buffer, int offset, int length) {
+                if (!onReceiveProbe(endpoint, buffer, offset)) {
+                  onReceiveFrame(endpoint, buffer, offset, length);
+                }
+              }
+            });
+    if (!intact) {
+      logW("Dropped malformed frames from " + endpoint);
+    }
+  }
+
+  /**
+   * Takes in the progress of a payload we're sending or receiving. Runs on the mesh thread.
+   *
+   * @param status One of the {@link MeshTransport} transfer statuses.
+   */
+  @WorkerThread
+  private void updateTransfer(
+      String endpointId, long payloadId, int status, long bytesTransferred) {
+    switch (status) {
+      case MeshTransport.TRANSFER_IN_PROGRESS:
+        mLinkQuality.onTransferProgress(endpointId, payloadId, bytesTransferred);
+        break;
+      case MeshTransport.TRANSFER_SUCCESS:
+      case MeshTransport.TRANSFER_FAILURE:
+        mLinkQuality.onTransferFinished(
+            endpointId, payloadId, bytesTransferred, status == MeshTransport.TRANSFER_SUCCESS);
+        publishLinkQualities();
+        mOutboundQueue.onTransferFinished(endpointId, payloadId, mSendListener);
+        scheduleSendTimeouts();
+        break;
+      case MeshTransport.TRANSFER_CANCELED:
+        mLinkQuality.onTransferCancelled(endpointId, payloadId);
+        mOutboundQueue.onTransferFinished(endpointId, payloadId, mSendListener);
+        scheduleSendTimeouts();
+        break;
+      default:
+        break;
+    }
+  }
+
   /** Called when our Activity is first created. */
   @Override
   protected void onCreate(@Nullable Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    mConnectionsClient = Nearby.getConnectionsClient(this);
+    mMeshThread = new HandlerThread("MeshThread");
+    mMeshThread.start();
+    mMeshHandler = new Handler(mMeshThread.getLooper());
+    mTransport = createTransport();
+    mTransport.setCallback(mTransportCallback);
+    mEstablishedConnections.addListener(mLinkListener);
+  }
+
+  /** Called when our Activity is destroyed. Work still queued for the mesh thread is finished. */
+  @Override
+  protected void onDestroy() {
+    mScheduler.cancelAll();
+    mMeshThread.quitSafely();
+    super.onDestroy();
+  }
+
+  /**
+   * Runs an action on the mesh thread: straight away if we're already on it, otherwise as soon as
+   * the thread gets to it. Anything that touches the mesh state has to go through here.
+   */
+  protected final void runOnMeshThread(Runnable action) {
+    if (Looper.myLooper() == mMeshThread.getLooper()) {
+      action.run();
+    } else {
+      mMeshHandler.post(action);
+    }
+  }
+
+  /**
+   * Returns the scheduler for delayed actions, like discovering or connecting. Its tasks run on the
+   * main thread, and are cancelled when the Activity is destroyed.
+   */
+  protected final TaskScheduler getScheduler() {
+    return mScheduler;
+  }
+
+  /** Returns a Handler on the mesh thread, eg. to schedule mesh work for later. */
+  protected final Handler getMeshHandler() {
+    return mMeshHandler;
+  }
+
+  /**
+   * Returns the transport we connect over: Nearby Connections by default. Override this method to
+   * run over another, eg. a {@link TcpTransport} to a mesh of nodes on a desktop. The transport's
+   * callbacks may arrive on any thread.
+   */
+  protected MeshTransport createTransport() {
+    return new NearbyTransport(Nearby.getConnectionsClient(this), getStrategy());
   }
 
   /** Called when our Activity has been made visible to the user. */
@@ -254,35 +607,30 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   protected void startAdvertising() {
     mIsAdvertising = true;
     final String localEndpointName = getName();
-    AdvertisingOptions.Builder builder =
-        new AdvertisingOptions.Builder().setStrategy(getStrategy());
-
-    mConnectionsClient
-        .startAdvertising(
-            localEndpointName, getServiceId(), mConnectionLifecycleCallback, builder.build())
-        .addOnSuccessListener(
-            new OnSuccessListener<Void>() {
-              @Override
-              public void onSuccess(Void unusedResult) {
-                logV("Now advertising endpoint " + localEndpointName);
-                onAdvertisingStarted();
-              }
-            })
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                mIsAdvertising = false;
-                logW("startAdvertising() failed.", e);
-                onAdvertisingFailed();
-              }
-            });
+
+    mTransport.startAdvertising(
+        localEndpointName,
+        getServiceId(),
+        new MeshTransport.ResultListener() {
+          @Override
+          public void onSuccess() {
+            logV("Now advertising endpoint " + localEndpointName);
+            onAdvertisingStarted();
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            mIsAdvertising = false;
+            logW("startAdvertising() failed.", e);
+            onAdvertisingFailed();
+          }
+        });
   }
 
   /** Stops advertising. */
   protected void stopAdvertising() {
     mIsAdvertising = false;
-    mConnectionsClient.stopAdvertising();
+    mTransport.stopAdvertising();
   }
 
   /** Returns {@code true} if currently advertising. */
@@ -297,37 +645,23 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   protected void onAdvertisingFailed() {}
 
   /**
-   * Called when a pending connection with a remote endpoint is created. Use {@link ConnectionInfo}
-   * for metadata about the connection (like incoming vs outgoing, or the authentication token). If
-   * we want to continue with the connection, call {@link #acceptConnection(Endpoint)}. Otherwise,
-   * call {@link #rejectConnection(Endpoint)}.
+   * Called when a pending connection with a remote endpoint is created. If we want to continue with
+   * the connection, call {@link #acceptConnection(Endpoint)}. Otherwise, call {@link
+   * #rejectConnection(Endpoint)}.
+   *
+   * @param endpoint The other device.
+   * @param incoming True if the other device asked to connect, false if we did.
    */
-  protected void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {}
+  protected void onConnectionInitiated(Endpoint endpoint, boolean incoming) {}
 
   /** Accepts a connection request. */
   protected void acceptConnection(final Endpoint endpoint) {
-    mConnectionsClient
-        .acceptConnection(endpoint.getId(), mPayloadCallback)
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                logW("acceptConnection() failed.", e);
-              }
-            });
+    mTransport.acceptConnection(endpoint.getId(), new FailureLogger("acceptConnection()"));
   }
 
   /** Rejects a connection request. */
   protected void rejectConnection(Endpoint endpoint) {
-    mConnectionsClient
-        .rejectConnection(endpoint.getId())
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                logW("rejectConnection() failed.", e);
-              }
-            });
+    mTransport.rejectConnection(endpoint.getId(), new FailureLogger("rejectConnection()"));
   }
 
   /**
@@ -339,52 +673,27 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
 
     mIsDiscovering = true;
 
-    mConnectionsClient
-        .startDiscovery(
-            getServiceId(),
-            new EndpointDiscoveryCallback() {
-              @Override
-              public void onEndpointFound(String endpointId, DiscoveredEndpointInfo info) {
-                logD(
-                    String.format(
-                        "onEndpointFound(endpointId=%s, serviceId=%s, endpointName=%s)",
-                        endpointId, info.getServiceId(), info.getEndpointName()));
-
-                if (getServiceId().equals(info.getServiceId())) {
-                  Endpoint endpoint = new Endpoint(endpointId, info.getEndpointName());
-                  mDiscoveredEndpoints.put(endpointId, endpoint);
-                  onEndpointDiscovered(endpoint);
-                }
-              }
+    mTransport.startDiscovery(
+        getServiceId(),
+        new MeshTransport.ResultListener() {
+          @Override
+          public void onSuccess() {
+            onDiscoveryStarted();
+          }
 
-              @Override
-              public void onEndpointLost(String endpointId) {
-                logD(String.format("onEndpointLost(endpointId=%s)", endpointId));
-              }
-            },
-            new DiscoveryOptions(getStrategy()))
-        .addOnSuccessListener(
-            new OnSuccessListener<Void>() {
-              @Override
-              public void onSuccess(Void unusedResult) {
-                onDiscoveryStarted();
-              }
-            })
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                mIsDiscovering = false;
-                logW("startDiscovering() failed.", e);
-                onDiscoveryFailed();
-              }
-            });
+          @Override
+          public void onFailure(Exception e) {
+            mIsDiscovering = false;
+            logW("startDiscovering() failed.", e);
+            onDiscoveryFailed();
+          }
+        });
   }
 
   /** Stops discovery. */
   protected void stopDiscovering() {
     mIsDiscovering = false;
-    mConnectionsClient.stopDiscovery();
+    mTransport.stopDiscovery();
   }
 
   /** Returns {@code true} if currently discovering. */
@@ -406,61 +715,86 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
 
   /** Disconnects from the given endpoint. */
   protected void disconnect(Endpoint endpoint) {
-    mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
+    mTransport.disconnectFromEndpoint(endpoint.getId());
     mEstablishedConnections.remove(endpoint.getId());
   }
 
   /** Disconnects from all currently connected endpoints. */
   protected void disconnectFromAllEndpoints() {
-    for (Endpoint endpoint : mEstablishedConnections.values()) {
-      mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
+    for (String endpointId : mEstablishedConnections.getSnapshot().getIds()) {
+      mTransport.disconnectFromEndpoint(endpointId);
     }
     mEstablishedConnections.clear();
   }
 
   /** Resets and clears all state in Nearby Connections. */
   protected void stopAllEndpoints() {
-    mConnectionsClient.stopAllEndpoints();
+    mTransport.stopAllEndpoints();
     mIsAdvertising = false;
     mIsDiscovering = false;
-    mIsConnecting = false;
+    mConnectAttempts.clear();
     mDiscoveredEndpoints.clear();
     mPendingConnections.clear();
     mEstablishedConnections.clear();
+    clearLinks();
   }
 
   /**
    * Sends a connection request to the endpoint. Either {@link #onConnectionInitiated(Endpoint,
-   * ConnectionInfo)} or {@link #onConnectionFailed(Endpoint)} will be called once we've found out
-   * if we successfully reached the device.
+   * boolean)} or {@link #onConnectionFailed(Endpoint)} will be called once we've found out if we
+   * successfully reached the device.
+   *
+   * @return False if no request was sent, because one to the endpoint is already out, or too many
+   *     others are.
    */
-  protected void connectToEndpoint(final Endpoint endpoint) {
-    logV("Sending a connection request to endpoint " + endpoint);
+  protected boolean connectToEndpoint(final Endpoint endpoint) {
     // Mark ourselves as connecting so we don't connect multiple times
-    mIsConnecting = true;
+    if (!mConnectAttempts.tryStart(endpoint.getName())) {
+      logV("Holding back a connection request to endpoint " + endpoint);
+      return false;
+    }
+    logV("Sending a connection request to endpoint " + endpoint);
 
     // Ask to connect
-    mConnectionsClient
-        .requestConnection(getName(), endpoint.getId(), mConnectionLifecycleCallback)
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                logW("requestConnection() failed.", e);
-                mIsConnecting = false;
-                onConnectionFailed(endpoint);
-              }
-            });
+    mTransport.requestConnection(
+        getName(),
+        endpoint.getId(),
+        new MeshTransport.ResultListener() {
+          @Override
+          public void onSuccess() {}
+
+          @Override
+          public void onFailure(Exception e) {
+            logW("requestConnection() failed.", e);
+            mConnectAttempts.onFinished(endpoint.getName());
+            onConnectionFailed(endpoint);
+          }
+        });
+    return true;
   }
 
   /** Returns {@code true} if we're currently attempting to connect to another device. */
   protected final boolean isConnecting() {
-    return mIsConnecting;
+    return mConnectAttempts.getInFlightCount() > 0;
+  }
+
+  /** Returns {@code true} if we're currently attempting to connect to a device with this name. */
+  protected final boolean isConnecting(String name) {
+    return mConnectAttempts.isInFlight(name);
+  }
+
+  /**
+   * Returns how long to wait before asking an endpoint we've found to connect. Of two devices that
+   * find each other, only the one with the lower name asks right away, so their requests don't
+   * collide. The other waits in case the first can't hear it.
+   */
+  protected final long getConnectDelay(Endpoint endpoint) {
+    return mConnectAttempts.getConnectDelay(getName(), endpoint.getName());
   }
 
   private void connectedToEndpoint(Endpoint endpoint) {
     logD(String.format("connectedToEndpoint(endpoint=%s)", endpoint));
-    mEstablishedConnections.put(endpoint.getId(), endpoint);
+    mEstablishedConnections.put(endpoint);
     onEndpointConnected(endpoint);
   }
 
@@ -470,6 +804,49 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
     onEndpointDisconnected(endpoint);
   }
 
+  /** Starts measuring the link to a new neighbor. */
+  private void addLink(final String endpointId) {
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            mLinkQuality.addLink(endpointId);
+            scheduleProbes();
+          }
+        });
+  }
+
+  /** Drops whatever is waiting to go to an endpoint, and what we measured about its link. */
+  private void removeLink(final String endpointId) {
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            mFrameBatcher.remove(endpointId);
+            mOutboundQueue.remove(endpointId);
+            mLinkQuality.removeLink(endpointId);
+            mLinkQualities.remove(endpointId);
+          }
+        });
+  }
+
+  /** Drops everything waiting to be sent, and everything we measured about our links. */
+  private void clearLinks() {
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            mFrameBatcher.clear();
+            mMeshHandler.removeCallbacks(mFlushRunnable);
+            mOutboundQueue.clear();
+            mMeshHandler.removeCallbacks(mSendTimeoutRunnable);
+            mLinkQuality.clear();
+            mLinkQualities.clear();
+            mMeshHandler.removeCallbacks(mProbeRunnable);
+          }
+        });
+  }
+
   /**
    * Called when a connection with this endpoint has failed. Override this method to act on the
    * event.
@@ -482,48 +859,188 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   /** Called when someone has disconnected. Override this method to act on the event. */
   protected void onEndpointDisconnected(Endpoint endpoint) {}
 
-  /** Returns a list of currently connected endpoints. */
-  protected Set<Endpoint> getDiscoveredEndpoints() {
-    Set<Endpoint> endpoints = new HashSet<>();
-    endpoints.addAll(mDiscoveredEndpoints.values());
-    return endpoints;
+  /** Returns the endpoints we've discovered. The collection doesn't change, so don't copy it. */
+  protected Collection<Endpoint> getDiscoveredEndpoints() {
+    return mDiscoveredEndpoints.getSnapshot().getEndpoints();
+  }
+
+  /**
+   * Returns the endpoint we discovered most recently under the given name, or null if there isn't
+   * one.
+   */
+  @Nullable protected Endpoint findDiscoveredEndpoint(String name) {
+    return mDiscoveredEndpoints.getByName(name);
   }
 
-  /** Returns a list of currently connected endpoints. */
-  protected Set<Endpoint> getConnectedEndpoints() {
-    Set<Endpoint> endpoints = new HashSet<>();
-    endpoints.addAll(mEstablishedConnections.values());
-    return endpoints;
+  /** Returns the currently connected endpoints. The collection doesn't change, so don't copy it. */
+  protected Collection<Endpoint> getConnectedEndpoints() {
+    return mEstablishedConnections.getSnapshot().getEndpoints();
   }
 
   /**
-   * Sends a {@link Payload} to all currently connected endpoints.
+   * Sends a stream to all currently connected endpoints.
    *
-   * @param payload The data you want to send.
+   * @param stream The data you want to send. It's read until it ends.
    */
-  protected void send(Payload payload) {
-    send(payload, mEstablishedConnections.keySet());
+  protected void sendStream(InputStream stream) {
+    sendStream(stream, mEstablishedConnections.getSnapshot().getIds());
   }
 
-  private void send(Payload payload, Set<String> endpoints) {
-    mConnectionsClient
-        .sendPayload(new ArrayList<>(endpoints), payload)
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                logW("sendPayload() failed.", e);
-              }
-            });
+  /**
+   * Sends a stream to some of the currently connected endpoints. Streams skip the send queue: one
+   * stays in flight for as long as it plays, and would hold up the mesh traffic behind it.
+   *
+   * @param stream The data you want to send.
+   * @param endpoints The ids of the endpoints to send it to.
+   */
+  protected void sendStream(InputStream stream, final Set<String> endpoints) {
+    final long payloadId =
+        mTransport.sendStream(endpoints, stream, new FailureLogger("sendPayload()"));
+    runOnMeshThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            for (String endpointId : endpoints) {
+              mLinkQuality.onTransferStarted(endpointId, payloadId);
+            }
+          }
+        });
+  }
+
+  /**
+   * Sends bytes to some of the currently connected endpoints right away. Mesh traffic goes through
+   * {@link #mOutboundQueue} instead.
+   *
+   * @return The id of the payload.
+   */
+  private long sendBytes(byte[] bytes, Collection<String> endpoints) {
+    long payloadId = mTransport.sendBytes(endpoints, bytes, new FailureLogger("sendPayload()"));
+    for (String endpointId : endpoints) {
+      mLinkQuality.onTransferStarted(endpointId, payloadId);
+    }
+    return payloadId;
+  }
+
+  /**
+   * Sends a {@link MeshFrame} to some of the currently connected endpoints. Frames are batched per
+   * endpoint, so they may wait a few milliseconds for other frames to share a payload with. Call
+   * this on the mesh thread.
+   *
+   * @param frame The frame you want to send.
+   * @param endpoints The ids of the endpoints to send it to.
+   */
+  @WorkerThread
+  protected void sendFrame(byte[] frame, Collection<String> endpoints) {
+    for (String endpointId : endpoints) {
+      mFrameBatcher.add(endpointId, frame, mBatchListener);
+    }
+    scheduleBatchFlush();
+  }
+
+  private void scheduleBatchFlush() {
+    mMeshHandler.removeCallbacks(mFlushRunnable);
+    long deadline = mFrameBatcher.getNextDeadline();
+    if (deadline >= 0) {
+      mMeshHandler.postDelayed(mFlushRunnable, Math.max(0, deadline - Clock.SYSTEM.now()));
+    }
+  }
+
+  private void scheduleSendTimeouts() {
+    mMeshHandler.removeCallbacks(mSendTimeoutRunnable);
+    long deadline = mOutboundQueue.getNextDeadline();
+    if (deadline >= 0) {
+      mMeshHandler.postDelayed(mSendTimeoutRunnable, Math.max(0, deadline - Clock.SYSTEM.now()));
+    }
+  }
+
+  private void scheduleProbes() {
+    mMeshHandler.removeCallbacks(mProbeRunnable);
+    long deadline = mLinkQuality.getNextDeadline();
+    if (deadline >= 0) {
+      mMeshHandler.postDelayed(mProbeRunnable, Math.max(0, deadline - Clock.SYSTEM.now()));
+    }
+  }
+
+  /**
+   * Sends a link quality probe, or the answer to one. Probes skip {@link #mFrameBatcher} and {@link
+   * #mOutboundQueue}, since waiting for a batch or a place in the window would add to the round
+   * trip time they measure.
+   */
+  private void sendProbe(String endpointId, int type, int probeId) {
+    sendBytes(MeshFrame.createProbe(type, probeId), Collections.singleton(endpointId));
+  }
+
+  /**
+   * Answers link quality probes and takes in the answers to ours.
+   *
+   * @return True if the frame was a probe, and has been handled.
+   */
+  private boolean onReceiveProbe(@Nullable Endpoint endpoint, byte[] buffer, int offset) {
+    int type = MeshFrame.getType(buffer, offset);
+    if (type != MeshFrame.TYPE_PING && type != MeshFrame.TYPE_PONG) {
+      return false;
+    }
+    if (endpoint == null
+        || MeshFrame.getPayloadLength(buffer, offset) < MeshFrame.PROBE_PAYLOAD_LENGTH) {
+      return true;
+    }
+    int probeId = MeshFrame.getProbeId(buffer, offset);
+    if (type == MeshFrame.TYPE_PING) {
+      sendProbe(endpoint.getId(), MeshFrame.TYPE_PONG, probeId);
+    } else if (mLinkQuality.onPong(endpoint.getId(), probeId)) {
+      publishLinkQualities();
+      onLinkQualityUpdated(endpoint);
+    }
+    return true;
+  }
+
+  /** Copies the latest estimates of {@link #mLinkQuality} to where the UI can read them. */
+  @WorkerThread
+  private void publishLinkQualities() {
+    for (String endpointId : mEstablishedConnections.getSnapshot().getIds()) {
+      LinkQuality quality = mLinkQuality.getLinkQuality(endpointId);
+      if (quality != null) {
+        mLinkQualities.put(endpointId, quality);
+      }
+    }
+  }
+
+  /**
+   * Returns the measured quality of the link to a neighbor, or null if we aren't connected to it.
+   * Useful for picking routes and bitrates, and for debugging.
+   */
+  @Nullable protected LinkQuality getLinkQuality(String endpointId) {
+    return mLinkQualities.get(endpointId);
   }
 
   /**
-   * Someone connected to us has sent us data. Override this method to act on the event.
+   * A new round trip time was measured for a neighbor. Override this method to act on the event.
+   * Called on the mesh thread.
+   */
+  protected void onLinkQualityUpdated(Endpoint endpoint) {}
+
+  /**
+   * Someone connected to us has started sending us a stream. Override this method to act on the
+   * event.
+   *
+   * @param endpoint The sender.
+   * @param stream The data. Read it off the main thread.
+   */
+  protected void onReceiveStream(Endpoint endpoint, InputStream stream) {}
+
+  /**
+   * Someone connected to us has sent us a {@link MeshFrame}. Payloads holding a batch of frames are
+   * split up, and this is called once per frame, on the mesh thread. Override this method to act on
+   * the event.
    *
    * @param endpoint The sender.
-   * @param payload The data.
+   * @param buffer The received bytes. Don't hold on to them; copy the frame out if you need it
+   *     later.
+   * @param offset The offset of the frame in the buffer.
+   * @param length The length of the frame.
    */
-  protected void onReceive(Endpoint endpoint, Payload payload) {}
+  @WorkerThread
+  protected void onReceiveFrame(Endpoint endpoint, byte[] buffer, int offset, int length) {}
 
   /**
    * An optional hook to pool any permissions the app needs with the permissions ConnectionsActivity
@@ -551,22 +1068,6 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
    */
   protected abstract Strategy getStrategy();
 
-  /**
-   * Transforms a {@link Status} into a English-readable message for logging.
-   *
-   * @param status The current status
-   * @return A readable String. eg. [404]File not found.
-   */
-  private static String toString(Status status) {
-    return String.format(
-        Locale.US,
-        "[%d]%s",
-        status.getStatusCode(),
-        status.getStatusMessage() != null
-            ? status.getStatusMessage()
-            : ConnectionsStatusCodes.getStatusCodeString(status.getStatusCode()));
-  }
-
   /**
    * Returns {@code true} if the app was granted all the permissions. Otherwise, returns {@code
    * false}.
@@ -616,6 +1117,23 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
     Log.e(TAG, msg);
   }
 
+  /** Logs the failure of a request to {@link #mTransport}. */
+  private class FailureLogger implements MeshTransport.ResultListener {
+    private final String mRequest;
+
+    FailureLogger(String request) {
+      mRequest = request;
+    }
+
+    @Override
+    public void onSuccess() {}
+
+    @Override
+    public void onFailure(Exception e) {
+      logW(mRequest + " failed.", e);
+    }
+  }
+
   /** Represents a device we can talk to. */
   protected static class Endpoint {
     @NonNull private final String id;
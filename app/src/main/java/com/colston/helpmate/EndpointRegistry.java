@@ -0,0 +1,207 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import com.colston.helpmate.ConnectionsActivity.Endpoint;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A set of endpoints, keyed by id, that can be read from any thread without locking or copying.
+ * Every change publishes a new immutable {@link Snapshot}, so readers like the relay path on the
+ * mesh thread always see a consistent set, even while the main thread changes it. Changes are rare
+ * next to reads, so rebuilding the snapshot each time is cheap.
+ *
+ * <p>Endpoints are also indexed by name, since the id of a peer can change each time it's
+ * discovered while its name stays the same. If two endpoints share a name, the newest one wins.
+ */
+class EndpointRegistry {
+  /** Hears about endpoints coming and going. Called on the thread that made the change. */
+  interface Listener {
+    void onEndpointAdded(Endpoint endpoint);
+
+    void onEndpointRemoved(Endpoint endpoint);
+  }
+
+  /** An immutable view of the registry at one point in time. */
+  static final class Snapshot {
+    private static final Snapshot EMPTY =
+        new Snapshot(
+            Collections.<String, Endpoint>emptyMap(), Collections.<String, Endpoint>emptyMap());
+
+    private final Map<String, Endpoint> mById;
+    private final Map<String, Endpoint> mByName;
+    private final Collection<Endpoint> mEndpoints;
+
+    private Snapshot(Map<String, Endpoint> byId, Map<String, Endpoint> byName) {
+      mById = Collections.unmodifiableMap(byId);
+      mByName = Collections.unmodifiableMap(byName);
+      mEndpoints = mById.values();
+    }
+
+    /** Returns the endpoint with the given id, or null if there isn't one. */
+    @Nullable public Endpoint get(String endpointId) {
+      return mById.get(endpointId);
+    }
+
+    /** Returns the newest endpoint with the given name, or null if there isn't one. */
+    @Nullable public Endpoint getByName(String name) {
+      return mByName.get(name);
+    }
+
+    public boolean contains(String endpointId) {
+      return mById.containsKey(endpointId);
+    }
+
+    public boolean containsName(String name) {
+      return mByName.containsKey(name);
+    }
+
+    /** Returns the ids of the endpoints. The set doesn't change. */
+    public Set<String> getIds() {
+      return mById.keySet();
+    }
+
+    /** Returns the endpoints, oldest first. The collection doesn't change. */
+    public Collection<Endpoint> getEndpoints() {
+      return mEndpoints;
+    }
+
+    public int size() {
+      return mById.size();
+    }
+
+    public boolean isEmpty() {
+      return mById.isEmpty();
+    }
+  }
+
+  private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+  private volatile Snapshot mSnapshot = Snapshot.EMPTY;
+
+  /** Returns the current endpoints. Later changes don't show up in it. */
+  Snapshot getSnapshot() {
+    return mSnapshot;
+  }
+
+  @Nullable Endpoint get(String endpointId) {
+    return mSnapshot.get(endpointId);
+  }
+
+  @Nullable Endpoint getByName(String name) {
+    return mSnapshot.getByName(name);
+  }
+
+  boolean contains(String endpointId) {
+    return mSnapshot.contains(endpointId);
+  }
+
+  boolean containsName(String name) {
+    return mSnapshot.containsName(name);
+  }
+
+  int size() {
+    return mSnapshot.size();
+  }
+
+  boolean isEmpty() {
+    return mSnapshot.isEmpty();
+  }
+
+  void addListener(Listener listener) {
+    mListeners.add(listener);
+  }
+
+  void removeListener(Listener listener) {
+    mListeners.remove(listener);
+  }
+
+  /** Adds an endpoint, or replaces the one with the same id. */
+  void put(Endpoint endpoint) {
+    Endpoint previous;
+    synchronized (this) {
+      Map<String, Endpoint> byId = new LinkedHashMap<>(mSnapshot.mById);
+      previous = byId.remove(endpoint.getId());
+      byId.put(endpoint.getId(), endpoint);
+      mSnapshot = new Snapshot(byId, indexByName(byId));
+    }
+    if (previous != null) {
+      notifyRemoved(previous);
+    }
+    notifyAdded(endpoint);
+  }
+
+  /**
+   * Removes an endpoint.
+   *
+   * @return The endpoint that was removed, or null if there was none with that id.
+   */
+  @Nullable Endpoint remove(String endpointId) {
+    Endpoint removed;
+    synchronized (this) {
+      if (!mSnapshot.contains(endpointId)) {
+        return null;
+      }
+      Map<String, Endpoint> byId = new LinkedHashMap<>(mSnapshot.mById);
+      removed = byId.remove(endpointId);
+      mSnapshot = new Snapshot(byId, indexByName(byId));
+    }
+    notifyRemoved(removed);
+    return removed;
+  }
+
+  /** Removes every endpoint. */
+  void clear() {
+    Snapshot cleared;
+    synchronized (this) {
+      cleared = mSnapshot;
+      mSnapshot = Snapshot.EMPTY;
+    }
+    for (Endpoint endpoint : cleared.getEndpoints()) {
+      notifyRemoved(endpoint);
+    }
+  }
+
+  private static Map<String, Endpoint> indexByName(Map<String, Endpoint> byId) {
+    // Insertion order is oldest first, so newer endpoints overwrite older ones with the same name.
+    Map<String, Endpoint> byName = new HashMap<>();
+    for (Endpoint endpoint : byId.values()) {
+      byName.put(endpoint.getName(), endpoint);
+    }
+    return byName;
+  }
+
+  private void notifyAdded(Endpoint endpoint) {
+    for (Listener listener : mListeners) {
+      listener.onEndpointAdded(endpoint);
+    }
+  }
+
+  private void notifyRemoved(Endpoint endpoint) {
+    for (Listener listener : mListeners) {
+      listener.onEndpointRemoved(endpoint);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionResolution;
+import com.google.android.gms.nearby.connection.ConnectionsClient;
+import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
+import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
+import com.google.android.gms.nearby.connection.DiscoveryOptions;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.google.android.gms.nearby.connection.Strategy;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * The {@link MeshTransport} the app ships with: Nearby Connections, over Bluetooth and Wi-Fi.
+ * Callbacks and result listeners run on the main thread.
+ */
+public class NearbyTransport implements MeshTransport {
+  private final ConnectionsClient mConnectionsClient;
+  private final Strategy mStrategy;
+  @Nullable private Callback mCallback;
+
+  /** Callbacks for connections to other devices. */
+  private final ConnectionLifecycleCallback mConnectionLifecycleCallback =
+      new ConnectionLifecycleCallback() {
+        @Override
+        public void onConnectionInitiated(String endpointId, ConnectionInfo connectionInfo) {
+          mCallback.onConnectionInitiated(
+              endpointId, connectionInfo.getEndpointName(), connectionInfo.isIncomingConnection());
+        }
+
+        @Override
+        public void onConnectionResult(String endpointId, ConnectionResolution result) {
+          mCallback.onConnectionResult(
+              endpointId,
+              result.getStatus().isSuccess(),
+              NearbyTransport.toString(result.getStatus()));
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+          mCallback.onDisconnected(endpointId);
+        }
+      };
+
+  /** Callbacks for payloads (bytes of data) sent from another device to us. */
+  private final PayloadCallback mPayloadCallback =
+      new PayloadCallback() {
+        @Override
+        public void onPayloadReceived(String endpointId, Payload payload) {
+          if (payload.getType() == Payload.Type.BYTES) {
+            mCallback.onBytesReceived(endpointId, payload.getId(), payload.asBytes());
+          } else if (payload.getType() == Payload.Type.STREAM) {
+            mCallback.onStreamReceived(
+                endpointId, payload.getId(), payload.asStream().asInputStream());
+          }
+        }
+
+        @Override
+        public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+          int status;
+          switch (update.getStatus()) {
+            case PayloadTransferUpdate.Status.SUCCESS:
+              status = TRANSFER_SUCCESS;
+              break;
+            case PayloadTransferUpdate.Status.FAILURE:
+              status = TRANSFER_FAILURE;
+              break;
+            case PayloadTransferUpdate.Status.CANCELED:
+              status = TRANSFER_CANCELED;
+              break;
+            default:
+              status = TRANSFER_IN_PROGRESS;
+              break;
+          }
+          mCallback.onTransferUpdate(
+              endpointId, update.getPayloadId(), status, update.getBytesTransferred());
+        }
+      };
+
+  /**
+   * @param connectionsClient Our handle to Nearby Connections.
+   * @param strategy How many connections we may have, and over which radios. Only devices using the
+   *     same strategy find each other.
+   */
+  public NearbyTransport(ConnectionsClient connectionsClient, Strategy strategy) {
+    mConnectionsClient = connectionsClient;
+    mStrategy = strategy;
+  }
+
+  @Override
+  public void setCallback(Callback callback) {
+    mCallback = callback;
+  }
+
+  @Override
+  public void startAdvertising(String name, String serviceId, @Nullable ResultListener listener) {
+    AdvertisingOptions options = new AdvertisingOptions.Builder().setStrategy(mStrategy).build();
+    notify(
+        mConnectionsClient.startAdvertising(name, serviceId, mConnectionLifecycleCallback, options),
+        listener);
+  }
+
+  @Override
+  public void stopAdvertising() {
+    mConnectionsClient.stopAdvertising();
+  }
+
+  @Override
+  public void startDiscovery(final String serviceId, @Nullable ResultListener listener) {
+    notify(
+        mConnectionsClient.startDiscovery(
+            serviceId,
+            new EndpointDiscoveryCallback() {
+              @Override
+              public void onEndpointFound(String endpointId, DiscoveredEndpointInfo info) {
+                if (serviceId.equals(info.getServiceId())) {
+                  mCallback.onEndpointFound(endpointId, info.getEndpointName());
+                }
+              }
+
+              @Override
+              public void onEndpointLost(String endpointId) {
+                mCallback.onEndpointLost(endpointId);
+              }
+            },
+            new DiscoveryOptions(mStrategy)),
+        listener);
+  }
+
+  @Override
+  public void stopDiscovery() {
+    mConnectionsClient.stopDiscovery();
+  }
+
+  @Override
+  public void requestConnection(String name, String endpointId, @Nullable ResultListener listener) {
+    notify(
+        mConnectionsClient.requestConnection(name, endpointId, mConnectionLifecycleCallback),
+        listener);
+  }
+
+  @Override
+  public void acceptConnection(String endpointId, @Nullable ResultListener listener) {
+    notify(mConnectionsClient.acceptConnection(endpointId, mPayloadCallback), listener);
+  }
+
+  @Override
+  public void rejectConnection(String endpointId, @Nullable ResultListener listener) {
+    notify(mConnectionsClient.rejectConnection(endpointId), listener);
+  }
+
+  @Override
+  public void disconnectFromEndpoint(String endpointId) {
+    mConnectionsClient.disconnectFromEndpoint(endpointId);
+  }
+
+  @Override
+  public void stopAllEndpoints() {
+    mConnectionsClient.stopAllEndpoints();
+  }
+
+  @Override
+  public long sendBytes(
+      Collection<String> endpointIds, byte[] bytes, @Nullable ResultListener listener) {
+    return send(endpointIds, Payload.fromBytes(bytes), listener);
+  }
+
+  @Override
+  public long sendStream(
+      Collection<String> endpointIds, InputStream stream, @Nullable ResultListener listener) {
+    return send(endpointIds, Payload.fromStream(stream), listener);
+  }
+
+  private long send(
+      Collection<String> endpointIds, Payload payload, @Nullable ResultListener listener) {
+    notify(mConnectionsClient.sendPayload(new ArrayList<>(endpointIds), payload), listener);
+    return payload.getId();
+  }
+
+  /** Passes the outcome of a Nearby Connections task on to a listener. */
+  private static void notify(Task<Void> task, @Nullable final ResultListener listener) {
+    if (listener == null) {
+      return;
+    }
+    task.addOnSuccessListener(
+            new OnSuccessListener<Void>() {
+              @Override
+              public void onSuccess(Void unusedResult) {
+                listener.onSuccess();
+              }
+            })
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                listener.onFailure(e);
+              }
+            });
+  }
+
+  /**
+   * Transforms a {@link Status} into a English-readable message for logging.
+   *
+   * @param status The current status
+   * @return A readable String. eg. [404]File not found.
+   */
+  private static String toString(Status status) {
+    return String.format(
+        Locale.US,
+        "[%d]%s",
+        status.getStatusCode(),
+        status.getStatusMessage() != null
+            ? status.getStatusMessage()
+            : ConnectionsStatusCodes.getStatusCodeString(status.getStatusCode()));
+  }
+}
@@ -21,6 +21,7 @@ public class PeerDetails {
   static PeerDetails peerDetails;
   String peerAddress;
   boolean peerDebugMode;
+  RelayMode peerRelayMode = RelayMode.FLOODING;
 
   public static PeerDetails getInstance() {
     if (peerDetails == null) {
@@ -37,6 +38,10 @@ public class PeerDetails {
     return peerDebugMode;
   }
 
+  public RelayMode getPeerRelayMode() {
+    return peerRelayMode;
+  }
+
   public void setPeerAddress(String peerAddress) {
     this.peerAddress = peerAddress;
   }
@@ -44,4 +49,8 @@ public class PeerDetails {
   public void setPeerDebugMode(boolean peerDebugMode) {
     this.peerDebugMode = peerDebugMode;
   }
+
+  public void setPeerRelayMode(RelayMode peerRelayMode) {
+    this.peerRelayMode = peerRelayMode;
+  }
 }
@@ -57,6 +57,7 @@ public class StartActivity extends AppCompatActivity {
 
     // Initialize the toggle switch
     SwitchMaterial toggleSwitch = customActionBar.findViewById(R.id.toggle_switch);
+    SwitchMaterial gossipSwitch = customActionBar.findViewById(R.id.gossip_switch);
 
     Button btn_continue = findViewById(R.id.btn_continue);
     final EditText et_nodeName = findViewById(R.id.et_username);
@@ -102,6 +103,15 @@ public class StartActivity extends AppCompatActivity {
           }
         });
 
+    gossipSwitch.setOnCheckedChangeListener(
+        new CompoundButton.OnCheckedChangeListener() {
+          @Override
+          public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            PeerDetails.getInstance()
+                .setPeerRelayMode(isChecked ? RelayMode.GOSSIP : RelayMode.FLOODING);
+          }
+        });
+
     btn_continue.setOnClickListener(
         new View.OnClickListener() {
           @Override
@@ -109,7 +119,8 @@ public class StartActivity extends AppCompatActivity {
             String nodName = et_nodeName.getText().toString();
             if (TextUtils.isEmpty(nodName)
                 || TextUtils.isEmpty(nodName.trim())
-                || nodName.equals("All")) {
+                || nodName.equals(MeshFrame.BROADCAST)
+                || !MeshFrame.isValidAddress(nodName.trim())) {
               et_nodeName.setError(getString(R.string.err_invalidNodeName));
               return;
             }
@@ -46,10 +46,9 @@ import androidx.annotation.UiThread;
 import androidx.annotation.WorkerThread;
 import androidx.core.content.ContextCompat;
 import androidx.core.view.ViewCompat;
-import com.google.android.gms.nearby.connection.ConnectionInfo;
-import com.google.android.gms.nearby.connection.Payload;
 import com.google.android.gms.nearby.connection.Strategy;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Random;
@@ -259,7 +258,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   }
 
   @Override
-  protected void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {
+  protected void onConnectionInitiated(Endpoint endpoint, boolean incoming) {
     // A connection to another device has been initiated! We'll accept the connection immediately.
     acceptConnection(endpoint);
   }
@@ -550,29 +549,27 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     }
   }
 
-  /** {@see ConnectionsActivity#onReceive(Endpoint, Payload)} */
+  /** {@see ConnectionsActivity#onReceiveStream(Endpoint, InputStream)} */
   @Override
-  protected void onReceive(Endpoint endpoint, Payload payload) {
-    if (payload.getType() == Payload.Type.STREAM) {
-      AudioPlayer player =
-          new AudioPlayer(payload.asStream().asInputStream()) {
-            @WorkerThread
-            @Override
-            protected void onFinish() {
-              final AudioPlayer audioPlayer = this;
-              post(
-                  new Runnable() {
-                    @UiThread
-                    @Override
-                    public void run() {
-                      mAudioPlayers.remove(audioPlayer);
-                    }
-                  });
-            }
-          };
-      mAudioPlayers.add(player);
-      player.start();
-    }
+  protected void onReceiveStream(Endpoint endpoint, InputStream stream) {
+    AudioPlayer player =
+        new AudioPlayer(stream) {
+          @WorkerThread
+          @Override
+          protected void onFinish() {
+            final AudioPlayer audioPlayer = this;
+            post(
+                new Runnable() {
+                  @UiThread
+                  @Override
+                  public void run() {
+                    mAudioPlayers.remove(audioPlayer);
+                  }
+                });
+          }
+        };
+    mAudioPlayers.add(player);
+    player.start();
   }
 
   /** Stops all currently streaming audio tracks. */
@@ -598,7 +595,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
       ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
 
       // Send the first half of the payload (the read side) to Nearby Connections.
-      send(Payload.fromStream(payloadPipe[0]));
+      sendStream(new ParcelFileDescriptor.AutoCloseInputStream(payloadPipe[0]));
 
       // Use the second half of the payload (the write side) in AudioRecorder.
       mRecorder = new AudioRecorder(payloadPipe[1]);
@@ -59,7 +59,8 @@ subprojects {
         }
     }
     afterEvaluate {
-        tasks.named("preBuild") {
+        // Android modules format before preBuild, plain Java modules before compileJava
+        tasks.matching { it.name == "preBuild" || it.name == "compileJava" }.configureEach {
             dependsOn("spotlessApply")
         }
     }
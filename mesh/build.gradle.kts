@@ -0,0 +1,39 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+plugins {
+    `java-library`
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    api("androidx.annotation:annotation:1.7.1")
+
+    testImplementation("junit:junit:4.13.2")
+}
+
+// Runs the mesh simulator, eg. ./gradlew :mesh:simulate --args="--nodes=300 --mode=gossip"
+tasks.register<JavaExec>("simulate") {
+    group = "verification"
+    description = "Runs the discrete-event mesh simulator and prints its report."
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.colston.helpmate.MeshSimulator")
+}
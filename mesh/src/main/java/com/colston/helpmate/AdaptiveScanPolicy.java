@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+/**
+ * Scans all the time while a node has fewer neighbors than it wants, or has just lost one, since
+ * that's when finding a node matters most. Otherwise it scans in windows, and every window in a row
+ * that turns up nothing doubles the rest after it, up to a limit. A stable mesh ends up scanning a
+ * few percent of the time, and any change brings it back to the short rests right away.
+ */
+public class AdaptiveScanPolicy implements ScanPolicy {
+  private final int mMinDegree;
+  private final long mScanDuration;
+  private final long mMinIdleDuration;
+  private final long mMaxIdleDuration;
+  private final long mLossRecoveryTime;
+
+  /**
+   * @param minDegree Below this many neighbors we scan all the time.
+   * @param scanDuration How long each scan window lasts, in milliseconds.
+   * @param minIdleDuration The rest after a window once our neighbors have just changed, in
+   *     milliseconds.
+   * @param maxIdleDuration The longest rest, in milliseconds.
+   * @param lossRecoveryTime How long we scan all the time after losing a neighbor, in milliseconds.
+   */
+  public AdaptiveScanPolicy(
+      int minDegree,
+      long scanDuration,
+      long minIdleDuration,
+      long maxIdleDuration,
+      long lossRecoveryTime) {
+    mMinDegree = minDegree;
+    mScanDuration = scanDuration;
+    mMinIdleDuration = minIdleDuration;
+    mMaxIdleDuration = maxIdleDuration;
+    mLossRecoveryTime = lossRecoveryTime;
+  }
+
+  @Override
+  public long getScanDuration(int degree) {
+    return mScanDuration;
+  }
+
+  @Override
+  public long getIdleDuration(int degree, int quietScans, long sinceLastLoss) {
+    if (degree < mMinDegree || sinceLastLoss < mLossRecoveryTime) {
+      return 0;
+    }
+    return TaskScheduler.getBackoffDelay(mMinIdleDuration, mMaxIdleDuration, quietScans);
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+/**
+ * A source of time in milliseconds. Time-dependent mesh logic takes a Clock instead of reading the
+ * system time so that it can be driven by a fake clock off-device.
+ *
+ * <p>For the same reason, classes that take a Clock don't run timers of their own. Those with work
+ * to do later say when through {@code getNextDeadline()}, and their owner calls back in, eg.
+ * through {@code runDue}, once that time comes: the app from a Handler, the {@link MeshSimulator}
+ * from its event queue, and tests whenever they've moved their clock.
+ */
+public interface Clock {
+  /** The real monotonic clock. Only differences between its values are meaningful. */
+  Clock SYSTEM =
+      new Clock() {
+        @Override
+        public long now() {
+          return System.nanoTime() / 1000000;
+        }
+      };
+
+  /**
+   * The wall clock, in milliseconds since the epoch. Use it for times that are saved to disk and
+   * have to stay meaningful after a restart.
+   */
+  Clock WALL =
+      new Clock() {
+        @Override
+        public long now() {
+          return System.currentTimeMillis();
+        }
+      };
+
+  /** Returns the current time in milliseconds. */
+  long now();
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decides which of two nodes asks the other to connect, and keeps track of the connection requests
+ * we have out. Every node advertises and discovers at the same time, so two nodes usually find each
+ * other at about the same moment. If both ask, the requests collide, and often both fail. Instead,
+ * only the node with the lower name asks right away; the other waits the fallback delay first, in
+ * case the first can't hear it, and doesn't ask at all if the request comes in meanwhile.
+ *
+ * <p>Requests are tracked per peer, so a slow request to one peer doesn't hold up requests to
+ * others, and a request to a peer isn't sent twice. A request that never gets an answer is
+ * forgotten after the timeout.
+ */
+public class ConnectionCoordinator {
+  private final Clock mClock;
+  private final int mMaxInFlight;
+  private final long mTimeout;
+  private final long mFallbackDelay;
+
+  /** When we sent each request that's still out, by peer name. */
+  private final Map<String, Long> mInFlight = new HashMap<>();
+
+  /**
+   * @param clock The clock timeouts are measured against.
+   * @param maxInFlight The most requests we have out at once. The radio handles only a few.
+   * @param timeout How long we wait for the answer to a request, in milliseconds.
+   * @param fallbackDelay How long the node with the higher name waits before asking itself, in
+   *     milliseconds.
+   */
+  public ConnectionCoordinator(Clock clock, int maxInFlight, long timeout, long fallbackDelay) {
+    mClock = clock;
+    mMaxInFlight = maxInFlight;
+    mTimeout = timeout;
+    mFallbackDelay = fallbackDelay;
+  }
+
+  /**
+   * Returns {@code true} if we're the one who should ask a peer to connect. Both nodes come to the
+   * same answer, since it depends only on the two names.
+   */
+  public static boolean isInitiator(String self, String peer) {
+    return self.compareTo(peer) < 0;
+  }
+
+  /** Returns how long to wait before asking a peer we've just found to connect, in milliseconds. */
+  public long getConnectDelay(String self, String peer) {
+    return isInitiator(self, peer) ? 0 : mFallbackDelay;
+  }
+
+  /**
+   * Records a request to a peer we're about to send.
+   *
+   * @return False if a request to the peer is already out, or too many requests are, in which case
+   *     the request shouldn't be sent.
+   */
+  public boolean tryStart(String peer) {
+    expire();
+    if (mInFlight.containsKey(peer) || mInFlight.size() >= mMaxInFlight) {
+      return false;
+    }
+    mInFlight.put(peer, mClock.now());
+    return true;
+  }
+
+  /** A request to a peer has been answered, or failed. */
+  public void onFinished(String peer) {
+    mInFlight.remove(peer);
+  }
+
+  /** Returns {@code true} if a request to a peer is out. */
+  public boolean isInFlight(String peer) {
+    expire();
+    return mInFlight.containsKey(peer);
+  }
+
+  /** Returns the number of requests out. */
+  public int getInFlightCount() {
+    expire();
+    return mInFlight.size();
+  }
+
+  /** Forgets every request, eg. when all connections have been reset. */
+  public void clear() {
+    mInFlight.clear();
+  }
+
+  private void expire() {
+    long now = mClock.now();
+    Iterator<Long> iterator = mInFlight.values().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next() >= mTimeout) {
+        iterator.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the number of neighbors we're linked to, our degree, between a minimum and a maximum.
+ * Bluetooth radios slow to a crawl beyond a handful of links, so connecting to everyone nearby
+ * doesn't scale. Below the minimum we take any neighbor we can get. Between the two we only add
+ * neighbors that aren't on our map of the mesh yet, since they join another cluster to ours. At the
+ * maximum we refuse new links, unless we can make room for a neighbor like that.
+ *
+ * <p>Above the maximum, {@link #pickPrune()} picks a link to drop: never one the mesh needs to stay
+ * in one piece, never one too young for the beacons to have caught up with it, and the worst of the
+ * rest. Only one link is dropped per settle time, so the mesh can re-map itself in between.
+ */
+public class DegreeController {
+  private final Clock mClock;
+  private final int mMinDegree;
+  private final int mMaxDegree;
+  private final long mSettleTime;
+
+  /** When we linked up with each neighbor, by name. */
+  private final Map<String, Long> mNeighbors = new HashMap<>();
+
+  private final Map<String, LinkQuality> mLinkQualities = new HashMap<>();
+  private Set<String> mReachable = Collections.emptySet();
+  private Set<String> mRedundant = Collections.emptySet();
+  private long mNextPruneAt;
+
+  /**
+   * @param clock The clock link ages are measured against.
+   * @param minDegree The neighbors we want at least.
+   * @param maxDegree The neighbors we want at most.
+   * @param settleTime How long a new link is left alone, and the least time between two prunes, in
+   *     milliseconds. Should cover a few beacon intervals.
+   */
+  public DegreeController(Clock clock, int minDegree, int maxDegree, long settleTime) {
+    if (minDegree < 1 || maxDegree < minDegree) {
+      throw new IllegalArgumentException("Bad degree range " + minDegree + ".." + maxDegree);
+    }
+    mClock = clock;
+    mMinDegree = minDegree;
+    mMaxDegree = maxDegree;
+    mSettleTime = settleTime;
+  }
+
+  /** We've linked up with a neighbor. */
+  public void onConnected(String peer) {
+    mNeighbors.put(peer, mClock.now());
+  }
+
+  /** We've lost the link to a neighbor. */
+  public void onDisconnected(String peer) {
+    mNeighbors.remove(peer);
+    mLinkQualities.remove(peer);
+  }
+
+  /** Takes in the latest measurement of the link to a neighbor. Worse links are pruned first. */
+  public void setLinkQuality(String peer, LinkQuality quality) {
+    if (mNeighbors.containsKey(peer)) {
+      mLinkQualities.put(peer, quality);
+    }
+  }
+
+  /**
+   * Takes in our latest map of the mesh.
+   *
+   * @param reachable The nodes we can reach, see {@link LinkStateDatabase#getReachableNodes()}.
+   * @param redundant The neighbors we can reach another way, see {@link
+   *     LinkStateDatabase#getRedundantNeighbors()}.
+   */
+  public void setTopology(Collection<String> reachable, Collection<String> redundant) {
+    mReachable = new HashSet<>(reachable);
+    mRedundant = new HashSet<>(redundant);
+  }
+
+  /** Returns the number of neighbors we're linked to. */
+  public int getDegree() {
+    return mNeighbors.size();
+  }
+
+  /** Returns {@code true} if we should ask a node we've discovered to link up with us. */
+  public boolean shouldConnect(String peer) {
+    if (mNeighbors.containsKey(peer) || mNeighbors.size() >= mMaxDegree) {
+      return false;
+    }
+    return mNeighbors.size() < mMinDegree || !mReachable.contains(peer);
+  }
+
+  /**
+   * Returns {@code true} if we should accept a node's request to link up with us. At the maximum,
+   * we only accept a node that joins another cluster to ours, and only if we can prune a link to
+   * make room for it.
+   */
+  public boolean shouldAccept(String peer) {
+    if (mNeighbors.containsKey(peer) || mNeighbors.size() < mMaxDegree) {
+      return true;
+    }
+    return !mReachable.contains(peer) && findPrunable() != null;
+  }
+
+  /**
+   * Returns the neighbor we should disconnect from, or null if we should keep every link for now.
+   * The caller is expected to disconnect from it right away.
+   */
+  @Nullable public String pickPrune() {
+    if (mNeighbors.size() <= mMaxDegree || mClock.now() < mNextPruneAt) {
+      return null;
+    }
+    String peer = findPrunable();
+    if (peer != null) {
+      mNextPruneAt = mClock.now() + mSettleTime;
+    }
+    return peer;
+  }
+
+  /** Forgets every neighbor and our map of the mesh, eg. when we've dropped all our links. */
+  public void clear() {
+    mNeighbors.clear();
+    mLinkQualities.clear();
+    mReachable = Collections.emptySet();
+    mRedundant = Collections.emptySet();
+  }
+
+  /** Returns the worst settled link the mesh doesn't need, or null if there isn't one. */
+  @Nullable private String findPrunable() {
+    long now = mClock.now();
+    String worst = null;
+    for (Map.Entry<String, Long> neighbor : mNeighbors.entrySet()) {
+      String peer = neighbor.getKey();
+      if (!mRedundant.contains(peer) || now - neighbor.getValue() < mSettleTime) {
+        continue;
+      }
+      if (worst == null || isWorse(peer, worst)) {
+        worst = peer;
+      }
+    }
+    return worst;
+  }
+
+  /** Returns {@code true} if the link to one neighbor is worse than the link to another. */
+  private boolean isWorse(String peer, String other) {
+    LinkQuality quality = mLinkQualities.get(peer);
+    LinkQuality otherQuality = mLinkQualities.get(other);
+    if (quality == null && otherQuality == null) {
+      return peer.compareTo(other) < 0;
+    }
+    if (quality == null || otherQuality == null) {
+      // A link we haven't measured yet gets the benefit of the doubt.
+      return otherQuality == null;
+    }
+    if (quality.getLossRate() != otherQuality.getLossRate()) {
+      return quality.getLossRate() > otherQuality.getLossRate();
+    }
+    if (quality.getRtt() != otherQuality.getRtt()) {
+      return quality.getRtt() > otherQuality.getRtt();
+    }
+    return peer.compareTo(other) < 0;
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.Arrays;
+
+/**
+ * A fixed capacity set of message keys used to drop messages we've already seen. Once full, the
+ * oldest key is evicted to make room for the next one. Each key also counts how many copies of the
+ * message have arrived, which lets relays back off when their neighbors already forwarded it.
+ *
+ * <p>Keys live in an open addressing table with linear probing, so lookups and inserts are O(1) and
+ * never allocate. This matters because every frame that arrives at a relay passes through here.
+ */
+public class DuplicateCache {
+  private final int mCapacity;
+  private final int mMask;
+
+  /** The hash table. A slot is in use if the matching entry in {@link #mUsed} is set. */
+  private final long[] mKeys;
+
+  private final boolean[] mUsed;
+
+  /** The number of times each key has been recorded. */
+  private final int[] mCounts;
+
+  /** The keys in insertion order, used as a ring buffer to find the oldest key to evict. */
+  private final long[] mOrder;
+
+  private int mHead;
+  private int mSize;
+
+  /**
+   * @param capacity The number of keys to remember before the oldest ones are forgotten.
+   */
+  public DuplicateCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    mCapacity = capacity;
+    // Keep the table at most half full so probe sequences stay short.
+    int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+    mMask = tableSize - 1;
+    mKeys = new long[tableSize];
+    mUsed = new boolean[tableSize];
+    mCounts = new int[tableSize];
+    mOrder = new long[capacity];
+  }
+
+  /** Combines a message's source and sequence number into a single key. */
+  public static long key(long sourceKey, int messageId) {
+    return sourceKey * 31 + messageId;
+  }
+
+  /**
+   * Like {@link #key(long, int)}, but tells retransmissions of a message apart. Relays use this so
+   * a retransmission isn't dropped as a duplicate of the attempt that got lost.
+   */
+  public static long key(long sourceKey, int messageId, int attempt) {
+    return key(sourceKey, messageId) * (MeshFrame.FLAG_ATTEMPT_MASK + 1) + attempt;
+  }
+
+  /**
+   * Remembers a key.
+   *
+   * @return {@code true} if the key was new, {@code false} if we've seen it already.
+   */
+  public boolean add(long key) {
+    return record(key) == 0;
+  }
+
+  /**
+   * Records a copy of a message.
+   *
+   * @return The number of copies recorded before this one, so 0 for a new key.
+   */
+  public int record(long key) {
+    int existing = indexOf(key);
+    if (existing >= 0) {
+      return mCounts[existing]++;
+    }
+    if (mSize == mCapacity) {
+      remove(mOrder[mHead]);
+      mSize--;
+      mHead = (mHead + 1) % mCapacity;
+    }
+    int slot = slotOf(key);
+    while (mUsed[slot]) {
+      slot = (slot + 1) & mMask;
+    }
+    mKeys[slot] = key;
+    mUsed[slot] = true;
+    mCounts[slot] = 1;
+    mOrder[(mHead + mSize) % mCapacity] = key;
+    mSize++;
+    return 0;
+  }
+
+  /** Returns {@code true} if the key is in the cache. */
+  public boolean contains(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /** Returns the number of copies recorded for a key, or 0 if it isn't in the cache. */
+  public int getCount(long key) {
+    int slot = indexOf(key);
+    return slot >= 0 ? mCounts[slot] : 0;
+  }
+
+  /** Returns the number of keys currently remembered. */
+  public int size() {
+    return mSize;
+  }
+
+  /** Forgets every key. */
+  public void clear() {
+    Arrays.fill(mUsed, false);
+    mHead = 0;
+    mSize = 0;
+  }
+
+  private int indexOf(long key) {
+    int slot = slotOf(key);
+    while (mUsed[slot]) {
+      if (mKeys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mMask;
+    }
+    return -1;
+  }
+
+  /** Removes a key from the table, shifting later entries back to keep probe chains intact. */
+  private void remove(long key) {
+    int slot = indexOf(key);
+    if (slot < 0) {
+      return;
+    }
+    mUsed[slot] = false;
+    int next = (slot + 1) & mMask;
+    while (mUsed[next]) {
+      int home = slotOf(mKeys[next]);
+      // Move the entry into the hole if its home slot doesn't lie between the hole and itself.
+      if (((next - home) & mMask) >= ((next - slot) & mMask)) {
+        mKeys[slot] = mKeys[next];
+        mCounts[slot] = mCounts[next];
+        mUsed[slot] = true;
+        mUsed[next] = false;
+        slot = next;
+      }
+      next = (next + 1) & mMask;
+    }
+  }
+
+  private int slotOf(long key) {
+    // The finalizer from MurmurHash3 spreads similar keys across the table.
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key & mMask;
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packs small {@link MeshFrame}s bound for the same endpoint into a single payload. Every payload
+ * costs a full Nearby transfer and a callback round trip, so during bursts it's much cheaper to
+ * send a few frames together than one by one.
+ *
+ * <p>A batch is simply frames written back to back. Each frame header carries its payload length,
+ * so the receiver splits a batch with {@link #unbatch(byte[], int, FrameListener)} without any
+ * extra framing.
+ *
+ * <p>A batch is sent once it would grow past {@code maxBatchBytes}, or once its oldest frame has
+ * waited {@code maxDelay} milliseconds.
+ *
+ * <p>Frames are only batched with frames of the same {@link MeshFrame#getPriority(byte[], int)
+ * priority class}, so each batch can be queued in its class. Emergency frames don't wait for
+ * company at all.
+ */
+public class FrameBatcher {
+  /** Receives batches that are ready to send. */
+  public interface BatchListener {
+    /**
+     * @param endpointId The endpoint the batch is for.
+     * @param batch The frames, back to back.
+     * @param priority The priority class of every frame in the batch.
+     */
+    void onBatch(String endpointId, byte[] batch, int priority);
+  }
+
+  /** Receives the frames split out of a batch. */
+  public interface FrameListener {
+    void onFrame(byte[] buffer, int offset, int length);
+  }
+
+  private final Clock mClock;
+  private final int mMaxBatchBytes;
+  private final long mMaxDelay;
+
+  /** The batches being filled for each endpoint, by priority class. */
+  private final Map<String, Batch[]> mBatches = new HashMap<>();
+
+  /**
+   * @param clock The clock batch deadlines are measured against.
+   * @param maxBatchBytes The largest batch we build. Bigger frames are sent on their own.
+   * @param maxDelay The longest a frame waits for company, in milliseconds.
+   */
+  public FrameBatcher(Clock clock, int maxBatchBytes, long maxDelay) {
+    mClock = clock;
+    mMaxBatchBytes = maxBatchBytes;
+    mMaxDelay = maxDelay;
+  }
+
+  /**
+   * Queues a frame for an endpoint. If the frame doesn't fit into the endpoint's current batch, the
+   * current batch is sent first.
+   */
+  public void add(String endpointId, byte[] frame, BatchListener listener) {
+    int priority = MeshFrame.getPriority(frame, 0);
+    Batch[] batches = mBatches.get(endpointId);
+    Batch batch = batches != null ? batches[priority] : null;
+    if (batch != null && batch.size + frame.length > mMaxBatchBytes) {
+      flush(endpointId, batch, listener);
+    }
+    if (frame.length >= mMaxBatchBytes || priority == MeshFrame.PRIORITY_EMERGENCY) {
+      listener.onBatch(endpointId, frame, priority);
+      return;
+    }
+    if (batches == null) {
+      batches = new Batch[MeshFrame.PRIORITY_COUNT];
+      mBatches.put(endpointId, batches);
+    }
+    if (batch == null) {
+      batch = new Batch(mMaxBatchBytes, priority);
+      batches[priority] = batch;
+    }
+    if (batch.size == 0) {
+      batch.deadline = mClock.now() + mMaxDelay;
+    }
+    System.arraycopy(frame, 0, batch.buffer, batch.size, frame.length);
+    batch.size += frame.length;
+  }
+
+  /** Returns the time the next batch is due, or -1 if nothing is waiting. */
+  public long getNextDeadline() {
+    long next = -1;
+    for (Batch[] batches : mBatches.values()) {
+      for (Batch batch : batches) {
+        if (batch != null && batch.size > 0 && (next < 0 || batch.deadline < next)) {
+          next = batch.deadline;
+        }
+      }
+    }
+    return next;
+  }
+
+  /** Sends every batch whose oldest frame has waited long enough. */
+  public void flushDue(BatchListener listener) {
+    long now = mClock.now();
+    for (Map.Entry<String, Batch[]> entry : mBatches.entrySet()) {
+      // Highest priority first, so urgent batches reach the send queue ahead of the rest.
+      Batch[] batches = entry.getValue();
+      for (int i = batches.length - 1; i >= 0; i--) {
+        if (batches[i] != null && batches[i].size > 0 && batches[i].deadline <= now) {
+          flush(entry.getKey(), batches[i], listener);
+        }
+      }
+    }
+  }
+
+  /** Sends every waiting batch right away. */
+  public void flushAll(BatchListener listener) {
+    for (Map.Entry<String, Batch[]> entry : mBatches.entrySet()) {
+      Batch[] batches = entry.getValue();
+      for (int i = batches.length - 1; i >= 0; i--) {
+        if (batches[i] != null && batches[i].size > 0) {
+          flush(entry.getKey(), batches[i], listener);
+        }
+      }
+    }
+  }
+
+  /** Drops whatever is waiting for an endpoint. Call this when the endpoint disconnects. */
+  public void remove(String endpointId) {
+    mBatches.remove(endpointId);
+  }
+
+  /** Drops every waiting batch. */
+  public void clear() {
+    mBatches.clear();
+  }
+
+  /**
+   * Splits a received payload into its frames. A payload holding a single frame is handled the same
+   * way, so senders are free to batch or not.
+   *
+   * @return {@code false} if the payload ended in malformed or truncated data. Frames before that
+   *     point have already been handed to the listener.
+   */
+  public static boolean unbatch(byte[] payload, int length, FrameListener listener) {
+    int offset = 0;
+    while (offset < length) {
+      if (!MeshFrame.isValid(payload, offset, length - offset)) {
+        return false;
+      }
+      int frameLength = MeshFrame.getFrameLength(payload, offset);
+      listener.onFrame(payload, offset, frameLength);
+      offset += frameLength;
+    }
+    return true;
+  }
+
+  private static void flush(String endpointId, Batch batch, BatchListener listener) {
+    byte[] payload = Arrays.copyOf(batch.buffer, batch.size);
+    batch.size = 0;
+    listener.onBatch(endpointId, payload, batch.priority);
+  }
+
+  /**
+   * The frames of one priority class waiting for one endpoint. The buffer is reused from batch to
+   * batch.
+   */
+  private static class Batch {
+    final byte[] buffer;
+    final int priority;
+    int size;
+    long deadline;
+
+    Batch(int capacity, int priority) {
+      buffer = new byte[capacity];
+      this.priority = priority;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.Random;
+
+/**
+ * Decides whether a node in {@link RelayMode#GOSSIP} mode forwards a broadcast.
+ *
+ * <p>Frames close to their source are always forwarded, so a broadcast can't die out before it gets
+ * going. Beyond that, a node forwards with a probability chosen so that, on average, {@code fanout}
+ * of its neighbors get a fresh copy from it. Every copy the node has already heard from its
+ * neighbors is evidence that the area is covered, and lowers the probability further.
+ */
+public class GossipPolicy {
+  private final int mAlwaysForwardHops;
+  private final double mFanout;
+  private final double mMinProbability;
+  private final Random mRandom;
+
+  /**
+   * @param alwaysForwardHops Frames that have travelled fewer hops than this are always forwarded.
+   * @param fanout The number of neighbors we aim to reach with each forward.
+   * @param minProbability The lowest forwarding probability we ever use.
+   * @param random The source of randomness for forwarding decisions.
+   */
+  public GossipPolicy(int alwaysForwardHops, double fanout, double minProbability, Random random) {
+    mAlwaysForwardHops = alwaysForwardHops;
+    mFanout = fanout;
+    mMinProbability = minProbability;
+    mRandom = random;
+  }
+
+  /**
+   * Returns the probability of forwarding a broadcast.
+   *
+   * @param neighborCount The number of endpoints we're connected to, including the one the frame
+   *     came from.
+   * @param copiesHeard The number of duplicate copies of the frame we've received so far.
+   * @param hopCount The number of hops the frame has travelled.
+   */
+  public double getProbability(int neighborCount, int copiesHeard, int hopCount) {
+    if (hopCount < mAlwaysForwardHops) {
+      return 1;
+    }
+    // The node the frame came from already has it, so only the others benefit from a forward.
+    int audience = neighborCount - 1;
+    if (audience <= 0) {
+      return 0;
+    }
+    double probability = Math.min(1, mFanout / audience) / (1 + copiesHeard);
+    return Math.max(mMinProbability, probability);
+  }
+
+  /** Rolls the dice for a forward. See {@link #getProbability(int, int, int)}. */
+  public boolean shouldForward(int neighborCount, int copiesHeard, int hopCount) {
+    return mRandom.nextDouble() < getProbability(neighborCount, copiesHeard, hopCount);
+  }
+}
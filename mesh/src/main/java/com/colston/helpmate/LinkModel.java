@@ -0,0 +1,55 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+/** How the links of a {@link MeshSimulator} behave. Every link behaves the same. */
+public class LinkModel {
+  /** The time a frame takes to reach the other end once it's been sent, in milliseconds. */
+  public long latency = 20;
+
+  /** The most random delay added to {@link #latency}, in milliseconds. */
+  public long jitter = 10;
+
+  /** The chance of a frame being lost, from 0 to 1. */
+  public double loss = 0.01;
+
+  /**
+   * The rate each end of a link sends at, in bytes per second. Frames queue behind each other, so
+   * busy links add delay. Zero means frames take no time to send.
+   */
+  public long bandwidth = 32 * 1024;
+
+  /** Returns the time it takes to send the given number of bytes, in milliseconds. */
+  public long getSendTime(int length) {
+    if (bandwidth <= 0) {
+      return 0;
+    }
+    return length * 1000L / bandwidth;
+  }
+
+  @Override
+  public String toString() {
+    return latency
+        + " ms (+"
+        + jitter
+        + " jitter), "
+        + (loss * 100)
+        + "% loss, "
+        + (bandwidth > 0 ? bandwidth + " B/s" : "unlimited");
+  }
+}
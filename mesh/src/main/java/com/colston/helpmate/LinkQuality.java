@@ -0,0 +1,59 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.Locale;
+
+/** A snapshot of how well the link to one neighbor is doing. See {@link LinkQualityEstimator}. */
+public final class LinkQuality {
+  private final double mRtt;
+  private final double mBandwidth;
+  private final double mLossRate;
+
+  LinkQuality(double rtt, double bandwidth, double lossRate) {
+    mRtt = rtt;
+    mBandwidth = bandwidth;
+    mLossRate = lossRate;
+  }
+
+  /** Returns the smoothed round trip time in milliseconds, or -1 if it hasn't been measured yet. */
+  public double getRtt() {
+    return mRtt;
+  }
+
+  /**
+   * Returns the smoothed throughput of large transfers in bytes per second, or -1 if it hasn't been
+   * measured yet.
+   */
+  public double getBandwidth() {
+    return mBandwidth;
+  }
+
+  /** Returns the smoothed fraction of probes and transfers that were lost, from 0 to 1. */
+  public double getLossRate() {
+    return mLossRate;
+  }
+
+  @Override
+  public String toString() {
+    String rtt = mRtt < 0 ? "? ms" : String.format(Locale.US, "%.0f ms", mRtt);
+    String bandwidth =
+        mBandwidth < 0 ? "? kB/s" : String.format(Locale.US, "%.1f kB/s", mBandwidth / 1000);
+    return String.format(Locale.US, "%s, %s, %.0f%% loss", rtt, bandwidth, mLossRate * 100);
+  }
+}
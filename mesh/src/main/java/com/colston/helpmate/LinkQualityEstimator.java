@@ -0,0 +1,240 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates the quality of the link to each neighbor from two sources:
+ *
+ * <ul>
+ *   <li>Ping/pong probes sent every probe interval give the round trip time. A probe that isn't
+ *       answered within the probe timeout counts as lost.
+ *   <li>Payload transfer progress gives the throughput. Only progress of at least the minimum
+ *       sample size is used, since the time of a small transfer is mostly latency. Failed transfers
+ *       count as lost, and successful ones as delivered.
+ * </ul>
+ *
+ * <p>Each figure is an exponentially weighted moving average, so a Bluetooth link that's upgraded
+ * to Wi-Fi shows up within a few samples.
+ */
+public class LinkQualityEstimator {
+  /** Sends the probes the estimator asks for. */
+  public interface ProbeListener {
+    /**
+     * A probe should be sent. Call {@link #onPong(String, int)} when the neighbor answers it.
+     *
+     * @param endpointId The neighbor to probe.
+     * @param probeId The id the answer will carry.
+     */
+    void onProbe(String endpointId, int probeId);
+  }
+
+  private final Clock mClock;
+  private final long mProbeInterval;
+  private final long mProbeTimeout;
+  private final double mGain;
+  private final long mMinSampleBytes;
+
+  private final Map<String, Link> mLinks = new HashMap<>();
+  private int mNextProbeId;
+
+  /**
+   * @param clock The clock probes and transfers are timed with.
+   * @param probeInterval The time between two probes to the same neighbor, in milliseconds.
+   * @param probeTimeout How long to wait for an answer before a probe counts as lost.
+   * @param gain The weight of a new sample in the moving averages, between 0 and 1.
+   * @param minSampleBytes The least transfer progress used as a throughput sample.
+   */
+  public LinkQualityEstimator(
+      Clock clock, long probeInterval, long probeTimeout, double gain, long minSampleBytes) {
+    mClock = clock;
+    mProbeInterval = probeInterval;
+    mProbeTimeout = probeTimeout;
+    mGain = gain;
+    mMinSampleBytes = minSampleBytes;
+  }
+
+  /** Starts estimating the link to a neighbor we've just connected to. It's probed right away. */
+  public void addLink(String endpointId) {
+    if (!mLinks.containsKey(endpointId)) {
+      mLinks.put(endpointId, new Link(mClock.now()));
+    }
+  }
+
+  /** Forgets a neighbor we've disconnected from. */
+  public void removeLink(String endpointId) {
+    mLinks.remove(endpointId);
+  }
+
+  /** Forgets every neighbor. */
+  public void clear() {
+    mLinks.clear();
+  }
+
+  /**
+   * Returns the time the next probe is due or overdue, in the clock's milliseconds, or -1 if there
+   * are no links.
+   */
+  public long getNextDeadline() {
+    long deadline = -1;
+    for (Link link : mLinks.values()) {
+      long due = link.probeSentAt >= 0 ? link.probeSentAt + mProbeTimeout : link.nextProbeAt;
+      if (deadline < 0 || due < deadline) {
+        deadline = due;
+      }
+    }
+    return deadline;
+  }
+
+  /** Counts overdue probes as lost, and asks for the probes that are due. */
+  public void runDue(ProbeListener listener) {
+    long now = mClock.now();
+    for (Map.Entry<String, Link> entry : mLinks.entrySet()) {
+      Link link = entry.getValue();
+      if (link.probeSentAt >= 0 && now - link.probeSentAt >= mProbeTimeout) {
+        link.probeSentAt = -1;
+        link.addLossSample(1, mGain);
+      }
+      if (link.probeSentAt < 0 && now >= link.nextProbeAt) {
+        link.probeId = mNextProbeId++;
+        link.probeSentAt = now;
+        link.nextProbeAt = now + mProbeInterval;
+        listener.onProbe(entry.getKey(), link.probeId);
+      }
+    }
+  }
+
+  /**
+   * A neighbor has answered a probe. Answers to probes that already counted as lost are ignored.
+   *
+   * @return True if this was the answer we were waiting for.
+   */
+  public boolean onPong(String endpointId, int probeId) {
+    Link link = mLinks.get(endpointId);
+    if (link == null || link.probeSentAt < 0 || link.probeId != probeId) {
+      return false;
+    }
+    double rtt = mClock.now() - link.probeSentAt;
+    link.rtt = link.rtt < 0 ? rtt : link.rtt + mGain * (rtt - link.rtt);
+    link.probeSentAt = -1;
+    link.addLossSample(0, mGain);
+    return true;
+  }
+
+  /** A payload has started moving between us and a neighbor, in either direction. */
+  public void onTransferStarted(String endpointId, long payloadId) {
+    Link link = mLinks.get(endpointId);
+    if (link != null) {
+      link.transfers.put(payloadId, new Transfer(mClock.now()));
+    }
+  }
+
+  /**
+   * A payload has made progress.
+   *
+   * @param endpointId The neighbor on the other end.
+   * @param payloadId The payload's id.
+   * @param bytesTransferred The bytes moved so far.
+   */
+  public void onTransferProgress(String endpointId, long payloadId, long bytesTransferred) {
+    Link link = mLinks.get(endpointId);
+    if (link == null) {
+      return;
+    }
+    Transfer transfer = link.transfers.get(payloadId);
+    if (transfer == null) {
+      return;
+    }
+    long now = mClock.now();
+    long bytes = bytesTransferred - transfer.bytes;
+    long elapsed = now - transfer.updatedAt;
+    if (bytes >= mMinSampleBytes && elapsed > 0) {
+      double bandwidth = bytes * 1000.0 / elapsed;
+      link.bandwidth =
+          link.bandwidth < 0 ? bandwidth : link.bandwidth + mGain * (bandwidth - link.bandwidth);
+      transfer.bytes = bytesTransferred;
+      transfer.updatedAt = now;
+    }
+  }
+
+  /**
+   * A payload has finished moving.
+   *
+   * @param endpointId The neighbor on the other end.
+   * @param payloadId The payload's id.
+   * @param bytesTransferred The bytes moved in total.
+   * @param success False if the transfer failed.
+   */
+  public void onTransferFinished(
+      String endpointId, long payloadId, long bytesTransferred, boolean success) {
+    onTransferProgress(endpointId, payloadId, bytesTransferred);
+    Link link = mLinks.get(endpointId);
+    if (link != null && link.transfers.remove(payloadId) != null) {
+      link.addLossSample(success ? 0 : 1, mGain);
+    }
+  }
+
+  /** A payload was cancelled. It says nothing about the link, so it's just forgotten. */
+  public void onTransferCancelled(String endpointId, long payloadId) {
+    Link link = mLinks.get(endpointId);
+    if (link != null) {
+      link.transfers.remove(payloadId);
+    }
+  }
+
+  /** Returns the current estimate for a neighbor, or null if it isn't one of our links. */
+  @Nullable public LinkQuality getLinkQuality(String endpointId) {
+    Link link = mLinks.get(endpointId);
+    if (link == null) {
+      return null;
+    }
+    return new LinkQuality(link.rtt, link.bandwidth, link.lossRate);
+  }
+
+  /** The estimates for one neighbor. */
+  private static class Link {
+    double rtt = -1;
+    double bandwidth = -1;
+    double lossRate;
+    long nextProbeAt;
+    long probeSentAt = -1;
+    int probeId;
+    final Map<Long, Transfer> transfers = new HashMap<>();
+
+    Link(long nextProbeAt) {
+      this.nextProbeAt = nextProbeAt;
+    }
+
+    void addLossSample(double lost, double gain) {
+      lossRate += gain * (lost - lossRate);
+    }
+  }
+
+  /** The progress of one payload, as of the last throughput sample. */
+  private static class Transfer {
+    long bytes;
+    long updatedAt;
+
+    Transfer(long startedAt) {
+      this.updatedAt = startedAt;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when this node sends a {@link LinkStateBeacon} about its neighbors, and what goes in it.
+ *
+ * <p>Changes are sent as deltas against the previous beacon, but no more often than the minimum
+ * interval, so a flapping connection can't flood the mesh. A full beacon goes out every refresh
+ * interval whether or not anything changed. It keeps our entry alive in other nodes' {@link
+ * LinkStateDatabase}s, and lets nodes that missed a delta catch up. The owner sends what {@link
+ * #poll(long)} returns once {@link #getNextDeadline()} comes around.
+ */
+public class LinkStateAdvertiser {
+  private final long mMinInterval;
+  private final long mRefreshInterval;
+
+  /** Our neighbors right now, by address key. */
+  private final Map<Long, byte[]> mNeighbors = new HashMap<>();
+
+  /** Our neighbors as of the last beacon we sent. */
+  private final Map<Long, byte[]> mAdvertised = new HashMap<>();
+
+  private int mSequence;
+  private boolean mSentAny;
+  private long mLastSent;
+  private long mLastFull;
+
+  /**
+   * @param minInterval The shortest time between two beacons, in milliseconds.
+   * @param refreshInterval The longest time between two full beacons, in milliseconds.
+   * @param initialSequence The sequence number of the first beacon. Start somewhere random so that
+   *     beacons sent after a restart aren't mistaken for old ones.
+   */
+  public LinkStateAdvertiser(long minInterval, long refreshInterval, int initialSequence) {
+    mMinInterval = minInterval;
+    mRefreshInterval = refreshInterval;
+    mSequence = initialSequence;
+  }
+
+  /** Replaces our set of neighbors with the given addresses. */
+  public void setNeighbors(Collection<byte[]> addresses) {
+    mNeighbors.clear();
+    for (byte[] address : addresses) {
+      mNeighbors.put(MeshFrame.addressKey(address), address);
+    }
+  }
+
+  /**
+   * Returns the time the next beacon is due, in the clock's milliseconds. This may be in the past
+   * if a beacon is overdue.
+   */
+  public long getNextDeadline() {
+    if (!mSentAny) {
+      return 0;
+    }
+    long refresh = mLastFull + mRefreshInterval;
+    if (mNeighbors.keySet().equals(mAdvertised.keySet())) {
+      return refresh;
+    }
+    return Math.min(refresh, mLastSent + mMinInterval);
+  }
+
+  /**
+   * Returns the payload of the beacon to send now, or null if no beacon is due yet.
+   *
+   * @param now The current time in milliseconds.
+   */
+  @Nullable public byte[] poll(long now) {
+    if (!mSentAny || now - mLastFull >= mRefreshInterval) {
+      mSequence++;
+      byte[] beacon = LinkStateBeacon.createFull(mSequence, mNeighbors.values());
+      onSent(now);
+      mLastFull = now;
+      return beacon;
+    }
+    if (now - mLastSent < mMinInterval || mNeighbors.keySet().equals(mAdvertised.keySet())) {
+      return null;
+    }
+    List<byte[]> added = new ArrayList<>();
+    for (Map.Entry<Long, byte[]> entry : mNeighbors.entrySet()) {
+      if (!mAdvertised.containsKey(entry.getKey())) {
+        added.add(entry.getValue());
+      }
+    }
+    List<byte[]> removed = new ArrayList<>();
+    for (Map.Entry<Long, byte[]> entry : mAdvertised.entrySet()) {
+      if (!mNeighbors.containsKey(entry.getKey())) {
+        removed.add(entry.getValue());
+      }
+    }
+    int baseSequence = mSequence;
+    mSequence++;
+    byte[] beacon = LinkStateBeacon.createDelta(mSequence, baseSequence, added, removed);
+    onSent(now);
+    return beacon;
+  }
+
+  private void onSent(long now) {
+    mAdvertised.clear();
+    mAdvertised.putAll(mNeighbors);
+    mSentAny = true;
+    mLastSent = now;
+  }
+
+  /** Starts over as if no beacon had been sent, eg. after we've dropped off the mesh. */
+  public void reset() {
+    mNeighbors.clear();
+    mAdvertised.clear();
+    mSentAny = false;
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.NonNull;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * The payload of a {@link MeshFrame#TYPE_BEACON} frame: the list of a node's direct neighbors. A
+ * full beacon lists every neighbor. A delta beacon only lists the neighbors gained and lost since
+ * the beacon whose sequence number it names as its base, so a stable mesh costs a few bytes per
+ * change.
+ *
+ * <pre>
+ *  offset  size  field
+ *       0     1  kind, full or delta
+ *       1     4  sequence number
+ *       5     4  base sequence number, the beacon a delta applies to
+ *       9     1  number of added neighbors, a
+ *      10     1  number of removed neighbors, r
+ *      11  16*a  added neighbor addresses
+ *       -  16*r  removed neighbor addresses
+ * </pre>
+ *
+ * <p>A full beacon lists its neighbors as added and has no removed ones.
+ */
+public final class LinkStateBeacon {
+  /** A beacon listing every neighbor. */
+  public static final int KIND_FULL = 0;
+
+  /** A beacon listing the changes since its base beacon. */
+  public static final int KIND_DELTA = 1;
+
+  /** The most neighbors, added or removed, one beacon can list. */
+  public static final int MAX_NEIGHBORS = 0xFF;
+
+  private static final int OFFSET_KIND = 0;
+  private static final int OFFSET_SEQUENCE = 1;
+  private static final int OFFSET_BASE_SEQUENCE = 5;
+  private static final int OFFSET_ADDED_COUNT = 9;
+  private static final int OFFSET_REMOVED_COUNT = 10;
+  private static final int HEADER_LENGTH = 11;
+
+  private LinkStateBeacon() {}
+
+  /**
+   * Builds a full beacon.
+   *
+   * @param sequence The sender's sequence number for this beacon.
+   * @param neighbors The addresses of all the sender's neighbors.
+   */
+  @NonNull public static byte[] createFull(int sequence, Collection<byte[]> neighbors) {
+    return create(KIND_FULL, sequence, sequence, neighbors, Collections.<byte[]>emptyList());
+  }
+
+  /**
+   * Builds a delta beacon.
+   *
+   * @param sequence The sender's sequence number for this beacon.
+   * @param baseSequence The sequence number of the beacon the changes apply to.
+   * @param added The addresses of the neighbors gained since the base beacon.
+   * @param removed The addresses of the neighbors lost since the base beacon.
+   */
+  @NonNull public static byte[] createDelta(
+      int sequence, int baseSequence, Collection<byte[]> added, Collection<byte[]> removed) {
+    return create(KIND_DELTA, sequence, baseSequence, added, removed);
+  }
+
+  private static byte[] create(
+      int kind,
+      int sequence,
+      int baseSequence,
+      Collection<byte[]> added,
+      Collection<byte[]> removed) {
+    if (added.size() > MAX_NEIGHBORS || removed.size() > MAX_NEIGHBORS) {
+      throw new IllegalArgumentException("Too many neighbors for one beacon");
+    }
+    byte[] beacon =
+        new byte[HEADER_LENGTH + (added.size() + removed.size()) * MeshFrame.ADDRESS_LENGTH];
+    beacon[OFFSET_KIND] = (byte) kind;
+    writeInt(beacon, OFFSET_SEQUENCE, sequence);
+    writeInt(beacon, OFFSET_BASE_SEQUENCE, baseSequence);
+    beacon[OFFSET_ADDED_COUNT] = (byte) added.size();
+    beacon[OFFSET_REMOVED_COUNT] = (byte) removed.size();
+    int position = HEADER_LENGTH;
+    for (byte[] address : added) {
+      System.arraycopy(address, 0, beacon, position, MeshFrame.ADDRESS_LENGTH);
+      position += MeshFrame.ADDRESS_LENGTH;
+    }
+    for (byte[] address : removed) {
+      System.arraycopy(address, 0, beacon, position, MeshFrame.ADDRESS_LENGTH);
+      position += MeshFrame.ADDRESS_LENGTH;
+    }
+    return beacon;
+  }
+
+  /**
+   * Returns {@code true} if a complete beacon of a kind we understand starts at {@code offset} and
+   * fits within {@code length} bytes.
+   */
+  public static boolean isValid(byte[] buffer, int offset, int length) {
+    if (length < HEADER_LENGTH || offset < 0 || offset + length > buffer.length) {
+      return false;
+    }
+    int kind = getKind(buffer, offset);
+    if (kind != KIND_FULL && kind != KIND_DELTA) {
+      return false;
+    }
+    int count = getAddedCount(buffer, offset) + getRemovedCount(buffer, offset);
+    return HEADER_LENGTH + count * MeshFrame.ADDRESS_LENGTH <= length;
+  }
+
+  public static int getKind(byte[] buffer, int offset) {
+    return buffer[offset + OFFSET_KIND] & 0xFF;
+  }
+
+  public static int getSequence(byte[] buffer, int offset) {
+    return readInt(buffer, offset + OFFSET_SEQUENCE);
+  }
+
+  public static int getBaseSequence(byte[] buffer, int offset) {
+    return readInt(buffer, offset + OFFSET_BASE_SEQUENCE);
+  }
+
+  public static int getAddedCount(byte[] buffer, int offset) {
+    return buffer[offset + OFFSET_ADDED_COUNT] & 0xFF;
+  }
+
+  public static int getRemovedCount(byte[] buffer, int offset) {
+    return buffer[offset + OFFSET_REMOVED_COUNT] & 0xFF;
+  }
+
+  /** Returns the address of the i-th added neighbor. */
+  @NonNull public static byte[] getAddedAddress(byte[] buffer, int offset, int index) {
+    return readAddress(buffer, offset, index);
+  }
+
+  /** Returns the address of the i-th removed neighbor. */
+  @NonNull public static byte[] getRemovedAddress(byte[] buffer, int offset, int index) {
+    return readAddress(buffer, offset, getAddedCount(buffer, offset) + index);
+  }
+
+  private static byte[] readAddress(byte[] buffer, int offset, int index) {
+    int start = offset + HEADER_LENGTH + index * MeshFrame.ADDRESS_LENGTH;
+    return Arrays.copyOfRange(buffer, start, start + MeshFrame.ADDRESS_LENGTH);
+  }
+
+  private static int readInt(byte[] buffer, int start) {
+    return ((buffer[start] & 0xFF) << 24)
+        | ((buffer[start + 1] & 0xFF) << 16)
+        | ((buffer[start + 2] & 0xFF) << 8)
+        | (buffer[start + 3] & 0xFF);
+  }
+
+  private static void writeInt(byte[] buffer, int start, int value) {
+    buffer[start] = (byte) (value >>> 24);
+    buffer[start + 1] = (byte) (value >>> 16);
+    buffer[start + 2] = (byte) (value >>> 8);
+    buffer[start + 3] = (byte) value;
+  }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Every node's neighbor list, as last heard in its {@link LinkStateBeacon}s, joined into one graph
+ * of the mesh. From the graph we get shortest path routes to nodes we've never exchanged traffic
+ * with, and the articulation points: nodes whose loss would split the mesh in two.
+ *
+ * <p>A link counts if either end lists the other, so the graph doesn't lose a link just because one
+ * of its ends' beacons hasn't reached us. Entries that aren't refreshed within the lifetime are
+ * dropped by {@link #expire(long)}. The graph is rebuilt lazily, the first time it's queried after
+ * a change.
+ */
+public class LinkStateDatabase {
+  private final long mLifetime;
+  private final Map<Long, Node> mNodes = new HashMap<>();
+
+  private long mSelfKey;
+  @Nullable private byte[] mSelfAddress;
+  private final Map<Long, byte[]> mLocalNeighbors = new HashMap<>();
+
+  /** True when the entries have changed since the graph was last built. */
+  private boolean mDirty = true;
+
+  /** The address of every node in the graph, by key. */
+  private final Map<Long, byte[]> mAddresses = new HashMap<>();
+
+  /** The links of every node in the graph. Sorted, so results don't depend on hash order. */
+  private final Map<Long, TreeSet<Long>> mLinks = new TreeMap<>();
+
+  /** The neighbor of ours each reachable node is routed through. */
+  private final Map<Long, Long> mFirstHops = new HashMap<>();
+
+  private final List<String> mArticulationPoints = new ArrayList<>();
+
+  /**
+   * @param lifetime How long a node's entry is kept after its last beacon, in milliseconds.
+   */
+  public LinkStateDatabase(long lifetime) {
+    mLifetime = lifetime;
+  }
+
+  /**
+   * Sets our own place in the graph. Unlike other nodes' entries, it's never expired.
+   *
+   * @param self Our address.
+   * @param neighbors Our neighbors' addresses.
+   */
+  public void setLocalLinks(byte[] self, Collection<byte[]> neighbors) {
+    mSelfAddress = self;
+    mSelfKey = MeshFrame.addressKey(self);
+    mLocalNeighbors.clear();
+    for (byte[] address : neighbors) {
+      mLocalNeighbors.put(MeshFrame.addressKey(address), address);
+    }
+    mNodes.remove(mSelfKey);
+    mDirty = true;
+  }
+
+  /**
+   * Applies a beacon. A full beacon replaces the sender's entry if it's newer than what we have. A
+   * delta is only applied on top of the exact beacon it was made against; if we missed that one,
+   * the delta is ignored and the sender's next full beacon brings us up to date.
+   *
+   * @param origin The address of the node that sent the beacon.
+   * @param buffer The buffer holding the beacon.
+   * @param offset The offset of the beacon in the buffer.
+   * @param length The length of the beacon.
+   * @param now The current time in milliseconds.
+   * @return True if the graph changed.
+   */
+  public boolean onBeacon(byte[] origin, byte[] buffer, int offset, int length, long now) {
+    if (!LinkStateBeacon.isValid(buffer, offset, length)) {
+      return false;
+    }
+    long originKey = MeshFrame.addressKey(origin);
+    if (mSelfAddress != null && originKey == mSelfKey) {
+      return false;
+    }
+    int sequence = LinkStateBeacon.getSequence(buffer, offset);
+    Node node = mNodes.get(originKey);
+    boolean current = node != null && now - node.updatedAt <= mLifetime;
+    boolean changed;
+    if (LinkStateBeacon.getKind(buffer, offset) == LinkStateBeacon.KIND_FULL) {
+      if (current && sequence - node.sequence <= 0) {
+        return false;
+      }
+      Map<Long, byte[]> neighbors = new HashMap<>();
+      for (int i = 0; i < LinkStateBeacon.getAddedCount(buffer, offset); i++) {
+        byte[] address = LinkStateBeacon.getAddedAddress(buffer, offset, i);
+        neighbors.put(MeshFrame.addressKey(address), address);
+      }
+      if (node == null) {
+        node = new Node(origin);
+        mNodes.put(originKey, node);
+        changed = true;
+      } else {
+        changed = !node.neighbors.keySet().equals(neighbors.keySet());
+      }
+      node.neighbors = neighbors;
+    } else {
+      if (!current || node.sequence != LinkStateBeacon.getBaseSequence(buffer, offset)) {
+        return false;
+      }
+      changed = false;
+      for (int i = 0; i < LinkStateBeacon.getAddedCount(buffer, offset); i++) {
+        byte[] address = LinkStateBeacon.getAddedAddress(buffer, offset, i);
+        changed |= node.neighbors.put(MeshFrame.addressKey(address), address) == null;
+      }
+      for (int i = 0; i < LinkStateBeacon.getRemovedCount(buffer, offset); i++) {
+        byte[] address = LinkStateBeacon.getRemovedAddress(buffer, offset, i);
+        changed |= node.neighbors.remove(MeshFrame.addressKey(address)) != null;
+      }
+    }
+    node.sequence = sequence;
+    node.updatedAt = now;
+    mDirty |= changed;
+    return changed;
+  }
+
+  /**
+   * Drops the entries of nodes we haven't heard a beacon from within the lifetime.
+   *
+   * @return True if the graph changed.
+   */
+  public boolean expire(long now) {
+    boolean changed = false;
+    Iterator<Node> iterator = mNodes.values().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next().updatedAt > mLifetime) {
+        iterator.remove();
+        changed = true;
+      }
+    }
+    mDirty |= changed;
+    return changed;
+  }
+
+  /**
+   * Returns the address of the neighbor on a shortest path to the node, or null if the node isn't
+   * reachable in the graph.
+   */
+  @Nullable public byte[] getNextHop(long nodeKey) {
+    rebuild();
+    Long firstHop = mFirstHops.get(nodeKey);
+    return firstHop != null ? mAddresses.get(firstHop) : null;
+  }
+
+  /** Returns the number of nodes reachable from us, including ourselves. */
+  public int getReachableCount() {
+    rebuild();
+    return mSelfAddress != null ? mFirstHops.size() + 1 : 0;
+  }
+
+  /**
+   * Returns the names of the reachable nodes whose loss would cut other reachable nodes off from
+   * each other, in alphabetical order. This may include us.
+   */
+  public List<String> getArticulationPoints() {
+    rebuild();
+    return Collections.unmodifiableList(mArticulationPoints);
+  }
+
+  /** Returns the names of the nodes reachable from us, not including ourselves. */
+  public Set<String> getReachableNodes() {
+    rebuild();
+    Set<String> names = new HashSet<>();
+    for (Long node : mFirstHops.keySet()) {
+      names.add(MeshFrame.decodeAddress(mAddresses.get(node)));
+    }
+    return names;
+  }
+
+  /**
+   * Returns the names of our neighbors we could still reach without our direct link to them, eg.
+   * because they're linked to another of our neighbors too. Dropping one of those links doesn't cut
+   * anyone off.
+   */
+  public Set<String> getRedundantNeighbors() {
+    rebuild();
+    Set<String> names = new HashSet<>();
+    if (mSelfAddress == null) {
+      return names;
+    }
+    for (Long neighbor : mLinks.get(mSelfKey)) {
+      if (hasDetour(neighbor)) {
+        names.add(MeshFrame.decodeAddress(mAddresses.get(neighbor)));
+      }
+    }
+    return names;
+  }
+
+  /** Forgets every node, including our own links. */
+  public void clear() {
+    mNodes.clear();
+    mLocalNeighbors.clear();
+    mSelfAddress = null;
+    mDirty = true;
+  }
+
+  private void rebuild() {
+    if (!mDirty) {
+      return;
+    }
+    mDirty = false;
+    mAddresses.clear();
+    mLinks.clear();
+    mFirstHops.clear();
+    mArticulationPoints.clear();
+    if (mSelfAddress == null) {
+      return;
+    }
+
+    addNode(mSelfKey, mSelfAddress);
+    for (Map.Entry<Long, byte[]> neighbor : mLocalNeighbors.entrySet()) {
+      addLink(mSelfKey, neighbor.getKey(), neighbor.getValue());
+    }
+    for (Map.Entry<Long, Node> entry : mNodes.entrySet()) {
+      addNode(entry.getKey(), entry.getValue().address);
+      for (Map.Entry<Long, byte[]> neighbor : entry.getValue().neighbors.entrySet()) {
+        addLink(entry.getKey(), neighbor.getKey(), neighbor.getValue());
+      }
+    }
+
+    // Breadth first search, remembering which of our neighbors each node was first reached from.
+    Deque<Long> queue = new ArrayDeque<>();
+    for (Long neighbor : mLinks.get(mSelfKey)) {
+      mFirstHops.put(neighbor, neighbor);
+      queue.add(neighbor);
+    }
+    while (!queue.isEmpty()) {
+      Long node = queue.poll();
+      Long firstHop = mFirstHops.get(node);
+      for (Long next : mLinks.get(node)) {
+        if (next != mSelfKey && !mFirstHops.containsKey(next)) {
+          mFirstHops.put(next, firstHop);
+          queue.add(next);
+        }
+      }
+    }
+
+    TreeSet<String> articulationPoints = new TreeSet<>();
+    findArticulationPoints(mSelfKey, 0, new HashMap<Long, Integer>(), articulationPoints);
+    mArticulationPoints.addAll(articulationPoints);
+  }
+
+  /** Breadth first search from us for a path to a neighbor that doesn't take our link to it. */
+  private boolean hasDetour(long neighbor) {
+    Set<Long> visited = new HashSet<>();
+    Deque<Long> queue = new ArrayDeque<>();
+    visited.add(mSelfKey);
+    for (Long next : mLinks.get(mSelfKey)) {
+      if (next != neighbor) {
+        visited.add(next);
+        queue.add(next);
+      }
+    }
+    while (!queue.isEmpty()) {
+      for (Long next : mLinks.get(queue.poll())) {
+        if (next == neighbor) {
+          return true;
+        }
+        if (visited.add(next)) {
+          queue.add(next);
+        }
+      }
+    }
+    return false;
+  }
+
+  private void addNode(long key, byte[] address) {
+    mAddresses.put(key, address);
+    if (!mLinks.containsKey(key)) {
+      mLinks.put(key, new TreeSet<Long>());
+    }
+  }
+
+  private void addLink(long from, long to, byte[] toAddress) {
+    if (from == to) {
+      return;
+    }
+    if (!mAddresses.containsKey(to)) {
+      addNode(to, toAddress);
+    }
+    mLinks.get(from).add(to);
+    mLinks.get(to).add(from);
+  }
+
+  /**
+   * Tarjan's depth first search for articulation points. A node is one if a child in the search
+   * tree can't reach above the node without going through it, or, for the root, if it has more than
+   * one child.
+   *
+   * @return The lowest discovery time reachable from the node's subtree through one back edge.
+   */
+  private int findArticulationPoints(
+      long node, long parent, Map<Long, Integer> discovered, Collection<String> result) {
+    int time = discovered.size();
+    discovered.put(node, time);
+    int lowest = time;
+    int children = 0;
+    boolean isArticulationPoint = false;
+    for (Long next : mLinks.get(node)) {
+      Integer nextTime = discovered.get(next);
+      if (nextTime == null) {
+        children++;
+        int nextLow = findArticulationPoints(next, node, discovered, result);
+        lowest = Math.min(lowest, nextLow);
+        if (node != mSelfKey && nextLow >= time) {
+          isArticulationPoint = true;
+        }
+      } else if (next != parent || node == mSelfKey) {
+        lowest = Math.min(lowest, nextTime);
+      }
+    }
+    if (node == mSelfKey && children > 1) {
+      isArticulationPoint = true;
+    }
+    if (isArticulationPoint) {
+      result.add(MeshFrame.decodeAddress(mAddresses.get(node)));
+    }
+    return lowest;
+  }
+
+  /** The last known neighbors of another node. */
+  private static class Node {
+    final byte[] address;
+    Map<Long, byte[]> neighbors = new HashMap<>();
+    int sequence;
+    long updatedAt;
+
+    Node(byte[] address) {
+      this.address = address;
+    }
+  }
+}
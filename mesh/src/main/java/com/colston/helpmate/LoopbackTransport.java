@@ -0,0 +1,509 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link MeshTransport} that connects transports in the same process, with no radio and no
+ * network. Every transport on the same {@link Network} can find every other, so a test or a load
+ * generator can run many nodes side by side.
+ *
+ * <p>Callbacks and result listeners run on the executor given to each transport. Streams are copied
+ * to their receivers by a thread per stream.
+ */
+public class LoopbackTransport implements MeshTransport {
+  /** The size of the buffer between a stream and each of its receivers. */
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  /** Transports that can see each other. Its lock guards the state of all of them. */
+  public static class Network {
+    private final Map<String, LoopbackTransport> mTransports = new HashMap<>();
+    private int mNextId;
+    private long mNextPayloadId;
+
+    private synchronized long nextPayloadId() {
+      return ++mNextPayloadId;
+    }
+  }
+
+  /** A connection, pending or established, between two transports. */
+  private static class Link {
+    final LoopbackTransport requester;
+    final String requesterName;
+    final LoopbackTransport target;
+    boolean requesterAccepted;
+    boolean targetAccepted;
+    boolean established;
+
+    Link(LoopbackTransport requester, String requesterName, LoopbackTransport target) {
+      this.requester = requester;
+      this.requesterName = requesterName;
+      this.target = target;
+    }
+
+    LoopbackTransport getPeer(LoopbackTransport transport) {
+      return transport == requester ? target : requester;
+    }
+  }
+
+  private final Network mNetwork;
+  private final Executor mCallbackExecutor;
+  private final String mId;
+  @Nullable private Callback mCallback;
+
+  /** Our name and service while we advertise, otherwise null. */
+  @Nullable private String mName;
+
+  @Nullable private String mAdvertisedService;
+  @Nullable private String mDiscoveredService;
+
+  /** Our connections, by the other transport's id. */
+  private final Map<String, Link> mLinks = new HashMap<>();
+
+  /**
+   * @param network The transports we can see.
+   * @param callbackExecutor Runs our callbacks and result listeners, one at a time.
+   */
+  public LoopbackTransport(Network network, Executor callbackExecutor) {
+    mNetwork = network;
+    mCallbackExecutor = callbackExecutor;
+    synchronized (network) {
+      mId = "L" + network.mNextId++;
+      network.mTransports.put(mId, this);
+    }
+  }
+
+  /** Returns the endpoint id the other transports know us by. */
+  public String getId() {
+    return mId;
+  }
+
+  @Override
+  public void setCallback(Callback callback) {
+    synchronized (mNetwork) {
+      mCallback = callback;
+    }
+  }
+
+  @Override
+  public void startAdvertising(String name, String serviceId, @Nullable ResultListener listener) {
+    synchronized (mNetwork) {
+      if (mAdvertisedService != null) {
+        fail(listener, "Already advertising");
+        return;
+      }
+      mName = name;
+      mAdvertisedService = serviceId;
+      for (LoopbackTransport transport : mNetwork.mTransports.values()) {
+        if (transport != this && serviceId.equals(transport.mDiscoveredService)) {
+          transport.postEndpointFound(mId, name);
+        }
+      }
+      succeed(listener);
+    }
+  }
+
+  @Override
+  public void stopAdvertising() {
+    synchronized (mNetwork) {
+      if (mAdvertisedService == null) {
+        return;
+      }
+      for (LoopbackTransport transport : mNetwork.mTransports.values()) {
+        if (transport != this && mAdvertisedService.equals(transport.mDiscoveredService)) {
+          transport.postEndpointLost(mId);
+        }
+      }
+      mAdvertisedService = null;
+      mName = null;
+    }
+  }
+
+  @Override
+  public void startDiscovery(String serviceId, @Nullable ResultListener listener) {
+    synchronized (mNetwork) {
+      if (mDiscoveredService != null) {
+        fail(listener, "Already discovering");
+        return;
+      }
+      mDiscoveredService = serviceId;
+      for (LoopbackTransport transport : mNetwork.mTransports.values()) {
+        if (transport != this && serviceId.equals(transport.mAdvertisedService)) {
+          postEndpointFound(transport.mId, transport.mName);
+        }
+      }
+      succeed(listener);
+    }
+  }
+
+  @Override
+  public void stopDiscovery() {
+    synchronized (mNetwork) {
+      mDiscoveredService = null;
+    }
+  }
+
+  @Override
+  public void requestConnection(
+      final String name, String endpointId, @Nullable ResultListener listener) {
+    synchronized (mNetwork) {
+      final LoopbackTransport target = mNetwork.mTransports.get(endpointId);
+      if (target == null || target == this || target.mAdvertisedService == null) {
+        fail(listener, "Endpoint " + endpointId + " isn't advertising");
+        return;
+      }
+      if (mLinks.containsKey(endpointId)) {
+        fail(listener, "Already connected to " + endpointId);
+        return;
+      }
+      Link link = new Link(this, name, target);
+      mLinks.put(target.mId, link);
+      target.mLinks.put(mId, link);
+      final String targetName = target.mName;
+      succeed(listener);
+      post(
+          new Runnable() {
+            @Override
+            public void run() {
+              getCallback().onConnectionInitiated(target.mId, targetName, false);
+            }
+          });
+      target.post(
+          new Runnable() {
+            @Override
+            public void run() {
+              target.getCallback().onConnectionInitiated(mId, name, true);
+            }
+          });
+    }
+  }
+
+  @Override
+  public void acceptConnection(String endpointId, @Nullable ResultListener listener) {
+    synchronized (mNetwork) {
+      Link link = mLinks.get(endpointId);
+      if (link == null || link.established) {
+        fail(listener, "No pending connection to " + endpointId);
+        return;
+      }
+      if (link.requester == this) {
+        link.requesterAccepted = true;
+      } else {
+        link.targetAccepted = true;
+      }
+      succeed(listener);
+      if (link.requesterAccepted && link.targetAccepted) {
+        link.established = true;
+        link.requester.postConnectionResult(link.target.mId, true, "Connected");
+        link.target.postConnectionResult(link.requester.mId, true, "Connected");
+      }
+    }
+  }
+
+  @Override
+  public void rejectConnection(String endpointId, @Nullable ResultListener listener) {
+    synchronized (mNetwork) {
+      Link link = mLinks.get(endpointId);
+      if (link == null || link.established) {
+        fail(listener, "No pending connection to " + endpointId);
+        return;
+      }
+      removeLink(link);
+      succeed(listener);
+      link.requester.postConnectionResult(link.target.mId, false, "Rejected");
+      link.target.postConnectionResult(link.requester.mId, false, "Rejected");
+    }
+  }
+
+  @Override
+  public void disconnectFromEndpoint(String endpointId) {
+    synchronized (mNetwork) {
+      Link link = mLinks.get(endpointId);
+      if (link != null) {
+        disconnect(link);
+      }
+    }
+  }
+
+  @Override
+  public void stopAllEndpoints() {
+    synchronized (mNetwork) {
+      stopAdvertising();
+      stopDiscovery();
+      for (Link link : new ArrayList<>(mLinks.values())) {
+        disconnect(link);
+      }
+    }
+  }
+
+  /** Closes a link from our side. Only the other side hears about it. */
+  private void disconnect(Link link) {
+    removeLink(link);
+    LoopbackTransport peer = link.getPeer(this);
+    if (link.established) {
+      peer.postDisconnected(mId);
+    } else {
+      peer.postConnectionResult(mId, false, "Disconnected");
+      postConnectionResult(peer.mId, false, "Disconnected");
+    }
+  }
+
+  private static void removeLink(Link link) {
+    link.requester.mLinks.remove(link.target.mId);
+    link.target.mLinks.remove(link.requester.mId);
+  }
+
+  @Override
+  public long sendBytes(
+      Collection<String> endpointIds, final byte[] bytes, @Nullable ResultListener listener) {
+    final long payloadId = mNetwork.nextPayloadId();
+    synchronized (mNetwork) {
+      for (final String endpointId : endpointIds) {
+        final LoopbackTransport peer = getConnectedPeer(endpointId);
+        if (peer == null) {
+          postTransferUpdate(endpointId, payloadId, TRANSFER_FAILURE, 0);
+          continue;
+        }
+        final byte[] copy = bytes.clone();
+        peer.post(
+            new Runnable() {
+              @Override
+              public void run() {
+                Callback callback = peer.getCallback();
+                callback.onBytesReceived(mId, payloadId, copy);
+                callback.onTransferUpdate(mId, payloadId, TRANSFER_SUCCESS, copy.length);
+              }
+            });
+        postTransferUpdate(endpointId, payloadId, TRANSFER_SUCCESS, bytes.length);
+      }
+      succeed(listener);
+    }
+    return payloadId;
+  }
+
+  @Override
+  public long sendStream(
+      Collection<String> endpointIds, final InputStream stream, @Nullable ResultListener listener) {
+    final long payloadId = mNetwork.nextPayloadId();
+    final Map<String, PipedOutputStream> pipes = new HashMap<>();
+    synchronized (mNetwork) {
+      for (String endpointId : endpointIds) {
+        final LoopbackTransport peer = getConnectedPeer(endpointId);
+        if (peer == null) {
+          postTransferUpdate(endpointId, payloadId, TRANSFER_FAILURE, 0);
+          continue;
+        }
+        try {
+          final PipedInputStream in = new PipedInputStream(STREAM_BUFFER_SIZE);
+          pipes.put(endpointId, new PipedOutputStream(in));
+          peer.post(
+              new Runnable() {
+                @Override
+                public void run() {
+                  peer.getCallback().onStreamReceived(mId, payloadId, in);
+                }
+              });
+        } catch (IOException e) {
+          postTransferUpdate(endpointId, payloadId, TRANSFER_FAILURE, 0);
+        }
+      }
+      succeed(listener);
+    }
+
+    Thread pump =
+        new Thread("LoopbackStream-" + payloadId) {
+          @Override
+          public void run() {
+            copyStream(payloadId, stream, pipes);
+          }
+        };
+    pump.setDaemon(true);
+    pump.start();
+    return payloadId;
+  }
+
+  /** Copies a stream to each of its receivers until it ends, or until every receiver has gone. */
+  private void copyStream(
+      long payloadId, InputStream stream, Map<String, PipedOutputStream> pipes) {
+    Map<String, Long> transferred = new HashMap<>();
+    for (String endpointId : pipes.keySet()) {
+      transferred.put(endpointId, 0L);
+    }
+    byte[] buffer = new byte[4096];
+    try {
+      int read;
+      while (!pipes.isEmpty() && (read = stream.read(buffer)) > 0) {
+        List<String> closed = new ArrayList<>();
+        for (Map.Entry<String, PipedOutputStream> entry : pipes.entrySet()) {
+          try {
+            entry.getValue().write(buffer, 0, read);
+            entry.getValue().flush();
+            transferred.put(entry.getKey(), transferred.get(entry.getKey()) + read);
+          } catch (IOException e) {
+            closed.add(entry.getKey());
+          }
+        }
+        for (String endpointId : closed) {
+          pipes.remove(endpointId);
+          finishStream(endpointId, payloadId, TRANSFER_CANCELED, transferred.get(endpointId));
+        }
+      }
+    } catch (IOException e) {
+      // The sender's stream failed; end it for the receivers.
+    } finally {
+      closeQuietly(stream);
+    }
+    for (Map.Entry<String, PipedOutputStream> entry : pipes.entrySet()) {
+      closeQuietly(entry.getValue());
+      finishStream(entry.getKey(), payloadId, TRANSFER_SUCCESS, transferred.get(entry.getKey()));
+    }
+  }
+
+  private void finishStream(
+      final String endpointId, final long payloadId, final int status, final long bytes) {
+    synchronized (mNetwork) {
+      postTransferUpdate(endpointId, payloadId, status, bytes);
+      final LoopbackTransport peer = getConnectedPeer(endpointId);
+      if (peer != null) {
+        peer.post(
+            new Runnable() {
+              @Override
+              public void run() {
+                peer.getCallback().onTransferUpdate(mId, payloadId, status, bytes);
+              }
+            });
+      }
+    }
+  }
+
+  @Nullable private LoopbackTransport getConnectedPeer(String endpointId) {
+    Link link = mLinks.get(endpointId);
+    return link != null && link.established ? link.getPeer(this) : null;
+  }
+
+  private Callback getCallback() {
+    synchronized (mNetwork) {
+      if (mCallback == null) {
+        throw new IllegalStateException("setCallback() wasn't called");
+      }
+      return mCallback;
+    }
+  }
+
+  private void post(Runnable runnable) {
+    mCallbackExecutor.execute(runnable);
+  }
+
+  private void postEndpointFound(final String endpointId, final String name) {
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onEndpointFound(endpointId, name);
+          }
+        });
+  }
+
+  private void postEndpointLost(final String endpointId) {
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onEndpointLost(endpointId);
+          }
+        });
+  }
+
+  private void postConnectionResult(
+      final String endpointId, final boolean connected, final String status) {
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onConnectionResult(endpointId, connected, status);
+          }
+        });
+  }
+
+  private void postDisconnected(final String endpointId) {
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onDisconnected(endpointId);
+          }
+        });
+  }
+
+  private void postTransferUpdate(
+      final String endpointId, final long payloadId, final int status, final long bytes) {
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onTransferUpdate(endpointId, payloadId, status, bytes);
+          }
+        });
+  }
+
+  private void succeed(@Nullable final ResultListener listener) {
+    if (listener == null) {
+      return;
+    }
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            listener.onSuccess();
+          }
+        });
+  }
+
+  private void fail(@Nullable final ResultListener listener, final String message) {
+    if (listener == null) {
+      return;
+    }
+    post(
+        new Runnable() {
+          @Override
+          public void run() {
+            listener.onFailure(new IOException(message));
+          }
+        });
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing more to do.
+    }
+  }
+}
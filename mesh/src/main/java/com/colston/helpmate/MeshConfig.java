@@ -0,0 +1,105 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+/**
+ * The tunables of a {@link MeshEngine}. The defaults are what the app ships with; the simulator
+ * changes them to compare settings.
+ */
+public class MeshConfig {
+  /** The number of hops a message we send may travel through the mesh. */
+  public int ttl = 4;
+
+  /**
+   * The number of hops our voice may travel through the mesh. Lower than {@link #ttl} since every
+   * hop carries a whole audio stream.
+   */
+  public int audioTtl = 3;
+
+  /**
+   * The number of hops our neighbor beacons travel. Beacons are most of the traffic on a quiet
+   * mesh, since nearly every node in range relays each one, so this is kept to {@link #ttl}: a
+   * route through our map is no use for a node our messages can't reach anyway. In the simulator's
+   * default mesh of 100 nodes, 4 hops rather than 8 cut beacon frames from about 90,000 to 38,000
+   * without costing any deliveries. Raise it along with {@link #ttl}.
+   */
+  public int beaconTtl = 4;
+
+  /**
+   * The number of hops an emergency message, and its ack, may travel. Higher than {@link #ttl} so a
+   * call for help reaches as far into the mesh as it can.
+   */
+  public int emergencyTtl = 8;
+
+  /** The number of recently seen messages remembered to stop message loops. */
+  public int duplicateCacheCapacity = 1024;
+
+  /** The number of recently heard audio streams remembered to stop streams looping. */
+  public int streamCacheCapacity = 64;
+
+  /** How long a learned route is trusted without seeing traffic that confirms it. */
+  public long routeTimeout = 60000;
+
+  /** Whether broadcasts are flooded or gossiped. */
+  public RelayMode relayMode = RelayMode.FLOODING;
+
+  /** In gossip mode, broadcasts that have travelled fewer hops than this are always forwarded. */
+  public int gossipAlwaysForwardHops = 1;
+
+  /** In gossip mode, the number of neighbors each forward aims to reach. */
+  public double gossipFanout = 2;
+
+  /** In gossip mode, the lowest probability of forwarding a new broadcast. */
+  public double gossipMinProbability = 0.1;
+
+  /** The shortest time a flooded frame is held back before we forward it. */
+  public long relayMinDelay = 10;
+
+  /** The longest time a flooded frame is held back before we forward it. */
+  public long relayMaxDelay = 150;
+
+  /** The number of duplicate copies heard while waiting that cancels our own forward. */
+  public int relayDuplicateThreshold = 3;
+
+  /** The number of our own undeliverable messages we hold on to for nodes that aren't reachable. */
+  public int storeAndForwardCapacity = 100;
+
+  /** How long we hold on to an undeliverable message. */
+  public long storeAndForwardLifetime = 30 * 60 * 1000;
+
+  /** The number of times a directed message is sent before we stop waiting for its ack. */
+  public int maxTransmissions = 4;
+
+  /** How long to wait for an ack from a node we have no round trip times for yet. */
+  public long ackInitialTimeout = 3000;
+
+  /** The shortest time we wait for an ack before retransmitting. */
+  public long ackMinTimeout = 500;
+
+  /** The longest time we wait for an ack before retransmitting. */
+  public long ackMaxTimeout = 30000;
+
+  /** The shortest time between two of our neighbor beacons. */
+  public long beaconMinInterval = 5000;
+
+  /** How often we send a full neighbor beacon, even if our neighbors haven't changed. */
+  public long beaconRefreshInterval = 30000;
+
+  /** How long a node's neighbor list is kept after its last beacon. */
+  public long linkStateLifetime = 90000;
+}
@@ -0,0 +1,764 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The mesh logic of one node, free of Android and of Nearby Connections, so that the same code runs
+ * on a phone and in the {@link MeshSimulator}.
+ *
+ * <p>The engine decides what happens to every {@link MeshFrame}: which frames are duplicates, which
+ * are for us, and which are passed on, to whom and when. Messages for the user, and frames to send,
+ * come out through its {@link Listener}.
+ *
+ * <p>The engine doesn't own a timer. The owner calls {@link #runDue()} when the time from {@link
+ * #getNextDeadline()} comes around, and should check the deadline again after every call into the
+ * engine. None of its methods are thread safe.
+ */
+public class MeshEngine {
+  /** Carries out what the engine decides. */
+  public interface Listener {
+    /**
+     * A frame should be sent.
+     *
+     * @param frame The frame. Don't change it; it may be sent again later.
+     * @param endpointIds The neighbors to send it to.
+     */
+    void onSend(byte[] frame, Collection<String> endpointIds);
+
+    /**
+     * A text message for us, or for everyone, has arrived.
+     *
+     * @param priority The priority class the sender gave it, eg. {@link
+     *     MeshFrame#PRIORITY_EMERGENCY}.
+     */
+    void onMessage(String source, int messageId, String text, int priority);
+
+    /** A directed message we sent has been acknowledged by its destination. */
+    void onDelivered(String destination, int messageId);
+
+    /**
+     * A directed message we sent wasn't acknowledged after all its transmissions. It has been kept
+     * to try again when its destination is reachable.
+     */
+    void onNotDelivered(String destination, int messageId);
+
+    /** Our map of the mesh has changed. */
+    void onTopologyChanged();
+
+    /** Reports what the engine is doing, for debugging. */
+    void onLog(String message);
+  }
+
+  /** The address every node accepts messages for. */
+  private static final byte[] BROADCAST_ADDRESS = MeshFrame.encodeAddress(MeshFrame.BROADCAST);
+
+  private final MeshConfig mConfig;
+  private final Clock mClock;
+  private final Listener mListener;
+
+  /** This node's name encoded as a {@link MeshFrame} address. */
+  private final byte[] mAddress;
+
+  private final long mAddressKey;
+
+  /** The names of our neighbors, by endpoint id. */
+  private final Map<String, String> mNeighbors = new LinkedHashMap<>();
+
+  /**
+   * The id of the next message we send. Lets receivers tell our messages apart. It starts at a
+   * random value so that messages sent after a restart aren't mistaken for ones nodes have already
+   * seen.
+   */
+  private int mNextMessageId;
+
+  /** Keeps track of the messages we've already handled to prevent message loops. */
+  private final DuplicateCache mSeenMessages;
+
+  /**
+   * The directed messages we've already shown, so that a retransmission whose original did arrive
+   * is acked again but not shown twice.
+   */
+  private final DuplicateCache mDeliveredMessages;
+
+  /** Keeps track of the audio streams we've already heard, so each is played and relayed once. */
+  private final DuplicateCache mSeenStreams;
+
+  /** Decides which broadcasts to forward when in {@link RelayMode#GOSSIP} mode. */
+  private final GossipPolicy mGossipPolicy;
+
+  /** Holds flooded frames back for a moment, and drops them if our neighbors beat us to it. */
+  private final RelayScheduler<PendingRelay> mRelayScheduler;
+
+  /** The next hop towards each node we've heard from, so directed messages don't flood. */
+  private final RoutingTable mRoutingTable;
+
+  /** Directed messages for nodes we can't reach right now. */
+  private final StoreAndForwardQueue mStoreAndForward;
+
+  /** Directed messages we've sent that haven't been acknowledged yet. */
+  private final RetransmissionTracker mRetransmissions;
+
+  /** Decides when we tell the mesh about our neighbors. */
+  private final LinkStateAdvertiser mBeaconAdvertiser;
+
+  /** Our map of the mesh, built from every node's neighbor beacons. */
+  private final LinkStateDatabase mLinkState;
+
+  /** True once we've had a neighbor to send beacons to. */
+  private boolean mBeaconing;
+
+  /** Forwards the frames in {@link #mRelayScheduler} whose delay has passed. */
+  private final RelayScheduler.Listener<PendingRelay> mRelayListener =
+      new RelayScheduler.Listener<PendingRelay>() {
+        @Override
+        public void onForward(long key, PendingRelay relay) {
+          if (MeshFrame.isDestination(relay.frame, 0, BROADCAST_ADDRESS)
+              && !shouldGossip(relay.frame, key)) {
+            return;
+          }
+          log("Retransmitting message " + MeshFrame.getMessageId(relay.frame, 0));
+          forward(relay.frame, relay.ingressEndpointId);
+        }
+      };
+
+  /** Retransmits the messages in {@link #mRetransmissions} whose ack is overdue. */
+  private final RetransmissionTracker.Listener mRetransmitListener =
+      new RetransmissionTracker.Listener() {
+        @Override
+        public void onRetransmit(int messageId, byte[] frame, int attempt) {
+          log("Retransmitting message " + messageId + ", attempt " + attempt);
+          byte[] copy = Arrays.copyOf(frame, frame.length);
+          // Count on from the frame's own attempt, which isn't 0 for a resent stored frame.
+          MeshFrame.setAttempt(copy, 0, MeshFrame.getAttempt(frame, 0) + attempt);
+          mSeenMessages.add(
+              DuplicateCache.key(mAddressKey, messageId, MeshFrame.getAttempt(copy, 0)));
+          forward(copy, null);
+        }
+
+        @Override
+        public void onGiveUp(int messageId, byte[] frame) {
+          byte[] stored = mStoreAndForward.get(DuplicateCache.key(mAddressKey, messageId));
+          if (stored == null) {
+            stored = Arrays.copyOf(frame, frame.length);
+            mStoreAndForward.add(stored, mConfig.storeAndForwardLifetime);
+          }
+          // Nodes may still remember the attempts just used up, so resends go on from there.
+          MeshFrame.setAttempt(
+              stored, 0, MeshFrame.getAttempt(frame, 0) + mConfig.maxTransmissions);
+          mListener.onNotDelivered(MeshFrame.getDestination(frame, 0), messageId);
+        }
+      };
+
+  /**
+   * @param name This node's name. Must pass {@link MeshFrame#isValidAddress(String)}.
+   * @param config The engine's tunables. Read once, here.
+   * @param clock The clock for routing, relay and retransmission decisions.
+   * @param wallClock The clock for stored messages, which may be saved and restored after a
+   *     restart.
+   * @param random The source of message ids, relay delays and gossip decisions.
+   * @param listener Carries out what the engine decides.
+   */
+  public MeshEngine(
+      String name,
+      MeshConfig config,
+      Clock clock,
+      Clock wallClock,
+      Random random,
+      Listener listener) {
+    mConfig = config;
+    mClock = clock;
+    mListener = listener;
+    mAddress = MeshFrame.encodeAddress(name);
+    mAddressKey = MeshFrame.addressKey(mAddress);
+    mNextMessageId = random.nextInt();
+    mSeenMessages = new DuplicateCache(config.duplicateCacheCapacity);
+    mDeliveredMessages = new DuplicateCache(config.duplicateCacheCapacity);
+    mSeenStreams = new DuplicateCache(config.streamCacheCapacity);
+    mGossipPolicy =
+        new GossipPolicy(
+            config.gossipAlwaysForwardHops,
+            config.gossipFanout,
+            config.gossipMinProbability,
+            random);
+    mRelayScheduler =
+        new RelayScheduler<>(
+            clock,
+            random,
+            config.relayMinDelay,
+            config.relayMaxDelay,
+            config.relayDuplicateThreshold);
+    mRoutingTable = new RoutingTable(config.routeTimeout);
+    mStoreAndForward = new StoreAndForwardQueue(wallClock, config.storeAndForwardCapacity);
+    mRetransmissions =
+        new RetransmissionTracker(
+            clock,
+            config.maxTransmissions,
+            config.ackInitialTimeout,
+            config.ackMinTimeout,
+            config.ackMaxTimeout);
+    mBeaconAdvertiser =
+        new LinkStateAdvertiser(
+            config.beaconMinInterval, config.beaconRefreshInterval, random.nextInt());
+    mLinkState = new LinkStateDatabase(config.linkStateLifetime);
+  }
+
+  /** Returns this node's address. */
+  @NonNull public byte[] getAddress() {
+    return mAddress.clone();
+  }
+
+  /** Returns the messages waiting for their destination, eg. to save them. */
+  public StoreAndForwardQueue getStoreAndForward() {
+    return mStoreAndForward;
+  }
+
+  /** Returns our map of the mesh. */
+  public LinkStateDatabase getLinkState() {
+    return mLinkState;
+  }
+
+  /**
+   * Sends a chat message.
+   *
+   * @param destination The name of the receiving node, or {@link MeshFrame#BROADCAST}.
+   * @param text The message.
+   * @return The message's id.
+   */
+  public int sendText(String destination, String text) {
+    return sendText(destination, text, MeshFrame.PRIORITY_BULK);
+  }
+
+  /**
+   * Sends a text message in a given priority class. Emergency messages travel {@link
+   * MeshConfig#emergencyTtl} hops, and relays pass them on without holding them back.
+   *
+   * @param destination The name of the receiving node, or {@link MeshFrame#BROADCAST}.
+   * @param text The message.
+   * @param priority The priority class, eg. {@link MeshFrame#PRIORITY_EMERGENCY}.
+   * @return The message's id.
+   */
+  public int sendText(String destination, String text, int priority) {
+    int messageId = mNextMessageId++;
+    byte[] frame =
+        MeshFrame.create(
+            MeshFrame.TYPE_TEXT,
+            priority == MeshFrame.PRIORITY_EMERGENCY ? mConfig.emergencyTtl : mConfig.ttl,
+            messageId,
+            mAddress,
+            MeshFrame.encodeAddress(destination),
+            text.getBytes(StandardCharsets.UTF_8));
+    MeshFrame.setPriority(frame, 0, priority);
+
+    // Remember our own message so we don't relay it when it echoes back to us
+    mSeenMessages.add(DuplicateCache.key(mAddressKey, messageId, 0));
+
+    storeIfUnroutable(frame);
+    forward(frame, null);
+    if (!MeshFrame.isDestination(frame, 0, BROADCAST_ADDRESS)) {
+      mRetransmissions.track(messageId, frame);
+    }
+    return messageId;
+  }
+
+  /**
+   * A neighbor has connected. It's a one hop route to itself, and may be the node, or a bridge
+   * towards the node, a stored message is waiting for.
+   *
+   * @param endpointId The neighbor's endpoint id.
+   * @param name The neighbor's name.
+   */
+  public void onNeighborConnected(String endpointId, String name) {
+    mNeighbors.put(endpointId, name);
+    if (MeshFrame.isValidAddress(name)) {
+      mRoutingTable.update(
+          MeshFrame.addressKey(MeshFrame.encodeAddress(name)), endpointId, 1, mClock.now());
+    }
+    updateLocalLinks();
+    forwardStoredFrames(endpointId, name);
+  }
+
+  /** A neighbor has disconnected. Routes through it are forgotten. */
+  public void onNeighborDisconnected(String endpointId) {
+    if (mNeighbors.remove(endpointId) == null) {
+      return;
+    }
+    mRoutingTable.removeNextHop(endpointId);
+    updateLocalLinks();
+  }
+
+  /** All of our neighbors have disconnected at once. */
+  public void onAllNeighborsDisconnected() {
+    for (String endpointId : new ArrayList<>(mNeighbors.keySet())) {
+      onNeighborDisconnected(endpointId);
+    }
+  }
+
+  /**
+   * Forgets everything learned about the mesh, eg. when the app goes into the background. Stored
+   * messages are kept.
+   */
+  public void reset() {
+    mNeighbors.clear();
+    mRoutingTable.clear();
+    mRelayScheduler.clear();
+    mRetransmissions.clear();
+    mBeaconAdvertiser.reset();
+    mLinkState.clear();
+    mBeaconing = false;
+  }
+
+  /**
+   * Returns the time the engine next has work to do, in the clock's milliseconds, or -1 if it's
+   * idle. This may be in the past if work is overdue.
+   */
+  public long getNextDeadline() {
+    long deadline = earliest(mRelayScheduler.getNextDeadline(), mRetransmissions.getNextDeadline());
+    if (mBeaconing) {
+      deadline = earliest(deadline, mBeaconAdvertiser.getNextDeadline());
+    }
+    return deadline;
+  }
+
+  private static long earliest(long a, long b) {
+    if (a < 0) {
+      return b;
+    }
+    if (b < 0) {
+      return a;
+    }
+    return Math.min(a, b);
+  }
+
+  /** Does the work that's due: held back relays, retransmissions and beacons. */
+  public void runDue() {
+    mRelayScheduler.runDue(mRelayListener);
+    mRetransmissions.runDue(mRetransmitListener);
+    if (mBeaconing && mBeaconAdvertiser.getNextDeadline() <= mClock.now()) {
+      sendBeacon();
+    }
+  }
+
+  /**
+   * A neighbor has sent us a {@link MeshFrame}.
+   *
+   * @param endpointId The neighbor, or null if it isn't known.
+   * @param buffer The received bytes. Not kept after this returns.
+   * @param offset The offset of the frame in the buffer.
+   * @param length The length of the frame.
+   */
+  public void onReceiveFrame(@Nullable String endpointId, byte[] buffer, int offset, int length) {
+    if (!MeshFrame.isValid(buffer, offset, length)) {
+      log("Dropping malformed frame");
+      return;
+    }
+
+    // Whoever sent us this frame is a way back to its source.
+    if (endpointId != null) {
+      mRoutingTable.update(
+          MeshFrame.getSourceKey(buffer, offset),
+          endpointId,
+          MeshFrame.getHopCount(buffer, offset) + 1,
+          mClock.now());
+    }
+
+    int messageId = MeshFrame.getMessageId(buffer, offset);
+    long key =
+        DuplicateCache.key(
+            MeshFrame.getSourceKey(buffer, offset),
+            messageId,
+            MeshFrame.getAttempt(buffer, offset));
+    if (mSeenMessages.record(key) > 0) {
+      if (mRelayScheduler.onDuplicate(key)) {
+        log("Cancelled relay of message " + messageId);
+      } else {
+        log("Dropping duplicate message " + messageId);
+      }
+      return;
+    }
+
+    if (MeshFrame.isDestination(buffer, offset, BROADCAST_ADDRESS)) {
+      if (MeshFrame.getType(buffer, offset) == MeshFrame.TYPE_BEACON) {
+        onBeacon(buffer, offset);
+      } else {
+        deliver(buffer, offset);
+      }
+      relay(buffer, offset, key, endpointId);
+    } else if (MeshFrame.isDestination(buffer, offset, mAddress)) {
+      log("Message received to the correct node with hope = " + MeshFrame.getTtl(buffer, offset));
+      if (MeshFrame.getType(buffer, offset) == MeshFrame.TYPE_ACK) {
+        onAck(buffer, offset);
+        return;
+      }
+      sendAck(buffer, offset);
+      if (mDeliveredMessages.add(
+          DuplicateCache.key(MeshFrame.getSourceKey(buffer, offset), messageId))) {
+        deliver(buffer, offset);
+      }
+    } else if (!MeshFrame.isSource(buffer, offset, mAddress)) {
+      relay(buffer, offset, key, endpointId);
+    } else {
+      log("My message received by retransmission....");
+    }
+  }
+
+  /**
+   * Starts one of our own audio streams.
+   *
+   * @return The {@link MeshFrame#TYPE_AUDIO} header to send ahead of the audio.
+   */
+  @NonNull public byte[] createStreamHeader() {
+    int streamId = mNextMessageId++;
+    mSeenStreams.add(DuplicateCache.key(mAddressKey, streamId));
+    return MeshFrame.create(
+        MeshFrame.TYPE_AUDIO, mConfig.audioTtl, streamId, mAddress, BROADCAST_ADDRESS, new byte[0]);
+  }
+
+  /**
+   * Decides what to do with an incoming audio stream. Streams reach us from every neighbor that
+   * relays them, so only the first copy is used.
+   *
+   * @param endpointId The neighbor the stream came from. It won't get the stream back.
+   * @param header The stream's {@link MeshFrame#TYPE_AUDIO} header.
+   * @return Null if the stream is a copy we should drop. Otherwise the stream should be played, and
+   *     relayed to the returned neighbors, with {@link #createRelayedStreamHeader(byte[])}.
+   */
+  @Nullable public Set<String> acceptStream(String endpointId, byte[] header) {
+    int streamId = MeshFrame.getMessageId(header, 0);
+    if (MeshFrame.isSource(header, 0, mAddress)
+        || !mSeenStreams.add(DuplicateCache.key(MeshFrame.getSourceKey(header, 0), streamId))) {
+      log("Dropping duplicate audio stream " + streamId);
+      return null;
+    }
+    if (MeshFrame.getTtl(header, 0) - 1 <= 0) {
+      return Collections.emptySet();
+    }
+    Set<String> downstream = new HashSet<>(mNeighbors.keySet());
+    downstream.remove(endpointId);
+    if (!downstream.isEmpty()) {
+      log("Relaying audio stream " + streamId + " from " + MeshFrame.getSource(header, 0));
+    }
+    return downstream;
+  }
+
+  /** Returns the header of an audio stream as we pass it on, one hop further along. */
+  @NonNull public static byte[] createRelayedStreamHeader(byte[] header) {
+    byte[] copy = Arrays.copyOf(header, header.length);
+    MeshFrame.setTtl(copy, 0, MeshFrame.getTtl(copy, 0) - 1);
+    MeshFrame.setHopCount(copy, 0, MeshFrame.getHopCount(copy, 0) + 1);
+    return copy;
+  }
+
+  /**
+   * Sends a {@link MeshFrame} towards its destination. Directed frames go only to the next hop of a
+   * known route; broadcasts, and frames for nodes we have no route to, are flooded.
+   *
+   * @param frame The frame to send.
+   * @param ingressEndpointId The endpoint we received the frame from, or null if it's our own. The
+   *     frame is never sent back there, since that node has already seen it.
+   */
+  private void forward(byte[] frame, @Nullable String ingressEndpointId) {
+    String nextHop = getNextHop(frame, ingressEndpointId);
+    if (nextHop != null) {
+      log("Routing message " + MeshFrame.getMessageId(frame, 0) + " via " + nextHop);
+      mListener.onSend(frame, Collections.singleton(nextHop));
+      return;
+    }
+    List<String> endpoints = new ArrayList<>(mNeighbors.keySet());
+    endpoints.remove(ingressEndpointId);
+    if (!endpoints.isEmpty()) {
+      mListener.onSend(frame, endpoints);
+    }
+  }
+
+  /**
+   * Returns the endpoint id to route a directed frame through, or null if the frame has to be
+   * flooded. Routes learned from traffic come first. For nodes we haven't exchanged traffic with,
+   * the shortest path through our map of the mesh is used.
+   */
+  @Nullable private String getNextHop(byte[] frame, @Nullable String ingressEndpointId) {
+    if (MeshFrame.isDestination(frame, 0, BROADCAST_ADDRESS)) {
+      return null;
+    }
+    long destinationKey = MeshFrame.getDestinationKey(frame, 0);
+    String nextHop = mRoutingTable.getNextHop(destinationKey, mClock.now());
+    if (nextHop == null) {
+      nextHop = getLinkStateNextHop(destinationKey);
+    }
+    if (nextHop == null || nextHop.equals(ingressEndpointId) || !mNeighbors.containsKey(nextHop)) {
+      return null;
+    }
+    return nextHop;
+  }
+
+  /**
+   * Returns the endpoint id of the neighbor on a shortest path to the node in {@link #mLinkState},
+   * or null if the node isn't on our map.
+   */
+  @Nullable private String getLinkStateNextHop(long nodeKey) {
+    byte[] address = mLinkState.getNextHop(nodeKey);
+    if (address == null) {
+      return null;
+    }
+    String name = MeshFrame.decodeAddress(address);
+    for (Map.Entry<String, String> neighbor : mNeighbors.entrySet()) {
+      if (neighbor.getValue().equals(name)) {
+        return neighbor.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns {@code true} if a broadcast should be forwarded under the current {@link RelayMode}.
+   * Flooding always forwards; gossip forwards with a probability based on how many neighbors we
+   * have and how many copies of the broadcast we've heard.
+   *
+   * @param frame Our relayed copy of the broadcast. Its hop count already includes us.
+   * @param key The broadcast's key in {@link #mSeenMessages}.
+   */
+  private boolean shouldGossip(byte[] frame, long key) {
+    if (mConfig.relayMode != RelayMode.GOSSIP) {
+      return true;
+    }
+    // The count is 0 if the key has been evicted since the frame arrived.
+    int copiesHeard = Math.max(0, mSeenMessages.getCount(key) - 1);
+    if (mGossipPolicy.shouldForward(
+        mNeighbors.size(), copiesHeard, MeshFrame.getHopCount(frame, 0) - 1)) {
+      return true;
+    }
+    log("Gossip: not forwarding message " + MeshFrame.getMessageId(frame, 0));
+    return false;
+  }
+
+  /**
+   * Acknowledges a directed message addressed to us. The ack finds its way back like a reply. Acks
+   * for emergency messages are emergency traffic too, so they make it just as far.
+   */
+  private void sendAck(byte[] buffer, int offset) {
+    int messageId = mNextMessageId++;
+    boolean emergency = MeshFrame.getPriority(buffer, offset) == MeshFrame.PRIORITY_EMERGENCY;
+    byte[] ack =
+        MeshFrame.createAck(
+            emergency ? mConfig.emergencyTtl : mConfig.ttl,
+            messageId,
+            mAddress,
+            MeshFrame.getSourceAddress(buffer, offset),
+            MeshFrame.getMessageId(buffer, offset));
+    if (emergency) {
+      MeshFrame.setPriority(ack, 0, MeshFrame.PRIORITY_EMERGENCY);
+    }
+    mSeenMessages.add(DuplicateCache.key(mAddressKey, messageId, 0));
+    forward(ack, null);
+  }
+
+  /**
+   * One of our directed messages has arrived. Stop retransmitting it and let the user know. A
+   * message we gave up on is still in {@link #mStoreAndForward} until it's acked or expires, so an
+   * ack for it counts even once the retransmissions are over.
+   */
+  private void onAck(byte[] buffer, int offset) {
+    int ackedMessageId = MeshFrame.getAckedMessageId(buffer, offset);
+    long rtt = mRetransmissions.onAck(ackedMessageId);
+    boolean wasStored = mStoreAndForward.remove(DuplicateCache.key(mAddressKey, ackedMessageId));
+    if (rtt < 0 && !wasStored) {
+      // Another copy of an ack we've already had, or an ack for a message that has expired.
+      return;
+    }
+    if (rtt >= 0) {
+      log("Message " + ackedMessageId + " acknowledged after " + rtt + "ms");
+    }
+    mListener.onDelivered(MeshFrame.getSource(buffer, offset), ackedMessageId);
+  }
+
+  /** Hands a received text message to the listener. */
+  private void deliver(byte[] buffer, int offset) {
+    if (MeshFrame.getType(buffer, offset) != MeshFrame.TYPE_TEXT) {
+      return;
+    }
+    mListener.onMessage(
+        MeshFrame.getSource(buffer, offset),
+        MeshFrame.getMessageId(buffer, offset),
+        MeshFrame.getText(buffer, offset),
+        MeshFrame.getPriority(buffer, offset));
+  }
+
+  /**
+   * Passes a frame on to our neighbors while it still has hops left. Routed frames go out straight
+   * away. Flooded frames are handed to {@link #mRelayScheduler} first, so that neighbors that all
+   * received the same frame don't all transmit at once. Emergency frames skip the wait, and gossip,
+   * since a few redundant copies are a fair price for getting them through.
+   *
+   * @param buffer The received bytes.
+   * @param offset The offset of the received frame in the buffer.
+   * @param key The frame's key in {@link #mSeenMessages}.
+   * @param ingressEndpointId The endpoint the frame came from. It won't get the frame back.
+   */
+  private void relay(byte[] buffer, int offset, long key, @Nullable String ingressEndpointId) {
+    int hope = MeshFrame.getTtl(buffer, offset);
+    log("Hope received : " + hope);
+    hope--;
+    if (hope > 0) {
+      byte[] copy =
+          Arrays.copyOfRange(buffer, offset, offset + MeshFrame.getFrameLength(buffer, offset));
+      MeshFrame.setTtl(copy, 0, hope);
+      MeshFrame.setHopCount(copy, 0, MeshFrame.getHopCount(copy, 0) + 1);
+      if (getNextHop(copy, ingressEndpointId) != null
+          || MeshFrame.getPriority(copy, 0) == MeshFrame.PRIORITY_EMERGENCY) {
+        log("Retransmitting message " + MeshFrame.getMessageId(copy, 0));
+        forward(copy, ingressEndpointId);
+      } else {
+        mRelayScheduler.schedule(key, new PendingRelay(copy, ingressEndpointId));
+      }
+    } else {
+      log("Message Discarding since hope ended : " + hope);
+    }
+  }
+
+  /**
+   * Keeps a copy of one of our own directed frames we have no route for, so that it can still be
+   * delivered if its destination shows up later. See {@link #forwardStoredFrames(String, String)}.
+   * Frames we only relay aren't stored: only their origin hears the ack that would let us drop
+   * them.
+   */
+  private void storeIfUnroutable(byte[] frame) {
+    if (MeshFrame.isDestination(frame, 0, BROADCAST_ADDRESS) || getNextHop(frame, null) != null) {
+      return;
+    }
+    if (mStoreAndForward.add(Arrays.copyOf(frame, frame.length), mConfig.storeAndForwardLifetime)) {
+      log("Stored message " + MeshFrame.getMessageId(frame, 0) + " until its node is reachable");
+    }
+  }
+
+  /**
+   * A new neighbor may be the node a stored frame is waiting for, or a bridge towards it. Frames
+   * for the neighbor itself, and frames whose shortest route now runs through it, are sent to it.
+   * The others are left alone, so that a neighbor coming and going doesn't resend the whole queue.
+   */
+  private void forwardStoredFrames(String endpointId, String name) {
+    boolean named = MeshFrame.isValidAddress(name);
+    long neighborKey = named ? MeshFrame.addressKey(MeshFrame.encodeAddress(name)) : 0;
+    for (byte[] frame : mStoreAndForward.peekAll()) {
+      if ((named && MeshFrame.getDestinationKey(frame, 0) == neighborKey)
+          || endpointId.equals(getNextHop(frame, null))) {
+        resendStored(frame, endpointId);
+      }
+    }
+  }
+
+  /**
+   * Sends a stored frame again under the next attempt number, so that nodes that saw its earlier
+   * transmissions don't drop it as a duplicate, and retransmits it like a new message until it's
+   * acked. It stays stored until then, or until it expires. Attempt numbers wrap around after
+   * {@link MeshFrame#FLAG_ATTEMPT_MASK}, by which time nodes have usually forgotten the first ones.
+   *
+   * @param stored The frame in {@link #mStoreAndForward}. Its attempt number is moved on past the
+   *     attempts this resend may use.
+   * @param endpointId The neighbor to send it to.
+   */
+  private void resendStored(byte[] stored, String endpointId) {
+    int messageId = MeshFrame.getMessageId(stored, 0);
+    int attempt = MeshFrame.getAttempt(stored, 0);
+    log("Resending stored message " + messageId + " via " + endpointId + ", attempt " + attempt);
+    byte[] copy = Arrays.copyOf(stored, stored.length);
+    MeshFrame.setTtl(copy, 0, mConfig.ttl);
+    mSeenMessages.add(DuplicateCache.key(mAddressKey, messageId, attempt));
+    mRetransmissions.track(messageId, copy);
+    MeshFrame.setAttempt(stored, 0, attempt + mConfig.maxTransmissions);
+    mListener.onSend(copy, Collections.singleton(endpointId));
+  }
+
+  /** Tells the rest of the mesh, and our own map of it, that our neighbors have changed. */
+  private void updateLocalLinks() {
+    List<byte[]> neighbors = new ArrayList<>();
+    for (String name : mNeighbors.values()) {
+      if (MeshFrame.isValidAddress(name)) {
+        neighbors.add(MeshFrame.encodeAddress(name));
+      }
+    }
+    mBeaconAdvertiser.setNeighbors(neighbors);
+    mLinkState.setLocalLinks(mAddress, neighbors);
+    mBeaconing = true;
+    mListener.onTopologyChanged();
+  }
+
+  /**
+   * Sends our neighbor beacon if one is due, and drops the nodes whose beacons have stopped
+   * arriving.
+   */
+  private void sendBeacon() {
+    long now = mClock.now();
+    byte[] beacon = mBeaconAdvertiser.poll(now);
+    if (beacon != null) {
+      int messageId = mNextMessageId++;
+      byte[] frame =
+          MeshFrame.create(
+              MeshFrame.TYPE_BEACON,
+              mConfig.beaconTtl,
+              messageId,
+              mAddress,
+              BROADCAST_ADDRESS,
+              beacon);
+      mSeenMessages.add(DuplicateCache.key(mAddressKey, messageId, 0));
+      forward(frame, null);
+    }
+    if (mLinkState.expire(now)) {
+      mListener.onTopologyChanged();
+    }
+  }
+
+  /** Adds another node's neighbor beacon to our map of the mesh. */
+  private void onBeacon(byte[] buffer, int offset) {
+    if (mLinkState.onBeacon(
+        MeshFrame.getSourceAddress(buffer, offset),
+        buffer,
+        MeshFrame.getPayloadOffset(offset),
+        MeshFrame.getPayloadLength(buffer, offset),
+        mClock.now())) {
+      mListener.onTopologyChanged();
+    }
+  }
+
+  private void log(String message) {
+    mListener.onLog(message);
+  }
+
+  /** A flooded frame waiting in {@link #mRelayScheduler}. */
+  private static class PendingRelay {
+    final byte[] frame;
+    @Nullable final String ingressEndpointId;
+
+    PendingRelay(byte[] frame, @Nullable String ingressEndpointId) {
+      this.frame = frame;
+      this.ingressEndpointId = ingressEndpointId;
+    }
+  }
+}
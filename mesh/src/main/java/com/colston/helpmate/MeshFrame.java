@@ -0,0 +1,442 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.NonNull;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The binary frame every mesh message travels in. A frame is a fixed size header followed by the
+ * payload. Every header field lives at a fixed offset, so relays can read and patch a frame
+ * straight from the received bytes without decoding it into Strings first.
+ *
+ * <pre>
+ *  offset  size  field
+ *       0     1  version
+ *       1     1  type
+ *       2     1  flags
+ *       3     1  ttl, the remaining hop budget
+ *       4     1  hop count, the number of hops travelled so far
+ *       5     4  message id, a per-source sequence number
+ *       9    16  source node name, UTF-8 and zero padded
+ *      25    16  destination node name, UTF-8 and zero padded
+ *      41     2  payload length
+ *      43     n  payload
+ * </pre>
+ *
+ * <p>Multi-byte fields are big endian. All methods take the buffer and the offset of the frame
+ * inside it, so several frames can share one buffer.
+ */
+public final class MeshFrame {
+  /** The version of the frame layout written by this class. */
+  public static final int VERSION = 1;
+
+  /** A plain text chat message. */
+  public static final int TYPE_TEXT = 1;
+
+  /**
+   * An end-to-end acknowledgement of a directed message. The payload is the acknowledged message
+   * id.
+   */
+  public static final int TYPE_ACK = 2;
+
+  /**
+   * The start of a push-to-talk audio stream. The header is sent on its own at the start of a
+   * stream payload and the audio follows it. The message id identifies the stream.
+   */
+  public static final int TYPE_AUDIO = 3;
+
+  /** A {@link LinkStateBeacon} listing the sender's neighbors, broadcast to the nodes around it. */
+  public static final int TYPE_BEACON = 4;
+
+  /**
+   * A link quality probe. The neighbor that receives it answers straight away with a {@link
+   * #TYPE_PONG} carrying the same probe id. Probes never leave the link, so they carry no
+   * addresses.
+   */
+  public static final int TYPE_PING = 5;
+
+  /** The answer to a {@link #TYPE_PING}. */
+  public static final int TYPE_PONG = 6;
+
+  /**
+   * The bits of the flags field holding the retransmission attempt. A retransmitted frame keeps its
+   * message id but counts up its attempt, so relays don't mistake it for a duplicate.
+   */
+  public static final int FLAG_ATTEMPT_MASK = 0x07;
+
+  /**
+   * The bits of the flags field holding the priority class the sender gave the message. Relays pass
+   * it on unchanged, so the whole path treats the message alike.
+   */
+  public static final int FLAG_PRIORITY_MASK = 0x18;
+
+  /**
+   * Chat, and anything else that can wait. Frames from senders that don't set a priority read as
+   * bulk.
+   */
+  public static final int PRIORITY_BULK = 0;
+
+  /** Voice stream signaling. */
+  public static final int PRIORITY_VOICE = 1;
+
+  /** The traffic that keeps the mesh itself working: acks, beacons and probes. */
+  public static final int PRIORITY_CONTROL = 2;
+
+  /** Calls for help. They go ahead of all other traffic, and may travel further. */
+  public static final int PRIORITY_EMERGENCY = 3;
+
+  /** The number of priority classes. */
+  public static final int PRIORITY_COUNT = 4;
+
+  /** The maximum number of UTF-8 bytes in a node name. */
+  public static final int ADDRESS_LENGTH = 16;
+
+  /** The size of the fixed header in bytes. */
+  public static final int HEADER_LENGTH = 43;
+
+  /** The largest payload a single frame can carry. */
+  public static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+
+  /** The size of the payload of a {@link #TYPE_ACK} frame: the acknowledged message id. */
+  private static final int ACK_PAYLOAD_LENGTH = 4;
+
+  /** The size of the payload of a {@link #TYPE_PING} or {@link #TYPE_PONG}: the probe id. */
+  public static final int PROBE_PAYLOAD_LENGTH = 4;
+
+  /** The destination name used for messages addressed to every node. */
+  public static final String BROADCAST = "All";
+
+  private static final int FLAG_PRIORITY_SHIFT = 3;
+
+  private static final int OFFSET_VERSION = 0;
+  private static final int OFFSET_TYPE = 1;
+  private static final int OFFSET_FLAGS = 2;
+  private static final int OFFSET_TTL = 3;
+  private static final int OFFSET_HOP_COUNT = 4;
+  private static final int OFFSET_MESSAGE_ID = 5;
+  private static final int OFFSET_SOURCE = 9;
+  private static final int OFFSET_DESTINATION = OFFSET_SOURCE + ADDRESS_LENGTH;
+  private static final int OFFSET_PAYLOAD_LENGTH = OFFSET_DESTINATION + ADDRESS_LENGTH;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private MeshFrame() {}
+
+  /** Returns {@code true} if the name fits into the fixed size address field. */
+  public static boolean isValidAddress(String name) {
+    if (name == null || name.isEmpty()) {
+      return false;
+    }
+    return name.getBytes(StandardCharsets.UTF_8).length <= ADDRESS_LENGTH;
+  }
+
+  /**
+   * Encodes a node name into its fixed size address form. Compare received frames against the
+   * result with {@link #isSource(byte[], int, byte[])} and {@link #isDestination(byte[], int,
+   * byte[])}.
+   */
+  @NonNull public static byte[] encodeAddress(String name) {
+    if (!isValidAddress(name)) {
+      throw new IllegalArgumentException("Invalid node name " + name);
+    }
+    return Arrays.copyOf(name.getBytes(StandardCharsets.UTF_8), ADDRESS_LENGTH);
+  }
+
+  /**
+   * Builds a new frame.
+   *
+   * @param type The frame type, eg. {@link #TYPE_TEXT}.
+   * @param ttl The number of hops the frame may still travel.
+   * @param messageId The sender's sequence number for this message.
+   * @param source The sender's address, from {@link #encodeAddress(String)}.
+   * @param destination The receiver's address, from {@link #encodeAddress(String)}.
+   * @param payload The message body.
+   */
+  @NonNull public static byte[] create(
+      int type, int ttl, int messageId, byte[] source, byte[] destination, byte[] payload) {
+    if (payload.length > MAX_PAYLOAD_LENGTH) {
+      throw new IllegalArgumentException("Payload too large: " + payload.length + " bytes");
+    }
+    byte[] frame = new byte[HEADER_LENGTH + payload.length];
+    frame[OFFSET_VERSION] = (byte) VERSION;
+    frame[OFFSET_TYPE] = (byte) type;
+    frame[OFFSET_TTL] = (byte) ttl;
+    writeInt(frame, OFFSET_MESSAGE_ID, messageId);
+    System.arraycopy(source, 0, frame, OFFSET_SOURCE, ADDRESS_LENGTH);
+    System.arraycopy(destination, 0, frame, OFFSET_DESTINATION, ADDRESS_LENGTH);
+    frame[OFFSET_PAYLOAD_LENGTH] = (byte) (payload.length >>> 8);
+    frame[OFFSET_PAYLOAD_LENGTH + 1] = (byte) payload.length;
+    System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+    return frame;
+  }
+
+  /**
+   * Returns {@code true} if a complete frame of a version we understand starts at {@code offset}
+   * and fits within {@code length} bytes. Frame types with a fixed size payload have to carry
+   * exactly that much, so reading it can't run past the frame.
+   */
+  public static boolean isValid(byte[] buffer, int offset, int length) {
+    if (length < HEADER_LENGTH || offset < 0 || offset + length > buffer.length) {
+      return false;
+    }
+    if (getVersion(buffer, offset) != VERSION) {
+      return false;
+    }
+    if (getFrameLength(buffer, offset) > length) {
+      return false;
+    }
+    switch (getType(buffer, offset)) {
+      case TYPE_ACK:
+        return getPayloadLength(buffer, offset) == ACK_PAYLOAD_LENGTH;
+      case TYPE_PING:
+      case TYPE_PONG:
+        return getPayloadLength(buffer, offset) == PROBE_PAYLOAD_LENGTH;
+      default:
+        return true;
+    }
+  }
+
+  public static int getVersion(byte[] buffer, int offset) {
+    return buffer[offset + OFFSET_VERSION] & 0xFF;
+  }
+
+  public static int getType(byte[] buffer, int offset) {
+    return buffer[offset + OFFSET_TYPE] & 0xFF;
+  }
+
+  public static int getFlags(byte[] buffer, int offset) {
+    return buffer[offset + OFFSET_FLAGS] & 0xFF;
+  }
+
+  public static void setFlags(byte[] buffer, int offset, int flags) {
+    buffer[offset + OFFSET_FLAGS] = (byte) flags;
+  }
+
+  /** Returns the retransmission attempt, 0 for the first transmission. */
+  public static int getAttempt(byte[] buffer, int offset) {
+    return getFlags(buffer, offset) & FLAG_ATTEMPT_MASK;
+  }
+
+  public static void setAttempt(byte[] buffer, int offset, int attempt) {
+    setFlags(
+        buffer,
+        offset,
+        (getFlags(buffer, offset) & ~FLAG_ATTEMPT_MASK) | (attempt & FLAG_ATTEMPT_MASK));
+  }
+
+  /**
+   * Returns the priority class the frame travels in, from {@link #PRIORITY_BULK} up to {@link
+   * #PRIORITY_EMERGENCY}. Control frames and voice signaling never rank below their own class,
+   * whatever the sender set.
+   */
+  public static int getPriority(byte[] buffer, int offset) {
+    int priority = (getFlags(buffer, offset) & FLAG_PRIORITY_MASK) >>> FLAG_PRIORITY_SHIFT;
+    switch (getType(buffer, offset)) {
+      case TYPE_ACK:
+      case TYPE_BEACON:
+      case TYPE_PING:
+      case TYPE_PONG:
+        return Math.max(priority, PRIORITY_CONTROL);
+      case TYPE_AUDIO:
+        return Math.max(priority, PRIORITY_VOICE);
+      default:
+        return priority;
+    }
+  }
+
+  public static void setPriority(byte[] buffer, int offset, int priority) {
+    setFlags(
+        buffer,
+        offset,
+        (getFlags(buffer, offset) & ~FLAG_PRIORITY_MASK)
+            | ((priority << FLAG_PRIORITY_SHIFT) & FLAG_PRIORITY_MASK));
+  }
+
+  public static int getTtl(byte[] buffer, int offset) {
+    return buffer[offset + OFFSET_TTL] & 0xFF;
+  }
+
+  public static void setTtl(byte[] buffer, int offset, int ttl) {
+    buffer[offset + OFFSET_TTL] = (byte) ttl;
+  }
+
+  public static int getHopCount(byte[] buffer, int offset) {
+    return buffer[offset + OFFSET_HOP_COUNT] & 0xFF;
+  }
+
+  public static void setHopCount(byte[] buffer, int offset, int hopCount) {
+    buffer[offset + OFFSET_HOP_COUNT] = (byte) hopCount;
+  }
+
+  public static int getMessageId(byte[] buffer, int offset) {
+    return readInt(buffer, offset + OFFSET_MESSAGE_ID);
+  }
+
+  public static int getPayloadLength(byte[] buffer, int offset) {
+    return ((buffer[offset + OFFSET_PAYLOAD_LENGTH] & 0xFF) << 8)
+        | (buffer[offset + OFFSET_PAYLOAD_LENGTH + 1] & 0xFF);
+  }
+
+  /** Returns the offset of the payload inside the buffer. */
+  public static int getPayloadOffset(int offset) {
+    return offset + HEADER_LENGTH;
+  }
+
+  /** Returns the size of the whole frame, header included. */
+  public static int getFrameLength(byte[] buffer, int offset) {
+    return HEADER_LENGTH + getPayloadLength(buffer, offset);
+  }
+
+  /** Returns {@code true} if the frame was sent by the node with the given address. */
+  public static boolean isSource(byte[] buffer, int offset, byte[] address) {
+    return regionEquals(buffer, offset + OFFSET_SOURCE, address);
+  }
+
+  /** Returns {@code true} if the frame is addressed to the node with the given address. */
+  public static boolean isDestination(byte[] buffer, int offset, byte[] address) {
+    return regionEquals(buffer, offset + OFFSET_DESTINATION, address);
+  }
+
+  /**
+   * Returns a 64 bit hash of the source address. Used as a lookup key so that tables keyed by node
+   * don't have to decode the name.
+   */
+  public static long getSourceKey(byte[] buffer, int offset) {
+    return hash(buffer, offset + OFFSET_SOURCE);
+  }
+
+  /** Returns a 64 bit hash of the destination address. */
+  public static long getDestinationKey(byte[] buffer, int offset) {
+    return hash(buffer, offset + OFFSET_DESTINATION);
+  }
+
+  /** Returns the same key as {@link #getSourceKey(byte[], int)} for an encoded address. */
+  public static long addressKey(byte[] address) {
+    return hash(address, 0);
+  }
+
+  /** Returns a copy of the source address, eg. to address a reply to it. */
+  @NonNull public static byte[] getSourceAddress(byte[] buffer, int offset) {
+    return Arrays.copyOfRange(
+        buffer, offset + OFFSET_SOURCE, offset + OFFSET_SOURCE + ADDRESS_LENGTH);
+  }
+
+  /** Decodes the source name. This allocates, so keep it off the relay path. */
+  @NonNull public static String getSource(byte[] buffer, int offset) {
+    return decodeAddress(buffer, offset + OFFSET_SOURCE);
+  }
+
+  /** Decodes the destination name. This allocates, so keep it off the relay path. */
+  @NonNull public static String getDestination(byte[] buffer, int offset) {
+    return decodeAddress(buffer, offset + OFFSET_DESTINATION);
+  }
+
+  /** Decodes an address from {@link #encodeAddress(String)} back into a node name. */
+  @NonNull public static String decodeAddress(byte[] address) {
+    return decodeAddress(address, 0);
+  }
+
+  /**
+   * Builds a {@link #TYPE_ACK} frame.
+   *
+   * @param ttl The number of hops the frame may still travel.
+   * @param messageId The acknowledging node's sequence number for the ack itself.
+   * @param source The acknowledging node's address.
+   * @param destination The address of the node that sent the acknowledged message.
+   * @param ackedMessageId The id of the acknowledged message.
+   */
+  @NonNull public static byte[] createAck(
+      int ttl, int messageId, byte[] source, byte[] destination, int ackedMessageId) {
+    byte[] payload = new byte[ACK_PAYLOAD_LENGTH];
+    writeInt(payload, 0, ackedMessageId);
+    return create(TYPE_ACK, ttl, messageId, source, destination, payload);
+  }
+
+  /** Returns the message id acknowledged by a {@link #TYPE_ACK} frame. */
+  public static int getAckedMessageId(byte[] buffer, int offset) {
+    return readInt(buffer, getPayloadOffset(offset));
+  }
+
+  /**
+   * Builds a {@link #TYPE_PING} or {@link #TYPE_PONG} frame.
+   *
+   * @param type Either {@link #TYPE_PING} or {@link #TYPE_PONG}.
+   * @param probeId The id of the probe, echoed back in the answer.
+   */
+  @NonNull public static byte[] createProbe(int type, int probeId) {
+    byte[] payload = new byte[PROBE_PAYLOAD_LENGTH];
+    writeInt(payload, 0, probeId);
+    byte[] noAddress = new byte[ADDRESS_LENGTH];
+    return create(type, 0, 0, noAddress, noAddress, payload);
+  }
+
+  /** Returns the probe id of a {@link #TYPE_PING} or {@link #TYPE_PONG} frame. */
+  public static int getProbeId(byte[] buffer, int offset) {
+    return readInt(buffer, getPayloadOffset(offset));
+  }
+
+  /** Decodes the payload of a {@link #TYPE_TEXT} frame. */
+  @NonNull public static String getText(byte[] buffer, int offset) {
+    return new String(
+        buffer, getPayloadOffset(offset), getPayloadLength(buffer, offset), StandardCharsets.UTF_8);
+  }
+
+  private static String decodeAddress(byte[] buffer, int start) {
+    int length = 0;
+    while (length < ADDRESS_LENGTH && buffer[start + length] != 0) {
+      length++;
+    }
+    return new String(buffer, start, length, StandardCharsets.UTF_8);
+  }
+
+  private static boolean regionEquals(byte[] buffer, int start, byte[] address) {
+    for (int i = 0; i < ADDRESS_LENGTH; i++) {
+      if (buffer[start + i] != address[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** FNV-1a over an address field. */
+  private static long hash(byte[] buffer, int start) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < ADDRESS_LENGTH; i++) {
+      hash ^= buffer[start + i] & 0xFF;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private static int readInt(byte[] buffer, int start) {
+    return ((buffer[start] & 0xFF) << 24)
+        | ((buffer[start + 1] & 0xFF) << 16)
+        | ((buffer[start + 2] & 0xFF) << 8)
+        | (buffer[start + 3] & 0xFF);
+  }
+
+  private static void writeInt(byte[] buffer, int start, int value) {
+    buffer[start] = (byte) (value >>> 24);
+    buffer[start + 1] = (byte) (value >>> 16);
+    buffer[start + 2] = (byte) (value >>> 8);
+    buffer[start + 3] = (byte) value;
+  }
+}
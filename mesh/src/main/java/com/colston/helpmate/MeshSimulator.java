@@ -0,0 +1,444 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A discrete-event simulation of a whole mesh on one machine. Every node runs a real {@link
+ * MeshEngine}; only Nearby Connections is replaced, by links with the latency, jitter, loss and
+ * bandwidth of a {@link LinkModel}. Time is simulated, so an hour of traffic between hundreds of
+ * nodes runs in seconds, and a run with the same seed always gives the same result.
+ *
+ * <p>A run connects every link of the {@link Topology}, lets the beacons settle, sends messages
+ * from random nodes at a steady rate, then waits for retransmissions to finish before reporting.
+ * Frames are sent one by one: the batching of {@code ConnectionsActivity} isn't simulated.
+ *
+ * <p>Run it with {@code ./gradlew :mesh:simulate --args="..."}; see {@link #main(String[])} for the
+ * options.
+ */
+public class MeshSimulator {
+  private final Topology mTopology;
+  private final LinkModel mLinkModel;
+  private final Random mRandom;
+  private final List<Node> mNodes = new ArrayList<>();
+  private final Map<String, Node> mNodesByName = new HashMap<>();
+
+  /** The simulated time, in milliseconds. */
+  private long mNow;
+
+  private final Clock mClock =
+      new Clock() {
+        @Override
+        public long now() {
+          return mNow;
+        }
+      };
+
+  private final PriorityQueue<Event> mEvents =
+      new PriorityQueue<>(
+          11,
+          new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+              if (a.time != b.time) {
+                return Long.compare(a.time, b.time);
+              }
+              return Long.compare(a.sequence, b.sequence);
+            }
+          });
+
+  /** Breaks ties between events at the same time, so they run in the order they were posted. */
+  private long mNextSequence;
+
+  /** The messages sent during the run, by {@link #messageKey(String, int)}. */
+  private final Map<String, SentMessage> mSentMessages = new HashMap<>();
+
+  private final SimulationReport mReport = new SimulationReport();
+
+  /** True once the warmup is over and transmissions count towards the report. */
+  private boolean mMeasuring;
+
+  private boolean mVerbose;
+
+  private int mPriority = MeshFrame.PRIORITY_BULK;
+
+  /**
+   * @param topology The nodes and the links between them.
+   * @param config The settings every node runs with.
+   * @param linkModel How the links behave.
+   * @param seed Decides everything random: message ids, relay delays, losses and traffic.
+   */
+  public MeshSimulator(Topology topology, MeshConfig config, LinkModel linkModel, long seed) {
+    mTopology = topology;
+    mLinkModel = linkModel;
+    mRandom = new Random(seed);
+    for (int i = 0; i < topology.getNodeCount(); i++) {
+      Node node = new Node("n" + i, config, new Random(mRandom.nextLong()));
+      mNodes.add(node);
+      mNodesByName.put(node.name, node);
+    }
+  }
+
+  /** Prints what every node's engine is doing. Slow, so only for small meshes. */
+  public void setVerbose(boolean verbose) {
+    mVerbose = verbose;
+  }
+
+  /** Sets the priority class of the messages sent, {@link MeshFrame#PRIORITY_BULK} by default. */
+  public void setPriority(int priority) {
+    mPriority = priority;
+  }
+
+  /**
+   * Runs the simulation.
+   *
+   * @param messageCount The number of messages to send.
+   * @param interval The time between messages, in milliseconds.
+   * @param directed True to send each message to one random node, false to broadcast them.
+   * @param warmup The time the mesh gets to settle before the first message, in milliseconds.
+   * @param drain The time allowed after the last message for deliveries and retransmissions, in
+   *     milliseconds.
+   * @return What was measured. Transmissions during the warmup aren't counted.
+   */
+  public SimulationReport run(
+      int messageCount, long interval, final boolean directed, long warmup, long drain) {
+    for (int i = 0; i < mNodes.size(); i++) {
+      for (int neighbor : mTopology.getNeighbors(i)) {
+        Node node = mNodes.get(i);
+        node.engine.onNeighborConnected(mNodes.get(neighbor).name, mNodes.get(neighbor).name);
+        node.schedule();
+      }
+    }
+    runUntil(warmup);
+
+    mMeasuring = true;
+    for (int i = 0; i < messageCount; i++) {
+      final int index = i;
+      post(
+          warmup + i * interval,
+          new Runnable() {
+            @Override
+            public void run() {
+              sendMessage(index, directed);
+            }
+          });
+    }
+    runUntil(warmup + messageCount * interval + drain);
+    return mReport;
+  }
+
+  /** Sends a message from a random node, to another random node or to everyone. */
+  private void sendMessage(int index, boolean directed) {
+    Node source = mNodes.get(mRandom.nextInt(mNodes.size()));
+    String destination = MeshFrame.BROADCAST;
+    if (directed) {
+      Node node;
+      do {
+        node = mNodes.get(mRandom.nextInt(mNodes.size()));
+      } while (node == source);
+      destination = node.name;
+    }
+    int messageId = source.engine.sendText(destination, "message " + index, mPriority);
+    mSentMessages.put(messageKey(source.name, messageId), new SentMessage(mNow));
+    mReport.onMessageSent(directed ? 1 : mNodes.size() - 1, directed);
+    source.schedule();
+  }
+
+  private static String messageKey(String source, int messageId) {
+    return source + "/" + messageId;
+  }
+
+  /** Runs every event up to the given time. Later events are left queued. */
+  private void runUntil(long time) {
+    while (!mEvents.isEmpty() && mEvents.peek().time <= time) {
+      Event event = mEvents.poll();
+      mNow = event.time;
+      event.action.run();
+    }
+    mNow = time;
+  }
+
+  private void post(long time, Runnable action) {
+    mEvents.add(new Event(Math.max(time, mNow), mNextSequence++, action));
+  }
+
+  /**
+   * Sends a frame over the link from one node to another. Frames queue behind the ones the sender
+   * has already sent over the link, and may be lost on the way.
+   */
+  private void transmit(Node from, final Node to, byte[] frame) {
+    Long busyUntil = from.busyUntil.get(to.name);
+    long start = busyUntil != null ? Math.max(mNow, busyUntil) : mNow;
+    long sent = start + mLinkModel.getSendTime(frame.length);
+    from.busyUntil.put(to.name, sent);
+
+    boolean lost = mRandom.nextDouble() < mLinkModel.loss;
+    if (mMeasuring) {
+      mReport.onTransmission(MeshFrame.getType(frame, 0), lost);
+    }
+    if (lost) {
+      return;
+    }
+    final String endpointId = from.name;
+    final byte[] copy = frame.clone();
+    long jitter = mLinkModel.jitter > 0 ? (long) (mRandom.nextDouble() * mLinkModel.jitter) : 0;
+    post(
+        sent + mLinkModel.latency + jitter,
+        new Runnable() {
+          @Override
+          public void run() {
+            to.engine.onReceiveFrame(endpointId, copy, 0, copy.length);
+            to.schedule();
+          }
+        });
+  }
+
+  /** One simulated phone. Its endpoint id, as its neighbors see it, is its name. */
+  private class Node implements MeshEngine.Listener {
+    final String name;
+    final MeshEngine engine;
+
+    /** The time each link from this node is free to send again, by neighbor name. */
+    final Map<String, Long> busyUntil = new HashMap<>();
+
+    /** The time this node's next wakeup is posted for, or -1 if none is. */
+    long wakeAt = -1;
+
+    Node(String name, MeshConfig config, Random random) {
+      this.name = name;
+      engine = new MeshEngine(name, config, mClock, mClock, random, this);
+    }
+
+    /** Posts a wakeup for the engine's next deadline, unless an earlier one is posted already. */
+    void schedule() {
+      long deadline = engine.getNextDeadline();
+      if (deadline < 0) {
+        return;
+      }
+      deadline = Math.max(deadline, mNow);
+      if (wakeAt >= 0 && wakeAt <= deadline) {
+        return;
+      }
+      wakeAt = deadline;
+      post(
+          deadline,
+          new Runnable() {
+            @Override
+            public void run() {
+              // A wakeup that was superseded by an earlier one may still run; the engine only does
+              // what is due, so that's harmless.
+              wakeAt = -1;
+              engine.runDue();
+              schedule();
+            }
+          });
+    }
+
+    @Override
+    public void onSend(byte[] frame, Collection<String> endpointIds) {
+      for (String endpointId : endpointIds) {
+        transmit(this, mNodesByName.get(endpointId), frame);
+      }
+    }
+
+    @Override
+    public void onMessage(String source, int messageId, String text, int priority) {
+      SentMessage message = mSentMessages.get(messageKey(source, messageId));
+      if (message != null && message.receivers.add(name)) {
+        mReport.onMessageDelivered(mNow - message.time);
+      }
+    }
+
+    @Override
+    public void onDelivered(String destination, int messageId) {
+      SentMessage message = mSentMessages.get(messageKey(name, messageId));
+      if (message != null && !message.acked) {
+        message.acked = true;
+        mReport.onMessageAcked();
+      }
+    }
+
+    @Override
+    public void onNotDelivered(String destination, int messageId) {}
+
+    @Override
+    public void onTopologyChanged() {}
+
+    @Override
+    public void onLog(String message) {
+      if (mVerbose) {
+        System.out.println(String.format(Locale.US, "%8d %s: %s", mNow, name, message));
+      }
+    }
+  }
+
+  private static class Event {
+    final long time;
+    final long sequence;
+    final Runnable action;
+
+    Event(long time, long sequence, Runnable action) {
+      this.time = time;
+      this.sequence = sequence;
+      this.action = action;
+    }
+  }
+
+  private static class SentMessage {
+    final long time;
+    final Set<String> receivers = new HashSet<>();
+    boolean acked;
+
+    SentMessage(long time) {
+      this.time = time;
+    }
+  }
+
+  /**
+   * Runs a simulation and prints its report. Options, all optional, are given as {@code
+   * --name=value}:
+   *
+   * <ul>
+   *   <li>{@code nodes}: the number of nodes. 100 by default.
+   *   <li>{@code topology}: {@code line}, {@code ring}, {@code grid} or {@code random}, the
+   *       default.
+   *   <li>{@code degree}, {@code max-degree}: the average and largest number of links of a node in
+   *       a random topology. 4 and 8 by default.
+   *   <li>{@code mode}: {@code flooding}, the default, or {@code gossip}.
+   *   <li>{@code ttl}: the hops a message may travel.
+   *   <li>{@code beacon-ttl}: the hops a neighbor beacon may travel. The same as {@code ttl} by
+   *       default.
+   *   <li>{@code beacon-refresh}: the milliseconds between full neighbor beacons.
+   *   <li>{@code messages}, {@code interval}: the number of messages to send, 200 by default, and
+   *       the milliseconds between them, 500 by default.
+   *   <li>{@code directed}: {@code true} to send each message to one node rather than to everyone.
+   *   <li>{@code emergency}: {@code true} to send emergency messages rather than chat.
+   *   <li>{@code latency}, {@code jitter}, {@code loss}, {@code bandwidth}: see {@link LinkModel}.
+   *   <li>{@code warmup}, {@code drain}: see {@link #run(int, long, boolean, long, long)}.
+   *   <li>{@code seed}: the random seed. 1 by default.
+   *   <li>{@code verbose}: {@code true} to print what every node does.
+   * </ul>
+   */
+  public static void main(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument " + arg);
+      }
+      int equals = arg.indexOf('=');
+      if (equals < 0) {
+        options.put(arg.substring(2), "true");
+      } else {
+        options.put(arg.substring(2, equals), arg.substring(equals + 1));
+      }
+    }
+
+    long seed = Long.parseLong(get(options, "seed", "1"));
+    int nodeCount = Integer.parseInt(get(options, "nodes", "100"));
+    String shape = get(options, "topology", "random");
+    Topology topology;
+    switch (shape) {
+      case "line":
+        topology = Topology.line(nodeCount);
+        break;
+      case "ring":
+        topology = Topology.ring(nodeCount);
+        break;
+      case "grid":
+        topology = Topology.grid(nodeCount);
+        break;
+      case "random":
+        topology =
+            Topology.random(
+                nodeCount,
+                Double.parseDouble(get(options, "degree", "4")),
+                Integer.parseInt(get(options, "max-degree", "8")),
+                new Random(seed));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown topology " + shape);
+    }
+
+    MeshConfig config = new MeshConfig();
+    config.relayMode = RelayMode.valueOf(get(options, "mode", "flooding").toUpperCase(Locale.US));
+    config.ttl = Integer.parseInt(get(options, "ttl", String.valueOf(config.ttl)));
+    config.beaconTtl = Integer.parseInt(get(options, "beacon-ttl", String.valueOf(config.ttl)));
+    config.beaconRefreshInterval =
+        Long.parseLong(
+            get(options, "beacon-refresh", String.valueOf(config.beaconRefreshInterval)));
+
+    LinkModel linkModel = new LinkModel();
+    linkModel.latency = Long.parseLong(get(options, "latency", String.valueOf(linkModel.latency)));
+    linkModel.jitter = Long.parseLong(get(options, "jitter", String.valueOf(linkModel.jitter)));
+    linkModel.loss = Double.parseDouble(get(options, "loss", String.valueOf(linkModel.loss)));
+    linkModel.bandwidth =
+        Long.parseLong(get(options, "bandwidth", String.valueOf(linkModel.bandwidth)));
+
+    int messageCount = Integer.parseInt(get(options, "messages", "200"));
+    long interval = Long.parseLong(get(options, "interval", "500"));
+    boolean directed = Boolean.parseBoolean(get(options, "directed", "false"));
+    boolean emergency = Boolean.parseBoolean(get(options, "emergency", "false"));
+    long warmup = Long.parseLong(get(options, "warmup", "60000"));
+    long drain = Long.parseLong(get(options, "drain", "120000"));
+    boolean verbose = Boolean.parseBoolean(get(options, "verbose", "false"));
+
+    if (!options.isEmpty()) {
+      throw new IllegalArgumentException("Unknown options " + options.keySet());
+    }
+
+    System.out.println("topology:                   " + topology);
+    System.out.println("links:                      " + linkModel);
+    System.out.println(
+        "traffic:                    "
+            + messageCount
+            + (directed ? " directed" : " broadcast")
+            + (emergency ? " emergency" : "")
+            + " messages, "
+            + config.relayMode.toString().toLowerCase(Locale.US)
+            + ", ttl "
+            + (emergency ? config.emergencyTtl : config.ttl));
+
+    MeshSimulator simulator = new MeshSimulator(topology, config, linkModel, seed);
+    simulator.setVerbose(verbose);
+    if (emergency) {
+      simulator.setPriority(MeshFrame.PRIORITY_EMERGENCY);
+    }
+    long start = System.nanoTime();
+    SimulationReport report = simulator.run(messageCount, interval, directed, warmup, drain);
+    System.out.print(report);
+    System.out.println(
+        "simulated in:               " + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+
+  /** Takes an option out of the map, so that any left over at the end are unknown. */
+  private static String get(Map<String, String> options, String name, String defaultValue) {
+    String value = options.remove(name);
+    return value != null ? value : defaultValue;
+  }
+}
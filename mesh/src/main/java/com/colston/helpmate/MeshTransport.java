@@ -0,0 +1,176 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.io.InputStream;
+import java.util.Collection;
+
+/**
+ * The radio, or whatever stands in for it: finds other nodes, connects to them and moves bytes and
+ * streams over the connections. The app uses Nearby Connections; {@link LoopbackTransport} and
+ * {@link TcpTransport} let the same code run on a plain JVM.
+ *
+ * <p>The calls follow Nearby Connections. One side advertises and the other discovers; the
+ * discoverer requests a connection, both sides are told about it through {@link
+ * Callback#onConnectionInitiated(String, String, boolean)}, and it's established once both have
+ * accepted it. Callbacks may arrive on any thread, but never on more than one at a time for the
+ * same transport. Implementations say which thread they use.
+ */
+public interface MeshTransport {
+  /** A payload is still being transferred. */
+  int TRANSFER_IN_PROGRESS = 3;
+
+  /** A payload has been transferred in full. */
+  int TRANSFER_SUCCESS = 1;
+
+  /** A payload could not be transferred. */
+  int TRANSFER_FAILURE = 2;
+
+  /** A payload was cancelled before it was transferred in full. */
+  int TRANSFER_CANCELED = 4;
+
+  /** What happens on the transport. */
+  interface Callback {
+    /** A node advertising the service we're discovering has been found. */
+    void onEndpointFound(String endpointId, String name);
+
+    /** A node we found earlier can't be reached any more. */
+    void onEndpointLost(String endpointId);
+
+    /**
+     * A connection has been requested, by us or by the other node. Either accept it with {@link
+     * #acceptConnection(String, ResultListener)} or reject it with {@link #rejectConnection(String,
+     * ResultListener)}.
+     *
+     * @param endpointId The other node.
+     * @param name The other node's name.
+     * @param incoming True if the other node asked to connect, false if we did.
+     */
+    void onConnectionInitiated(String endpointId, String name, boolean incoming);
+
+    /**
+     * A connection we were told about in {@link #onConnectionInitiated(String, String, boolean)}
+     * has been established, or has failed.
+     *
+     * @param endpointId The other node.
+     * @param connected True if the connection is now open.
+     * @param status Why it failed, for logging.
+     */
+    void onConnectionResult(String endpointId, boolean connected, String status);
+
+    /** An established connection has closed. Not called when we disconnect ourselves. */
+    void onDisconnected(String endpointId);
+
+    /** A node connected to us has sent us bytes. */
+    void onBytesReceived(String endpointId, long payloadId, byte[] bytes);
+
+    /**
+     * A node connected to us has started sending us a stream. Read it on a thread of your own; the
+     * stream ends when the sender's does.
+     */
+    void onStreamReceived(String endpointId, long payloadId, InputStream stream);
+
+    /**
+     * A payload sent to us, or by us, has made progress.
+     *
+     * @param endpointId The other node.
+     * @param payloadId The payload.
+     * @param status One of the {@code TRANSFER_*} constants.
+     * @param bytesTransferred The bytes transferred so far.
+     */
+    void onTransferUpdate(String endpointId, long payloadId, int status, long bytesTransferred);
+  }
+
+  /** Learns how a request to the transport went. */
+  interface ResultListener {
+    void onSuccess();
+
+    void onFailure(Exception e);
+  }
+
+  /** Sets where events go. Call it before anything else. */
+  void setCallback(Callback callback);
+
+  /**
+   * Makes us visible to nodes discovering the same service.
+   *
+   * @param name Our name, as the other nodes will see it.
+   * @param serviceId The service we offer.
+   * @param listener Learns if advertising started, or null.
+   */
+  void startAdvertising(String name, String serviceId, @Nullable ResultListener listener);
+
+  void stopAdvertising();
+
+  /**
+   * Starts looking for nodes advertising a service. They're reported to {@link
+   * Callback#onEndpointFound(String, String)}.
+   *
+   * @param serviceId The service to look for.
+   * @param listener Learns if discovery started, or null.
+   */
+  void startDiscovery(String serviceId, @Nullable ResultListener listener);
+
+  void stopDiscovery();
+
+  /**
+   * Asks a node we've found to connect.
+   *
+   * @param name Our name, as the other node will see it.
+   * @param endpointId The node to connect to.
+   * @param listener Learns if the request was sent, or null. The outcome goes to {@link
+   *     Callback#onConnectionResult(String, boolean, String)}.
+   */
+  void requestConnection(String name, String endpointId, @Nullable ResultListener listener);
+
+  void acceptConnection(String endpointId, @Nullable ResultListener listener);
+
+  void rejectConnection(String endpointId, @Nullable ResultListener listener);
+
+  /**
+   * Closes a connection. The other node is told through {@link Callback#onDisconnected(String)}.
+   */
+  void disconnectFromEndpoint(String endpointId);
+
+  /** Stops advertising and discovery and closes every connection. */
+  void stopAllEndpoints();
+
+  /**
+   * Sends bytes to some of the nodes we're connected to.
+   *
+   * @param endpointIds The nodes to send to.
+   * @param bytes The bytes. Don't change them after the call.
+   * @param listener Learns if the bytes were queued, or null. Their delivery is reported to {@link
+   *     Callback#onTransferUpdate(String, long, int, long)}.
+   * @return The payload's id.
+   */
+  long sendBytes(Collection<String> endpointIds, byte[] bytes, @Nullable ResultListener listener);
+
+  /**
+   * Sends a stream to some of the nodes we're connected to. The transport reads it until it ends,
+   * then closes it.
+   *
+   * @param endpointIds The nodes to send to.
+   * @param stream The stream.
+   * @param listener Learns if the stream was queued, or null.
+   * @return The payload's id.
+   */
+  long sendStream(
+      Collection<String> endpointIds, InputStream stream, @Nullable ResultListener listener);
+}
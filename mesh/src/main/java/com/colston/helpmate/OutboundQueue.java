@@ -0,0 +1,240 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds back payloads bound for an endpoint until the ones before them are through. Nearby
+ * Connections takes every payload we hand it right away, so a slow neighbor quietly builds a
+ * backlog that delays everything sent to it, ACKs included. Here each endpoint gets at most {@code
+ * window} payloads in flight; the rest wait in a queue of at most {@code capacity} payloads, and
+ * once that's full the {@link OverflowPolicy} decides which payload gives way.
+ *
+ * <p>Every payload belongs to a {@link MeshFrame#PRIORITY_BULK priority class}, and the queue is
+ * strict about them: a payload is only sent when no payload of a higher class is waiting for the
+ * same endpoint. A full queue makes room for a payload by dropping the oldest waiting payload of a
+ * lower class, lowest first, so a chat backlog never holds up a call for help. Only among payloads
+ * of the same class does the policy decide.
+ *
+ * <p>A payload stops being in flight when the owner passes its transfer result to {@link
+ * #onTransferFinished(String, long, SendListener)}, or when it has gone {@code timeout}
+ * milliseconds without one.
+ */
+public class OutboundQueue {
+  /** What to do with a payload for an endpoint whose queue is full of payloads of its class. */
+  public enum OverflowPolicy {
+    /** Drop the payload that has waited longest to make room. Newer mesh frames are worth more. */
+    DROP_OLDEST,
+    /** Refuse the new payload. */
+    REJECT_NEWEST
+  }
+
+  /** Hands payloads to the transport. */
+  public interface SendListener {
+    /**
+     * Sends a payload to one endpoint.
+     *
+     * @return The id of the payload, which its transfer updates will carry.
+     */
+    long onSend(String endpointId, byte[] payload);
+  }
+
+  private final Clock mClock;
+  private final int mCapacity;
+  private final int mWindow;
+  private final long mTimeout;
+  private final OverflowPolicy mPolicy;
+  private final Map<String, Link> mLinks = new HashMap<>();
+  private long mDropped;
+
+  /**
+   * @param clock The clock in-flight timeouts are measured against.
+   * @param capacity The most payloads waiting for each endpoint.
+   * @param window The most payloads in flight to each endpoint.
+   * @param timeout How long a payload counts as in flight without a transfer result, in
+   *     milliseconds.
+   * @param policy What to do when an endpoint's queue is full.
+   */
+  public OutboundQueue(Clock clock, int capacity, int window, long timeout, OverflowPolicy policy) {
+    mClock = clock;
+    mCapacity = capacity;
+    mWindow = window;
+    mTimeout = timeout;
+    mPolicy = policy;
+  }
+
+  /**
+   * Sends a payload to an endpoint if its window has room, or queues it until it does.
+   *
+   * @param endpointId The endpoint to send the payload to.
+   * @param payload The payload.
+   * @param priority The payload's priority class, eg. {@link MeshFrame#PRIORITY_EMERGENCY}.
+   * @param listener Sends the payload, now or later.
+   * @return {@code false} if the payload was refused because the endpoint's queue is full.
+   */
+  public boolean add(String endpointId, byte[] payload, int priority, SendListener listener) {
+    Link link = mLinks.get(endpointId);
+    if (link == null) {
+      link = new Link();
+      mLinks.put(endpointId, link);
+    }
+    if (link.inFlight.size() < mWindow && link.queued == 0) {
+      send(endpointId, link, payload, listener);
+      return true;
+    }
+    if (link.queued >= mCapacity) {
+      mDropped++;
+      int lowest = link.getLowestQueuedPriority();
+      if (lowest < 0
+          || lowest > priority
+          || (lowest == priority && mPolicy == OverflowPolicy.REJECT_NEWEST)) {
+        return false;
+      }
+      link.queues.get(lowest).poll();
+      link.queued--;
+    }
+    link.queues.get(priority).add(payload);
+    link.queued++;
+    return true;
+  }
+
+  /**
+   * Takes in the result of a transfer. If it was one of ours, it frees a place in the window for
+   * the next queued payload. Results for payloads we didn't send, such as ones we received, are
+   * ignored.
+   */
+  public void onTransferFinished(String endpointId, long payloadId, SendListener listener) {
+    Link link = mLinks.get(endpointId);
+    if (link != null && link.inFlight.remove(payloadId) != null) {
+      drain(endpointId, link, listener);
+    }
+  }
+
+  /** Returns the time the next in-flight payload times out, or -1 if nothing is in flight. */
+  public long getNextDeadline() {
+    long next = -1;
+    for (Link link : mLinks.values()) {
+      // Payloads time out in the order they were sent, so the first is the earliest.
+      Iterator<Long> deadlines = link.inFlight.values().iterator();
+      if (deadlines.hasNext()) {
+        long deadline = deadlines.next();
+        if (next < 0 || deadline < next) {
+          next = deadline;
+        }
+      }
+    }
+    return next;
+  }
+
+  /** Gives up on in-flight payloads that never got a transfer result, and sends what's queued. */
+  public void runDue(SendListener listener) {
+    long now = mClock.now();
+    for (Map.Entry<String, Link> entry : mLinks.entrySet()) {
+      Link link = entry.getValue();
+      Iterator<Long> deadlines = link.inFlight.values().iterator();
+      while (deadlines.hasNext() && deadlines.next() <= now) {
+        deadlines.remove();
+      }
+      drain(entry.getKey(), link, listener);
+    }
+  }
+
+  /** Returns the number of payloads waiting for an endpoint, not counting those in flight. */
+  public int getQueuedCount(String endpointId) {
+    Link link = mLinks.get(endpointId);
+    return link == null ? 0 : link.queued;
+  }
+
+  /** Returns the number of payloads sent to an endpoint that haven't finished yet. */
+  public int getInFlightCount(String endpointId) {
+    Link link = mLinks.get(endpointId);
+    return link == null ? 0 : link.inFlight.size();
+  }
+
+  /** Returns the number of payloads dropped or refused because a queue was full. */
+  public long getDroppedCount() {
+    return mDropped;
+  }
+
+  /** Drops whatever is waiting for an endpoint. Call this when the endpoint disconnects. */
+  public void remove(String endpointId) {
+    mLinks.remove(endpointId);
+  }
+
+  /** Drops every waiting payload. */
+  public void clear() {
+    mLinks.clear();
+  }
+
+  private void drain(String endpointId, Link link, SendListener listener) {
+    while (link.inFlight.size() < mWindow && link.queued > 0) {
+      send(endpointId, link, link.pollHighestPriority(), listener);
+    }
+  }
+
+  private void send(String endpointId, Link link, byte[] payload, SendListener listener) {
+    long payloadId = listener.onSend(endpointId, payload);
+    link.inFlight.put(payloadId, mClock.now() + mTimeout);
+  }
+
+  /** The payloads waiting for, and in flight to, one endpoint. */
+  private static class Link {
+    /** The payloads waiting, by priority class. */
+    final List<ArrayDeque<byte[]>> queues = new ArrayList<>();
+
+    /** The number of payloads waiting, in all classes. */
+    int queued;
+
+    /** Payload ids, with the time we give up on them, in the order they were sent. */
+    final LinkedHashMap<Long, Long> inFlight = new LinkedHashMap<>();
+
+    Link() {
+      for (int i = 0; i < MeshFrame.PRIORITY_COUNT; i++) {
+        queues.add(new ArrayDeque<byte[]>());
+      }
+    }
+
+    /** Returns the lowest class with a payload waiting, or -1 if nothing is waiting. */
+    int getLowestQueuedPriority() {
+      for (int i = 0; i < queues.size(); i++) {
+        if (!queues.get(i).isEmpty()) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /** Takes the oldest payload of the highest class with one waiting. */
+    byte[] pollHighestPriority() {
+      for (int i = queues.size() - 1; i >= 0; i--) {
+        if (!queues.get(i).isEmpty()) {
+          queued--;
+          return queues.get(i).poll();
+        }
+      }
+      throw new IllegalStateException("Nothing queued");
+    }
+  }
+}
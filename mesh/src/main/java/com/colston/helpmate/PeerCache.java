@@ -0,0 +1,276 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the peers we've been linked to: when we last saw them, how well the link did, and how
+ * often connecting to them worked. Saved with {@link #writeTo(OutputStream)} when the app stops, it
+ * lets a restarted node go after the peers it's likely to find, and that are likely to work, first.
+ *
+ * <p>Peers are keyed by name, since endpoint ids change each time a peer is discovered. The cache
+ * holds at most {@code capacity} peers; when it's full the one seen longest ago makes room. Peers
+ * not seen within the lifetime are dropped. Times are measured against the injected {@link Clock},
+ * which should be a wall clock since they're saved as they are.
+ */
+public class PeerCache {
+  /** Identifies the file format written by {@link #writeTo(OutputStream)}. */
+  private static final int FILE_VERSION = 1;
+
+  /** The longest name we read back, in characters, so a corrupt file can't exhaust memory. */
+  private static final int MAX_NAME_LENGTH = 64;
+
+  private final Clock mClock;
+  private final int mCapacity;
+  private final long mLifetime;
+  private final double mGain;
+
+  /** Peers keyed by name, seen longest ago first. */
+  private final Map<String, Peer> mPeers = new LinkedHashMap<>();
+
+  /**
+   * @param clock The clock last seen times are measured against.
+   * @param capacity The most peers held.
+   * @param lifetime How long a peer is kept after we last saw it, in milliseconds.
+   * @param gain The weight of the latest connection attempt in the success rate.
+   */
+  public PeerCache(Clock clock, int capacity, long lifetime, double gain) {
+    mClock = clock;
+    mCapacity = capacity;
+    mLifetime = lifetime;
+    mGain = gain;
+  }
+
+  /** We've discovered or heard from a peer. */
+  public void onSeen(String name) {
+    getOrCreate(name);
+  }
+
+  /** Connecting to a peer worked. */
+  public void onConnected(String name) {
+    Peer peer = getOrCreate(name);
+    peer.successRate += mGain * (1 - peer.successRate);
+  }
+
+  /** Connecting to a peer failed. */
+  public void onConnectionFailed(String name) {
+    Peer peer = getOrCreate(name);
+    peer.successRate -= mGain * peer.successRate;
+  }
+
+  /** Takes in the latest measurement of the link to a peer we're linked to. */
+  public void setLinkQuality(String name, LinkQuality quality) {
+    Peer peer = getOrCreate(name);
+    peer.rtt = quality.getRtt();
+    peer.bandwidth = quality.getBandwidth();
+    peer.lossRate = quality.getLossRate();
+  }
+
+  /** Returns {@code true} if we know a peer. */
+  public boolean contains(String name) {
+    purgeExpired();
+    return mPeers.containsKey(name);
+  }
+
+  /** Returns the last measured quality of the link to a peer, or null if there's none. */
+  @Nullable public LinkQuality getLinkQuality(String name) {
+    Peer peer = mPeers.get(name);
+    return peer != null && peer.lossRate >= 0
+        ? new LinkQuality(peer.rtt, peer.bandwidth, peer.lossRate)
+        : null;
+  }
+
+  /**
+   * Returns how promising a connection attempt to a peer looks, from 0 for a peer we don't know to
+   * 1 for one we've just seen, that always connected and whose link lost nothing. Peers seen longer
+   * ago count for less.
+   */
+  public double getScore(String name) {
+    Peer peer = mPeers.get(name);
+    if (peer == null) {
+      return 0;
+    }
+    long age = mClock.now() - peer.lastSeen;
+    if (age >= mLifetime) {
+      return 0;
+    }
+    double recency = 1 - (double) Math.max(0, age) / mLifetime;
+    double delivery = peer.lossRate >= 0 ? 1 - peer.lossRate : 1;
+    return peer.successRate * delivery * recency;
+  }
+
+  /**
+   * Returns the peers we've seen within the given time, most promising first.
+   *
+   * @param maxAge How long ago we may last have seen them, in milliseconds.
+   */
+  public List<String> getRecentPeers(long maxAge) {
+    purgeExpired();
+    long now = mClock.now();
+    List<String> names = new ArrayList<>();
+    for (Peer peer : mPeers.values()) {
+      if (now - peer.lastSeen <= maxAge) {
+        names.add(peer.name);
+      }
+    }
+    Collections.sort(
+        names,
+        new Comparator<String>() {
+          @Override
+          public int compare(String a, String b) {
+            return Double.compare(getScore(b), getScore(a));
+          }
+        });
+    return names;
+  }
+
+  /**
+   * Drops the peers not seen within the lifetime.
+   *
+   * @return The number of peers dropped.
+   */
+  public int purgeExpired() {
+    long now = mClock.now();
+    int purged = 0;
+    Iterator<Peer> iterator = mPeers.values().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next().lastSeen >= mLifetime) {
+        iterator.remove();
+        purged++;
+      }
+    }
+    return purged;
+  }
+
+  public int size() {
+    return mPeers.size();
+  }
+
+  public void clear() {
+    mPeers.clear();
+  }
+
+  /** Saves the peers. The stream is not closed. */
+  public void writeTo(OutputStream outputStream) throws IOException {
+    purgeExpired();
+    DataOutputStream out = new DataOutputStream(outputStream);
+    out.writeInt(FILE_VERSION);
+    out.writeInt(mPeers.size());
+    for (Peer peer : mPeers.values()) {
+      out.writeUTF(peer.name);
+      out.writeLong(peer.lastSeen);
+      out.writeDouble(peer.successRate);
+      out.writeDouble(peer.rtt);
+      out.writeDouble(peer.bandwidth);
+      out.writeDouble(peer.lossRate);
+    }
+    out.flush();
+  }
+
+  /**
+   * Adds the peers saved by {@link #writeTo(OutputStream)}, keeping what we know already about the
+   * same peers if it's newer. Peers that expired in the meantime are skipped. The stream is not
+   * closed.
+   */
+  public void readFrom(InputStream inputStream) throws IOException {
+    DataInputStream in = new DataInputStream(inputStream);
+    int version = in.readInt();
+    if (version != FILE_VERSION) {
+      throw new IOException("Unknown peer cache file version " + version);
+    }
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Corrupt peer cache of " + count + " peers");
+    }
+    List<Peer> peers = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String name = in.readUTF();
+      if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+        throw new IOException("Corrupt peer cache entry named \"" + name + "\"");
+      }
+      Peer peer = new Peer(name, in.readLong());
+      peer.successRate = in.readDouble();
+      peer.rtt = in.readDouble();
+      peer.bandwidth = in.readDouble();
+      peer.lossRate = in.readDouble();
+      peers.add(peer);
+    }
+    // Saved oldest first, so the order of the cache is kept.
+    for (Peer peer : peers) {
+      Peer known = mPeers.get(peer.name);
+      if (known == null || known.lastSeen < peer.lastSeen) {
+        mPeers.remove(peer.name);
+        add(peer);
+      }
+    }
+    purgeExpired();
+  }
+
+  /** Returns a peer, marked as seen just now. */
+  private Peer getOrCreate(String name) {
+    Peer peer = mPeers.remove(name);
+    if (peer == null) {
+      peer = new Peer(name, 0);
+    }
+    peer.lastSeen = mClock.now();
+    add(peer);
+    return peer;
+  }
+
+  /** Adds a peer as the one seen most recently, making room if the cache is full. */
+  private void add(Peer peer) {
+    Iterator<Peer> oldest = mPeers.values().iterator();
+    while (mPeers.size() >= mCapacity && oldest.hasNext()) {
+      oldest.next();
+      oldest.remove();
+    }
+    mPeers.put(peer.name, peer);
+  }
+
+  private static class Peer {
+    final String name;
+    long lastSeen;
+
+    /** The smoothed fraction of connection attempts that worked. New peers start at a half. */
+    double successRate = 0.5;
+
+    /** The last link quality figures we measured, or -1 if we never did. */
+    double rtt = -1;
+
+    double bandwidth = -1;
+    double lossRate = -1;
+
+    Peer(String name, long lastSeen) {
+      this.name = name;
+      this.lastSeen = lastSeen;
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides when to try connecting to a peer again after a connection attempt failed or a link
+ * dropped. Every failure in a row doubles the wait, up to a limit, and a random share of the wait
+ * is added so that phones that lost each other at the same moment don't retry in lockstep. A peer
+ * that fails {@code maxAttempts} times in a row is blacklisted for a while, so we stop spending
+ * radio time on it; once the blacklist expires it gets a fresh budget.
+ *
+ * <p>Peers are keyed by name rather than endpoint id, since the id of a peer can change each time
+ * it's discovered.
+ */
+public class ReconnectScheduler {
+  /** Acts on retries that have come due. */
+  public interface Listener {
+    /**
+     * It's time to try connecting to a peer again. Report the outcome with {@link
+     * #onConnected(String)} or {@link #onConnectionFailed(String)}.
+     *
+     * @param peer The peer's name.
+     * @param attempt The number of attempts that have failed in a row, starting at 1.
+     */
+    void onRetry(String peer, int attempt);
+  }
+
+  private final Clock mClock;
+  private final Random mRandom;
+  private final long mInitialDelay;
+  private final long mMaxDelay;
+  private final double mJitter;
+  private final int mMaxAttempts;
+  private final long mBlacklistDuration;
+  private final Map<String, Peer> mPeers = new HashMap<>();
+
+  /**
+   * @param clock The clock delays are measured against.
+   * @param random The source of jitter.
+   * @param initialDelay The wait before the first retry, in milliseconds.
+   * @param maxDelay The longest wait between retries, in milliseconds.
+   * @param jitter The most random share of a wait added to it, eg. 0.5 for up to half again.
+   * @param maxAttempts The failures in a row that get a peer blacklisted.
+   * @param blacklistDuration How long a blacklisted peer is left alone, in milliseconds.
+   */
+  public ReconnectScheduler(
+      Clock clock,
+      Random random,
+      long initialDelay,
+      long maxDelay,
+      double jitter,
+      int maxAttempts,
+      long blacklistDuration) {
+    mClock = clock;
+    mRandom = random;
+    mInitialDelay = initialDelay;
+    mMaxDelay = maxDelay;
+    mJitter = jitter;
+    mMaxAttempts = maxAttempts;
+    mBlacklistDuration = blacklistDuration;
+  }
+
+  /**
+   * An attempt to connect to a peer failed. Schedules the next retry, or blacklists the peer if it
+   * has used up its attempts.
+   */
+  public void onConnectionFailed(String peer) {
+    Peer state = getOrCreate(peer);
+    long now = mClock.now();
+    if (state.blacklistedUntil > now) {
+      return;
+    }
+    state.failures++;
+    if (state.failures >= mMaxAttempts) {
+      state.blacklistedUntil = now + mBlacklistDuration;
+      state.retryAt = -1;
+      return;
+    }
+    state.retryAt =
+        now
+            + withJitter(
+                TaskScheduler.getBackoffDelay(mInitialDelay, mMaxDelay, state.failures - 1));
+  }
+
+  /** We're connected to a peer. Its failures are forgotten. */
+  public void onConnected(String peer) {
+    mPeers.remove(peer);
+  }
+
+  /**
+   * The link to a peer dropped. Schedules an attempt to get it back, unless the peer is
+   * blacklisted.
+   */
+  public void onDisconnected(String peer) {
+    Peer state = getOrCreate(peer);
+    if (state.blacklistedUntil <= mClock.now() && state.retryAt < 0) {
+      state.retryAt = mClock.now() + withJitter(mInitialDelay);
+    }
+  }
+
+  /**
+   * A retry came due while we couldn't act on it, eg. because another connection request was in
+   * progress. Tries again after the initial delay, without counting it as a failure.
+   */
+  public void defer(String peer) {
+    Peer state = mPeers.get(peer);
+    if (state != null && state.blacklistedUntil <= mClock.now()) {
+      state.retryAt = mClock.now() + withJitter(mInitialDelay);
+    }
+  }
+
+  /** Returns {@code true} if we've given up on a peer for now. */
+  public boolean isBlacklisted(String peer) {
+    Peer state = mPeers.get(peer);
+    return state != null && state.blacklistedUntil > mClock.now();
+  }
+
+  /**
+   * Returns {@code true} if a retry for a peer is scheduled. Other attempts to connect to the peer
+   * should wait for it, so the backoff isn't undone.
+   */
+  public boolean isWaiting(String peer) {
+    Peer state = mPeers.get(peer);
+    return state != null && state.retryAt >= 0;
+  }
+
+  /** Returns the number of attempts to connect to a peer that have failed in a row. */
+  public int getFailures(String peer) {
+    Peer state = mPeers.get(peer);
+    return state == null ? 0 : state.failures;
+  }
+
+  /** Returns the time the next retry is due, or -1 if none is scheduled. */
+  public long getNextDeadline() {
+    long next = -1;
+    for (Peer state : mPeers.values()) {
+      if (state.retryAt >= 0 && (next < 0 || state.retryAt < next)) {
+        next = state.retryAt;
+      }
+    }
+    return next;
+  }
+
+  /** Hands the retries that have come due to the listener, and forgets expired blacklistings. */
+  public void runDue(Listener listener) {
+    long now = mClock.now();
+    List<String> due = new ArrayList<>();
+    for (Map.Entry<String, Peer> entry : new ArrayList<>(mPeers.entrySet())) {
+      Peer state = entry.getValue();
+      if (state.blacklistedUntil >= 0 && state.blacklistedUntil <= now) {
+        // The blacklisting is over; the peer starts with a clean slate.
+        mPeers.remove(entry.getKey());
+      } else if (state.retryAt >= 0 && state.retryAt <= now) {
+        state.retryAt = -1;
+        due.add(entry.getKey());
+      }
+    }
+    for (String peer : due) {
+      Peer state = mPeers.get(peer);
+      listener.onRetry(peer, state != null ? Math.max(1, state.failures) : 1);
+    }
+  }
+
+  /** Stops retrying a peer, eg. because it has gone out of range. Its blacklisting stays. */
+  public void cancel(String peer) {
+    Peer state = mPeers.get(peer);
+    if (state != null) {
+      state.retryAt = -1;
+    }
+  }
+
+  /** Forgets every peer, blacklisted or not. */
+  public void clear() {
+    mPeers.clear();
+  }
+
+  private Peer getOrCreate(String peer) {
+    Peer state = mPeers.get(peer);
+    if (state != null && state.blacklistedUntil >= 0 && state.blacklistedUntil <= mClock.now()) {
+      // The blacklisting is over; the peer starts with a clean slate.
+      state = null;
+    }
+    if (state == null) {
+      state = new Peer();
+      mPeers.put(peer, state);
+    }
+    return state;
+  }
+
+  private long withJitter(long delay) {
+    return delay + (long) (mRandom.nextDouble() * mJitter * delay);
+  }
+
+  /** What we know about connecting to one peer. */
+  private static class Peer {
+    int failures;
+    long retryAt = -1;
+    long blacklistedUntil = -1;
+  }
+}
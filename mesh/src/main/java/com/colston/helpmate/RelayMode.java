@@ -0,0 +1,30 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+/** How a node decides whether to pass on a broadcast it has received. */
+public enum RelayMode {
+  /** Every node forwards every new broadcast until its hop budget runs out. */
+  FLOODING,
+
+  /**
+   * Every node forwards a new broadcast with a probability that shrinks as the neighborhood gets
+   * denser and as more copies of the broadcast are heard. See {@link GossipPolicy}.
+   */
+  GOSSIP
+}
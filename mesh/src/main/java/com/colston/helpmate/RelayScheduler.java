@@ -0,0 +1,167 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Holds back flooded frames for a short random delay before they're forwarded, and cancels the
+ * forward if enough duplicate copies are heard in the meantime. This is the counter-based scheme
+ * for reducing broadcast storms: if several neighbors have already rebroadcast a frame, the area
+ * around us is covered and another copy only adds to the collisions.
+ *
+ * <p>Behavior depends only on the injected {@link Clock} and {@link Random}, so a run can be
+ * repeated exactly.
+ *
+ * @param <T> The item to forward, eg. the frame and where it came from.
+ */
+public class RelayScheduler<T> {
+  /** Receives the forwards that survived their waiting period. */
+  public interface Listener<T> {
+    void onForward(long key, T item);
+  }
+
+  private final Clock mClock;
+  private final Random mRandom;
+  private final long mMinDelay;
+  private final long mMaxDelay;
+  private final int mDuplicateThreshold;
+
+  private final Map<Long, Pending<T>> mPending = new HashMap<>();
+  private final PriorityQueue<Pending<T>> mQueue = new PriorityQueue<>();
+
+  /**
+   * @param clock The clock deadlines are measured against.
+   * @param random The source of the random delays.
+   * @param minDelay The shortest delay before a forward, in milliseconds.
+   * @param maxDelay The longest delay before a forward, in milliseconds.
+   * @param duplicateThreshold The number of duplicates that cancels a pending forward.
+   */
+  public RelayScheduler(
+      Clock clock, Random random, long minDelay, long maxDelay, int duplicateThreshold) {
+    if (minDelay < 0 || maxDelay < minDelay) {
+      throw new IllegalArgumentException("Invalid delay range " + minDelay + ".." + maxDelay);
+    }
+    mClock = clock;
+    mRandom = random;
+    mMinDelay = minDelay;
+    mMaxDelay = maxDelay;
+    mDuplicateThreshold = duplicateThreshold;
+  }
+
+  /**
+   * Schedules a forward after a random delay. Does nothing if a forward for the key is already
+   * pending.
+   *
+   * @return {@code true} if the forward was scheduled.
+   */
+  public boolean schedule(long key, T item) {
+    if (mPending.containsKey(key)) {
+      return false;
+    }
+    long jitter = mMinDelay;
+    if (mMaxDelay > mMinDelay) {
+      jitter += (long) (mRandom.nextDouble() * (mMaxDelay - mMinDelay + 1));
+    }
+    Pending<T> pending = new Pending<>(key, item, mClock.now() + jitter);
+    mPending.put(key, pending);
+    mQueue.add(pending);
+    return true;
+  }
+
+  /**
+   * Records a duplicate copy of a frame with a pending forward.
+   *
+   * @return {@code true} if this copy reached the threshold and the forward was cancelled.
+   */
+  public boolean onDuplicate(long key) {
+    Pending<T> pending = mPending.get(key);
+    if (pending == null) {
+      return false;
+    }
+    pending.duplicates++;
+    if (pending.duplicates < mDuplicateThreshold) {
+      return false;
+    }
+    cancel(key);
+    return true;
+  }
+
+  /** Drops a pending forward. */
+  public void cancel(long key) {
+    Pending<T> pending = mPending.remove(key);
+    if (pending != null) {
+      mQueue.remove(pending);
+    }
+  }
+
+  /** Returns the time the next pending forward is due, or -1 if nothing is pending. */
+  public long getNextDeadline() {
+    Pending<T> next = mQueue.peek();
+    return next != null ? next.deadline : -1;
+  }
+
+  /**
+   * Hands every forward whose delay has passed to the listener.
+   *
+   * @return The number of forwards handed over.
+   */
+  public int runDue(Listener<T> listener) {
+    long now = mClock.now();
+    int count = 0;
+    while (!mQueue.isEmpty() && mQueue.peek().deadline <= now) {
+      Pending<T> pending = mQueue.poll();
+      mPending.remove(pending.key);
+      listener.onForward(pending.key, pending.item);
+      count++;
+    }
+    return count;
+  }
+
+  /** Returns the number of forwards waiting for their delay to pass. */
+  public int getPendingCount() {
+    return mPending.size();
+  }
+
+  /** Drops every pending forward. */
+  public void clear() {
+    mPending.clear();
+    mQueue.clear();
+  }
+
+  private static class Pending<T> implements Comparable<Pending<T>> {
+    final long key;
+    final T item;
+    final long deadline;
+    int duplicates;
+
+    Pending(long key, T item, long deadline) {
+      this.key = key;
+      this.item = item;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public int compareTo(Pending<T> other) {
+      return Long.compare(deadline, other.deadline);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps track of the directed messages we've sent that haven't been acknowledged yet, and decides
+ * when to retransmit them.
+ *
+ * <p>The timeout adapts to the round trip times measured per destination with an {@link
+ * RttEstimator}, and doubles with every retransmission of a message. Following Karn's algorithm,
+ * only acknowledgements of first transmissions are used as samples, since it's ambiguous which
+ * transmission an acknowledgement of a retransmitted message answers.
+ */
+public class RetransmissionTracker {
+  /** Acts on messages whose timeout has passed. */
+  public interface Listener {
+    /**
+     * A message should be sent again.
+     *
+     * @param messageId The message's id.
+     * @param frame The frame as it was first sent.
+     * @param attempt The retransmission count, starting at 1.
+     */
+    void onRetransmit(int messageId, byte[] frame, int attempt);
+
+    /** A message has used up its attempts without being acknowledged. */
+    void onGiveUp(int messageId, byte[] frame);
+  }
+
+  private final Clock mClock;
+  private final int mMaxAttempts;
+  private final long mInitialTimeout;
+  private final long mMinTimeout;
+  private final long mMaxTimeout;
+
+  private final Map<Integer, Pending> mPending = new HashMap<>();
+  private final Map<Long, RttEstimator> mEstimators = new HashMap<>();
+
+  /**
+   * @param clock The clock timeouts are measured against.
+   * @param maxAttempts The number of transmissions, the first one included, before giving up.
+   * @param initialTimeout The timeout for destinations we have no RTT samples for yet.
+   * @param minTimeout The lower bound of the timeout, in milliseconds.
+   * @param maxTimeout The upper bound of the timeout, in milliseconds.
+   */
+  public RetransmissionTracker(
+      Clock clock, int maxAttempts, long initialTimeout, long minTimeout, long maxTimeout) {
+    mClock = clock;
+    mMaxAttempts = maxAttempts;
+    mInitialTimeout = initialTimeout;
+    mMinTimeout = minTimeout;
+    mMaxTimeout = maxTimeout;
+  }
+
+  /** Starts waiting for the acknowledgement of a message we've just sent for the first time. */
+  public void track(int messageId, byte[] frame) {
+    long destinationKey = MeshFrame.getDestinationKey(frame, 0);
+    long now = mClock.now();
+    Pending pending = new Pending(frame, destinationKey, now);
+    pending.deadline = now + getEstimator(destinationKey).getTimeout();
+    mPending.put(messageId, pending);
+  }
+
+  /**
+   * Records the acknowledgement of a message.
+   *
+   * @return The time since the message was first sent in milliseconds, or -1 if we weren't waiting
+   *     for this acknowledgement.
+   */
+  public long onAck(int messageId) {
+    Pending pending = mPending.remove(messageId);
+    if (pending == null) {
+      return -1;
+    }
+    long rtt = mClock.now() - pending.firstSentAt;
+    if (pending.attempts == 1) {
+      getEstimator(pending.destinationKey).addSample(rtt);
+    }
+    return rtt;
+  }
+
+  /** Returns the time the next timeout passes, or -1 if nothing is pending. */
+  public long getNextDeadline() {
+    long next = -1;
+    for (Pending pending : mPending.values()) {
+      if (next < 0 || pending.deadline < next) {
+        next = pending.deadline;
+      }
+    }
+    return next;
+  }
+
+  /** Retransmits, or gives up on, every message whose timeout has passed. */
+  public void runDue(Listener listener) {
+    long now = mClock.now();
+    Iterator<Map.Entry<Integer, Pending>> iterator = mPending.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Integer, Pending> entry = iterator.next();
+      Pending pending = entry.getValue();
+      if (pending.deadline > now) {
+        continue;
+      }
+      if (pending.attempts >= mMaxAttempts) {
+        iterator.remove();
+        listener.onGiveUp(entry.getKey(), pending.frame);
+        continue;
+      }
+      long timeout = getEstimator(pending.destinationKey).getTimeout() << pending.attempts;
+      pending.deadline = now + Math.min(mMaxTimeout, timeout);
+      listener.onRetransmit(entry.getKey(), pending.frame, pending.attempts);
+      pending.attempts++;
+    }
+  }
+
+  /** Returns the RTT estimate for a destination. */
+  public RttEstimator getEstimator(long destinationKey) {
+    RttEstimator estimator = mEstimators.get(destinationKey);
+    if (estimator == null) {
+      estimator = new RttEstimator(mInitialTimeout, mMinTimeout, mMaxTimeout);
+      mEstimators.put(destinationKey, estimator);
+    }
+    return estimator;
+  }
+
+  /** Stops waiting for every message. RTT estimates are kept. */
+  public void clear() {
+    mPending.clear();
+  }
+
+  private static class Pending {
+    final byte[] frame;
+    final long destinationKey;
+    final long firstSentAt;
+    int attempts = 1;
+    long deadline;
+
+    Pending(byte[] frame, long destinationKey, long firstSentAt) {
+      this.frame = frame;
+      this.destinationKey = destinationKey;
+      this.firstSentAt = firstSentAt;
+    }
+  }
+}
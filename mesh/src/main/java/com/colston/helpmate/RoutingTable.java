@@ -0,0 +1,118 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A distance-vector style table of the best known next hop towards each node in the mesh.
+ *
+ * <p>Routes are learned backwards from observed traffic: a frame from node X that arrives through
+ * endpoint E after travelling n hops tells us that X can be reached through E in n + 1 hops. Routes
+ * that aren't refreshed within the timeout are ignored, so directed traffic falls back to flooding
+ * once the mesh has moved on.
+ *
+ * <p>Nodes are keyed by {@link MeshFrame#getSourceKey(byte[], int)} so that lookups on the relay
+ * path don't have to decode node names.
+ */
+public class RoutingTable {
+  private final long mTimeoutMillis;
+  private final Map<Long, Route> mRoutes = new HashMap<>();
+
+  /**
+   * @param timeoutMillis How long a route stays valid after it was last confirmed.
+   */
+  public RoutingTable(long timeoutMillis) {
+    mTimeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Records that a node can be reached through a neighbor.
+   *
+   * @param nodeKey The node's address key.
+   * @param nextHop The endpoint id of the neighbor the node is reachable through.
+   * @param hops The distance to the node through that neighbor.
+   * @param now The current time in milliseconds.
+   */
+  public void update(long nodeKey, String nextHop, int hops, long now) {
+    Route route = mRoutes.get(nodeKey);
+    if (route == null) {
+      mRoutes.put(nodeKey, new Route(nextHop, hops, now));
+      return;
+    }
+    // Take the new route if it's shorter, if the old one went stale, or if it's news about the
+    // route we already use.
+    if (hops < route.hops || isExpired(route, now) || nextHop.equals(route.nextHop)) {
+      route.nextHop = nextHop;
+      route.hops = hops;
+      route.updatedAt = now;
+    }
+  }
+
+  /**
+   * Returns the endpoint id of the neighbor to send a frame for the node through, or null if we
+   * don't know a route to it.
+   */
+  @Nullable public String getNextHop(long nodeKey, long now) {
+    Route route = mRoutes.get(nodeKey);
+    if (route == null || isExpired(route, now)) {
+      return null;
+    }
+    return route.nextHop;
+  }
+
+  /** Forgets every route through a neighbor. Call this when the neighbor disconnects. */
+  public void removeNextHop(String nextHop) {
+    Iterator<Route> iterator = mRoutes.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().nextHop.equals(nextHop)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /** Forgets every route. */
+  public void clear() {
+    mRoutes.clear();
+  }
+
+  /** Returns the number of routes, including stale ones that haven't been removed yet. */
+  public int size() {
+    return mRoutes.size();
+  }
+
+  private boolean isExpired(Route route, long now) {
+    return now - route.updatedAt > mTimeoutMillis;
+  }
+
+  /** The best known way to reach a node. */
+  private static class Route {
+    String nextHop;
+    int hops;
+    long updatedAt;
+
+    Route(String nextHop, int hops, long updatedAt) {
+      this.nextHop = nextHop;
+      this.hops = hops;
+      this.updatedAt = updatedAt;
+    }
+  }
+}
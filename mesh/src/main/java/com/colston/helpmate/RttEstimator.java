@@ -0,0 +1,75 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+/**
+ * Estimates a round trip time and a retransmission timeout from RTT samples, following the smoothed
+ * mean and variance scheme of RFC 6298.
+ */
+public class RttEstimator {
+  private static final double ALPHA = 1.0 / 8;
+  private static final double BETA = 1.0 / 4;
+
+  private final long mInitialTimeout;
+  private final long mMinTimeout;
+  private final long mMaxTimeout;
+
+  private double mSmoothedRtt = -1;
+  private double mRttVariance;
+
+  /**
+   * @param initialTimeout The timeout to use before the first sample, in milliseconds.
+   * @param minTimeout The lower bound of the timeout, in milliseconds.
+   * @param maxTimeout The upper bound of the timeout, in milliseconds.
+   */
+  public RttEstimator(long initialTimeout, long minTimeout, long maxTimeout) {
+    mInitialTimeout = initialTimeout;
+    mMinTimeout = minTimeout;
+    mMaxTimeout = maxTimeout;
+  }
+
+  /** Adds a round trip time measurement, in milliseconds. */
+  public void addSample(long rtt) {
+    if (mSmoothedRtt < 0) {
+      mSmoothedRtt = rtt;
+      mRttVariance = rtt / 2.0;
+    } else {
+      mRttVariance = (1 - BETA) * mRttVariance + BETA * Math.abs(mSmoothedRtt - rtt);
+      mSmoothedRtt = (1 - ALPHA) * mSmoothedRtt + ALPHA * rtt;
+    }
+  }
+
+  /** Returns {@code true} once at least one sample has been added. */
+  public boolean hasSamples() {
+    return mSmoothedRtt >= 0;
+  }
+
+  /** Returns the smoothed round trip time in milliseconds, or -1 if there are no samples yet. */
+  public long getSmoothedRtt() {
+    return Math.round(mSmoothedRtt);
+  }
+
+  /** Returns how long to wait for a reply before assuming it was lost, in milliseconds. */
+  public long getTimeout() {
+    if (!hasSamples()) {
+      return mInitialTimeout;
+    }
+    long timeout = Math.round(mSmoothedRtt + 4 * mRttVariance);
+    return Math.max(mMinTimeout, Math.min(mMaxTimeout, timeout));
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+/**
+ * Decides how much of the time a node spends scanning for other nodes. Scanning costs battery and
+ * takes radio time from the links we already have, so a node should only scan hard when it needs
+ * to. See {@link ScanScheduler}, and {@link AdaptiveScanPolicy} for the one we use.
+ */
+public interface ScanPolicy {
+  /**
+   * Returns how long to scan for once a scan starts, in milliseconds.
+   *
+   * @param degree The number of neighbors we're linked to.
+   */
+  long getScanDuration(int degree);
+
+  /**
+   * Returns how long to rest after a scan, in milliseconds, or 0 to keep scanning.
+   *
+   * @param degree The number of neighbors we're linked to.
+   * @param quietScans The number of scans in a row our neighbors didn't change in.
+   * @param sinceLastLoss How long ago we last lost a neighbor, in milliseconds, or {@link
+   *     Long#MAX_VALUE} if we haven't.
+   */
+  long getIdleDuration(int degree, int quietScans, long sinceLastLoss);
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+/**
+ * Turns scanning for other nodes on and off, following a {@link ScanPolicy}. The scheduler only
+ * decides when; what a scan is, eg. Nearby Connections discovery, is up to its {@link Listener}.
+ *
+ * <p>Our neighbors changing is what the policy reacts to, so it's asked again whenever they do: a
+ * rest that the policy now wants shorter ends early.
+ */
+public class ScanScheduler {
+  /** Starts and stops the scans. */
+  public interface Listener {
+    void onScanStart();
+
+    void onScanStop();
+  }
+
+  private final Clock mClock;
+  private final ScanPolicy mPolicy;
+
+  private boolean mRunning;
+  private boolean mScanning;
+
+  /** When the current scan or rest started. */
+  private long mPhaseStartedAt;
+
+  /** When the current scan or rest ends. */
+  private long mPhaseEndsAt;
+
+  private int mDegree;
+  private int mQuietScans;
+  private boolean mChangedDuringScan;
+  private long mLastLossAt = -1;
+
+  /** Until when we scan without rest, whatever the policy says. */
+  private long mBoostUntil = -1;
+
+  /**
+   * @param clock The clock scans and rests are timed against.
+   * @param policy Decides how long scans and rests last.
+   */
+  public ScanScheduler(Clock clock, ScanPolicy policy) {
+    mClock = clock;
+    mPolicy = policy;
+  }
+
+  /** Starts the cycle with a scan, on the next {@link #runDue(Listener)}. */
+  public void start() {
+    if (mRunning) {
+      return;
+    }
+    mRunning = true;
+    mScanning = false;
+    mQuietScans = 0;
+    mPhaseStartedAt = mClock.now();
+    mPhaseEndsAt = mPhaseStartedAt;
+  }
+
+  /**
+   * Stops the cycle. The owner is expected to stop a scan that's running itself, without a call to
+   * {@link Listener#onScanStop()}.
+   */
+  public void stop() {
+    mRunning = false;
+    mScanning = false;
+  }
+
+  /** Returns {@code true} if a scan is running. */
+  public boolean isScanning() {
+    return mScanning;
+  }
+
+  /**
+   * The number of neighbors we're linked to has changed. Losing one, or falling short of the ones
+   * we want, may end a rest early.
+   */
+  public void onNeighborsChanged(int degree) {
+    long now = mClock.now();
+    if (degree < mDegree) {
+      mLastLossAt = now;
+    }
+    mDegree = degree;
+    mQuietScans = 0;
+    mChangedDuringScan = true;
+    if (mRunning && !mScanning) {
+      mPhaseEndsAt = Math.min(mPhaseEndsAt, mPhaseStartedAt + getIdleDuration(now));
+    }
+  }
+
+  /**
+   * Scans without rest for a while, whatever the policy says, eg. after a restart, when peers we
+   * were linked to are probably still nearby. A rest that's running ends right away.
+   *
+   * @param duration How long to scan for, in milliseconds.
+   */
+  public void boost(long duration) {
+    long now = mClock.now();
+    mBoostUntil = Math.max(mBoostUntil, now + duration);
+    if (mRunning && !mScanning) {
+      mPhaseEndsAt = Math.min(mPhaseEndsAt, now);
+    }
+  }
+
+  /** Returns when the current scan or rest ends, or -1 if the cycle isn't running. */
+  public long getNextDeadline() {
+    return mRunning ? mPhaseEndsAt : -1;
+  }
+
+  /** Starts or stops the scan if it's time to. */
+  public void runDue(Listener listener) {
+    long now = mClock.now();
+    if (!mRunning || now < mPhaseEndsAt) {
+      return;
+    }
+    if (!mScanning) {
+      mScanning = true;
+      mChangedDuringScan = false;
+      mPhaseStartedAt = now;
+      mPhaseEndsAt = now + mPolicy.getScanDuration(mDegree);
+      listener.onScanStart();
+      return;
+    }
+    if (!mChangedDuringScan) {
+      mQuietScans++;
+    }
+    mChangedDuringScan = false;
+    long idle = getIdleDuration(now);
+    mPhaseStartedAt = now;
+    if (idle <= 0) {
+      // Keep scanning for another window.
+      mPhaseEndsAt = now + mPolicy.getScanDuration(mDegree);
+      return;
+    }
+    mScanning = false;
+    mPhaseEndsAt = now + idle;
+    listener.onScanStop();
+  }
+
+  private long getIdleDuration(long now) {
+    if (now < mBoostUntil) {
+      return 0;
+    }
+    long sinceLastLoss = mLastLossAt < 0 ? Long.MAX_VALUE : now - mLastLossAt;
+    return mPolicy.getIdleDuration(mDegree, mQuietScans, sinceLastLoss);
+  }
+}
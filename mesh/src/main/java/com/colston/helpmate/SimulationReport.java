@@ -0,0 +1,163 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/** What a {@link MeshSimulator} run measured. */
+public class SimulationReport {
+  private int mMessagesSent;
+  private long mExpectedDeliveries;
+  private long mDeliveries;
+  private int mDirectedMessages;
+  private int mAcked;
+  private final long[] mTransmissions = new long[MeshFrame.TYPE_PONG + 1];
+  private long mLostTransmissions;
+  private final List<Long> mLatencies = new ArrayList<>();
+  private boolean mSorted = true;
+
+  /**
+   * A message has been sent.
+   *
+   * @param receivers The number of nodes that should receive it.
+   * @param directed True if it was sent to one node, and should be acked.
+   */
+  void onMessageSent(int receivers, boolean directed) {
+    mMessagesSent++;
+    mExpectedDeliveries += receivers;
+    if (directed) {
+      mDirectedMessages++;
+    }
+  }
+
+  /** A message has reached one of its receivers for the first time, after the given delay. */
+  void onMessageDelivered(long latency) {
+    mDeliveries++;
+    mLatencies.add(latency);
+    mSorted = false;
+  }
+
+  /** The sender of a directed message has received its ack. */
+  void onMessageAcked() {
+    mAcked++;
+  }
+
+  /** A frame of the given type has been sent over one link. */
+  void onTransmission(int type, boolean lost) {
+    if (type >= 0 && type < mTransmissions.length) {
+      mTransmissions[type]++;
+    }
+    if (lost) {
+      mLostTransmissions++;
+    }
+  }
+
+  public int getMessagesSent() {
+    return mMessagesSent;
+  }
+
+  /** Returns the share of the expected receivers that got each message, from 0 to 1. */
+  public double getDeliveryRatio() {
+    return mExpectedDeliveries == 0 ? 0 : (double) mDeliveries / mExpectedDeliveries;
+  }
+
+  /** Returns the share of directed messages whose sender heard the ack, from 0 to 1. */
+  public double getAckRatio() {
+    return mDirectedMessages == 0 ? 0 : (double) mAcked / mDirectedMessages;
+  }
+
+  /** Returns the number of frames of the given {@link MeshFrame} type sent over any link. */
+  public long getTransmissions(int type) {
+    return mTransmissions[type];
+  }
+
+  /** Returns the number of frames sent over any link, of every type. */
+  public long getTotalTransmissions() {
+    long total = 0;
+    for (long transmissions : mTransmissions) {
+      total += transmissions;
+    }
+    return total;
+  }
+
+  /**
+   * Returns the number of text frames sent, counting every hop and every retransmission, for each
+   * delivery of a message. This is what flooding costs and what routing saves.
+   */
+  public double getTransmissionsPerDelivery() {
+    return mDeliveries == 0 ? 0 : (double) mTransmissions[MeshFrame.TYPE_TEXT] / mDeliveries;
+  }
+
+  /**
+   * Returns the time it took messages to arrive, in milliseconds, or -1 if none did.
+   *
+   * @param percentile The share of deliveries that were at least this fast, from 0 to 100.
+   */
+  public long getLatencyPercentile(double percentile) {
+    if (mLatencies.isEmpty()) {
+      return -1;
+    }
+    if (!mSorted) {
+      Collections.sort(mLatencies);
+      mSorted = true;
+    }
+    int index = (int) Math.ceil(percentile / 100 * mLatencies.size()) - 1;
+    return mLatencies.get(Math.max(0, Math.min(index, mLatencies.size() - 1)));
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(
+        String.format(
+            Locale.US,
+            "messages sent:              %d%n" + "delivery ratio:             %.2f%% (%d of %d)%n",
+            mMessagesSent,
+            getDeliveryRatio() * 100,
+            mDeliveries,
+            mExpectedDeliveries));
+    if (mDirectedMessages > 0) {
+      builder.append(
+          String.format(
+              Locale.US,
+              "acked:                      %.2f%% (%d of %d)%n",
+              getAckRatio() * 100,
+              mAcked,
+              mDirectedMessages));
+    }
+    builder.append(
+        String.format(
+            Locale.US,
+            "text frames per delivery:   %.2f%n"
+                + "frames sent:                %d (text %d, ack %d, beacon %d; %d lost)%n"
+                + "latency p50/p90/p99:        %d / %d / %d ms%n",
+            getTransmissionsPerDelivery(),
+            getTotalTransmissions(),
+            mTransmissions[MeshFrame.TYPE_TEXT],
+            mTransmissions[MeshFrame.TYPE_ACK],
+            mTransmissions[MeshFrame.TYPE_BEACON],
+            mLostTransmissions,
+            getLatencyPercentile(50),
+            getLatencyPercentile(90),
+            getLatencyPercentile(99)));
+    return builder.toString();
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds directed {@link MeshFrame}s for nodes that aren't reachable right now, so they can be
+ * delivered once a suitable neighbor shows up instead of being lost when their hop budget runs out.
+ *
+ * <p>The queue holds at most {@code capacity} frames; when it's full the oldest frame makes room.
+ * Each frame expires at a fixed time, measured against the injected {@link Clock}. Use a wall clock
+ * if the queue is saved with {@link #writeTo(OutputStream)}, since expiry times are saved as they
+ * are.
+ */
+public class StoreAndForwardQueue {
+  /** Identifies the file format written by {@link #writeTo(OutputStream)}. */
+  private static final int FILE_VERSION = 1;
+
+  private final Clock mClock;
+  private final int mCapacity;
+
+  /** Frames keyed by their message key, oldest first. */
+  private final Map<Long, Entry> mEntries = new LinkedHashMap<>();
+
+  /**
+   * @param clock The clock expiry times are measured against.
+   * @param capacity The maximum number of frames held.
+   */
+  public StoreAndForwardQueue(Clock clock, int capacity) {
+    mClock = clock;
+    mCapacity = capacity;
+  }
+
+  /**
+   * Stores a frame. Storing a frame that is already queued does nothing.
+   *
+   * @param frame A complete directed frame. The queue keeps a reference. Its header may be changed
+   *     later, eg. its attempt number, but not its source or message id, since it's keyed on them.
+   * @param lifetime How long to keep the frame, in milliseconds.
+   * @return {@code true} if the frame was stored.
+   */
+  public boolean add(byte[] frame, long lifetime) {
+    long key = keyOf(frame);
+    if (mEntries.containsKey(key)) {
+      return false;
+    }
+    purgeExpired();
+    if (mEntries.size() >= mCapacity) {
+      Iterator<Entry> oldest = mEntries.values().iterator();
+      oldest.next();
+      oldest.remove();
+    }
+    mEntries.put(key, new Entry(frame, mClock.now() + lifetime));
+    return true;
+  }
+
+  /**
+   * Returns a live frame without removing it, or null if it isn't stored.
+   *
+   * @param messageKey The frame's {@link DuplicateCache#key(long, int)}.
+   */
+  @Nullable public byte[] get(long messageKey) {
+    Entry entry = mEntries.get(messageKey);
+    return entry != null && entry.expiresAt > mClock.now() ? entry.frame : null;
+  }
+
+  /** Returns every live frame, oldest first, without removing them. */
+  public List<byte[]> peekAll() {
+    purgeExpired();
+    List<byte[]> frames = new ArrayList<>(mEntries.size());
+    for (Entry entry : mEntries.values()) {
+      frames.add(entry.frame);
+    }
+    return frames;
+  }
+
+  /**
+   * Removes a frame, eg. once it's known to have arrived.
+   *
+   * @param messageKey The frame's {@link DuplicateCache#key(long, int)}.
+   */
+  public boolean remove(long messageKey) {
+    return mEntries.remove(messageKey) != null;
+  }
+
+  /** Drops frames whose time is up. Returns the number of frames dropped. */
+  public int purgeExpired() {
+    long now = mClock.now();
+    int count = 0;
+    Iterator<Entry> iterator = mEntries.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().expiresAt <= now) {
+        iterator.remove();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Returns the number of frames held, including expired ones that haven't been purged yet. */
+  public int size() {
+    return mEntries.size();
+  }
+
+  /** Drops every frame. */
+  public void clear() {
+    mEntries.clear();
+  }
+
+  /** Saves the live frames. The stream is not closed. */
+  public void writeTo(OutputStream outputStream) throws IOException {
+    purgeExpired();
+    DataOutputStream out = new DataOutputStream(outputStream);
+    out.writeInt(FILE_VERSION);
+    out.writeInt(mEntries.size());
+    for (Entry entry : mEntries.values()) {
+      out.writeLong(entry.expiresAt);
+      out.writeInt(entry.frame.length);
+      out.write(entry.frame);
+    }
+    out.flush();
+  }
+
+  /**
+   * Adds the frames saved by {@link #writeTo(OutputStream)}. Frames that expired in the meantime,
+   * or that aren't valid frames, are skipped. The stream is not closed.
+   */
+  public void readFrom(InputStream inputStream) throws IOException {
+    DataInputStream in = new DataInputStream(inputStream);
+    int version = in.readInt();
+    if (version != FILE_VERSION) {
+      throw new IOException("Unknown store and forward file version " + version);
+    }
+    int count = in.readInt();
+    long now = mClock.now();
+    for (int i = 0; i < count; i++) {
+      long expiresAt = in.readLong();
+      int length = in.readInt();
+      if (length < MeshFrame.HEADER_LENGTH
+          || length > MeshFrame.HEADER_LENGTH + MeshFrame.MAX_PAYLOAD_LENGTH) {
+        throw new IOException("Corrupt store and forward entry of " + length + " bytes");
+      }
+      byte[] frame = new byte[length];
+      in.readFully(frame);
+      if (expiresAt > now && MeshFrame.isValid(frame, 0, length)) {
+        add(frame, expiresAt - now);
+      }
+    }
+  }
+
+  private static long keyOf(byte[] frame) {
+    return DuplicateCache.key(MeshFrame.getSourceKey(frame, 0), MeshFrame.getMessageId(frame, 0));
+  }
+
+  private static class Entry {
+    final byte[] frame;
+    final long expiresAt;
+
+    Entry(byte[] frame, long expiresAt) {
+      this.frame = frame;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
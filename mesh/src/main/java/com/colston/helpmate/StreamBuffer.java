@@ -0,0 +1,139 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * A small bounded buffer that hands a stream from one thread to another. Writes never block: a
+ * chunk that doesn't fit is dropped whole, so a reader that falls behind loses a little audio
+ * instead of holding up the stream for everyone else. Reads block until data arrives or the buffer
+ * is closed.
+ */
+public class StreamBuffer {
+  private final byte[] mData;
+
+  /** The index of the oldest unread byte. */
+  private int mStart;
+
+  /** The number of unread bytes. */
+  private int mLength;
+
+  private boolean mClosed;
+  private long mDroppedBytes;
+
+  /**
+   * @param capacity The most bytes held at once.
+   */
+  public StreamBuffer(int capacity) {
+    mData = new byte[capacity];
+  }
+
+  /**
+   * Appends a chunk for the reader. Returns {@code false}, and drops the chunk, if it doesn't fit
+   * or the buffer is closed.
+   */
+  public synchronized boolean write(byte[] buffer, int offset, int length) {
+    if (mClosed) {
+      return false;
+    }
+    if (length > mData.length - mLength) {
+      mDroppedBytes += length;
+      return false;
+    }
+    int end = (mStart + mLength) % mData.length;
+    int first = Math.min(length, mData.length - end);
+    System.arraycopy(buffer, offset, mData, end, first);
+    System.arraycopy(buffer, offset + first, mData, 0, length - first);
+    mLength += length;
+    notifyAll();
+    return true;
+  }
+
+  /** Ends the stream. The reader still gets the bytes already written, then sees the end. */
+  public synchronized void close() {
+    mClosed = true;
+    notifyAll();
+  }
+
+  /** Returns the number of bytes dropped because the reader fell behind. */
+  public synchronized long getDroppedBytes() {
+    return mDroppedBytes;
+  }
+
+  /** Returns the reading side of the buffer. Closing it closes the buffer. */
+  public InputStream getInputStream() {
+    return new Reader();
+  }
+
+  private synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    while (mLength == 0 && !mClosed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    if (mLength == 0) {
+      return -1;
+    }
+    int count = Math.min(length, mLength);
+    int first = Math.min(count, mData.length - mStart);
+    System.arraycopy(mData, mStart, buffer, offset, first);
+    System.arraycopy(mData, 0, buffer, offset + first, count - first);
+    mStart = (mStart + count) % mData.length;
+    mLength -= count;
+    return count;
+  }
+
+  private synchronized int available() {
+    return mLength;
+  }
+
+  private class Reader extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (offset < 0 || length < 0 || length > buffer.length - offset) {
+        throw new IndexOutOfBoundsException();
+      }
+      return StreamBuffer.this.read(buffer, offset, length);
+    }
+
+    @Override
+    public int available() {
+      return StreamBuffer.this.available();
+    }
+
+    @Override
+    public void close() {
+      StreamBuffer.this.close();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Passes a push-to-talk audio stream on as it arrives. The stream starts with a {@link MeshFrame}
+ * header of type {@link MeshFrame#TYPE_AUDIO}. Once the header is read, {@link #onHeader(byte[])}
+ * decides where the audio goes, eg. to the speaker and to the next hop. The audio is then copied to
+ * each of those {@link StreamBuffer}s one small chunk at a time, so a relay never holds on to more
+ * than a fraction of a second of an utterance.
+ */
+public abstract class StreamRelay {
+  /**
+   * The audio is 16 bit PCM. Chunks are cut on sample boundaries, so a chunk dropped by a full
+   * {@link StreamBuffer} never shifts the samples that come after it.
+   */
+  private static final int BYTES_PER_SAMPLE = 2;
+
+  /** The stream we're reading from. */
+  private final InputStream mInputStream;
+
+  /** The chunk the audio is copied through. */
+  private final byte[] mBuffer;
+
+  /**
+   * If true, the background thread will continue to copy the stream. Once false, the thread will
+   * shut down.
+   */
+  private volatile boolean mAlive;
+
+  /** The background thread copying the stream for us. */
+  private Thread mThread;
+
+  /**
+   * @param inputStream The incoming stream, starting with its header.
+   * @param chunkSize The number of bytes copied at a time.
+   */
+  public StreamRelay(InputStream inputStream, int chunkSize) {
+    if (chunkSize < BYTES_PER_SAMPLE) {
+      throw new IllegalArgumentException("Chunk too small: " + chunkSize);
+    }
+    mInputStream = inputStream;
+    mBuffer = new byte[chunkSize];
+  }
+
+  /**
+   * @return True if currently copying the stream.
+   */
+  public boolean isRelaying() {
+    return mAlive;
+  }
+
+  /** Starts reading the stream. */
+  public void start() {
+    mAlive = true;
+    mThread =
+        new Thread() {
+          @Override
+          public void run() {
+            List<StreamBuffer> outputs = Collections.emptyList();
+            try {
+              byte[] header = new byte[MeshFrame.HEADER_LENGTH];
+              if (readHeader(header)) {
+                outputs = onHeader(header);
+                copy(outputs);
+              }
+            } catch (IOException e) {
+              // A broken stream ends the same way as a finished one.
+            } finally {
+              for (StreamBuffer output : outputs) {
+                output.close();
+              }
+              stopInternal();
+              onFinish();
+            }
+          }
+        };
+    mThread.start();
+  }
+
+  private boolean readHeader(byte[] header) throws IOException {
+    int read = 0;
+    while (read < header.length) {
+      int len = mInputStream.read(header, read, header.length - read);
+      if (len < 0) {
+        return false;
+      }
+      read += len;
+    }
+    return MeshFrame.isValid(header, 0, header.length)
+        && MeshFrame.getType(header, 0) == MeshFrame.TYPE_AUDIO;
+  }
+
+  private void copy(List<StreamBuffer> outputs) throws IOException {
+    int pending = 0;
+    int len;
+    while (isRelaying()
+        && !outputs.isEmpty()
+        && (len = mInputStream.read(mBuffer, pending, mBuffer.length - pending)) > 0) {
+      int available = pending + len;
+      int whole = available - available % BYTES_PER_SAMPLE;
+      for (StreamBuffer output : outputs) {
+        output.write(mBuffer, 0, whole);
+      }
+      // Keep the start of a split sample for the next chunk.
+      pending = available - whole;
+      System.arraycopy(mBuffer, whole, mBuffer, 0, pending);
+    }
+  }
+
+  private void stopInternal() {
+    mAlive = false;
+    try {
+      mInputStream.close();
+    } catch (IOException e) {
+      // Nothing left to do with a stream we're done with.
+    }
+  }
+
+  /** Stops copying the stream. */
+  public void stop() {
+    stopInternal();
+    // Wakes the thread up if it's still waiting on onHeader().
+    mThread.interrupt();
+    try {
+      mThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Called on the relay's thread once the stream's header has been read.
+   *
+   * @param header The stream's {@link MeshFrame#TYPE_AUDIO} header.
+   * @return The buffers the audio is copied into. An empty list drops the stream.
+   */
+  protected abstract List<StreamBuffer> onHeader(byte[] header);
+
+  /** The stream has now ended, and the buffers from {@link #onHeader(byte[])} are closed. */
+  protected void onFinish() {}
+}
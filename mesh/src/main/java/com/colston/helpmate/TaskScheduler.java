@@ -0,0 +1,177 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs named tasks after a delay, on top of one shared {@link ScheduledExecutorService}. Waiting
+ * happens on the shared timer thread, while the tasks themselves run on the executor the owner
+ * picks, eg. the main thread.
+ *
+ * <p>Tasks are scheduled under a key. Scheduling a key again replaces the task still waiting under
+ * it, so a burst of state changes doesn't pile up copies of the same action, and {@link
+ * #cancelAll()} drops everything in one go. Delays can be spread out with random jitter, and {@link
+ * #getBackoffDelay(long, long, int)} grows them for repeated attempts.
+ */
+public class TaskScheduler {
+  private final ScheduledExecutorService mTimer;
+  private final Executor mExecutor;
+  private final Random mRandom;
+
+  /** The tasks waiting to run, by key. */
+  private final Map<String, Task> mPending = new HashMap<>();
+
+  /**
+   * @param timer The shared timer thread the delays are measured on.
+   * @param executor Runs the tasks once their delay is up.
+   * @param random The source of jitter.
+   */
+  public TaskScheduler(ScheduledExecutorService timer, Executor executor, Random random) {
+    mTimer = timer;
+    mExecutor = executor;
+    mRandom = random;
+  }
+
+  /**
+   * Runs a task after a delay, replacing any task still waiting under the same key.
+   *
+   * @param key Names the task, eg. to cancel it.
+   * @param action The work to do.
+   * @param delay The least time to wait, in milliseconds.
+   * @param jitter The most random time added to the delay, in milliseconds.
+   * @return The scheduled task.
+   */
+  public synchronized Task schedule(String key, Runnable action, long delay, long jitter) {
+    cancel(key);
+    long wait = delay + (jitter > 0 ? (long) (mRandom.nextDouble() * jitter) : 0);
+    final Task task = new Task(key, action);
+    mPending.put(key, task);
+    task.mFuture =
+        mTimer.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                mExecutor.execute(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        task.run();
+                      }
+                    });
+              }
+            },
+            wait,
+            TimeUnit.MILLISECONDS);
+    return task;
+  }
+
+  /** Returns {@code true} if a task is waiting under the key. */
+  public synchronized boolean isPending(String key) {
+    return mPending.containsKey(key);
+  }
+
+  /**
+   * Cancels the task waiting under the key, if any.
+   *
+   * @return {@code true} if a task was cancelled.
+   */
+  public synchronized boolean cancel(String key) {
+    Task task = mPending.remove(key);
+    if (task == null) {
+      return false;
+    }
+    task.cancel();
+    return true;
+  }
+
+  /** Cancels every waiting task. */
+  public synchronized void cancelAll() {
+    // Each task removes itself from the map as it's cancelled, so go through a copy.
+    for (Task task : new ArrayList<>(mPending.values())) {
+      task.cancel();
+    }
+    mPending.clear();
+  }
+
+  /**
+   * Returns the delay before an attempt when every failed attempt doubles the wait.
+   *
+   * @param initialDelay The delay before the first retry, in milliseconds.
+   * @param maxDelay The longest delay, in milliseconds.
+   * @param attempt The number of attempts that have failed so far, from 0.
+   */
+  public static long getBackoffDelay(long initialDelay, long maxDelay, int attempt) {
+    long delay = initialDelay;
+    for (int i = 0; i < attempt && delay < maxDelay; i++) {
+      delay *= 2;
+    }
+    return Math.min(delay, maxDelay);
+  }
+
+  /** A task that's waiting to run. */
+  public final class Task {
+    private final String mKey;
+    private final Runnable mAction;
+    private ScheduledFuture<?> mFuture;
+    private boolean mCancelled;
+
+    private Task(String key, Runnable action) {
+      mKey = key;
+      mAction = action;
+    }
+
+    /** Stops the task from running, unless it has already started. */
+    public void cancel() {
+      synchronized (TaskScheduler.this) {
+        mCancelled = true;
+        if (mFuture != null) {
+          mFuture.cancel(false);
+        }
+        if (mPending.get(mKey) == this) {
+          mPending.remove(mKey);
+        }
+      }
+    }
+
+    /** Returns {@code true} if the task was cancelled before it ran. */
+    public boolean isCancelled() {
+      synchronized (TaskScheduler.this) {
+        return mCancelled;
+      }
+    }
+
+    private void run() {
+      synchronized (TaskScheduler.this) {
+        // The task may have been cancelled while it was on its way to the executor.
+        if (mCancelled) {
+          return;
+        }
+        mPending.remove(mKey);
+      }
+      mAction.run();
+    }
+  }
+}
@@ -0,0 +1,911 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link MeshTransport} over TCP sockets, so that nodes can run as separate processes, on one
+ * machine or across a LAN.
+ *
+ * <p>There's no radio to scan, so discovery polls a fixed list of peer addresses: a node is found
+ * once it answers at its address, and lost once it stops answering. An endpoint id is the address
+ * its node advertises on, as {@code host:port}, so both ends of a connection and every discoverer
+ * agree on it.
+ *
+ * <p>Each connection has a thread reading it and a thread writing bytes to it; each stream sent has
+ * a thread copying it out. Callbacks and result listeners run on the executor given to the
+ * transport.
+ */
+public class TcpTransport implements MeshTransport {
+  /** The time between two polls of the peer addresses. */
+  private static final long DISCOVERY_INTERVAL = 2000;
+
+  /** How long to wait for a peer to accept a socket or to say hello. */
+  private static final int HANDSHAKE_TIMEOUT = 3000;
+
+  /** The largest message we accept, so a corrupt length can't exhaust our memory. */
+  private static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+  /** The size of the chunks streams are sent in, and of the buffer on the receiving side. */
+  private static final int STREAM_CHUNK_SIZE = 4096;
+
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  /** Our first message on every socket: who we are and what we want. */
+  private static final int MESSAGE_HELLO = 1;
+
+  private static final int MESSAGE_ACCEPT = 2;
+  private static final int MESSAGE_REJECT = 3;
+  private static final int MESSAGE_BYTES = 4;
+  private static final int MESSAGE_STREAM_DATA = 5;
+  private static final int MESSAGE_STREAM_END = 6;
+
+  /** A hello that only asks the advertiser who it is, for discovery. */
+  private static final int HELLO_PROBE = 1;
+
+  /** A hello that asks to connect. */
+  private static final int HELLO_CONNECT = 2;
+
+  /** A hello that answers either of the others. */
+  private static final int HELLO_REPLY = 3;
+
+  private final InetAddress mBindAddress;
+  private final int mRequestedPort;
+  private final List<InetSocketAddress> mPeers;
+  private final Executor mCallbackExecutor;
+  private final Random mRandom = new Random();
+
+  @Nullable private Callback mCallback;
+
+  @Nullable private ServerSocket mServerSocket;
+  @Nullable private String mName;
+  @Nullable private String mAdvertisedService;
+
+  @Nullable private String mDiscoveredService;
+  @Nullable private Thread mDiscoveryThread;
+
+  /** The endpoints discovery has found and not lost since. */
+  private final Set<String> mFoundEndpoints = new HashSet<>();
+
+  /** Our connections, pending and established, by endpoint id. */
+  private final Map<String, Connection> mConnections = new HashMap<>();
+
+  /**
+   * @param bindAddress The address to listen on while advertising, eg. the loopback address.
+   * @param port The port to listen on, or 0 for any free port.
+   * @param peers The addresses discovery polls for other nodes.
+   * @param callbackExecutor Runs our callbacks and result listeners, one at a time.
+   */
+  public TcpTransport(
+      InetAddress bindAddress,
+      int port,
+      Collection<InetSocketAddress> peers,
+      Executor callbackExecutor) {
+    mBindAddress = bindAddress;
+    mRequestedPort = port;
+    mPeers = new ArrayList<>(peers);
+    mCallbackExecutor = callbackExecutor;
+  }
+
+  /** Returns the port we're listening on, or -1 if we aren't advertising. */
+  public synchronized int getPort() {
+    return mServerSocket != null ? mServerSocket.getLocalPort() : -1;
+  }
+
+  @Override
+  public synchronized void setCallback(Callback callback) {
+    mCallback = callback;
+  }
+
+  @Override
+  public void startAdvertising(String name, String serviceId, @Nullable ResultListener listener) {
+    final ServerSocket serverSocket;
+    synchronized (this) {
+      if (mServerSocket != null) {
+        fail(listener, new IOException("Already advertising"));
+        return;
+      }
+      try {
+        serverSocket = new ServerSocket(mRequestedPort, 50, mBindAddress);
+      } catch (IOException e) {
+        fail(listener, e);
+        return;
+      }
+      mServerSocket = serverSocket;
+      mName = name;
+      mAdvertisedService = serviceId;
+    }
+
+    Thread acceptor =
+        new Thread("TcpTransport-accept-" + serverSocket.getLocalPort()) {
+          @Override
+          public void run() {
+            while (true) {
+              try {
+                onAccepted(serverSocket.accept());
+              } catch (IOException e) {
+                // The socket was closed by stopAdvertising().
+                return;
+              }
+            }
+          }
+        };
+    acceptor.setDaemon(true);
+    acceptor.start();
+    succeed(listener);
+  }
+
+  @Override
+  public synchronized void stopAdvertising() {
+    if (mServerSocket != null) {
+      closeQuietly(mServerSocket);
+      mServerSocket = null;
+    }
+    mAdvertisedService = null;
+  }
+
+  @Override
+  public void startDiscovery(final String serviceId, @Nullable ResultListener listener) {
+    synchronized (this) {
+      if (mDiscoveredService != null) {
+        fail(listener, new IOException("Already discovering"));
+        return;
+      }
+      mDiscoveredService = serviceId;
+      mDiscoveryThread =
+          new Thread("TcpTransport-discovery") {
+            @Override
+            public void run() {
+              discover(this, serviceId);
+            }
+          };
+      mDiscoveryThread.setDaemon(true);
+      mDiscoveryThread.start();
+    }
+    succeed(listener);
+  }
+
+  @Override
+  public synchronized void stopDiscovery() {
+    mDiscoveredService = null;
+    if (mDiscoveryThread != null) {
+      mDiscoveryThread.interrupt();
+      mDiscoveryThread = null;
+    }
+    mFoundEndpoints.clear();
+  }
+
+  private synchronized boolean isDiscovering(Thread thread) {
+    return mDiscoveryThread == thread;
+  }
+
+  /** Polls the peer addresses until discovery stops. */
+  private void discover(Thread thread, String serviceId) {
+    while (isDiscovering(thread)) {
+      for (InetSocketAddress peer : mPeers) {
+        if (!isDiscovering(thread)) {
+          return;
+        }
+        if (isOwnAddress(peer)) {
+          continue;
+        }
+        String endpointId = toEndpointId(peer);
+        String name = probe(peer, serviceId);
+        boolean found;
+        synchronized (this) {
+          if (!isDiscovering(thread)) {
+            return;
+          }
+          found = name != null ? mFoundEndpoints.add(endpointId) : false;
+          if (name == null && mFoundEndpoints.remove(endpointId)) {
+            postEndpointLost(endpointId);
+          }
+        }
+        if (found) {
+          postEndpointFound(endpointId, name);
+        }
+      }
+      try {
+        // Spread the polls out so that nodes started together don't probe in lockstep.
+        Thread.sleep(DISCOVERY_INTERVAL / 2 + mRandom.nextInt((int) DISCOVERY_INTERVAL));
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /** Asks the node at an address who it is. Returns its name, or null if it isn't advertising. */
+  @Nullable private String probe(InetSocketAddress address, String serviceId) {
+    try (Socket socket = new Socket()) {
+      socket.connect(address, HANDSHAKE_TIMEOUT);
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      writeHello(out, HELLO_PROBE, "", serviceId, getPort());
+      Hello hello = readHello(new DataInputStream(socket.getInputStream()));
+      return hello.kind == HELLO_REPLY && serviceId.equals(hello.serviceId) ? hello.name : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private boolean isOwnAddress(InetSocketAddress address) {
+    int port = getPort();
+    return port == address.getPort()
+        && (address.getAddress() == null
+            || address.getAddress().isLoopbackAddress()
+            || address.getAddress().equals(mBindAddress));
+  }
+
+  /** Someone has opened a socket to us. Find out what they want, off the accepting thread. */
+  private void onAccepted(final Socket socket) {
+    Thread handshake =
+        new Thread("TcpTransport-handshake") {
+          @Override
+          public void run() {
+            try {
+              socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+              DataInputStream in =
+                  new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+              DataOutputStream out =
+                  new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+              Hello hello = readHello(in);
+              String name;
+              String serviceId;
+              synchronized (TcpTransport.this) {
+                name = mName;
+                serviceId = mAdvertisedService;
+              }
+              if (serviceId == null || !serviceId.equals(hello.serviceId)) {
+                closeQuietly(socket);
+                return;
+              }
+              writeHello(out, HELLO_REPLY, name, serviceId, getPort());
+              out.flush();
+              if (hello.kind != HELLO_CONNECT) {
+                closeQuietly(socket);
+                return;
+              }
+              // Prefer the address the node advertises on, so we know it by the same id as our
+              // discovery does. Nodes that don't advertise are known by their socket address.
+              InetAddress host = socket.getInetAddress();
+              int port = hello.port > 0 ? hello.port : socket.getPort();
+              String endpointId = toEndpointId(new InetSocketAddress(host, port));
+              socket.setSoTimeout(0);
+              openConnection(endpointId, hello.name, true, socket, in, out);
+            } catch (IOException e) {
+              closeQuietly(socket);
+            }
+          }
+        };
+    handshake.setDaemon(true);
+    handshake.start();
+  }
+
+  @Override
+  public void requestConnection(
+      final String name, final String endpointId, @Nullable final ResultListener listener) {
+    final InetSocketAddress address;
+    final String serviceId;
+    synchronized (this) {
+      if (mConnections.containsKey(endpointId)) {
+        fail(listener, new IOException("Already connected to " + endpointId));
+        return;
+      }
+      try {
+        address = fromEndpointId(endpointId);
+      } catch (IllegalArgumentException e) {
+        fail(listener, e);
+        return;
+      }
+      serviceId = mDiscoveredService != null ? mDiscoveredService : mAdvertisedService;
+    }
+    if (serviceId == null) {
+      fail(listener, new IOException("Neither advertising nor discovering"));
+      return;
+    }
+
+    Thread connector =
+        new Thread("TcpTransport-connect") {
+          @Override
+          public void run() {
+            Socket socket = new Socket();
+            try {
+              socket.connect(address, HANDSHAKE_TIMEOUT);
+              socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+              DataInputStream in =
+                  new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+              DataOutputStream out =
+                  new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+              writeHello(out, HELLO_CONNECT, name, serviceId, getPort());
+              out.flush();
+              Hello hello = readHello(in);
+              if (hello.kind != HELLO_REPLY) {
+                throw new IOException("Unexpected hello from " + endpointId);
+              }
+              socket.setSoTimeout(0);
+              succeed(listener);
+              openConnection(endpointId, hello.name, false, socket, in, out);
+            } catch (IOException e) {
+              closeQuietly(socket);
+              fail(listener, e);
+            }
+          }
+        };
+    connector.setDaemon(true);
+    connector.start();
+  }
+
+  private void openConnection(
+      String endpointId,
+      String name,
+      boolean incoming,
+      Socket socket,
+      DataInputStream in,
+      DataOutputStream out) {
+    final Connection connection = new Connection(endpointId, socket, in, out);
+    synchronized (this) {
+      if (mConnections.containsKey(endpointId)) {
+        // We're already connected, or connecting the other way round.
+        closeQuietly(socket);
+        return;
+      }
+      mConnections.put(endpointId, connection);
+    }
+    postConnectionInitiated(endpointId, name, incoming);
+    Thread reader =
+        new Thread("TcpTransport-read-" + endpointId) {
+          @Override
+          public void run() {
+            read(connection);
+          }
+        };
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  @Override
+  public void acceptConnection(String endpointId, @Nullable ResultListener listener) {
+    Connection connection;
+    boolean established;
+    synchronized (this) {
+      connection = mConnections.get(endpointId);
+      if (connection == null || connection.localAccepted) {
+        fail(listener, new IOException("No pending connection to " + endpointId));
+        return;
+      }
+      connection.localAccepted = true;
+      established = connection.checkEstablished();
+    }
+    connection.write(MESSAGE_ACCEPT, 0, new byte[0]);
+    succeed(listener);
+    if (established) {
+      postConnectionResult(endpointId, true, "Connected");
+    }
+  }
+
+  @Override
+  public void rejectConnection(String endpointId, @Nullable ResultListener listener) {
+    Connection connection;
+    synchronized (this) {
+      connection = mConnections.get(endpointId);
+      if (connection == null || connection.established) {
+        fail(listener, new IOException("No pending connection to " + endpointId));
+        return;
+      }
+      mConnections.remove(endpointId);
+      connection.closedLocally = true;
+    }
+    connection.write(MESSAGE_REJECT, 0, new byte[0]);
+    connection.close();
+    succeed(listener);
+    postConnectionResult(endpointId, false, "Rejected");
+  }
+
+  @Override
+  public void disconnectFromEndpoint(String endpointId) {
+    Connection connection;
+    synchronized (this) {
+      connection = mConnections.remove(endpointId);
+      if (connection == null) {
+        return;
+      }
+      connection.closedLocally = true;
+    }
+    connection.close();
+    if (!connection.established) {
+      postConnectionResult(endpointId, false, "Disconnected");
+    }
+  }
+
+  @Override
+  public void stopAllEndpoints() {
+    stopAdvertising();
+    stopDiscovery();
+    List<String> endpointIds;
+    synchronized (this) {
+      endpointIds = new ArrayList<>(mConnections.keySet());
+    }
+    for (String endpointId : endpointIds) {
+      disconnectFromEndpoint(endpointId);
+    }
+  }
+
+  @Override
+  public long sendBytes(
+      Collection<String> endpointIds, final byte[] bytes, @Nullable ResultListener listener) {
+    final long payloadId = mRandom.nextLong();
+    for (final String endpointId : endpointIds) {
+      final Connection connection = getEstablished(endpointId);
+      if (connection == null) {
+        postTransferUpdate(endpointId, payloadId, TRANSFER_FAILURE, 0);
+        continue;
+      }
+      try {
+        connection.writer.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                boolean sent = connection.write(MESSAGE_BYTES, payloadId, bytes);
+                postTransferUpdate(
+                    endpointId,
+                    payloadId,
+                    sent ? TRANSFER_SUCCESS : TRANSFER_FAILURE,
+                    sent ? bytes.length : 0);
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        // The connection closed after we looked it up.
+        postTransferUpdate(endpointId, payloadId, TRANSFER_FAILURE, 0);
+      }
+    }
+    succeed(listener);
+    return payloadId;
+  }
+
+  @Override
+  public long sendStream(
+      Collection<String> endpointIds, final InputStream stream, @Nullable ResultListener listener) {
+    final long payloadId = mRandom.nextLong();
+    final List<Connection> connections = new ArrayList<>();
+    for (String endpointId : endpointIds) {
+      Connection connection = getEstablished(endpointId);
+      if (connection == null) {
+        postTransferUpdate(endpointId, payloadId, TRANSFER_FAILURE, 0);
+      } else {
+        connections.add(connection);
+      }
+    }
+    Thread pump =
+        new Thread("TcpTransport-stream-" + payloadId) {
+          @Override
+          public void run() {
+            copyStream(payloadId, stream, connections);
+          }
+        };
+    pump.setDaemon(true);
+    pump.start();
+    succeed(listener);
+    return payloadId;
+  }
+
+  /** Sends a stream in chunks to each connection until it ends, or every connection has closed. */
+  private void copyStream(long payloadId, InputStream stream, List<Connection> connections) {
+    long transferred = 0;
+    byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+    try {
+      int read;
+      while (!connections.isEmpty() && (read = stream.read(buffer)) > 0) {
+        byte[] chunk = read == buffer.length ? buffer : Arrays.copyOf(buffer, read);
+        for (Connection connection : new ArrayList<>(connections)) {
+          if (!connection.write(MESSAGE_STREAM_DATA, payloadId, chunk)) {
+            connections.remove(connection);
+            postTransferUpdate(connection.endpointId, payloadId, TRANSFER_FAILURE, transferred);
+          }
+        }
+        transferred += read;
+      }
+    } catch (IOException e) {
+      // The sender's stream failed; end it for the receivers.
+    } finally {
+      closeQuietly(stream);
+    }
+    for (Connection connection : connections) {
+      boolean ended = connection.write(MESSAGE_STREAM_END, payloadId, new byte[0]);
+      postTransferUpdate(
+          connection.endpointId,
+          payloadId,
+          ended ? TRANSFER_SUCCESS : TRANSFER_FAILURE,
+          transferred);
+    }
+  }
+
+  /** Reads a connection's messages until it closes. */
+  private void read(Connection connection) {
+    String endpointId = connection.endpointId;
+    Map<Long, PipedOutputStream> streams = new HashMap<>();
+    Map<Long, Long> streamBytes = new HashMap<>();
+    Set<Long> droppedStreams = new HashSet<>();
+    try {
+      while (true) {
+        int type = connection.in.readUnsignedByte();
+        long payloadId = connection.in.readLong();
+        int length = connection.in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+          throw new IOException("Bad message length " + length);
+        }
+        byte[] bytes = new byte[length];
+        connection.in.readFully(bytes);
+
+        switch (type) {
+          case MESSAGE_ACCEPT:
+            boolean established;
+            synchronized (this) {
+              connection.remoteAccepted = true;
+              established = connection.checkEstablished();
+            }
+            if (established) {
+              postConnectionResult(endpointId, true, "Connected");
+            }
+            break;
+          case MESSAGE_REJECT:
+            throw new IOException("Rejected");
+          case MESSAGE_BYTES:
+            postBytesReceived(endpointId, payloadId, bytes);
+            break;
+          case MESSAGE_STREAM_DATA:
+            if (droppedStreams.contains(payloadId)) {
+              break;
+            }
+            PipedOutputStream pipe = streams.get(payloadId);
+            if (pipe == null) {
+              PipedInputStream stream = new PipedInputStream(STREAM_BUFFER_SIZE);
+              pipe = new PipedOutputStream(stream);
+              streams.put(payloadId, pipe);
+              streamBytes.put(payloadId, 0L);
+              postStreamReceived(endpointId, payloadId, stream);
+            }
+            long total = streamBytes.get(payloadId) + length;
+            streamBytes.put(payloadId, total);
+            try {
+              pipe.write(bytes);
+              pipe.flush();
+              postTransferUpdate(endpointId, payloadId, TRANSFER_IN_PROGRESS, total);
+            } catch (IOException e) {
+              // The receiver stopped reading. Drop the rest of the stream.
+              closeQuietly(streams.remove(payloadId));
+              droppedStreams.add(payloadId);
+              postTransferUpdate(endpointId, payloadId, TRANSFER_CANCELED, total);
+            }
+            break;
+          case MESSAGE_STREAM_END:
+            droppedStreams.remove(payloadId);
+            PipedOutputStream ended = streams.remove(payloadId);
+            if (ended != null) {
+              closeQuietly(ended);
+              postTransferUpdate(
+                  endpointId, payloadId, TRANSFER_SUCCESS, streamBytes.remove(payloadId));
+            }
+            break;
+          default:
+            // A newer peer; skip what we don't understand.
+            break;
+        }
+      }
+    } catch (IOException e) {
+      // The connection has closed, or failed.
+    }
+
+    for (Map.Entry<Long, PipedOutputStream> entry : streams.entrySet()) {
+      closeQuietly(entry.getValue());
+      postTransferUpdate(
+          endpointId, entry.getKey(), TRANSFER_FAILURE, streamBytes.get(entry.getKey()));
+    }
+    boolean closedLocally;
+    synchronized (this) {
+      closedLocally = connection.closedLocally;
+      if (mConnections.get(endpointId) == connection) {
+        mConnections.remove(endpointId);
+      }
+    }
+    connection.close();
+    if (closedLocally) {
+      return;
+    }
+    if (connection.established) {
+      postDisconnected(endpointId);
+    } else {
+      postConnectionResult(endpointId, false, "Connection closed");
+    }
+  }
+
+  @Nullable private synchronized Connection getEstablished(String endpointId) {
+    Connection connection = mConnections.get(endpointId);
+    return connection != null && connection.established ? connection : null;
+  }
+
+  /** One socket to another node, pending or established. */
+  private static class Connection {
+    final String endpointId;
+    final Socket socket;
+    final DataInputStream in;
+    final DataOutputStream out;
+
+    /** Sends bytes payloads in order, so callers never block on the socket. */
+    final ExecutorService writer;
+
+    boolean localAccepted;
+    boolean remoteAccepted;
+    volatile boolean established;
+    volatile boolean closedLocally;
+
+    Connection(String endpointId, Socket socket, DataInputStream in, DataOutputStream out) {
+      this.endpointId = endpointId;
+      this.socket = socket;
+      this.in = in;
+      this.out = out;
+      writer =
+          Executors.newSingleThreadExecutor(
+              new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                  Thread thread = new Thread(runnable, "TcpTransport-write-" + endpointId);
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+    }
+
+    /** Returns true if both sides have just accepted, making the connection established. */
+    boolean checkEstablished() {
+      if (established || !localAccepted || !remoteAccepted) {
+        return false;
+      }
+      established = true;
+      return true;
+    }
+
+    /** Writes one message. Returns false if the connection has failed. */
+    boolean write(int type, long payloadId, byte[] bytes) {
+      synchronized (out) {
+        try {
+          out.writeByte(type);
+          out.writeLong(payloadId);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+          out.flush();
+          return true;
+        } catch (IOException e) {
+          closeQuietly(socket);
+          return false;
+        }
+      }
+    }
+
+    void close() {
+      writer.shutdown();
+      closeQuietly(socket);
+    }
+  }
+
+  /** The first message on a socket. */
+  private static class Hello {
+    int kind;
+    String name;
+    String serviceId;
+    int port;
+  }
+
+  private static void writeHello(
+      DataOutputStream out, int kind, String name, String serviceId, int port) throws IOException {
+    out.writeByte(MESSAGE_HELLO);
+    out.writeByte(kind);
+    out.writeUTF(name);
+    out.writeUTF(serviceId);
+    out.writeInt(port);
+    out.flush();
+  }
+
+  private static Hello readHello(DataInputStream in) throws IOException {
+    if (in.readUnsignedByte() != MESSAGE_HELLO) {
+      throw new IOException("Expected a hello");
+    }
+    Hello hello = new Hello();
+    hello.kind = in.readUnsignedByte();
+    hello.name = in.readUTF();
+    hello.serviceId = in.readUTF();
+    hello.port = in.readInt();
+    return hello;
+  }
+
+  /** Returns the endpoint id of an address. Resolved hosts use their IP, so names don't matter. */
+  private static String toEndpointId(InetSocketAddress address) {
+    InetAddress host = address.getAddress();
+    return (host != null ? host.getHostAddress() : address.getHostString())
+        + ":"
+        + address.getPort();
+  }
+
+  private static InetSocketAddress fromEndpointId(String endpointId) {
+    int colon = endpointId.lastIndexOf(':');
+    if (colon < 0) {
+      throw new IllegalArgumentException("Not a host:port endpoint id: " + endpointId);
+    }
+    try {
+      return new InetSocketAddress(
+          endpointId.substring(0, colon), Integer.parseInt(endpointId.substring(colon + 1)));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Not a host:port endpoint id: " + endpointId, e);
+    }
+  }
+
+  private synchronized Callback getCallback() {
+    if (mCallback == null) {
+      throw new IllegalStateException("setCallback() wasn't called");
+    }
+    return mCallback;
+  }
+
+  private void postEndpointFound(final String endpointId, final String name) {
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onEndpointFound(endpointId, name);
+          }
+        });
+  }
+
+  private void postEndpointLost(final String endpointId) {
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onEndpointLost(endpointId);
+          }
+        });
+  }
+
+  private void postConnectionInitiated(
+      final String endpointId, final String name, final boolean incoming) {
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onConnectionInitiated(endpointId, name, incoming);
+          }
+        });
+  }
+
+  private void postConnectionResult(
+      final String endpointId, final boolean connected, final String status) {
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onConnectionResult(endpointId, connected, status);
+          }
+        });
+  }
+
+  private void postDisconnected(final String endpointId) {
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onDisconnected(endpointId);
+          }
+        });
+  }
+
+  private void postBytesReceived(
+      final String endpointId, final long payloadId, final byte[] bytes) {
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            Callback callback = getCallback();
+            callback.onBytesReceived(endpointId, payloadId, bytes);
+            callback.onTransferUpdate(endpointId, payloadId, TRANSFER_SUCCESS, bytes.length);
+          }
+        });
+  }
+
+  private void postStreamReceived(
+      final String endpointId, final long payloadId, final InputStream stream) {
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onStreamReceived(endpointId, payloadId, stream);
+          }
+        });
+  }
+
+  private void postTransferUpdate(
+      final String endpointId, final long payloadId, final int status, final long bytes) {
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            getCallback().onTransferUpdate(endpointId, payloadId, status, bytes);
+          }
+        });
+  }
+
+  private void succeed(@Nullable final ResultListener listener) {
+    if (listener == null) {
+      return;
+    }
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            listener.onSuccess();
+          }
+        });
+  }
+
+  private void fail(@Nullable final ResultListener listener, final Exception e) {
+    if (listener == null) {
+      return;
+    }
+    mCallbackExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            listener.onFailure(e);
+          }
+        });
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing more to do.
+    }
+  }
+}
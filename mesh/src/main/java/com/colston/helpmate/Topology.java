@@ -0,0 +1,229 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The links between the nodes of a {@link MeshSimulator}. Nodes are numbered from 0, and every link
+ * is two way, like a Nearby Connections connection.
+ */
+public class Topology {
+  private final List<Set<Integer>> mNeighbors;
+  private final String mDescription;
+
+  private Topology(int nodeCount, String description) {
+    if (nodeCount < 2) {
+      throw new IllegalArgumentException("A mesh needs at least two nodes, not " + nodeCount);
+    }
+    mNeighbors = new ArrayList<>(nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+      mNeighbors.add(new TreeSet<Integer>());
+    }
+    mDescription = description;
+  }
+
+  /** Nodes in a chain, each linked to the one before and the one after. */
+  public static Topology line(int nodeCount) {
+    Topology topology = new Topology(nodeCount, "line of " + nodeCount);
+    for (int i = 1; i < nodeCount; i++) {
+      topology.link(i - 1, i);
+    }
+    return topology;
+  }
+
+  /** A {@link #line(int)} whose ends are linked too. */
+  public static Topology ring(int nodeCount) {
+    Topology topology = new Topology(nodeCount, "ring of " + nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+      topology.link(i, (i + 1) % nodeCount);
+    }
+    return topology;
+  }
+
+  /**
+   * Nodes in rows as close to square as possible, each linked to the nodes left, right, above and
+   * below it. The last row may be short.
+   */
+  public static Topology grid(int nodeCount) {
+    int width = (int) Math.ceil(Math.sqrt(nodeCount));
+    Topology topology = new Topology(nodeCount, "grid of " + nodeCount + ", " + width + " wide");
+    for (int i = 0; i < nodeCount; i++) {
+      if (i % width != 0) {
+        topology.link(i - 1, i);
+      }
+      if (i >= width) {
+        topology.link(i - width, i);
+      }
+    }
+    return topology;
+  }
+
+  /**
+   * Nodes scattered over a square, each linked to those within radio range, the way phones spread
+   * over a site would be. The range is picked for the given average degree, and no node gets more
+   * links than Nearby Connections allows it. Groups that end up out of range of each other are
+   * joined through their closest nodes, so that every node can be reached.
+   *
+   * @param nodeCount The number of nodes.
+   * @param degree The average number of links a node should have.
+   * @param maxDegree The most links any node may have.
+   * @param random Where the nodes are placed.
+   */
+  public static Topology random(int nodeCount, double degree, int maxDegree, Random random) {
+    Topology topology =
+        new Topology(
+            nodeCount,
+            "random geometric graph of "
+                + nodeCount
+                + ", degree "
+                + degree
+                + " (max "
+                + maxDegree
+                + ")");
+    double[] x = new double[nodeCount];
+    double[] y = new double[nodeCount];
+    for (int i = 0; i < nodeCount; i++) {
+      x[i] = random.nextDouble();
+      y[i] = random.nextDouble();
+    }
+
+    // On average a circle of this radius around a node holds the wanted number of other nodes.
+    double range = Math.sqrt(degree / (Math.PI * nodeCount));
+    List<double[]> candidates = new ArrayList<>();
+    for (int i = 0; i < nodeCount; i++) {
+      for (int j = i + 1; j < nodeCount; j++) {
+        double distance = Math.hypot(x[i] - x[j], y[i] - y[j]);
+        if (distance <= range) {
+          candidates.add(new double[] {distance, i, j});
+        }
+      }
+    }
+    // The closest pairs connect first, as they would in the field.
+    Collections.sort(
+        candidates,
+        new Comparator<double[]>() {
+          @Override
+          public int compare(double[] a, double[] b) {
+            return Double.compare(a[0], b[0]);
+          }
+        });
+    for (double[] candidate : candidates) {
+      int i = (int) candidate[1];
+      int j = (int) candidate[2];
+      if (topology.getDegree(i) < maxDegree && topology.getDegree(j) < maxDegree) {
+        topology.link(i, j);
+      }
+    }
+
+    // Join every group to the one holding node 0 through the closest pair of nodes.
+    while (true) {
+      boolean[] reachable = topology.getReachable(0);
+      int bestFrom = -1;
+      int bestTo = -1;
+      double bestDistance = Double.MAX_VALUE;
+      for (int i = 0; i < nodeCount; i++) {
+        if (!reachable[i] || topology.getDegree(i) >= maxDegree) {
+          continue;
+        }
+        for (int j = 0; j < nodeCount; j++) {
+          if (reachable[j] || topology.getDegree(j) >= maxDegree) {
+            continue;
+          }
+          double distance = Math.hypot(x[i] - x[j], y[i] - y[j]);
+          if (distance < bestDistance) {
+            bestDistance = distance;
+            bestFrom = i;
+            bestTo = j;
+          }
+        }
+      }
+      if (bestFrom < 0) {
+        break;
+      }
+      topology.link(bestFrom, bestTo);
+    }
+    return topology;
+  }
+
+  private void link(int a, int b) {
+    if (a != b) {
+      mNeighbors.get(a).add(b);
+      mNeighbors.get(b).add(a);
+    }
+  }
+
+  /** Returns which nodes can be reached from the given one. */
+  private boolean[] getReachable(int from) {
+    boolean[] reachable = new boolean[mNeighbors.size()];
+    List<Integer> queue = new ArrayList<>();
+    reachable[from] = true;
+    queue.add(from);
+    for (int i = 0; i < queue.size(); i++) {
+      for (int neighbor : mNeighbors.get(queue.get(i))) {
+        if (!reachable[neighbor]) {
+          reachable[neighbor] = true;
+          queue.add(neighbor);
+        }
+      }
+    }
+    return reachable;
+  }
+
+  public int getNodeCount() {
+    return mNeighbors.size();
+  }
+
+  /** Returns the nodes linked to the given one, in ascending order. */
+  public Set<Integer> getNeighbors(int node) {
+    return Collections.unmodifiableSet(mNeighbors.get(node));
+  }
+
+  public int getDegree(int node) {
+    return mNeighbors.get(node).size();
+  }
+
+  public int getLinkCount() {
+    int ends = 0;
+    for (Set<Integer> neighbors : mNeighbors) {
+      ends += neighbors.size();
+    }
+    return ends / 2;
+  }
+
+  /** Returns true if every node can reach every other. */
+  public boolean isConnected() {
+    for (boolean reachable : getReachable(0)) {
+      if (!reachable) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return mDescription + ", " + getLinkCount() + " links";
+  }
+}
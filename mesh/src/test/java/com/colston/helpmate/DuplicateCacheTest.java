@@ -0,0 +1,116 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class DuplicateCacheTest {
+  @Test
+  public void add_reportsNewAndSeenKeys() {
+    DuplicateCache cache = new DuplicateCache(4);
+
+    assertTrue(cache.add(1));
+    assertFalse(cache.add(1));
+    assertEquals(2, cache.getCount(1));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void record_countsCopies() {
+    DuplicateCache cache = new DuplicateCache(4);
+
+    assertEquals(0, cache.record(7));
+    assertEquals(1, cache.record(7));
+    assertEquals(2, cache.record(7));
+    assertEquals(3, cache.getCount(7));
+    assertEquals(0, cache.getCount(8));
+  }
+
+  @Test
+  public void add_evictsOldestKeysAsTheOrderWrapsAround() {
+    DuplicateCache cache = new DuplicateCache(4);
+
+    for (long key = 0; key < 11; key++) {
+      cache.add(key);
+    }
+
+    assertEquals(4, cache.size());
+    for (long key = 0; key < 7; key++) {
+      assertFalse(cache.contains(key));
+    }
+    for (long key = 7; key < 11; key++) {
+      assertTrue(cache.contains(key));
+    }
+  }
+
+  @Test
+  public void clear_forgetsEveryKey() {
+    DuplicateCache cache = new DuplicateCache(4);
+    cache.add(1);
+    cache.add(2);
+
+    cache.clear();
+
+    assertEquals(0, cache.size());
+    assertFalse(cache.contains(1));
+    assertTrue(cache.add(1));
+  }
+
+  /**
+   * Evictions punch holes in probe chains, which the backward shift has to close up. Plenty of keys
+   * share a home slot in a table this small, so compare against a plain map over many evictions: a
+   * key lost by a bad shift, or one left behind, shows up as a mismatch.
+   */
+  @Test
+  public void eviction_keepsProbeChainsIntact() {
+    int capacity = 8;
+    DuplicateCache cache = new DuplicateCache(capacity);
+    Map<Long, Integer> expected = new LinkedHashMap<>();
+    Random random = new Random(1);
+
+    for (int i = 0; i < 20000; i++) {
+      long key = random.nextInt(40);
+      Integer count = expected.get(key);
+      if (count != null) {
+        expected.put(key, count + 1);
+      } else {
+        if (expected.size() == capacity) {
+          Iterator<Long> oldest = expected.keySet().iterator();
+          oldest.next();
+          oldest.remove();
+        }
+        expected.put(key, 1);
+      }
+      cache.record(key);
+
+      assertEquals(expected.size(), cache.size());
+      for (long k = 0; k < 40; k++) {
+        Integer c = expected.get(k);
+        assertEquals("key " + k + " after " + i, c != null ? c : 0, cache.getCount(k));
+      }
+    }
+  }
+}
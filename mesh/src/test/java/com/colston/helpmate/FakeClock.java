@@ -0,0 +1,36 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+/** A {@link Clock} that only moves when a test moves it. */
+class FakeClock implements Clock {
+  private long mNow;
+
+  FakeClock(long now) {
+    mNow = now;
+  }
+
+  @Override
+  public long now() {
+    return mNow;
+  }
+
+  void advance(long millis) {
+    mNow += millis;
+  }
+}
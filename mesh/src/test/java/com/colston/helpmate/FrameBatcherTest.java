@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class FrameBatcherTest {
+  private static final long MAX_DELAY = 20;
+
+  private final FakeClock mClock = new FakeClock(1000);
+  private final List<byte[]> mBatches = new ArrayList<>();
+  private final List<Integer> mPriorities = new ArrayList<>();
+  private final FrameBatcher.BatchListener mListener =
+      new FrameBatcher.BatchListener() {
+        @Override
+        public void onBatch(String endpointId, byte[] batch, int priority) {
+          mBatches.add(batch);
+          mPriorities.add(priority);
+        }
+      };
+
+  @Test
+  public void flushDue_sendsFramesTogetherOnceTheOldestHasWaited() {
+    FrameBatcher batcher = new FrameBatcher(mClock, 1000, MAX_DELAY);
+    batcher.add("e", frame(1, MeshFrame.PRIORITY_BULK), mListener);
+    mClock.advance(5);
+    batcher.add("e", frame(2, MeshFrame.PRIORITY_BULK), mListener);
+    assertEquals(1000 + MAX_DELAY, batcher.getNextDeadline());
+
+    mClock.advance(MAX_DELAY - 6);
+    batcher.flushDue(mListener);
+    assertTrue(mBatches.isEmpty());
+
+    mClock.advance(1);
+    batcher.flushDue(mListener);
+    assertEquals(1, mBatches.size());
+    assertEquals(Arrays.asList(1, 2), unbatch(mBatches.get(0)));
+    assertEquals(-1, batcher.getNextDeadline());
+  }
+
+  @Test
+  public void add_sendsTheBatchWhenTheNextFrameDoesNotFit() {
+    int frameLength = frame(1, MeshFrame.PRIORITY_BULK).length;
+    FrameBatcher batcher = new FrameBatcher(mClock, 2 * frameLength + 1, MAX_DELAY);
+
+    for (int messageId = 1; messageId <= 3; messageId++) {
+      batcher.add("e", frame(messageId, MeshFrame.PRIORITY_BULK), mListener);
+    }
+
+    assertEquals(1, mBatches.size());
+    assertEquals(Arrays.asList(1, 2), unbatch(mBatches.get(0)));
+    batcher.flushAll(mListener);
+    assertEquals(Arrays.asList(3), unbatch(mBatches.get(1)));
+  }
+
+  @Test
+  public void add_sendsEmergencyFramesRightAway() {
+    FrameBatcher batcher = new FrameBatcher(mClock, 1000, MAX_DELAY);
+    batcher.add("e", frame(1, MeshFrame.PRIORITY_BULK), mListener);
+
+    batcher.add("e", frame(2, MeshFrame.PRIORITY_EMERGENCY), mListener);
+
+    assertEquals(1, mBatches.size());
+    assertEquals(Arrays.asList(2), unbatch(mBatches.get(0)));
+    assertEquals(Arrays.asList(MeshFrame.PRIORITY_EMERGENCY), mPriorities);
+  }
+
+  @Test
+  public void flushAll_keepsPriorityClassesApartHighestFirst() {
+    FrameBatcher batcher = new FrameBatcher(mClock, 1000, MAX_DELAY);
+    batcher.add("e", frame(1, MeshFrame.PRIORITY_BULK), mListener);
+    batcher.add("e", frame(2, MeshFrame.PRIORITY_CONTROL), mListener);
+    batcher.add("e", frame(3, MeshFrame.PRIORITY_BULK), mListener);
+
+    batcher.flushAll(mListener);
+
+    assertEquals(Arrays.asList(MeshFrame.PRIORITY_CONTROL, MeshFrame.PRIORITY_BULK), mPriorities);
+    assertEquals(Arrays.asList(2), unbatch(mBatches.get(0)));
+    assertEquals(Arrays.asList(1, 3), unbatch(mBatches.get(1)));
+  }
+
+  @Test
+  public void remove_dropsWhatIsWaiting() {
+    FrameBatcher batcher = new FrameBatcher(mClock, 1000, MAX_DELAY);
+    batcher.add("e", frame(1, MeshFrame.PRIORITY_BULK), mListener);
+
+    batcher.remove("e");
+    batcher.flushAll(mListener);
+
+    assertTrue(mBatches.isEmpty());
+    assertEquals(-1, batcher.getNextDeadline());
+  }
+
+  @Test
+  public void unbatch_stopsAtTruncatedData() {
+    byte[] frame = frame(1, MeshFrame.PRIORITY_BULK);
+    byte[] payload = Arrays.copyOf(frame, frame.length + 3);
+    final List<Integer> messageIds = new ArrayList<>();
+
+    assertFalse(
+        FrameBatcher.unbatch(
+            payload,
+            payload.length,
+            new FrameBatcher.FrameListener() {
+              @Override
+              public void onFrame(byte[] buffer, int offset, int length) {
+                messageIds.add(MeshFrame.getMessageId(buffer, offset));
+              }
+            }));
+    assertEquals(Arrays.asList(1), messageIds);
+  }
+
+  /** Returns the message ids of the frames in a batch. */
+  private static List<Integer> unbatch(byte[] batch) {
+    final List<Integer> messageIds = new ArrayList<>();
+    assertTrue(
+        FrameBatcher.unbatch(
+            batch,
+            batch.length,
+            new FrameBatcher.FrameListener() {
+              @Override
+              public void onFrame(byte[] buffer, int offset, int length) {
+                messageIds.add(MeshFrame.getMessageId(buffer, offset));
+              }
+            }));
+    return messageIds;
+  }
+
+  private static byte[] frame(int messageId, int priority) {
+    byte[] frame =
+        MeshFrame.create(
+            MeshFrame.TYPE_TEXT,
+            4,
+            messageId,
+            MeshFrame.encodeAddress("a"),
+            MeshFrame.encodeAddress("b"),
+            "hi".getBytes(StandardCharsets.UTF_8));
+    MeshFrame.setPriority(frame, 0, priority);
+    return frame;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+
+public class LinkStateDatabaseTest {
+  private static final long LIFETIME = 60 * 1000;
+
+  private final FakeClock mClock = new FakeClock(1000);
+  private final LinkStateDatabase mDatabase = new LinkStateDatabase(LIFETIME);
+
+  @Test
+  public void getNextHop_followsTheShortestPath() {
+    buildLine();
+
+    assertEquals("b", nextHop("d"));
+    assertEquals("b", nextHop("e"));
+    assertEquals("c", nextHop("c"));
+    assertNull(mDatabase.getNextHop(key("f")));
+    assertEquals(5, mDatabase.getReachableCount());
+    assertEquals(new HashSet<>(Arrays.asList("b", "c", "d", "e")), mDatabase.getReachableNodes());
+  }
+
+  @Test
+  public void getArticulationPoints_findsNodesThatSplitTheMesh() {
+    buildLine();
+
+    assertEquals(Arrays.asList("a", "b", "d"), mDatabase.getArticulationPoints());
+    assertTrue(mDatabase.getRedundantNeighbors().isEmpty());
+  }
+
+  @Test
+  public void onBeacon_appliesDeltasOnTopOfTheirBase() {
+    buildLine();
+
+    assertTrue(delta("b", 2, 1, Arrays.asList("c"), Collections.<String>emptyList()));
+
+    assertEquals(Arrays.asList("b", "d"), mDatabase.getArticulationPoints());
+    assertEquals(new HashSet<>(Arrays.asList("b", "c")), mDatabase.getRedundantNeighbors());
+  }
+
+  @Test
+  public void onBeacon_ignoresDeltasAgainstAMissedBeacon() {
+    buildLine();
+
+    assertFalse(delta("b", 3, 2, Arrays.asList("c"), Collections.<String>emptyList()));
+
+    assertEquals(Arrays.asList("a", "b", "d"), mDatabase.getArticulationPoints());
+  }
+
+  @Test
+  public void onBeacon_ignoresOlderFullBeacons() {
+    buildLine();
+    full("b", 5, "a", "d");
+
+    assertFalse(full("b", 4, "a"));
+
+    assertEquals("b", nextHop("e"));
+  }
+
+  @Test
+  public void expire_dropsNodesNotHeardFromWithinTheLifetime() {
+    buildLine();
+    mClock.advance(LIFETIME / 2);
+    full("d", 2, "b", "e");
+
+    mClock.advance(LIFETIME / 2);
+    assertFalse(mDatabase.expire(mClock.now()));
+    mClock.advance(1);
+    assertTrue(mDatabase.expire(mClock.now()));
+
+    // b's entry is gone, but d still lists b, and we still list b ourselves.
+    assertEquals("b", nextHop("e"));
+    mClock.advance(LIFETIME / 2);
+    assertTrue(mDatabase.expire(mClock.now()));
+    assertNull(mDatabase.getNextHop(key("e")));
+    assertEquals(3, mDatabase.getReachableCount());
+  }
+
+  /** a - b - d - e, with c hanging off a. We're a. */
+  private void buildLine() {
+    mDatabase.setLocalLinks(address("a"), addresses("b", "c"));
+    full("b", 1, "a", "d");
+    full("d", 1, "b", "e");
+  }
+
+  private boolean full(String origin, int sequence, String... neighbors) {
+    byte[] beacon = LinkStateBeacon.createFull(sequence, addresses(neighbors));
+    return mDatabase.onBeacon(address(origin), beacon, 0, beacon.length, mClock.now());
+  }
+
+  private boolean delta(
+      String origin, int sequence, int baseSequence, List<String> added, List<String> removed) {
+    byte[] beacon =
+        LinkStateBeacon.createDelta(
+            sequence,
+            baseSequence,
+            addresses(added.toArray(new String[0])),
+            addresses(removed.toArray(new String[0])));
+    return mDatabase.onBeacon(address(origin), beacon, 0, beacon.length, mClock.now());
+  }
+
+  private String nextHop(String node) {
+    return MeshFrame.decodeAddress(mDatabase.getNextHop(key(node)));
+  }
+
+  private static List<byte[]> addresses(String... names) {
+    List<byte[]> addresses = new ArrayList<>();
+    for (String name : names) {
+      addresses.add(address(name));
+    }
+    return addresses;
+  }
+
+  private static byte[] address(String name) {
+    return MeshFrame.encodeAddress(name);
+  }
+
+  private static long key(String name) {
+    return MeshFrame.addressKey(address(name));
+  }
+}
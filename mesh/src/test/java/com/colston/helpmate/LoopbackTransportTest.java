@@ -0,0 +1,247 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+
+public class LoopbackTransportTest {
+  private static final String SERVICE_ID = "test";
+
+  /** Stands in for the main thread: callbacks queue up until {@link #drain()} runs them. */
+  private final Queue<Runnable> mQueue = new ArrayDeque<>();
+
+  private final Executor mMainThread =
+      new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+          synchronized (mQueue) {
+            mQueue.add(runnable);
+          }
+        }
+      };
+
+  private final LoopbackTransport.Network mNetwork = new LoopbackTransport.Network();
+
+  @Test
+  public void endpoints_discoverConnectAndExchangeBytes() {
+    Node alice = new Node("alice");
+    Node bob = new Node("bob");
+
+    alice.start();
+    bob.start();
+    drain();
+
+    assertEquals(Collections.singletonList("bob"), new ArrayList<>(alice.connected.values()));
+    assertEquals(Collections.singletonList("alice"), new ArrayList<>(bob.connected.values()));
+
+    long payloadId =
+        alice.transport.sendBytes(alice.connected.keySet(), new byte[] {1, 2, 3}, null);
+    drain();
+
+    assertEquals(1, bob.received.size());
+    assertArrayEquals(new byte[] {1, 2, 3}, bob.received.get(0));
+    assertEquals(MeshTransport.TRANSFER_SUCCESS, (int) alice.transfers.get(payloadId));
+  }
+
+  @Test
+  public void rejectedConnection_failsOnBothSides() {
+    Node alice = new Node("alice");
+    Node bob = new Node("bob");
+    bob.accepting = false;
+
+    alice.start();
+    bob.start();
+    drain();
+
+    assertTrue(alice.connected.isEmpty());
+    assertTrue(bob.connected.isEmpty());
+    assertTrue(alice.failures > 0);
+    assertTrue(bob.failures > 0);
+  }
+
+  @Test
+  public void disconnect_onlyTellsTheOtherSide() {
+    Node alice = new Node("alice");
+    Node bob = new Node("bob");
+    alice.start();
+    bob.start();
+    drain();
+
+    alice.transport.disconnectFromEndpoint(bob.transport.getId());
+    alice.connected.remove(bob.transport.getId());
+    drain();
+
+    assertTrue(bob.connected.isEmpty());
+    assertEquals(0, alice.disconnects);
+    assertEquals(1, bob.disconnects);
+  }
+
+  @Test
+  public void sendBytes_toUnknownEndpointFails() {
+    Node alice = new Node("alice");
+    alice.start();
+    drain();
+
+    long payloadId =
+        alice.transport.sendBytes(Collections.singleton("nobody"), new byte[] {1}, null);
+    drain();
+
+    assertEquals(MeshTransport.TRANSFER_FAILURE, (int) alice.transfers.get(payloadId));
+  }
+
+  @Test
+  public void sendStream_copiesTheStreamToTheReceiver() throws IOException {
+    Node alice = new Node("alice");
+    Node bob = new Node("bob");
+    alice.start();
+    bob.start();
+    drain();
+
+    byte[] data = new byte[10000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    alice.transport.sendStream(alice.connected.keySet(), new ByteArrayInputStream(data), null);
+    drain();
+
+    assertEquals(1, bob.streams.size());
+    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = bob.streams.get(0).read(buffer)) > 0) {
+      copy.write(buffer, 0, read);
+    }
+    assertArrayEquals(data, copy.toByteArray());
+  }
+
+  /** Runs queued callbacks, including the ones they queue, until there are none left. */
+  private void drain() {
+    while (true) {
+      Runnable runnable;
+      synchronized (mQueue) {
+        runnable = mQueue.poll();
+      }
+      if (runnable == null) {
+        return;
+      }
+      runnable.run();
+    }
+  }
+
+  /**
+   * A node that behaves like ConnectionsActivity: it advertises and discovers, asks every node it
+   * finds to connect, and accepts every connection.
+   */
+  private class Node implements MeshTransport.Callback {
+    final String name;
+    final LoopbackTransport transport = new LoopbackTransport(mNetwork, mMainThread);
+
+    /** Names of the established connections, by endpoint id. */
+    final Map<String, String> connected = new LinkedHashMap<>();
+
+    final Map<String, String> pending = new LinkedHashMap<>();
+    final List<byte[]> received = new ArrayList<>();
+    final List<InputStream> streams = new ArrayList<>();
+
+    /** The latest status of each payload, sent or received. */
+    final Map<Long, Integer> transfers = new HashMap<>();
+
+    boolean accepting = true;
+    int failures;
+    int disconnects;
+
+    Node(String name) {
+      this.name = name;
+      transport.setCallback(this);
+    }
+
+    void start() {
+      transport.startAdvertising(name, SERVICE_ID, null);
+      transport.startDiscovery(SERVICE_ID, null);
+    }
+
+    @Override
+    public void onEndpointFound(String endpointId, String name) {
+      if (!connected.containsKey(endpointId) && !pending.containsKey(endpointId)) {
+        transport.requestConnection(this.name, endpointId, null);
+      }
+    }
+
+    @Override
+    public void onEndpointLost(String endpointId) {}
+
+    @Override
+    public void onConnectionInitiated(String endpointId, String name, boolean incoming) {
+      pending.put(endpointId, name);
+      if (accepting) {
+        transport.acceptConnection(endpointId, null);
+      } else {
+        transport.rejectConnection(endpointId, null);
+      }
+    }
+
+    @Override
+    public void onConnectionResult(String endpointId, boolean connected, String status) {
+      String name = pending.remove(endpointId);
+      if (connected) {
+        this.connected.put(endpointId, name);
+      } else {
+        failures++;
+      }
+    }
+
+    @Override
+    public void onDisconnected(String endpointId) {
+      connected.remove(endpointId);
+      disconnects++;
+    }
+
+    @Override
+    public void onBytesReceived(String endpointId, long payloadId, byte[] bytes) {
+      received.add(bytes);
+    }
+
+    @Override
+    public void onStreamReceived(String endpointId, long payloadId, InputStream stream) {
+      streams.add(stream);
+    }
+
+    @Override
+    public void onTransferUpdate(
+        String endpointId, long payloadId, int status, long bytesTransferred) {
+      transfers.put(payloadId, status);
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class MeshEngineTest {
+  private static final long LIFETIME = 60000;
+
+  private final FakeClock mClock = new FakeClock(1000);
+  private final Node mNode = new Node("a", 1);
+
+  @Test
+  public void onNeighborConnected_sendsStoredFramesToTheirNode() {
+    store(1, "c");
+
+    mNode.engine.onNeighborConnected("c1", "c");
+
+    assertEquals(Arrays.asList("1@c1"), mNode.getTextSends());
+    // It stays stored until it's acked.
+    assertEquals(1, mNode.engine.getStoreAndForward().size());
+  }
+
+  @Test
+  public void onNeighborConnected_leavesUnroutableFramesQueued() {
+    store(1, "c");
+
+    mNode.engine.onNeighborConnected("b1", "b");
+    mNode.engine.onNeighborDisconnected("b1");
+    mNode.engine.onNeighborConnected("b1", "b");
+
+    assertTrue(mNode.getTextSends().isEmpty());
+    assertEquals(1, mNode.engine.getStoreAndForward().size());
+  }
+
+  @Test
+  public void onNeighborConnected_forwardsFramesRoutedThroughTheNeighbor() {
+    store(1, "c");
+    store(2, "e");
+    beacon("b", "a", "c");
+    beacon("c", "b");
+
+    mNode.engine.onNeighborConnected("d1", "d");
+    mNode.engine.onNeighborConnected("b1", "b");
+
+    assertEquals(Arrays.asList("1@b1"), mNode.getTextSends());
+    assertEquals(2, mNode.engine.getStoreAndForward().size());
+  }
+
+  @Test
+  public void storedFrame_isDeliveredAndAckedAfterGivingUp() {
+    Node c = new Node("c", 2);
+    c.engine.onNeighborConnected("a1", "a");
+    mNode.engine.onNeighborConnected("c1", "c");
+    int messageId = mNode.engine.sendText("c", "hello");
+
+    // The first transmission arrives, but its ack is lost and the link drops.
+    c.receive("a1", mNode.getLastSent(MeshFrame.TYPE_TEXT));
+    assertEquals(Arrays.asList("hello"), c.messages);
+    c.sent.clear();
+    mNode.engine.onNeighborDisconnected("c1");
+    runUntilGivenUp(messageId);
+    assertEquals(1, mNode.engine.getStoreAndForward().size());
+
+    mNode.sent.clear();
+    mNode.engine.onNeighborConnected("c1", "c");
+    byte[] resent = mNode.getLastSent(MeshFrame.TYPE_TEXT);
+    assertNotEquals(0, MeshFrame.getAttempt(resent, 0));
+    c.receive("a1", resent);
+
+    // C has already shown the message, but acks the resend rather than dropping it as a duplicate.
+    assertEquals(Arrays.asList("hello"), c.messages);
+    mNode.receive("c1", c.getLastSent(MeshFrame.TYPE_ACK));
+
+    assertEquals(Arrays.asList(messageId), mNode.delivered);
+    assertEquals(0, mNode.engine.getStoreAndForward().size());
+  }
+
+  @Test
+  public void storedFrame_isRetransmittedUntilAcked() {
+    mNode.engine.onNeighborConnected("c1", "c");
+    int messageId = mNode.engine.sendText("c", "hello");
+    mNode.engine.onNeighborDisconnected("c1");
+    runUntilGivenUp(messageId);
+
+    mNode.engine.onNeighborConnected("c1", "c");
+    mNode.sent.clear();
+    // The resend is lost too, so it's retransmitted once its ack is overdue.
+    for (int i = 0; i < 100 && mNode.getTextSends().isEmpty(); i++) {
+      mClock.advance(mNode.engine.getNextDeadline() - mClock.now());
+      mNode.engine.runDue();
+    }
+
+    assertEquals(Arrays.asList(messageId + "@c1"), mNode.getTextSends());
+    byte[] retransmitted = mNode.getLastSent(MeshFrame.TYPE_TEXT);
+    assertEquals(new MeshConfig().maxTransmissions + 1, MeshFrame.getAttempt(retransmitted, 0));
+    assertEquals(1, mNode.engine.getStoreAndForward().size());
+  }
+
+  @Test
+  public void lateAck_forResentStoredFrameIsDelivered() {
+    Node c = new Node("c", 2);
+    c.engine.onNeighborConnected("a1", "a");
+    mNode.engine.onNeighborConnected("c1", "c");
+    int messageId = mNode.engine.sendText("c", "hello");
+    mNode.engine.onNeighborDisconnected("c1");
+    runUntilGivenUp(messageId);
+
+    // The resend arrives, but its retransmissions are all used up before the ack makes it back.
+    mNode.engine.onNeighborConnected("c1", "c");
+    c.receive("a1", mNode.getLastSent(MeshFrame.TYPE_TEXT));
+    mNode.notDelivered.clear();
+    runUntilGivenUp(messageId);
+    mNode.receive("c1", c.getLastSent(MeshFrame.TYPE_ACK));
+
+    assertEquals(Arrays.asList(messageId), mNode.delivered);
+    assertEquals(0, mNode.engine.getStoreAndForward().size());
+
+    // Later copies of the ack are ignored.
+    mNode.receive("c1", c.getLastSent(MeshFrame.TYPE_ACK));
+    assertEquals(Arrays.asList(messageId), mNode.delivered);
+  }
+
+  @Test
+  public void relay_doesNotStoreOtherNodesFrames() {
+    mNode.engine.onNeighborConnected("b1", "b");
+    byte[] frame =
+        MeshFrame.create(
+            MeshFrame.TYPE_TEXT,
+            1,
+            1,
+            MeshFrame.encodeAddress("b"),
+            MeshFrame.encodeAddress("e"),
+            "hi".getBytes(StandardCharsets.UTF_8));
+    mNode.receive("b1", frame);
+
+    assertEquals(0, mNode.engine.getStoreAndForward().size());
+  }
+
+  /** Lets every retransmission of a message time out, until the engine gives up on it. */
+  private void runUntilGivenUp(int messageId) {
+    for (int i = 0; i < 100 && !mNode.notDelivered.contains(messageId); i++) {
+      mClock.advance(Math.max(0, mNode.engine.getNextDeadline() - mClock.now()));
+      mNode.engine.runDue();
+    }
+    assertTrue(mNode.notDelivered.contains(messageId));
+  }
+
+  private void store(int messageId, String destination) {
+    byte[] frame =
+        MeshFrame.create(
+            MeshFrame.TYPE_TEXT,
+            1,
+            messageId,
+            MeshFrame.encodeAddress("a"),
+            MeshFrame.encodeAddress(destination),
+            "hi".getBytes(StandardCharsets.UTF_8));
+    mNode.engine.getStoreAndForward().add(frame, LIFETIME);
+  }
+
+  private void beacon(String origin, String... neighbors) {
+    List<byte[]> addresses = new ArrayList<>();
+    for (String neighbor : neighbors) {
+      addresses.add(MeshFrame.encodeAddress(neighbor));
+    }
+    byte[] beacon = LinkStateBeacon.createFull(1, addresses);
+    mNode
+        .engine
+        .getLinkState()
+        .onBeacon(MeshFrame.encodeAddress(origin), beacon, 0, beacon.length, mClock.now());
+  }
+
+  /** An engine, and a record of what it did. */
+  private class Node implements MeshEngine.Listener {
+    final MeshEngine engine;
+    final List<byte[]> sent = new ArrayList<>();
+    final List<Collection<String>> sentTo = new ArrayList<>();
+    final List<String> messages = new ArrayList<>();
+    final List<Integer> delivered = new ArrayList<>();
+    final List<Integer> notDelivered = new ArrayList<>();
+
+    Node(String name, long seed) {
+      engine = new MeshEngine(name, new MeshConfig(), mClock, mClock, new Random(seed), this);
+    }
+
+    void receive(String endpointId, byte[] frame) {
+      engine.onReceiveFrame(endpointId, frame, 0, frame.length);
+    }
+
+    /** Returns the last frame of a type that was sent. */
+    byte[] getLastSent(int type) {
+      for (int i = sent.size() - 1; i >= 0; i--) {
+        if (MeshFrame.getType(sent.get(i), 0) == type) {
+          return sent.get(i);
+        }
+      }
+      throw new AssertionError("No frame of type " + type + " was sent");
+    }
+
+    /** Returns the text frames sent, as message id @ endpoint id. */
+    List<String> getTextSends() {
+      List<String> sends = new ArrayList<>();
+      for (int i = 0; i < sent.size(); i++) {
+        if (MeshFrame.getType(sent.get(i), 0) == MeshFrame.TYPE_TEXT) {
+          for (String endpointId : sentTo.get(i)) {
+            sends.add(MeshFrame.getMessageId(sent.get(i), 0) + "@" + endpointId);
+          }
+        }
+      }
+      return sends;
+    }
+
+    @Override
+    public void onSend(byte[] frame, Collection<String> endpointIds) {
+      sent.add(frame);
+      sentTo.add(new ArrayList<>(endpointIds));
+    }
+
+    @Override
+    public void onMessage(String source, int messageId, String text, int priority) {
+      messages.add(text);
+    }
+
+    @Override
+    public void onDelivered(String destination, int messageId) {
+      delivered.add(messageId);
+    }
+
+    @Override
+    public void onNotDelivered(String destination, int messageId) {
+      notDelivered.add(messageId);
+    }
+
+    @Override
+    public void onTopologyChanged() {}
+
+    @Override
+    public void onLog(String message) {}
+  }
+}
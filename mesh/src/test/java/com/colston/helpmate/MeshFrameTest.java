@@ -0,0 +1,97 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class MeshFrameTest {
+  private static final byte[] SOURCE = MeshFrame.encodeAddress("1");
+  private static final byte[] DESTINATION = MeshFrame.encodeAddress("2");
+
+  @Test
+  public void isValid_acceptsAck() {
+    byte[] ack = MeshFrame.createAck(4, 7, SOURCE, DESTINATION, 1234);
+
+    assertTrue(MeshFrame.isValid(ack, 0, ack.length));
+    assertEquals(1234, MeshFrame.getAckedMessageId(ack, 0));
+  }
+
+  @Test
+  public void isValid_rejectsAckWithoutMessageId() {
+    byte[] ack = MeshFrame.create(MeshFrame.TYPE_ACK, 4, 7, SOURCE, DESTINATION, new byte[0]);
+
+    assertFalse(MeshFrame.isValid(ack, 0, ack.length));
+  }
+
+  @Test
+  public void isValid_rejectsAckWithShortOrLongPayload() {
+    byte[] shortAck = MeshFrame.create(MeshFrame.TYPE_ACK, 4, 7, SOURCE, DESTINATION, new byte[3]);
+    byte[] longAck = MeshFrame.create(MeshFrame.TYPE_ACK, 4, 7, SOURCE, DESTINATION, new byte[5]);
+
+    assertFalse(MeshFrame.isValid(shortAck, 0, shortAck.length));
+    assertFalse(MeshFrame.isValid(longAck, 0, longAck.length));
+  }
+
+  @Test
+  public void isValid_acceptsProbes() {
+    byte[] ping = MeshFrame.createProbe(MeshFrame.TYPE_PING, 42);
+    byte[] pong = MeshFrame.createProbe(MeshFrame.TYPE_PONG, 42);
+
+    assertTrue(MeshFrame.isValid(ping, 0, ping.length));
+    assertTrue(MeshFrame.isValid(pong, 0, pong.length));
+    assertEquals(42, MeshFrame.getProbeId(ping, 0));
+  }
+
+  @Test
+  public void isValid_rejectsProbesWithoutProbeId() {
+    byte[] ping = MeshFrame.create(MeshFrame.TYPE_PING, 0, 0, SOURCE, DESTINATION, new byte[0]);
+    byte[] pong = MeshFrame.create(MeshFrame.TYPE_PONG, 0, 0, SOURCE, DESTINATION, new byte[2]);
+
+    assertFalse(MeshFrame.isValid(ping, 0, ping.length));
+    assertFalse(MeshFrame.isValid(pong, 0, pong.length));
+  }
+
+  @Test
+  public void unbatch_stopsAtShortAckInsteadOfReadingNextFrame() {
+    byte[] shortAck = MeshFrame.create(MeshFrame.TYPE_ACK, 4, 7, SOURCE, DESTINATION, new byte[0]);
+    byte[] text = MeshFrame.create(MeshFrame.TYPE_TEXT, 4, 8, SOURCE, DESTINATION, new byte[8]);
+    byte[] batch = new byte[shortAck.length + text.length];
+    System.arraycopy(shortAck, 0, batch, 0, shortAck.length);
+    System.arraycopy(text, 0, batch, shortAck.length, text.length);
+    final AtomicInteger frames = new AtomicInteger();
+
+    boolean intact =
+        FrameBatcher.unbatch(
+            batch,
+            batch.length,
+            new FrameBatcher.FrameListener() {
+              @Override
+              public void onFrame(byte[] buffer, int offset, int length) {
+                frames.incrementAndGet();
+              }
+            });
+
+    assertFalse(intact);
+    assertEquals(0, frames.get());
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class OutboundQueueTest {
+  private static final long TIMEOUT = 5000;
+
+  private final FakeClock mClock = new FakeClock(1000);
+  private final List<String> mSent = new ArrayList<>();
+  private final OutboundQueue.SendListener mListener =
+      new OutboundQueue.SendListener() {
+        @Override
+        public long onSend(String endpointId, byte[] payload) {
+          mSent.add(endpointId + ":" + payload[0]);
+          return mSent.size();
+        }
+      };
+
+  @Test
+  public void add_holdsPayloadsBeyondTheWindow() {
+    OutboundQueue queue = newQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+    add(queue, "e", 1, MeshFrame.PRIORITY_BULK);
+    add(queue, "e", 2, MeshFrame.PRIORITY_BULK);
+    add(queue, "e", 3, MeshFrame.PRIORITY_BULK);
+
+    assertEquals(Arrays.asList("e:1", "e:2"), mSent);
+    assertEquals(2, queue.getInFlightCount("e"));
+    assertEquals(1, queue.getQueuedCount("e"));
+  }
+
+  @Test
+  public void onTransferFinished_sendsTheNextPayload() {
+    OutboundQueue queue = newQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    add(queue, "e", 1, MeshFrame.PRIORITY_BULK);
+    add(queue, "e", 2, MeshFrame.PRIORITY_BULK);
+    add(queue, "e", 3, MeshFrame.PRIORITY_BULK);
+
+    // Results for payloads we didn't send change nothing.
+    queue.onTransferFinished("e", 99, mListener);
+    assertEquals(2, mSent.size());
+
+    queue.onTransferFinished("e", 1, mListener);
+    assertEquals(Arrays.asList("e:1", "e:2", "e:3"), mSent);
+    assertEquals(0, queue.getQueuedCount("e"));
+  }
+
+  @Test
+  public void runDue_givesUpOnPayloadsWithoutAResult() {
+    OutboundQueue queue = newQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    add(queue, "e", 1, MeshFrame.PRIORITY_BULK);
+    mClock.advance(100);
+    add(queue, "e", 2, MeshFrame.PRIORITY_BULK);
+    add(queue, "e", 3, MeshFrame.PRIORITY_BULK);
+    assertEquals(1000 + TIMEOUT, queue.getNextDeadline());
+
+    mClock.advance(TIMEOUT - 101);
+    queue.runDue(mListener);
+    assertEquals(2, mSent.size());
+
+    mClock.advance(1);
+    queue.runDue(mListener);
+    assertEquals(Arrays.asList("e:1", "e:2", "e:3"), mSent);
+    assertEquals(1100 + TIMEOUT, queue.getNextDeadline());
+  }
+
+  @Test
+  public void drain_sendsHigherClassesFirst() {
+    OutboundQueue queue = newQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    add(queue, "e", 1, MeshFrame.PRIORITY_BULK);
+    add(queue, "e", 2, MeshFrame.PRIORITY_BULK);
+    add(queue, "e", 3, MeshFrame.PRIORITY_BULK);
+    add(queue, "e", 4, MeshFrame.PRIORITY_EMERGENCY);
+
+    queue.onTransferFinished("e", 1, mListener);
+
+    assertEquals(Arrays.asList("e:1", "e:2", "e:4"), mSent);
+  }
+
+  @Test
+  public void add_whenFull_dropsTheOldestOfTheSameClass() {
+    OutboundQueue queue = newQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    fill(queue);
+
+    assertTrue(add(queue, "e", 5, MeshFrame.PRIORITY_BULK));
+
+    drainAll(queue);
+    assertEquals(Arrays.asList("e:1", "e:2", "e:4", "e:5"), mSent);
+    assertEquals(1, queue.getDroppedCount());
+  }
+
+  @Test
+  public void add_whenFull_rejectsTheNewestOfTheSameClass() {
+    OutboundQueue queue = newQueue(2, OutboundQueue.OverflowPolicy.REJECT_NEWEST);
+    fill(queue);
+
+    assertFalse(add(queue, "e", 5, MeshFrame.PRIORITY_BULK));
+
+    drainAll(queue);
+    assertEquals(Arrays.asList("e:1", "e:2", "e:3", "e:4"), mSent);
+    assertEquals(1, queue.getDroppedCount());
+  }
+
+  @Test
+  public void add_whenFull_makesRoomForAHigherClass() {
+    OutboundQueue queue = newQueue(2, OutboundQueue.OverflowPolicy.REJECT_NEWEST);
+    fill(queue);
+
+    assertTrue(add(queue, "e", 5, MeshFrame.PRIORITY_EMERGENCY));
+    assertFalse(add(queue, "e", 6, MeshFrame.PRIORITY_BULK));
+
+    drainAll(queue);
+    assertEquals(Arrays.asList("e:1", "e:2", "e:5", "e:4"), mSent);
+  }
+
+  @Test
+  public void remove_dropsWhatIsWaiting() {
+    OutboundQueue queue = newQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    fill(queue);
+
+    queue.remove("e");
+
+    assertEquals(0, queue.getQueuedCount("e"));
+    assertEquals(0, queue.getInFlightCount("e"));
+    assertEquals(-1, queue.getNextDeadline());
+  }
+
+  /** Puts two payloads in flight, and queues two more. */
+  private void fill(OutboundQueue queue) {
+    for (int i = 1; i <= 4; i++) {
+      add(queue, "e", i, MeshFrame.PRIORITY_BULK);
+    }
+  }
+
+  /** Finishes transfers until nothing is left. */
+  private void drainAll(OutboundQueue queue) {
+    for (long payloadId = 1; payloadId <= mSent.size(); payloadId++) {
+      queue.onTransferFinished("e", payloadId, mListener);
+    }
+  }
+
+  private OutboundQueue newQueue(int capacity, OutboundQueue.OverflowPolicy policy) {
+    return new OutboundQueue(mClock, capacity, 2, TIMEOUT, policy);
+  }
+
+  private boolean add(OutboundQueue queue, String endpointId, int tag, int priority) {
+    return queue.add(endpointId, new byte[] {(byte) tag}, priority, mListener);
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class ReconnectSchedulerTest {
+  private static final long INITIAL_DELAY = 1000;
+  private static final long MAX_DELAY = 8000;
+  private static final int MAX_ATTEMPTS = 6;
+  private static final long BLACKLIST_DURATION = 60000;
+
+  private final FakeClock mClock = new FakeClock(0);
+  private final List<String> mRetries = new ArrayList<>();
+
+  private final ReconnectScheduler.Listener mListener =
+      new ReconnectScheduler.Listener() {
+        @Override
+        public void onRetry(String peer, int attempt) {
+          mRetries.add(peer + "#" + attempt);
+        }
+      };
+
+  @Test
+  public void onConnectionFailed_doublesTheDelayUpToTheMaximum() {
+    ReconnectScheduler scheduler = create(0, 0);
+
+    List<Long> delays = new ArrayList<>();
+    for (int i = 0; i < MAX_ATTEMPTS - 1; i++) {
+      scheduler.onConnectionFailed("a");
+      delays.add(scheduler.getNextDeadline() - mClock.now());
+      mClock.advance(delays.get(i));
+      scheduler.runDue(mListener);
+    }
+
+    assertEquals(Arrays.asList(1000L, 2000L, 4000L, 8000L, 8000L), delays);
+    assertEquals(Arrays.asList("a#1", "a#2", "a#3", "a#4", "a#5"), mRetries);
+  }
+
+  @Test
+  public void onConnectionFailed_addsJitter() {
+    ReconnectScheduler scheduler = create(0.5, 0.5);
+
+    scheduler.onConnectionFailed("a");
+
+    // Jitter of up to half again, drawn at 0.5, adds a quarter.
+    assertEquals(1250, scheduler.getNextDeadline());
+  }
+
+  @Test
+  public void runDue_waitsForTheDeadline() {
+    ReconnectScheduler scheduler = create(0, 0);
+    scheduler.onConnectionFailed("a");
+
+    mClock.advance(INITIAL_DELAY - 1);
+    scheduler.runDue(mListener);
+    assertTrue(mRetries.isEmpty());
+    assertTrue(scheduler.isWaiting("a"));
+
+    mClock.advance(1);
+    scheduler.runDue(mListener);
+    assertEquals(Arrays.asList("a#1"), mRetries);
+    assertFalse(scheduler.isWaiting("a"));
+  }
+
+  @Test
+  public void onConnected_forgetsFailures() {
+    ReconnectScheduler scheduler = create(0, 0);
+    scheduler.onConnectionFailed("a");
+    scheduler.onConnectionFailed("a");
+
+    scheduler.onConnected("a");
+
+    assertEquals(0, scheduler.getFailures("a"));
+    assertEquals(-1, scheduler.getNextDeadline());
+  }
+
+  @Test
+  public void onConnectionFailed_blacklistsAfterMaxAttempts() {
+    ReconnectScheduler scheduler = create(0, 0);
+    for (int i = 0; i < MAX_ATTEMPTS; i++) {
+      scheduler.onConnectionFailed("a");
+    }
+
+    assertTrue(scheduler.isBlacklisted("a"));
+    assertFalse(scheduler.isWaiting("a"));
+    assertEquals(-1, scheduler.getNextDeadline());
+
+    // Failures and disconnections while blacklisted don't schedule anything.
+    scheduler.onConnectionFailed("a");
+    scheduler.onDisconnected("a");
+    assertEquals(MAX_ATTEMPTS, scheduler.getFailures("a"));
+    assertEquals(-1, scheduler.getNextDeadline());
+  }
+
+  @Test
+  public void blacklist_expiresWithAFreshBudget() {
+    ReconnectScheduler scheduler = create(0, 0);
+    for (int i = 0; i < MAX_ATTEMPTS; i++) {
+      scheduler.onConnectionFailed("a");
+    }
+
+    mClock.advance(BLACKLIST_DURATION - 1);
+    assertTrue(scheduler.isBlacklisted("a"));
+    mClock.advance(1);
+    assertFalse(scheduler.isBlacklisted("a"));
+
+    scheduler.runDue(mListener);
+    assertEquals(0, scheduler.getFailures("a"));
+    assertTrue(mRetries.isEmpty());
+
+    scheduler.onConnectionFailed("a");
+    assertEquals(1, scheduler.getFailures("a"));
+    assertEquals(mClock.now() + INITIAL_DELAY, scheduler.getNextDeadline());
+  }
+
+  @Test
+  public void onConnectionFailed_afterExpiryWithoutRunDueStartsOver() {
+    ReconnectScheduler scheduler = create(0, 0);
+    for (int i = 0; i < MAX_ATTEMPTS; i++) {
+      scheduler.onConnectionFailed("a");
+    }
+    mClock.advance(BLACKLIST_DURATION);
+
+    scheduler.onConnectionFailed("a");
+
+    assertEquals(1, scheduler.getFailures("a"));
+    assertFalse(scheduler.isBlacklisted("a"));
+  }
+
+  @Test
+  public void onDisconnected_retriesAfterTheInitialDelay() {
+    ReconnectScheduler scheduler = create(0, 0);
+
+    scheduler.onDisconnected("a");
+    mClock.advance(INITIAL_DELAY);
+    scheduler.runDue(mListener);
+
+    assertEquals(Arrays.asList("a#1"), mRetries);
+  }
+
+  /**
+   * Returns a scheduler whose random share of each wait is always {@code draw} of {@code jitter}.
+   */
+  private ReconnectScheduler create(double jitter, final double draw) {
+    Random random =
+        new Random() {
+          @Override
+          public double nextDouble() {
+            return draw;
+          }
+        };
+    return new ReconnectScheduler(
+        mClock, random, INITIAL_DELAY, MAX_DELAY, jitter, MAX_ATTEMPTS, BLACKLIST_DURATION);
+  }
+}
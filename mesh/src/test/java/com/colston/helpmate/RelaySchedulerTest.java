@@ -0,0 +1,148 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class RelaySchedulerTest {
+  private static final long MIN_DELAY = 10;
+  private static final long MAX_DELAY = 150;
+  private static final int DUPLICATE_THRESHOLD = 3;
+
+  private final FakeClock mClock = new FakeClock(1000);
+  private final List<String> mForwarded = new ArrayList<>();
+
+  private final RelayScheduler.Listener<String> mListener =
+      new RelayScheduler.Listener<String>() {
+        @Override
+        public void onForward(long key, String item) {
+          mForwarded.add(item);
+        }
+      };
+
+  @Test
+  public void schedule_delaysByAtLeastTheMinimum() {
+    RelayScheduler<String> scheduler = create(0);
+
+    scheduler.schedule(1, "a");
+
+    assertEquals(1000 + MIN_DELAY, scheduler.getNextDeadline());
+  }
+
+  @Test
+  public void schedule_delaysByAtMostTheMaximum() {
+    RelayScheduler<String> scheduler = create(Math.nextDown(1.0));
+
+    scheduler.schedule(1, "a");
+
+    assertEquals(1000 + MAX_DELAY, scheduler.getNextDeadline());
+  }
+
+  @Test
+  public void schedule_spreadsDelaysOverTheWindow() {
+    RelayScheduler<String> scheduler =
+        new RelayScheduler<>(mClock, new Random(1), MIN_DELAY, MAX_DELAY, DUPLICATE_THRESHOLD);
+    long earliest = Long.MAX_VALUE;
+    long latest = Long.MIN_VALUE;
+    for (int key = 0; key < 1000; key++) {
+      scheduler.schedule(key, "a");
+      long deadline = scheduler.getNextDeadline();
+      earliest = Math.min(earliest, deadline);
+      latest = Math.max(latest, deadline);
+      scheduler.cancel(key);
+    }
+
+    assertTrue(earliest >= 1000 + MIN_DELAY);
+    assertTrue(latest <= 1000 + MAX_DELAY);
+    // With a thousand draws, both ends of the window should come close.
+    assertTrue(earliest < 1000 + MIN_DELAY + 5);
+    assertTrue(latest > 1000 + MAX_DELAY - 5);
+  }
+
+  @Test
+  public void schedule_ignoresKeyAlreadyPending() {
+    RelayScheduler<String> scheduler = create(0.5);
+
+    assertTrue(scheduler.schedule(1, "a"));
+    assertFalse(scheduler.schedule(1, "b"));
+    assertEquals(1, scheduler.getPendingCount());
+  }
+
+  @Test
+  public void runDue_forwardsOnlyOnceTheDelayHasPassed() {
+    RelayScheduler<String> scheduler = create(0);
+    scheduler.schedule(1, "a");
+
+    mClock.advance(MIN_DELAY - 1);
+    assertEquals(0, scheduler.runDue(mListener));
+    mClock.advance(1);
+    assertEquals(1, scheduler.runDue(mListener));
+
+    assertEquals(Arrays.asList("a"), mForwarded);
+    assertEquals(-1, scheduler.getNextDeadline());
+  }
+
+  @Test
+  public void onDuplicate_cancelsForwardAtThreshold() {
+    RelayScheduler<String> scheduler = create(0.5);
+    scheduler.schedule(1, "a");
+    scheduler.schedule(2, "b");
+
+    assertFalse(scheduler.onDuplicate(1));
+    assertFalse(scheduler.onDuplicate(1));
+    assertTrue(scheduler.onDuplicate(1));
+    assertFalse(scheduler.onDuplicate(1));
+
+    mClock.advance(MAX_DELAY);
+    scheduler.runDue(mListener);
+    assertEquals(Arrays.asList("b"), mForwarded);
+  }
+
+  @Test
+  public void onDuplicate_belowThresholdStillForwards() {
+    RelayScheduler<String> scheduler = create(0.5);
+    scheduler.schedule(1, "a");
+
+    scheduler.onDuplicate(1);
+    scheduler.onDuplicate(1);
+    mClock.advance(MAX_DELAY);
+    scheduler.runDue(mListener);
+
+    assertEquals(Arrays.asList("a"), mForwarded);
+  }
+
+  /** Returns a scheduler whose jitter is always the given fraction of the window. */
+  private RelayScheduler<String> create(final double jitter) {
+    Random random =
+        new Random() {
+          @Override
+          public double nextDouble() {
+            return jitter;
+          }
+        };
+    return new RelayScheduler<>(mClock, random, MIN_DELAY, MAX_DELAY, DUPLICATE_THRESHOLD);
+  }
+}
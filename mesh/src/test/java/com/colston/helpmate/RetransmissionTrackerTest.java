@@ -0,0 +1,154 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class RetransmissionTrackerTest {
+  private static final int MAX_ATTEMPTS = 3;
+  private static final long INITIAL_TIMEOUT = 1000;
+  private static final long MIN_TIMEOUT = 200;
+  private static final long MAX_TIMEOUT = 3000;
+
+  private final FakeClock mClock = new FakeClock(1000);
+  private final RetransmissionTracker mTracker =
+      new RetransmissionTracker(mClock, MAX_ATTEMPTS, INITIAL_TIMEOUT, MIN_TIMEOUT, MAX_TIMEOUT);
+  private final List<String> mEvents = new ArrayList<>();
+  private final RetransmissionTracker.Listener mListener =
+      new RetransmissionTracker.Listener() {
+        @Override
+        public void onRetransmit(int messageId, byte[] frame, int attempt) {
+          mEvents.add("retransmit " + messageId + " #" + attempt);
+        }
+
+        @Override
+        public void onGiveUp(int messageId, byte[] frame) {
+          mEvents.add("give up " + messageId);
+        }
+      };
+
+  @Test
+  public void runDue_retransmitsWithBackoffThenGivesUp() {
+    mTracker.track(1, frame(1));
+    assertEquals(1000 + INITIAL_TIMEOUT, mTracker.getNextDeadline());
+
+    runUntilIdle();
+
+    assertEquals(Arrays.asList("retransmit 1 #1", "retransmit 1 #2", "give up 1"), mEvents);
+    // Waits 1s, then 2s, then 4s capped to 3s.
+    assertEquals(1000 + INITIAL_TIMEOUT + 2 * INITIAL_TIMEOUT + MAX_TIMEOUT, mClock.now());
+    assertEquals(-1, mTracker.getNextDeadline());
+  }
+
+  @Test
+  public void runDue_leavesMessagesThatAreNotDueYet() {
+    mTracker.track(1, frame(1));
+
+    mClock.advance(INITIAL_TIMEOUT - 1);
+    mTracker.runDue(mListener);
+
+    assertTrue(mEvents.isEmpty());
+  }
+
+  @Test
+  public void onAck_stopsRetransmissionsAndReturnsTheRtt() {
+    mTracker.track(1, frame(1));
+    mClock.advance(400);
+
+    assertEquals(400, mTracker.onAck(1));
+    assertEquals(-1, mTracker.onAck(1));
+
+    runUntilIdle();
+    assertTrue(mEvents.isEmpty());
+  }
+
+  @Test
+  public void onAck_ofFirstTransmissionIsAnRttSample() {
+    byte[] frame = frame(1);
+    mTracker.track(1, frame);
+    mClock.advance(400);
+    mTracker.onAck(1);
+
+    RttEstimator estimator = mTracker.getEstimator(MeshFrame.getDestinationKey(frame, 0));
+    assertTrue(estimator.hasSamples());
+    assertEquals(400, estimator.getSmoothedRtt());
+    // 400 + 4 * 200
+    assertEquals(1200, estimator.getTimeout());
+  }
+
+  @Test
+  public void onAck_ofRetransmissionIsNotAnRttSample() {
+    byte[] frame = frame(1);
+    mTracker.track(1, frame);
+    mClock.advance(INITIAL_TIMEOUT);
+    mTracker.runDue(mListener);
+    mClock.advance(100);
+
+    assertEquals(INITIAL_TIMEOUT + 100, mTracker.onAck(1));
+    assertFalse(mTracker.getEstimator(MeshFrame.getDestinationKey(frame, 0)).hasSamples());
+  }
+
+  @Test
+  public void runDue_passesTheFrameAsFirstSent() {
+    final byte[] frame = frame(1);
+    final List<byte[]> retransmitted = new ArrayList<>();
+    mTracker.track(1, frame);
+    mClock.advance(INITIAL_TIMEOUT);
+
+    mTracker.runDue(
+        new RetransmissionTracker.Listener() {
+          @Override
+          public void onRetransmit(int messageId, byte[] sent, int attempt) {
+            retransmitted.add(sent);
+          }
+
+          @Override
+          public void onGiveUp(int messageId, byte[] sent) {}
+        });
+
+    assertEquals(1, retransmitted.size());
+    assertSame(frame, retransmitted.get(0));
+  }
+
+  /** Moves the clock on from deadline to deadline until nothing is pending. */
+  private void runUntilIdle() {
+    for (int i = 0; i < 100 && mTracker.getNextDeadline() >= 0; i++) {
+      mClock.advance(Math.max(0, mTracker.getNextDeadline() - mClock.now()));
+      mTracker.runDue(mListener);
+    }
+  }
+
+  private static byte[] frame(int messageId) {
+    return MeshFrame.create(
+        MeshFrame.TYPE_TEXT,
+        4,
+        messageId,
+        MeshFrame.encodeAddress("a"),
+        MeshFrame.encodeAddress("b"),
+        "hi".getBytes(StandardCharsets.UTF_8));
+  }
+}
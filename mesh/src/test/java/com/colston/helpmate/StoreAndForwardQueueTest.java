@@ -0,0 +1,133 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class StoreAndForwardQueueTest {
+  private static final long LIFETIME = 60 * 1000;
+
+  private final FakeClock mClock = new FakeClock(1000);
+  private final StoreAndForwardQueue mQueue = new StoreAndForwardQueue(mClock, 3);
+
+  @Test
+  public void add_storesEachMessageOnce() {
+    byte[] frame = frame(1);
+
+    assertTrue(mQueue.add(frame, LIFETIME));
+    assertFalse(mQueue.add(frame(1), LIFETIME));
+
+    assertEquals(1, mQueue.size());
+    assertSame(frame, mQueue.get(key(1)));
+    assertNull(mQueue.get(key(2)));
+  }
+
+  @Test
+  public void remove_dropsTheFrameOnceAcked() {
+    mQueue.add(frame(1), LIFETIME);
+
+    assertTrue(mQueue.remove(key(1)));
+    assertFalse(mQueue.remove(key(1)));
+
+    assertNull(mQueue.get(key(1)));
+    assertEquals(0, mQueue.size());
+  }
+
+  @Test
+  public void get_ignoresExpiredFrames() {
+    mQueue.add(frame(1), LIFETIME);
+    mQueue.add(frame(2), 2 * LIFETIME);
+
+    mClock.advance(LIFETIME);
+
+    assertNull(mQueue.get(key(1)));
+    assertEquals(1, mQueue.peekAll().size());
+    assertEquals(2, MeshFrame.getMessageId(mQueue.peekAll().get(0), 0));
+  }
+
+  @Test
+  public void purgeExpired_countsDroppedFrames() {
+    mQueue.add(frame(1), LIFETIME);
+    mQueue.add(frame(2), LIFETIME);
+    mQueue.add(frame(3), 2 * LIFETIME);
+
+    mClock.advance(LIFETIME);
+
+    assertEquals(3, mQueue.size());
+    assertEquals(2, mQueue.purgeExpired());
+    assertEquals(1, mQueue.size());
+  }
+
+  @Test
+  public void add_evictsTheOldestFrameWhenFull() {
+    for (int messageId = 1; messageId <= 4; messageId++) {
+      mQueue.add(frame(messageId), LIFETIME);
+    }
+
+    assertEquals(3, mQueue.size());
+    assertNull(mQueue.get(key(1)));
+    assertEquals(2, MeshFrame.getMessageId(mQueue.peekAll().get(0), 0));
+  }
+
+  @Test
+  public void readFrom_restoresLiveFramesWithTheirExpiry() throws IOException {
+    mQueue.add(frame(1), LIFETIME);
+    mQueue.add(frame(2), 2 * LIFETIME);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    mQueue.writeTo(out);
+
+    mClock.advance(LIFETIME);
+    StoreAndForwardQueue restored = new StoreAndForwardQueue(mClock, 3);
+    restored.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(1, restored.size());
+    assertArrayEquals(frame(2), restored.get(key(2)));
+    mClock.advance(LIFETIME);
+    assertNull(restored.get(key(2)));
+  }
+
+  @Test(expected = IOException.class)
+  public void readFrom_rejectsUnknownVersions() throws IOException {
+    mQueue.readFrom(new ByteArrayInputStream(new byte[] {0, 0, 0, 99, 0, 0, 0, 0}));
+  }
+
+  private static byte[] frame(int messageId) {
+    return MeshFrame.create(
+        MeshFrame.TYPE_TEXT,
+        4,
+        messageId,
+        MeshFrame.encodeAddress("a"),
+        MeshFrame.encodeAddress("b"),
+        "hi".getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static long key(int messageId) {
+    return DuplicateCache.key(MeshFrame.addressKey(MeshFrame.encodeAddress("a")), messageId);
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TaskSchedulerTest {
+  /** Long enough that no task scheduled with it runs during a test. */
+  private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+  private static final Executor DIRECT =
+      new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          command.run();
+        }
+      };
+
+  private ScheduledThreadPoolExecutor mTimer;
+  private TaskScheduler mScheduler;
+
+  @Before
+  public void setUp() {
+    mTimer = new ScheduledThreadPoolExecutor(1);
+    mTimer.setRemoveOnCancelPolicy(true);
+    mScheduler = new TaskScheduler(mTimer, DIRECT, new Random(1));
+  }
+
+  @After
+  public void tearDown() {
+    mTimer.shutdownNow();
+  }
+
+  @Test
+  public void schedule_runsTaskAndForgetsIt() throws InterruptedException {
+    final CountDownLatch ran = new CountDownLatch(1);
+    mScheduler.schedule("a", countDown(ran), 0, 0);
+
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    assertFalse(mScheduler.isPending("a"));
+  }
+
+  @Test
+  public void schedule_sameKeyReplacesWaitingTask() throws InterruptedException {
+    AtomicInteger first = new AtomicInteger();
+    TaskScheduler.Task replaced = mScheduler.schedule("a", increment(first), NEVER, 0);
+    final CountDownLatch ran = new CountDownLatch(1);
+    mScheduler.schedule("a", countDown(ran), 0, 0);
+
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    assertTrue(replaced.isCancelled());
+    assertEquals(0, first.get());
+    assertEquals(0, mTimer.getQueue().size());
+  }
+
+  @Test
+  public void cancel_stopsTask() {
+    TaskScheduler.Task task = mScheduler.schedule("a", new FailingTask(), NEVER, 0);
+
+    assertTrue(mScheduler.cancel("a"));
+    assertTrue(task.isCancelled());
+    assertFalse(mScheduler.isPending("a"));
+    assertFalse(mScheduler.cancel("a"));
+    assertEquals(0, mTimer.getQueue().size());
+  }
+
+  @Test
+  public void cancelAll_cancelsEveryTask() {
+    TaskScheduler.Task a = mScheduler.schedule("a", new FailingTask(), NEVER, 0);
+    TaskScheduler.Task b = mScheduler.schedule("b", new FailingTask(), NEVER, 0);
+    TaskScheduler.Task c = mScheduler.schedule("c", new FailingTask(), NEVER, 100);
+
+    mScheduler.cancelAll();
+
+    assertTrue(a.isCancelled());
+    assertTrue(b.isCancelled());
+    assertTrue(c.isCancelled());
+    assertFalse(mScheduler.isPending("a"));
+    assertFalse(mScheduler.isPending("b"));
+    assertFalse(mScheduler.isPending("c"));
+    assertEquals(0, mTimer.getQueue().size());
+  }
+
+  @Test
+  public void cancelAll_leavesSchedulerUsable() throws InterruptedException {
+    mScheduler.schedule("a", new FailingTask(), NEVER, 0);
+    mScheduler.schedule("b", new FailingTask(), NEVER, 0);
+    mScheduler.cancelAll();
+
+    final CountDownLatch ran = new CountDownLatch(1);
+    mScheduler.schedule("a", countDown(ran), 0, 0);
+
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void getBackoffDelay_doublesUpToMax() {
+    assertEquals(1000, TaskScheduler.getBackoffDelay(1000, 60000, 0));
+    assertEquals(2000, TaskScheduler.getBackoffDelay(1000, 60000, 1));
+    assertEquals(8000, TaskScheduler.getBackoffDelay(1000, 60000, 3));
+    assertEquals(60000, TaskScheduler.getBackoffDelay(1000, 60000, 10));
+    assertEquals(60000, TaskScheduler.getBackoffDelay(1000, 60000, Integer.MAX_VALUE));
+  }
+
+  private static Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+  }
+
+  private static Runnable increment(final AtomicInteger counter) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        counter.incrementAndGet();
+      }
+    };
+  }
+
+  /** A task that must never run. */
+  private static class FailingTask implements Runnable {
+    @Override
+    public void run() {
+      throw new AssertionError("Cancelled task ran");
+    }
+  }
+}
@@ -0,0 +1,82 @@
+#!/usr/bin/env bash
+#
+# Copyright 2023 Colston Bod-oy
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Runs a mesh of headless nodes on this machine and prints each node's report.
+#
+#   node/run-local-mesh.sh [count] [line|ring|full] [extra MeshNode options...]
+#
+# eg. node/run-local-mesh.sh 30 ring --rate=5 --duration=300 --mode=gossip
+#
+# Node i is called n<i> and listens on port BASE_PORT + i. Logs go to node/build/mesh-logs.
+
+set -euo pipefail
+
+count=${1:-10}
+topology=${2:-line}
+shift $(( $# > 2 ? 2 : $# ))
+extra=("$@")
+if [ ${#extra[@]} -eq 0 ]; then
+  extra=(--rate=2 --duration=60)
+fi
+
+base_port=${BASE_PORT:-47000}
+root=$(cd "$(dirname "$0")/.." && pwd)
+logs="$root/node/build/mesh-logs"
+
+"$root/gradlew" -q -p "$root" :node:installDist
+mkdir -p "$logs"
+rm -f "$logs"/*.log
+
+peers_of() {
+  local i=$1 peers=() j
+  case "$topology" in
+    line)
+      [ "$i" -gt 1 ] && peers+=("127.0.0.1:$((base_port + i - 1))")
+      [ "$i" -lt "$count" ] && peers+=("127.0.0.1:$((base_port + i + 1))")
+      ;;
+    ring)
+      peers+=("127.0.0.1:$((base_port + (i + count - 2) % count + 1))")
+      peers+=("127.0.0.1:$((base_port + i % count + 1))")
+      ;;
+    full)
+      for ((j = 1; j <= count; j++)); do
+        [ "$j" -ne "$i" ] && peers+=("127.0.0.1:$((base_port + j))")
+      done
+      ;;
+    *)
+      echo "Unknown topology $topology" >&2
+      exit 1
+      ;;
+  esac
+  (IFS=,; echo "${peers[*]}")
+}
+
+pids=()
+for ((i = 1; i <= count; i++)); do
+  "$root/node/build/install/node/bin/node" \
+    --name="n$i" --port=$((base_port + i)) --peers="$(peers_of "$i")" "${extra[@]}" \
+    < /dev/null > "$logs/n$i.log" 2>&1 &
+  pids+=($!)
+done
+trap 'kill "${pids[@]}" 2> /dev/null' INT TERM
+
+wait "${pids[@]}" || true
+
+# Each node's last summary, and the per-source lines of its final report.
+for ((i = 1; i <= count; i++)); do
+  awk '/^n[0-9]+: sent/ { report = "" } /^n[0-9]+: sent|^  from/ { report = report $0 "\n" }
+       END { printf "%s", report }' "$logs/n$i.log"
+done
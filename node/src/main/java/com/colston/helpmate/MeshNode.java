@@ -0,0 +1,677 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import androidx.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A mesh node without a phone: the {@link MeshEngine} of the automatic app, over a {@link
+ * TcpTransport}, run from the command line. Dozens of them can run as processes on one machine to
+ * soak test the mesh logic without radios.
+ *
+ * <p>The node behaves like the automatic app: it advertises and discovers at once, connects to
+ * every node it finds, up to a limit, and accepts every connection. Frames are batched the same way
+ * too. Its traffic generator sends load test messages at a steady rate, and it reports the
+ * throughput and latency of what it sends and receives. Lines typed on stdin, as {@code
+ * <destination> <text>}, are sent as messages.
+ *
+ * <p>Everything but the transport's own threads runs on one thread, the way the app runs on its
+ * main thread, so the engine never needs locking.
+ */
+public class MeshNode {
+  private static final String SERVICE_ID = "com.colston.helpmate.automatic.SERVICE_ID";
+
+  /** The largest payload we pack {@link MeshFrame}s into. */
+  private static final int MAX_BATCH_BYTES = 8192;
+
+  /** The longest a {@link MeshFrame} waits for others to share its payload with. */
+  private static final long MAX_BATCH_DELAY = 20;
+
+  /** The most payloads in flight to a neighbor at once. */
+  private static final int SEND_WINDOW = 4;
+
+  /** The most payloads queued for a neighbor while its window is full. */
+  private static final int SEND_QUEUE_CAPACITY = 32;
+
+  /** How long a payload takes up room in the window without a transfer result. */
+  private static final long SEND_TIMEOUT = 10000;
+
+  /** The time between two attempts to connect to the nodes we've found but aren't connected to. */
+  private static final long CONNECT_INTERVAL = 5000;
+
+  /** The most random delay before a connection request, so two nodes don't ask each other. */
+  private static final int CONNECT_JITTER = 500;
+
+  /** Load test messages start with this, followed by their sequence number and send time. */
+  private static final String LOAD_PREFIX = "load ";
+
+  private final String mName;
+  private final int mMaxConnections;
+  private final MeshTransport mTransport;
+  private final MeshEngine mMesh;
+  private final TrafficStats mStats;
+  private final Random mRandom = new Random();
+
+  /** The node's only thread, apart from the transport's. */
+  private final ScheduledExecutorService mExecutor;
+
+  private final FrameBatcher mFrameBatcher =
+      new FrameBatcher(Clock.SYSTEM, MAX_BATCH_BYTES, MAX_BATCH_DELAY);
+
+  private final OutboundQueue mOutboundQueue =
+      new OutboundQueue(
+          Clock.SYSTEM,
+          SEND_QUEUE_CAPACITY,
+          SEND_WINDOW,
+          SEND_TIMEOUT,
+          OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+  /** The nodes we've found, by endpoint id, with their names. */
+  private final Map<String, String> mDiscovered = new LinkedHashMap<>();
+
+  /** The nodes we're connecting to or connected to, by endpoint id, with their names. */
+  private final Map<String, String> mPending = new HashMap<>();
+
+  private final Map<String, String> mConnected = new LinkedHashMap<>();
+
+  @Nullable private ScheduledFuture<?> mMeshFuture;
+  @Nullable private ScheduledFuture<?> mFlushFuture;
+  @Nullable private ScheduledFuture<?> mSendTimeoutFuture;
+  @Nullable private ScheduledFuture<?> mTrafficFuture;
+
+  private int mNextLoadMessage;
+
+  /** Queues finished batches for the transport. */
+  private final FrameBatcher.BatchListener mBatchListener =
+      new FrameBatcher.BatchListener() {
+        @Override
+        public void onBatch(String endpointId, byte[] batch, int priority) {
+          mOutboundQueue.add(endpointId, batch, priority, mSendListener);
+          scheduleSendTimeouts();
+        }
+      };
+
+  /** Hands the payloads {@link #mOutboundQueue} lets through to the transport. */
+  private final OutboundQueue.SendListener mSendListener =
+      new OutboundQueue.SendListener() {
+        @Override
+        public long onSend(String endpointId, byte[] payload) {
+          return mTransport.sendBytes(Collections.singleton(endpointId), payload, null);
+        }
+      };
+
+  private final MeshEngine.Listener mMeshListener =
+      new MeshEngine.Listener() {
+        @Override
+        public void onSend(byte[] frame, Collection<String> endpointIds) {
+          for (String endpointId : endpointIds) {
+            mFrameBatcher.add(endpointId, frame, mBatchListener);
+          }
+          scheduleFlush();
+        }
+
+        @Override
+        public void onMessage(String source, int messageId, String text, int priority) {
+          if (text.startsWith(LOAD_PREFIX)) {
+            String[] fields = text.split(" ", 4);
+            try {
+              long sentAt = Long.parseLong(fields[2]);
+              mStats.onReceived(source, text.length(), System.currentTimeMillis() - sentAt);
+              return;
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+              // Not one of ours after all; show it.
+            }
+          }
+          log(source + ": " + text);
+        }
+
+        @Override
+        public void onDelivered(String destination, int messageId) {
+          mStats.onDelivered();
+        }
+
+        @Override
+        public void onNotDelivered(String destination, int messageId) {
+          mStats.onNotDelivered();
+        }
+
+        @Override
+        public void onTopologyChanged() {}
+
+        @Override
+        public void onLog(String message) {}
+      };
+
+  private final MeshTransport.Callback mTransportCallback =
+      new MeshTransport.Callback() {
+        @Override
+        public void onEndpointFound(String endpointId, String name) {
+          mDiscovered.put(endpointId, name);
+          connectLater(endpointId);
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {
+          mDiscovered.remove(endpointId);
+        }
+
+        @Override
+        public void onConnectionInitiated(String endpointId, String name, boolean incoming) {
+          mPending.put(endpointId, name);
+          mTransport.acceptConnection(endpointId, null);
+        }
+
+        @Override
+        public void onConnectionResult(String endpointId, boolean connected, String status) {
+          String name = mPending.remove(endpointId);
+          if (!connected || name == null) {
+            return;
+          }
+          log("Connected to " + name + " (" + endpointId + ")");
+          mConnected.put(endpointId, name);
+          mMesh.onNeighborConnected(endpointId, name);
+          scheduleMesh();
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+          String name = mConnected.remove(endpointId);
+          if (name == null) {
+            return;
+          }
+          log("Disconnected from " + name + " (" + endpointId + ")");
+          mFrameBatcher.remove(endpointId);
+          mOutboundQueue.remove(endpointId);
+          mMesh.onNeighborDisconnected(endpointId);
+          scheduleMesh();
+        }
+
+        @Override
+        public void onBytesReceived(final String endpointId, long payloadId, byte[] bytes) {
+          if (bytes.length == 0 || MeshFrame.getVersion(bytes, 0) != MeshFrame.VERSION) {
+            return;
+          }
+          FrameBatcher.unbatch(
+              bytes,
+              bytes.length,
+              new FrameBatcher.FrameListener() {
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) {
+                  onReceiveFrame(endpointId, buffer, offset, length);
+                }
+              });
+          scheduleMesh();
+        }
+
+        @Override
+        public void onStreamReceived(String endpointId, long payloadId, InputStream stream) {
+          // Nodes don't play audio; drain the stream so the sender isn't held up.
+          drain(stream);
+        }
+
+        @Override
+        public void onTransferUpdate(
+            String endpointId, long payloadId, int status, long bytesTransferred) {
+          if (status != MeshTransport.TRANSFER_IN_PROGRESS) {
+            mOutboundQueue.onTransferFinished(endpointId, payloadId, mSendListener);
+            scheduleSendTimeouts();
+          }
+        }
+      };
+
+  /**
+   * @param name This node's name, which other nodes address it by.
+   * @param transport The transport to the other nodes. Its callbacks must run on the executor.
+   * @param config The mesh settings.
+   * @param maxConnections The most nodes to connect to ourselves. Others may still connect to us.
+   * @param executor A single thread for the node to run on.
+   */
+  public MeshNode(
+      String name,
+      MeshTransport transport,
+      MeshConfig config,
+      int maxConnections,
+      ScheduledExecutorService executor) {
+    mName = name;
+    mExecutor = executor;
+    mMaxConnections = maxConnections;
+    mTransport = transport;
+    mMesh = new MeshEngine(name, config, Clock.SYSTEM, Clock.WALL, mRandom, mMeshListener);
+    mStats = new TrafficStats();
+    transport.setCallback(mTransportCallback);
+  }
+
+  public TrafficStats getStats() {
+    return mStats;
+  }
+
+  /** Starts advertising and discovering, and keeps trying to connect to the nodes found. */
+  public void start() {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            mTransport.startAdvertising(mName, SERVICE_ID, new FailureLogger("Advertising"));
+            mTransport.startDiscovery(SERVICE_ID, new FailureLogger("Discovery"));
+          }
+        });
+    mExecutor.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            for (String endpointId : new ArrayList<>(mDiscovered.keySet())) {
+              connectLater(endpointId);
+            }
+          }
+        },
+        CONNECT_INTERVAL,
+        CONNECT_INTERVAL,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops the node, closing every connection. */
+  public void stop() {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            mTransport.stopAllEndpoints();
+          }
+        });
+    mExecutor.shutdown();
+  }
+
+  /**
+   * Starts sending load test messages.
+   *
+   * @param rate The messages to send per second.
+   * @param size The length of each message's text.
+   * @param destinations The nodes to pick each message's destination from, at random. {@link
+   *     MeshFrame#BROADCAST} sends to everyone.
+   */
+  public void startTraffic(double rate, final int size, final List<String> destinations) {
+    stopTraffic();
+    mTrafficFuture =
+        mExecutor.scheduleAtFixedRate(
+            new Runnable() {
+              @Override
+              public void run() {
+                String destination = destinations.get(mRandom.nextInt(destinations.size()));
+                String text =
+                    LOAD_PREFIX + mNextLoadMessage++ + " " + System.currentTimeMillis() + " ";
+                StringBuilder padded = new StringBuilder(text);
+                while (padded.length() < size) {
+                  padded.append('.');
+                }
+                send(destination, padded.toString());
+                mStats.onSent(padded.length());
+              }
+            },
+            0,
+            Math.max(1, (long) (1000000 / rate)),
+            TimeUnit.MICROSECONDS);
+  }
+
+  /** Stops sending load test messages. Messages already sent are still relayed and retried. */
+  public void stopTraffic() {
+    if (mTrafficFuture != null) {
+      mTrafficFuture.cancel(false);
+      mTrafficFuture = null;
+    }
+  }
+
+  /** Sends a text message. Safe to call from any thread. */
+  public void send(final String destination, final String text) {
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (!MeshFrame.isValidAddress(destination)) {
+              log("Invalid destination " + destination);
+              return;
+            }
+            mMesh.sendText(destination, text);
+            scheduleMesh();
+          }
+        });
+  }
+
+  /** Asks a node we've found to connect, after a short random delay, if we still need to. */
+  private void connectLater(final String endpointId) {
+    mExecutor.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            String name = mDiscovered.get(endpointId);
+            if (name == null
+                || mPending.containsKey(endpointId)
+                || mConnected.containsKey(endpointId)
+                || mConnected.containsValue(name)
+                || mConnected.size() >= mMaxConnections) {
+              return;
+            }
+            mPending.put(endpointId, name);
+            mTransport.requestConnection(
+                mName,
+                endpointId,
+                new MeshTransport.ResultListener() {
+                  @Override
+                  public void onSuccess() {}
+
+                  @Override
+                  public void onFailure(Exception e) {
+                    mPending.remove(endpointId);
+                  }
+                });
+          }
+        },
+        mRandom.nextInt(CONNECT_JITTER),
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void onReceiveFrame(String endpointId, byte[] buffer, int offset, int length) {
+    int type = MeshFrame.getType(buffer, offset);
+    if (type != MeshFrame.TYPE_PING && type != MeshFrame.TYPE_PONG) {
+      mMesh.onReceiveFrame(endpointId, buffer, offset, length);
+    } else if (type == MeshFrame.TYPE_PING
+        && MeshFrame.getPayloadLength(buffer, offset) >= MeshFrame.PROBE_PAYLOAD_LENGTH) {
+      // Answer link quality probes from phones, which expect them answered.
+      mTransport.sendBytes(
+          Collections.singleton(endpointId),
+          MeshFrame.createProbe(MeshFrame.TYPE_PONG, MeshFrame.getProbeId(buffer, offset)),
+          null);
+    }
+  }
+
+  /** Wakes us up when {@link #mMesh} next has work to do. */
+  private void scheduleMesh() {
+    if (mMeshFuture != null) {
+      mMeshFuture.cancel(false);
+    }
+    long deadline = mMesh.getNextDeadline();
+    if (deadline < 0) {
+      return;
+    }
+    mMeshFuture =
+        mExecutor.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                mMesh.runDue();
+                scheduleMesh();
+              }
+            },
+            Math.max(0, deadline - Clock.SYSTEM.now()),
+            TimeUnit.MILLISECONDS);
+  }
+
+  /** Flushes {@link #mFrameBatcher} when its next batch is due. */
+  private void scheduleFlush() {
+    if (mFlushFuture != null) {
+      mFlushFuture.cancel(false);
+    }
+    long deadline = mFrameBatcher.getNextDeadline();
+    if (deadline < 0) {
+      return;
+    }
+    mFlushFuture =
+        mExecutor.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                mFrameBatcher.flushDue(mBatchListener);
+                scheduleFlush();
+              }
+            },
+            Math.max(0, deadline - Clock.SYSTEM.now()),
+            TimeUnit.MILLISECONDS);
+  }
+
+  /** Frees up the window of payloads that never got a transfer result. */
+  private void scheduleSendTimeouts() {
+    if (mSendTimeoutFuture != null) {
+      mSendTimeoutFuture.cancel(false);
+    }
+    long deadline = mOutboundQueue.getNextDeadline();
+    if (deadline < 0) {
+      return;
+    }
+    mSendTimeoutFuture =
+        mExecutor.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                mOutboundQueue.runDue(mSendListener);
+                scheduleSendTimeouts();
+              }
+            },
+            Math.max(0, deadline - Clock.SYSTEM.now()),
+            TimeUnit.MILLISECONDS);
+  }
+
+  private void log(String message) {
+    System.out.println(mName + ": " + message);
+  }
+
+  /** Reads a stream to its end on a thread of its own. */
+  private static void drain(final InputStream stream) {
+    Thread thread =
+        new Thread("MeshNode-drain") {
+          @Override
+          public void run() {
+            byte[] buffer = new byte[4096];
+            try {
+              while (stream.read(buffer) >= 0) {
+                // Discard it.
+              }
+              stream.close();
+            } catch (IOException e) {
+              // The stream has gone; nothing more to read.
+            }
+          }
+        };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Logs the failure of a request to {@link #mTransport}. */
+  private class FailureLogger implements MeshTransport.ResultListener {
+    private final String mRequest;
+
+    FailureLogger(String request) {
+      mRequest = request;
+    }
+
+    @Override
+    public void onSuccess() {}
+
+    @Override
+    public void onFailure(Exception e) {
+      log(mRequest + " failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Runs a node. Options are given as {@code --name=value}:
+   *
+   * <ul>
+   *   <li>{@code name}: the node's name, at most 16 bytes. Required.
+   *   <li>{@code port}: the port to listen on. Required.
+   *   <li>{@code host}: the address to listen on. The loopback address by default.
+   *   <li>{@code peers}: a comma separated list of {@code host:port} addresses of other nodes.
+   *   <li>{@code max-connections}: the most nodes to connect to ourselves. 4 by default.
+   *   <li>{@code mode}: {@code flooding}, the default, or {@code gossip}.
+   *   <li>{@code rate}: the load test messages to send per second. 0, the default, sends none.
+   *   <li>{@code size}: the length of each load test message. 64 by default.
+   *   <li>{@code to}: a comma separated list of nodes to send load test messages to, or {@code
+   *       All}, the default, to broadcast them.
+   *   <li>{@code delay}: the seconds to wait for the mesh to form before sending. 10 by default.
+   *   <li>{@code duration}: the seconds to send for before stopping, or 0, the default, to run
+   *       until killed.
+   *   <li>{@code drain}: the seconds to wait after sending for the last messages. 10 by default.
+   *   <li>{@code report}: the seconds between two summaries. 10 by default.
+   * </ul>
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException("Expected --name=value, not " + arg);
+      }
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+
+    String name = require(options, "name");
+    int port = Integer.parseInt(require(options, "port"));
+    InetAddress host = InetAddress.getByName(get(options, "host", "127.0.0.1"));
+    List<InetSocketAddress> peers = new ArrayList<>();
+    for (String peer : split(get(options, "peers", ""))) {
+      int colon = peer.lastIndexOf(':');
+      peers.add(
+          new InetSocketAddress(
+              peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+    }
+    int maxConnections = Integer.parseInt(get(options, "max-connections", "4"));
+    MeshConfig config = new MeshConfig();
+    config.relayMode = RelayMode.valueOf(get(options, "mode", "flooding").toUpperCase(Locale.US));
+    double rate = Double.parseDouble(get(options, "rate", "0"));
+    int size = Integer.parseInt(get(options, "size", "64"));
+    List<String> destinations = split(get(options, "to", MeshFrame.BROADCAST));
+    long delay = Long.parseLong(get(options, "delay", "10"));
+    long duration = Long.parseLong(get(options, "duration", "0"));
+    long drain = Long.parseLong(get(options, "drain", "10"));
+    long report = Long.parseLong(get(options, "report", "10"));
+    if (!options.isEmpty()) {
+      throw new IllegalArgumentException("Unknown options " + options.keySet());
+    }
+    if (!MeshFrame.isValidAddress(name)) {
+      throw new IllegalArgumentException("Invalid node name " + name);
+    }
+
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    TcpTransport transport = new TcpTransport(host, port, peers, executor);
+    final MeshNode node = new MeshNode(name, transport, config, maxConnections, executor);
+    node.start();
+
+    final String prefix = name + ": ";
+    executor.scheduleAtFixedRate(
+        new Runnable() {
+          @Override
+          public void run() {
+            System.out.println(prefix + node.getStats().getSummary(System.currentTimeMillis()));
+          }
+        },
+        report,
+        report,
+        TimeUnit.SECONDS);
+
+    Thread input =
+        new Thread("MeshNode-stdin") {
+          @Override
+          public void run() {
+            readCommands(node);
+          }
+        };
+    input.setDaemon(true);
+    input.start();
+
+    if (rate > 0) {
+      Thread.sleep(delay * 1000);
+      node.startTraffic(rate, size, destinations);
+    }
+    if (duration <= 0) {
+      Thread.currentThread().join();
+    }
+    Thread.sleep(duration * 1000);
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            node.stopTraffic();
+          }
+        });
+    // Give the messages in flight, and their retransmissions, time to arrive.
+    Thread.sleep(drain * 1000);
+    System.out.println(prefix + node.getStats().getReport(System.currentTimeMillis()));
+    node.stop();
+    System.exit(0);
+  }
+
+  /** Sends each line of stdin, as {@code <destination> <text>}. */
+  private static void readCommands(MeshNode node) {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.trim().split("\\s+", 2);
+        if (parts.length == 2) {
+          node.send(parts[0], parts[1]);
+        }
+      }
+    } catch (IOException e) {
+      // No more input.
+    }
+  }
+
+  private static List<String> split(String list) {
+    List<String> items = new ArrayList<>();
+    for (String item : Arrays.asList(list.split(","))) {
+      if (!item.trim().isEmpty()) {
+        items.add(item.trim());
+      }
+    }
+    return items;
+  }
+
+  private static String require(Map<String, String> options, String name) {
+    String value = options.remove(name);
+    if (value == null) {
+      throw new IllegalArgumentException("--" + name + " is required");
+    }
+    return value;
+  }
+
+  /** Takes an option out of the map, so that any left over at the end are unknown. */
+  private static String get(Map<String, String> options, String name, String defaultValue) {
+    String value = options.remove(name);
+    return value != null ? value : defaultValue;
+  }
+}
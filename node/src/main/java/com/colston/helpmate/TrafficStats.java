@@ -0,0 +1,151 @@
+/*
+ * Copyright 2023 Colston Bod-oy
+ *
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.colston.helpmate;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts the load test messages a {@link MeshNode} sends and receives, and how long they took to
+ * arrive. Latencies go into a histogram rather than a list, so a soak test can run for days in
+ * constant memory.
+ */
+public class TrafficStats {
+  /** Latencies are counted to the millisecond up to this, and lumped together above it. */
+  private static final int MAX_LATENCY = 60000;
+
+  /** When the first message was sent or received, in wall clock milliseconds, or -1. */
+  private long mStartTime = -1;
+
+  private long mSent;
+  private long mSentBytes;
+  private long mDelivered;
+  private long mNotDelivered;
+  private final Source mTotal = new Source();
+  private final Map<String, Source> mSources = new TreeMap<>();
+
+  /** What we've received from one node. */
+  private static class Source {
+    long received;
+    long receivedBytes;
+    final int[] latencies = new int[MAX_LATENCY + 1];
+
+    void add(int length, long latency) {
+      received++;
+      receivedBytes += length;
+      latencies[(int) Math.max(0, Math.min(latency, MAX_LATENCY))]++;
+    }
+
+    /** Returns the latency, in milliseconds, that the given share of messages beat. */
+    long getPercentile(double percentile) {
+      long rank = (long) Math.ceil(percentile / 100 * received);
+      long seen = 0;
+      for (int latency = 0; latency < latencies.length; latency++) {
+        seen += latencies[latency];
+        if (seen >= rank && seen > 0) {
+          return latency;
+        }
+      }
+      return -1;
+    }
+  }
+
+  public synchronized void onSent(int length) {
+    start();
+    mSent++;
+    mSentBytes += length;
+  }
+
+  /**
+   * A load test message has arrived.
+   *
+   * @param source The node that sent it.
+   * @param length The length of its text.
+   * @param latency The time since it was sent, in milliseconds. Only meaningful when both nodes
+   *     share a clock, eg. when they run on the same machine.
+   */
+  public synchronized void onReceived(String source, int length, long latency) {
+    start();
+    Source stats = mSources.get(source);
+    if (stats == null) {
+      stats = new Source();
+      mSources.put(source, stats);
+    }
+    stats.add(length, latency);
+    mTotal.add(length, latency);
+  }
+
+  /**
+   * Starts the clock the rates are measured by, so the time the mesh took to form isn't counted.
+   */
+  private void start() {
+    if (mStartTime < 0) {
+      mStartTime = System.currentTimeMillis();
+    }
+  }
+
+  /** A directed message we sent has been acknowledged. */
+  public synchronized void onDelivered() {
+    mDelivered++;
+  }
+
+  /** A directed message we sent ran out of retransmissions. */
+  public synchronized void onNotDelivered() {
+    mNotDelivered++;
+  }
+
+  /** Returns a one line summary of the traffic so far. */
+  public synchronized String getSummary(long now) {
+    double seconds = mStartTime < 0 ? 1 : Math.max(1, now - mStartTime) / 1000.0;
+    return String.format(
+        Locale.US,
+        "sent %d (%.1f msg/s, %.1f KB/s), received %d from %d nodes (%.1f msg/s, %.1f KB/s),"
+            + " latency p50/p90/p99 %d/%d/%d ms, acked %d, unacked %d",
+        mSent,
+        mSent / seconds,
+        mSentBytes / 1024.0 / seconds,
+        mTotal.received,
+        mSources.size(),
+        mTotal.received / seconds,
+        mTotal.receivedBytes / 1024.0 / seconds,
+        mTotal.getPercentile(50),
+        mTotal.getPercentile(90),
+        mTotal.getPercentile(99),
+        mDelivered,
+        mNotDelivered);
+  }
+
+  /** Returns the summary, followed by a line for each node we've received from. */
+  public synchronized String getReport(long now) {
+    StringBuilder report = new StringBuilder(getSummary(now));
+    for (Map.Entry<String, Source> entry : mSources.entrySet()) {
+      Source source = entry.getValue();
+      report.append(
+          String.format(
+              Locale.US,
+              "%n  from %-16s %8d msgs, latency p50/p90/p99 %d/%d/%d ms",
+              entry.getKey(),
+              source.received,
+              source.getPercentile(50),
+              source.getPercentile(90),
+              source.getPercentile(99)));
+    }
+    return report.toString();
+  }
+}
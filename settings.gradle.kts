@@ -14,4 +14,6 @@ dependencyResolutionManagement {
 }
 
 rootProject.name = "My Application"
-include(":app")
\ No newline at end of file
+include(":app")
+include(":mesh")
+include(":node")
\ No newline at end of file